@@ -2,6 +2,11 @@ package smartev3;
 
 public class AvoidanceMission
 {
+    // Every reading may block the way, however unsure (see ProximityMap.confidence):
+    // a ghost only costs a detour, but a real obstacle left out costs a collision.
+    private static final float BLOCKING_CONFIDENCE = 0;
+    private static final int LOOKAHEAD_STEP = 25; // centimetres
+
     private SmartRobot robot;
     private org.slf4j.Logger logger;
     private int pauseInterval;
@@ -69,19 +74,13 @@ public class AvoidanceMission
             // logger.debug("adjusted proximity map = " + robot.proximityMap);
             ConsoleGrid adjustedGrid = robot.proximityMap.consoleGrid("Proximity Map (adjusted)");
             System.out.print(originalGrid.join(adjustedGrid));
-            int angle = robot.proximityMap.angleWithMaximumDistance();
-            float distance = robot.proximityMap.getDistanceAtAngle(angle);
-            if (logger.isDebugEnabled())
-            {
-                logger.debug("........ avoidanceMission (target angle = "
-                    + angle + ", distance = " + distance + ")");
-            }
-            angle = robot.proximityMap.middleWithSimilarDistance(distance);
-            distance = robot.proximityMap.getDistanceAtAngle(angle);
+            int angle = steeringAngle(robot.proximityMap, robot.safePassingWidth() / 2);
+            float distance = Math.min(SmartRobot.MAXIMUM_TRUSTED_DISTANCE,
+                robot.proximityMap.clearDistance(angle, robot.safePassingWidth() / 2, BLOCKING_CONFIDENCE));
             if (logger.isDebugEnabled())
             {
-                logger.debug("........ avoidanceMission (middle angle = "
-                    + angle + ", distance = " + distance + ")");
+                logger.debug("........ avoidanceMission (valley angle = "
+                    + angle + ", clear distance = " + distance + ")");
             }
             int oldAngle = robot.gyroAngle();
             int targetAngle = oldAngle + angle;
@@ -105,4 +104,41 @@ public class AvoidanceMission
             logger.debug("Finished avoidanceMission");
         }
     }
+
+    /**
+     * Angle to head for: the middle of the widest valley (see
+     * ProximityMap.findValleys) open as far ahead as any valley is, in steps
+     * of LOOKAHEAD_STEP, taking the one needing the smallest turn if several
+     * are as wide. Straight ahead if there is no way through at all.
+     * Usually some valley is open as far as the sonar can see; if not, how
+     * far each angle is open is found once and the nearer steps read off it.
+     */
+    public static int steeringAngle(ProximityMap proximityMap, float radius)
+    {
+        int lookahead = (int)SmartRobot.MAXIMUM_TRUSTED_DISTANCE;
+        int valleys = proximityMap.findValleys(radius, lookahead, BLOCKING_CONFIDENCE);
+        if (valleys == 0)
+        {
+            int furthest = proximityMap.findBlockingDistances(radius, BLOCKING_CONFIDENCE);
+            do
+            {
+                lookahead -= LOOKAHEAD_STEP;
+            }
+            while (lookahead > furthest);
+            if (lookahead < LOOKAHEAD_STEP) return 0;
+            valleys = proximityMap.findValleys(lookahead);
+        }
+        int best = 0;
+        for (int i = 1; i < valleys; i++)
+        {
+            int width = proximityMap.valleyWidths[i];
+            int bestWidth = proximityMap.valleyWidths[best];
+            if (width > bestWidth || width == bestWidth
+                && Math.abs(proximityMap.valleyCentres[i]) < Math.abs(proximityMap.valleyCentres[best]))
+            {
+                best = i;
+            }
+        }
+        return proximityMap.valleyCentres[best];
+    }
 }
@@ -1,88 +1,112 @@
 package smartev3;
 
-import java.util.*;
-
 /**
- * A square cell with side of 50 cm (half metre).
+ * A square cell of a DiscoveryMap.
+ * Cells are lightweight views: the cell state itself is held in the map's
+ * tiled grid, indexed by {@link #index}.
  */
 public class Cell
 {
-    private boolean known = false, unsafe = false, visited = false;
+    private final DiscoveryMap map;
+
+    public final int index;
 
-    public int row, column;
+    public final int row, column;
 
     /**
      * Coordinates of the bounding box for this cell (centimetres from origin of containing map; may be negative).
      */
-    public double top, bottom, left, right;
+    public final double top, bottom, left, right;
 
-    public Point midpoint;
+    public final Point midpoint;
 
-    public Cell pathToSource;
+    Cell(DiscoveryMap map, int index)
+    {
+        this.map = map;
+        this.index = index;
+        this.row = map.rowOf(index);
+        this.column = map.columnOf(index);
+        this.top = map.cellTop(row);
+        this.bottom = top + map.getCellSize();
+        this.left = map.cellLeft(column);
+        this.right = left + map.getCellSize();
+        this.midpoint = new Point(map.midpointX(column), map.midpointY(row));
+    }
 
-    /**
-     * Neighbouring cells.
-     */
-    public final ArrayList<Cell> neighbours = new ArrayList<Cell>();
+    public boolean anyNeighbourHasObstacles()
+    {
+        return map.anyNeighbourHasObstacles(index);
+    }
 
     /**
-     * Locations of obstacles within this cell.
-     * Points are relative to the origin of the map containing the cell.
+     * Distance (centimetres) to the nearest obstacle cell, or infinity if none is nearby.
      */
-    public final ArrayList<Point> obstacles = new ArrayList<Point>();
+    public float clearance()
+    {
+        return map.clearanceAt(index);
+    }
 
-    public boolean anyNeighbourHasObstacles()
+    public boolean isSafe()
     {
-        for (Cell n : neighbours)
-        {
-            if (n.obstacles.size() != 0)
-            {
-                return true;
-            }
-        }
-        return false;
+        return map.isSafe(index);
     }
 
     public Cell anyNeighbourIsUnknown()
     {
-        for (Cell n : neighbours)
-        {
-            if (!n.known)
-            {
-                return n;
-            }
-        }
-        return null;
+        int n = map.anyNeighbourIsUnknown(index);
+        return n == -1 ? null : map.cellAt(n);
+    }
+
+    public int obstacleCount()
+    {
+        return map.obstacleCount(index);
+    }
+
+    public boolean hasObstacles()
+    {
+        return map.obstacleCount(index) != 0;
     }
 
     public boolean isKnown()
     {
-        return this.known || obstacles.size() != 0;
+        return map.isKnown(index);
     }
 
     public void setKnown(boolean known)
     {
-        this.known = known;
+        map.setFlag(index, DiscoveryMap.KNOWN, known);
     }
 
     public boolean isUnsafe()
     {
-        return this.unsafe;
+        return map.hasFlag(index, DiscoveryMap.UNSAFE);
     }
 
     public void setUnsafe(boolean unsafe)
     {
-        this.unsafe = unsafe;
+        map.setFlag(index, DiscoveryMap.UNSAFE, unsafe);
     }
 
     public boolean isVisited()
     {
-        return this.visited;
+        return map.isVisited(index);
     }
 
     public void setVisited(boolean visited)
     {
-        this.visited = visited;
+        map.setVisited(index, visited);
+    }
+
+    public boolean equals(Object other)
+    {
+        if (!(other instanceof Cell)) return false;
+        Cell that = (Cell)other;
+        return this.map == that.map && this.index == that.index;
+    }
+
+    public int hashCode()
+    {
+        return index;
     }
 
     public String toString()
@@ -0,0 +1,31 @@
+package smartev3;
+
+/**
+ * Source of time for the robot: the system's, or a simulator's virtual time
+ * that only moves on as the robot waits or uses its devices.
+ */
+public interface Clock
+{
+    Clock SYSTEM = new Clock()
+    {
+        public long nanoTime()
+        {
+            return System.nanoTime();
+        }
+
+        public void sleep(long nanoseconds)
+        {
+            try
+            {
+                Thread.sleep(nanoseconds / 1000000, (int)(nanoseconds % 1000000));
+            }
+            catch (InterruptedException ignore)
+            {
+            }
+        }
+    };
+
+    long nanoTime();
+
+    void sleep(long nanoseconds);
+}
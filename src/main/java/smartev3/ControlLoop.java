@@ -0,0 +1,173 @@
+package smartev3;
+
+/**
+ * Paces a control loop at a fixed period, so that what it does each pass
+ * (stall checks, power corrections) means the same whatever the CPU load
+ * or log level. The loop calls start before its first pass, next at the
+ * top of every pass and finish after its last: next waits until the
+ * period since the last pass started is up, or, if the last pass overran
+ * its period, counts the overrun and goes straight on (it does not try to
+ * catch up).
+ * Each run's pass times go into a histogram of whole milliseconds, kept
+ * for the life of the loop, so its report says how long passes really take.
+ * A Watchdog hears of every pass that finished too long after its
+ * deadline, with how many in a row have, so it can tell a single pause
+ * (a garbage collection, say) from a loop that cannot keep up, and stop
+ * the motors before the robot goes far on stale decisions. It can
+ * only act once the late pass returns, so a device read that never returns
+ * is left to the sensor sampler's own time limits.
+ * Times come from a Clock, so against a simulator the loop runs in its
+ * virtual time and in a replay it follows the recorded one.
+ */
+public class ControlLoop
+{
+    public interface Watchdog
+    {
+        void missedDeadline(ControlLoop loop, long lateNanoseconds);
+    }
+
+    public final String name;
+    public final long period; // nanoseconds
+    public final long watchdogLateness; // nanoseconds past a deadline before the watchdog acts
+    public long passes = 0;
+    public long overruns = 0;
+    public long worstLateness = 0; // nanoseconds
+    public long missedDeadlines = 0; // passes later than watchdogLateness
+    public int consecutiveMisses = 0; // of them, in a row up to the last pass
+
+    private final long[] _histogram; // pass times in milliseconds, up to four periods; the last counts the rest
+    private Clock _clock = Clock.SYSTEM;
+    private Watchdog _watchdog;
+    private long _started; // when the current pass started
+    private boolean _running = false;
+
+    /**
+     * A loop run every so many milliseconds, whose watchdog (if it has one)
+     * acts on a pass that finishes more than so many milliseconds late.
+     */
+    public ControlLoop(String name, int periodMilliseconds, int watchdogMilliseconds)
+    {
+        if (periodMilliseconds < 1)
+        {
+            throw new RuntimeException("ControlLoop: " + name + " needs a period of at least a millisecond!");
+        }
+        this.name = name;
+        this.period = periodMilliseconds * 1000000L;
+        this.watchdogLateness = watchdogMilliseconds * 1000000L;
+        _histogram = new long[4 * periodMilliseconds + 1];
+    }
+
+    public void setClock(Clock clock)
+    {
+        _clock = clock;
+    }
+
+    public void setWatchdog(Watchdog watchdog)
+    {
+        _watchdog = watchdog;
+    }
+
+    /**
+     * Start a run of the loop: the next call to next begins its first pass
+     * at once. A run left by an exception is simply forgotten.
+     */
+    public void start()
+    {
+        _running = false;
+        consecutiveMisses = 0;
+    }
+
+    /**
+     * Begin the next pass, first accounting for the one before it and
+     * waiting out the rest of its period.
+     */
+    public void next()
+    {
+        long now = _clock.nanoTime();
+        if (!_running)
+        {
+            _running = true;
+            _started = now;
+            return;
+        }
+        long deadline = _started + period;
+        long late = now - deadline;
+        account(now - _started);
+        if (late > 0)
+        {
+            overruns++;
+            worstLateness = Math.max(worstLateness, late);
+            _started = now;
+            if (_watchdog != null && late > watchdogLateness)
+            {
+                missedDeadlines++;
+                consecutiveMisses++;
+                _watchdog.missedDeadline(this, late);
+                return;
+            }
+        }
+        else
+        {
+            if (late < 0) _clock.sleep(-late);
+            _started = deadline;
+        }
+        consecutiveMisses = 0;
+    }
+
+    /**
+     * End the run, accounting for its last pass.
+     */
+    public void finish()
+    {
+        if (_running)
+        {
+            account(_clock.nanoTime() - _started);
+            _running = false;
+        }
+    }
+
+    private void account(long nanoseconds)
+    {
+        passes++;
+        int bucket = (int)Math.min(_histogram.length - 1, nanoseconds / 1000000);
+        _histogram[bucket]++;
+    }
+
+    /**
+     * Milliseconds within which the given fraction of passes finished, or
+     * -1 if they took more than four periods.
+     */
+    public int percentile(double fraction)
+    {
+        long wanted = (long)Math.ceil(fraction * passes), seen = 0;
+        for (int bucket = 0; bucket < _histogram.length - 1; bucket++)
+        {
+            seen += _histogram[bucket];
+            if (seen >= wanted) return bucket + 1;
+        }
+        return -1;
+    }
+
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append(name).append(" every ").append(period / 1000000).append(" ms: ").append(passes).append(" passes");
+        if (passes > 0)
+        {
+            int median = percentile(0.5), most = percentile(0.99);
+            builder.append(", half within ").append(median < 0 ? "more than four periods" : median + " ms");
+            builder.append(", 99% within ").append(most < 0 ? "more than four periods" : most + " ms");
+        }
+        if (overruns > 0)
+        {
+            builder.append(", ").append(overruns).append(" overruns (worst ")
+                .append(SmartRobot.formatFixed1(worstLateness / 1e6)).append(" ms late)");
+        }
+        if (missedDeadlines > 0)
+        {
+            builder.append(", ").append(missedDeadlines).append(" more than ")
+                .append(watchdogLateness / 1000000).append(" ms late");
+        }
+        return builder.toString();
+    }
+}
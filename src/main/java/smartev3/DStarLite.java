@@ -0,0 +1,301 @@
+package smartev3;
+
+/**
+ * D* Lite incremental path planner over the cells of a DiscoveryMap.
+ * Searches backwards from the goal so that when the robot moves and a few
+ * cells change, only the affected part of the search is repaired.
+ * See Koenig and Likhachev, "D* Lite" (AAAI 2002), optimised version.
+ * DiscoveryMission does not use it: a first plan costs several times a
+ * breadth first search, and in a room the look-around at the end of each
+ * pass usually reveals the target, so almost every plan is a first plan.
+ * Repairs only win on long routes planned again after small changes, as in
+ * DiscoveryBenchmark.benchmarkLongRoutes.
+ */
+public class DStarLite
+{
+    public static final int STRAIGHT_COST = 10;
+    public static final int DIAGONAL_COST = 14;
+
+    private static final int INFINITE = Integer.MAX_VALUE / 4;
+
+    private static final int MAXIMUM_PATH_LENGTH = 1 << 20; // cells
+
+    private final DiscoveryMap map;
+
+    // Costs are only valid for cells stamped with the current generation;
+    // others count as infinite, so starting a new search costs nothing.
+    // All three are layers of the map's tiled grid.
+    private final TiledGrid grid;
+    private final int stamps;
+    private final int costs; // g
+    private final int lookaheads; // rhs
+    private int generation = 0;
+    private MinHeap open = new MinHeap();
+
+    private int[] clearancePenalties; // extra cost of entering a cell, by squared obstacle distance
+    private float penaltyRadius = -1;
+
+    private int start = -1;
+    private int lastStart = -1;
+    private int goal = -1;
+    private int keyModifier = 0; // km
+
+    /**
+     * Number of cells expanded by the last replan.
+     */
+    public int nodesExpanded;
+
+    /**
+     * Number of cells expanded since the planner was created.
+     */
+    public long totalNodesExpanded;
+
+    public int replans;
+
+    public DStarLite(DiscoveryMap map)
+    {
+        this.map = map;
+        this.grid = map.grid();
+        this.stamps = grid.addIntLayer(0);
+        this.costs = grid.addIntLayer(INFINITE);
+        this.lookaheads = grid.addIntLayer(INFINITE);
+    }
+
+    public int getGoal()
+    {
+        return goal;
+    }
+
+    /**
+     * Start a new search from start to goal, forgetting all previous results.
+     */
+    public void initialize(int start, int goal)
+    {
+        generation++;
+        open.clear();
+        this.start = start;
+        this.lastStart = start;
+        this.goal = goal;
+        this.keyModifier = 0;
+        updatePenalties();
+        setLookahead(goal, 0);
+        open.push(key(goal), goal);
+        computeShortestPath();
+    }
+
+    /**
+     * Repair the search after the robot moved to newStart and the given cells changed.
+     */
+    public void replan(int newStart, int[] changedCells, int changedCount)
+    {
+        if (newStart != start)
+        {
+            keyModifier += heuristic(lastStart, newStart);
+            lastStart = newStart;
+            start = newStart;
+        }
+        for (int i = 0; i < changedCount; i++)
+        {
+            // Cost of entering a changed cell may have changed,
+            // which affects every neighbour that could step into it.
+            int v = changedCells[i];
+            for (int k = 0; k < 8; k++)
+            {
+                int u = map.neighbourOf(v, k);
+                if (u != -1)
+                {
+                    updateVertex(u);
+                }
+            }
+        }
+        computeShortestPath();
+    }
+
+    /**
+     * Whether a path from start to goal exists.
+     */
+    public boolean hasPath()
+    {
+        return start != -1 && cost(start) < INFINITE;
+    }
+
+    /**
+     * Append the cells on the cheapest path from start to goal to the map's
+     * path (see DiscoveryMap.addPathCell).
+     */
+    public void extractPath()
+    {
+        if (!hasPath()) return;
+        int limit = MAXIMUM_PATH_LENGTH;
+        int c = start;
+        map.addPathCell(c);
+        while (c != goal && limit-- > 0)
+        {
+            int best = -1;
+            int bestCost = INFINITE;
+            for (int k = 0; k < 8; k++)
+            {
+                int n = map.neighbourOf(c, k);
+                if (n == -1) continue;
+                int stepCost = stepCost(c, n, k);
+                if (stepCost >= INFINITE) continue;
+                int total = stepCost + cost(n);
+                if (total < bestCost)
+                {
+                    best = n;
+                    bestCost = total;
+                }
+            }
+            if (best == -1) break;
+            c = best;
+            map.addPathCell(c);
+        }
+    }
+
+    private void computeShortestPath()
+    {
+        int expanded = 0;
+        MinHeap open = this.open;
+        while (!open.isEmpty())
+        {
+            int startCost = cost(start);
+            int startLookahead = lookahead(start);
+            if (open.peekKey() >= key(start) && startLookahead == startCost) break;
+            long oldKey = open.peekKey();
+            int u = open.poll();
+            int g = cost(u);
+            int rhs = lookahead(u);
+            if (g == rhs) continue; // stale entry for a consistent cell
+            long newKey = key(u);
+            if (oldKey < newKey)
+            {
+                open.push(newKey, u);
+            }
+            else if (g > rhs)
+            {
+                expanded++;
+                setCost(u, rhs);
+                for (int k = 0; k < 8; k++)
+                {
+                    int s = map.neighbourOf(u, k);
+                    if (s != -1) updateVertex(s);
+                }
+            }
+            else
+            {
+                expanded++;
+                setCost(u, INFINITE);
+                updateVertex(u);
+                for (int k = 0; k < 8; k++)
+                {
+                    int s = map.neighbourOf(u, k);
+                    if (s != -1) updateVertex(s);
+                }
+            }
+        }
+        nodesExpanded = expanded;
+        totalNodesExpanded += expanded;
+        replans++;
+    }
+
+    private void updateVertex(int u)
+    {
+        if (u != goal)
+        {
+            int best = INFINITE;
+            for (int k = 0; k < 8; k++)
+            {
+                int s = map.neighbourOf(u, k);
+                if (s == -1) continue;
+                int stepCost = stepCost(u, s, k);
+                if (stepCost >= INFINITE) continue;
+                best = Math.min(best, stepCost + cost(s));
+            }
+            setLookahead(u, Math.min(best, INFINITE));
+        }
+        if (cost(u) != lookahead(u))
+        {
+            open.push(key(u), u);
+        }
+    }
+
+    /**
+     * Cost of moving from cell u into its neighbour v (in direction k).
+     */
+    private int stepCost(int u, int v, int k)
+    {
+        if (v != goal && !map.isKnown(v)) return INFINITE;
+        if (!map.isSafe(v)) return INFINITE;
+        int base = (k == 1 || k == 3 || k == 4 || k == 6) ? STRAIGHT_COST : DIAGONAL_COST;
+        int d = map.obstacleDistanceSquared(v);
+        return d < clearancePenalties.length ? base + clearancePenalties[d] : base;
+    }
+
+    private void updatePenalties()
+    {
+        float safeRadius = map.safeRadius;
+        if (safeRadius == penaltyRadius) return;
+        // Penalise cells within twice the safe radius of an obstacle,
+        // in proportion to how far inside that distance they are.
+        int cellSize = map.getCellSize();
+        float comfortRadius = 2 * safeRadius;
+        int cells = (int)Math.ceil(comfortRadius / cellSize);
+        int[] penalties = new int[cells * cells + 1];
+        for (int d = 0; d < penalties.length; d++)
+        {
+            float clearance = (float)Math.sqrt(d) * cellSize;
+            float shortfall = Math.max(0, comfortRadius - clearance);
+            penalties[d] = (int)(STRAIGHT_COST * shortfall / cellSize);
+        }
+        clearancePenalties = penalties;
+        penaltyRadius = safeRadius;
+    }
+
+    private long key(int s)
+    {
+        int m = Math.min(cost(s), lookahead(s));
+        int k1 = Math.min(INFINITE, m + heuristic(start, s) + keyModifier);
+        return ((long)k1 << 32) | m;
+    }
+
+    private int heuristic(int a, int b)
+    {
+        // Octile distance: consistent with STRAIGHT_COST and DIAGONAL_COST.
+        int dr = Math.abs(map.rowOf(a) - map.rowOf(b));
+        int dc = Math.abs(map.columnOf(a) - map.columnOf(b));
+        int diagonal = Math.min(dr, dc);
+        return DIAGONAL_COST * diagonal + STRAIGHT_COST * (Math.max(dr, dc) - diagonal);
+    }
+
+    private int cost(int s)
+    {
+        return grid.getInt(stamps, s) == generation ? grid.getInt(costs, s) : INFINITE;
+    }
+
+    private int lookahead(int s)
+    {
+        return grid.getInt(stamps, s) == generation ? grid.getInt(lookaheads, s) : INFINITE;
+    }
+
+    private void setCost(int s, int value)
+    {
+        touch(s);
+        grid.setInt(costs, s, value);
+    }
+
+    private void setLookahead(int s, int value)
+    {
+        touch(s);
+        grid.setInt(lookaheads, s, value);
+    }
+
+    private void touch(int s)
+    {
+        if (grid.getInt(stamps, s) != generation)
+        {
+            grid.setInt(stamps, s, generation);
+            grid.setInt(costs, s, INFINITE);
+            grid.setInt(lookaheads, s, INFINITE);
+        }
+    }
+}
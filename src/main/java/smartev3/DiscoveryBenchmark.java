@@ -0,0 +1,1417 @@
+package smartev3;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Microbenchmarks for DiscoveryMap, runnable off the robot:
+ * java -cp my-robot-1.0.0.jar smartev3.DiscoveryBenchmark
+ */
+public class DiscoveryBenchmark
+{
+    private static final int WARMUP_ROUNDS = 200;
+    private static final int TIMED_ROUNDS = 1000;
+    private static final int DECISION_REPEATS = 20;
+
+    // Rough timings for a mission pass on the robot, to estimate how long
+    // mapping a room takes: looking around (head at 100 degrees per second
+    // out to one side and across to the other), then turning and driving.
+    private static final double LOOK_AROUND_SECONDS = 5;
+    private static final double TURN_DEGREES_PER_SECOND = 30;
+    private static final double DRIVE_CENTIMETRES_PER_SECOND = 10;
+    private static final int MAXIMUM_PASSES = 200;
+
+    // Furnished room for the mapping benchmark (see FloorPlan), in
+    // centimetres from where the robot starts.
+    private static final int[] ROOM = FloorPlan.FURNISHED_ROOM;
+    private static final int[][] FURNITURE = FloorPlan.FURNITURE;
+    private static final FloorPlan PLAN = FloorPlan.furnishedRoom();
+    private static final int[][] STARTS = { { 0, 0, 0 }, { 250, 220, 270 }, { -150, -100, 45 }, { 330, 0, 180 } }; // x, y, heading
+    private static final int[][] VIEWPOINTS = { { 0, 0, 0 }, { 150, 0, 90 }, { 150, 220, 180 }, { -100, 100, 270 }, { 300, 200, 0 }, { -120, -80, 45 } };
+
+    // Sonar during a lookAround: the head sweeps at 100 degrees per second
+    // and a sample comes every 20 ms; some readings are ghosts (a short echo
+    // from nowhere) and some miss altogether.
+    private static final int HEAD_DEGREES_PER_SECOND = 100;
+    private static final int SAMPLE_MILLISECONDS = 20;
+    private static final double GHOST_RATE = 0.05;
+    private static final double MISS_RATE = 0.1;
+
+    private int sink; // keeps results alive so the JIT cannot discard the work
+
+    public static void main(String[] args)
+    {
+        new DiscoveryBenchmark().run();
+    }
+
+    public void run()
+    {
+        benchmarkRayTraversal();
+        benchmarkSparseMap();
+        benchmarkLongRoutes();
+        benchmarkSmoothing();
+        benchmarkCheckpoint();
+        benchmarkRoomMapping();
+        benchmarkScanMatching();
+        benchmarkSampleFiltering();
+        benchmarkSteering();
+        benchmarkMovingScans();
+        benchmarkSensorSampler();
+        benchmarkSampleHistory();
+        benchmarkSensorTrace();
+        benchmarkSysfsReads();
+        benchmarkPoseEstimation();
+        benchmarkBaseMotions();
+    }
+
+    /**
+     * Compare the original addObstacles ray loop (a sine, cosine and new Point
+     * every centimetre) with the exact grid traversal, for a 271 degree scan
+     * with every reading at the maximum trusted distance, and time the real
+     * addObstacles, which also keeps the overview, frontier and planner up to
+     * date with every cell it marks.
+     */
+    public void benchmarkRayTraversal()
+    {
+        DiscoveryMap map = new DiscoveryMap();
+        ProximityMap scan = fullScan(SmartRobot.MAXIMUM_TRUSTED_DISTANCE);
+        for (int round = 0; round < WARMUP_ROUNDS; round++)
+        {
+            steppedRays(map, scan, 0);
+            traversedRays(map, scan, 0);
+        }
+        long stepped = 0, traversed = 0;
+        int steppedCells = 0, traversedCells = 0;
+        for (int round = 0; round < TIMED_ROUNDS; round++)
+        {
+            int relativeTo = round % 360;
+            long t0 = System.nanoTime();
+            steppedCells = steppedRays(map, scan, relativeTo);
+            long t1 = System.nanoTime();
+            traversedCells = traversedRays(map, scan, relativeTo);
+            long t2 = System.nanoTime();
+            stepped += t1 - t0;
+            traversed += t2 - t1;
+        }
+        report("ray loop, 1 cm steps", stepped, steppedCells);
+        report("ray loop, grid traversal", traversed, traversedCells);
+        addObstaclesMicros(scan, false);
+        addObstaclesMicros(scan, true);
+        System.out.println("addObstacles on empty map: "
+            + SmartRobot.formatFixed1(addObstaclesMicros(scan, false)) + " us per scan, while driving: "
+            + SmartRobot.formatFixed1(addObstaclesMicros(scan, true)) + " us per scan");
+        System.out.println("(sink " + sink + ")");
+    }
+
+    /**
+     * Time the real DiscoveryMap.addObstacles, with every cell it marks going
+     * through the map's bookkeeping: either each scan on a new map, or scans
+     * 10 cm apart as the robot drives across one.
+     */
+    private double addObstaclesMicros(ProximityMap scan, boolean driving)
+    {
+        int rounds = TIMED_ROUNDS / 10;
+        DiscoveryMap map = new DiscoveryMap();
+        long total = 0;
+        for (int round = 0; round < rounds; round++)
+        {
+            if (!driving) map = new DiscoveryMap();
+            long t0 = System.nanoTime();
+            map.addObstacles(scan, round % 360);
+            total += System.nanoTime() - t0;
+            if (driving) map.robotMoved(90, 10);
+            sink += map.frontierSize();
+        }
+        return total / (double)rounds / 1000.0;
+    }
+
+    /**
+     * Drive the robot far beyond the default view in a straight line, scanning
+     * as it goes, and report the memory used by the tiled map against a dense
+     * grid spanning the same square area, and the time to draw console maps
+     * before and after.
+     */
+    public void benchmarkSparseMap()
+    {
+        int travel = 50 * 100; // centimetres
+        int step = 50;
+        DiscoveryMap map = new DiscoveryMap();
+        ProximityMap scan = fullScan(SmartRobot.MAXIMUM_TRUSTED_DISTANCE);
+        map.addObstacles(scan, 90);
+        double before = consoleGridMicros(map);
+        long t0 = System.nanoTime();
+        for (int d = 0; d < travel; d += step)
+        {
+            map.addObstacles(scan, 90);
+            map.robotMoved(90, step);
+        }
+        long elapsed = System.nanoTime() - t0;
+        TiledGrid grid = map.grid();
+        int span = (int)(travel + 2 * SmartRobot.MAXIMUM_TRUSTED_DISTANCE) / map.getCellSize();
+        long dense = (long)span * span * (4 + 4 * 4); // 4 byte and 4 int layers per cell
+        System.out.println("sparse map after " + travel / 100 + " m: " + grid.tileCount() + " tiles, "
+            + grid.bytesUsed() / 1024 + " KiB (dense " + span + "x" + span + " grid: " + dense / 1024 + " KiB), "
+            + SmartRobot.formatFixed1(elapsed / (double)(travel / step) / 1000.0) + " us per scan");
+        System.out.println("console map: " + SmartRobot.formatFixed1(before) + " us for the default view, "
+            + SmartRobot.formatFixed1(consoleGridMicros(map)) + " us after " + travel / 100 + " m");
+    }
+
+    private double consoleGridMicros(DiscoveryMap map)
+    {
+        long total = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + TIMED_ROUNDS; round++)
+        {
+            long t0 = System.nanoTime();
+            sink += map.consoleGrid().toString().length();
+            if (round >= WARMUP_ROUNDS) total += System.nanoTime() - t0;
+        }
+        return total / (double)TIMED_ROUNDS / 1000.0;
+    }
+
+    /**
+     * Plan from one end of a long explored corridor to the unknown cells
+     * beyond its far end, with breadth first search over cells and with D*
+     * Lite, then again after a short wall across the way appears or
+     * disappears (which D* Lite repairs rather than searches again).
+     * Both planners first run on a corridor of their own, so the first plan
+     * timed is the first on a new map rather than the first in the JVM.
+     */
+    public void benchmarkLongRoutes()
+    {
+        DiscoveryMap.PlannerMode[] modes = new DiscoveryMap.PlannerMode[] {
+            DiscoveryMap.PlannerMode.BREADTH_FIRST, DiscoveryMap.PlannerMode.D_STAR_LITE };
+        for (DiscoveryMap.PlannerMode mode : modes)
+        {
+            for (int round = 0; round < WARMUP_ROUNDS; round++)
+            {
+                DiscoveryMap map = corridor(1000);
+                map.plannerMode = mode;
+                map.chooseTarget();
+                sink += map.cellsToTarget.size();
+            }
+        }
+        for (int length = 10; length <= 40; length *= 2)
+        {
+            for (DiscoveryMap.PlannerMode mode : modes)
+            {
+                DiscoveryMap map = corridor(length * 100);
+                map.plannerMode = mode;
+                long t0 = System.nanoTime();
+                map.chooseTarget();
+                long first = System.nanoTime() - t0;
+                int firstSearched = map.cellsSearched;
+                // A 1 m wall across the way, 50 cm ahead, so there is something to repair.
+                Cell ahead = map.cellWithPoint(map.robotLocation.move(90, 50));
+                Cell[] wall = new Cell[100 / map.getCellSize()];
+                for (int i = 0; i < wall.length; i++)
+                {
+                    wall[i] = map.cellAt(ahead.row - wall.length / 2 + i, ahead.column);
+                }
+                long replans = 0;
+                int searched = 0;
+                for (int round = 0; round < WARMUP_ROUNDS + TIMED_ROUNDS / 10; round++)
+                {
+                    for (Cell cell : wall)
+                    {
+                        cell.setUnsafe(round % 2 == 0);
+                    }
+                    long t1 = System.nanoTime();
+                    map.chooseTarget();
+                    if (round >= WARMUP_ROUNDS) replans += System.nanoTime() - t1;
+                    searched = map.cellsSearched;
+                    sink += map.cellsToTarget.size();
+                }
+                System.out.println(mode + " planning along " + length + " m corridor: first "
+                    + SmartRobot.formatFixed1(first / 1000.0) + " us (" + firstSearched + " searched), then "
+                    + SmartRobot.formatFixed1(replans / (double)(TIMED_ROUNDS / 10) / 1000.0)
+                    + " us (" + searched + " searched)");
+            }
+        }
+    }
+
+    /**
+     * Smooth the breadth first path along a 40 m corridor.
+     */
+    public void benchmarkSmoothing()
+    {
+        DiscoveryMap map = corridor(4000);
+        map.chooseTarget();
+        ArrayList<Cell> path = new ArrayList<Cell>(map.cellsToTarget);
+        long total = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + TIMED_ROUNDS; round++)
+        {
+            map.cellsToTarget = new ArrayList<Cell>(path);
+            long t0 = System.nanoTime();
+            map.smoothenPath();
+            if (round >= WARMUP_ROUNDS) total += System.nanoTime() - t0;
+        }
+        System.out.println("smoothenPath along 40 m corridor: " + path.size() + " cells to "
+            + map.pointsToTarget.size() + " points in "
+            + SmartRobot.formatFixed1(total / (double)TIMED_ROUNDS / 1000.0) + " us");
+    }
+
+    /**
+     * Save a checkpoint after each of 40 passes of a drive across the floor,
+     * then load it into a new map and check that the two maps match.
+     */
+    public void benchmarkCheckpoint()
+    {
+        String directory = MissionCheckpoint.DIRECTORY;
+        try
+        {
+            MissionCheckpoint.DIRECTORY = System.getProperty("java.io.tmpdir");
+            DiscoveryMap map = new DiscoveryMap();
+            MissionCheckpoint checkpoint = new MissionCheckpoint("benchmark", map);
+            checkpoint.delete();
+            ProximityMap scan = fullScan(150);
+            long saving = 0;
+            int passes = 40;
+            for (int pass = 1; pass <= passes; pass++)
+            {
+                map.addObstacles(scan, pass * 37);
+                map.robotMoved(pass * 37, 20);
+                checkpoint.pass = pass;
+                long t0 = System.nanoTime();
+                checkpoint.save();
+                saving += System.nanoTime() - t0;
+            }
+            DiscoveryMap copy = new DiscoveryMap();
+            MissionCheckpoint loaded = new MissionCheckpoint("benchmark", copy);
+            long t0 = System.nanoTime();
+            boolean ok = loaded.load();
+            long loading = System.nanoTime() - t0;
+            ok = ok && loaded.pass == passes
+                && map.consoleGrid().toString().equals(copy.consoleGrid().toString())
+                && map.frontierSize() == copy.frontierSize();
+            System.out.println("checkpoint: " + checkpoint.size() / 1024 + " KiB, save "
+                + SmartRobot.formatFixed1(saving / (double)passes / 1000.0) + " us per pass, load "
+                + SmartRobot.formatFixed1(loading / 1000000.0) + " ms" + (ok ? "" : " (MISMATCH)"));
+            checkpoint.delete();
+        }
+        finally
+        {
+            MissionCheckpoint.DIRECTORY = directory;
+        }
+    }
+
+    /**
+     * Map a furnished room with each way of choosing targets, from several
+     * starting points, moving the robot to each target in turn as
+     * DiscoveryMission does; then again planning each move ahead on another
+     * thread. Report the average passes taken, estimated mission time (see
+     * LOOK_AROUND_SECONDS), share of the room mapped, and the planning time
+     * while the robot stands still between looking around and moving.
+     */
+    public void benchmarkRoomMapping()
+    {
+        mapRoom(DiscoveryMap.TargetMode.NEAREST_UNKNOWN, DiscoveryMap.PlannerMode.BREADTH_FIRST, false);
+        mapRoom(DiscoveryMap.TargetMode.NEAREST_UNKNOWN, DiscoveryMap.PlannerMode.D_STAR_LITE, false);
+        mapRoom(DiscoveryMap.TargetMode.INFORMATION_GAIN, DiscoveryMap.PlannerMode.BREADTH_FIRST, false);
+        mapRoom(DiscoveryMap.TargetMode.INFORMATION_GAIN, DiscoveryMap.PlannerMode.BREADTH_FIRST, true);
+    }
+
+    private void mapRoom(DiscoveryMap.TargetMode mode, DiscoveryMap.PlannerMode plannerMode, boolean planAhead)
+    {
+        int passes = 0, plansFollowed = 0;
+        long searched = 0;
+        int plans = 0;
+        double turned = 0, driven = 0;
+        long planning = 0;
+        int inside = 0, known = 0;
+        PlanningThread planningThread = new PlanningThread();
+        planningThread.start();
+        for (int[] start : STARTS)
+        {
+            DiscoveryMap map = new DiscoveryMap();
+            map.safeRadius = 15;
+            map.targetMode = mode;
+            map.plannerMode = plannerMode;
+            Point offset = new Point(start[0], start[1]);
+            int heading = start[2];
+            for (int pass = 1; pass <= MAXIMUM_PASSES; pass++)
+            {
+                ProximityMap scan = roomScan(map.robotLocation, offset, heading);
+                // The robot is moving until the plan made ahead is taken.
+                PlanningThread.Plan plan = planningThread.takePlan();
+                long t0 = System.nanoTime();
+                map.addObstacles(scan, heading);
+                if (plan != null && map.followPlan(plan.path, plan.waypoints))
+                {
+                    plansFollowed++;
+                }
+                else
+                {
+                    map.chooseTarget();
+                    searched += map.cellsSearched;
+                    plans++;
+                    map.smoothenPath();
+                }
+                DiscoveryMap snapshot = planAhead && map.targetCell != null ? map.snapshot() : null;
+                planning += System.nanoTime() - t0;
+                if (map.targetCell == null) break;
+                passes++;
+                Point from = map.robotLocation;
+                for (int i = 1; i < map.pointsToTarget.size(); i++)
+                {
+                    Point to = map.pointsToTarget.get(i);
+                    int bearing = (int)Math.round(MathHelper.radiansToDegrees(Math.atan2(to.x - from.x, to.y - from.y)));
+                    turned += Math.abs(Math.floorMod(bearing - heading + 180, 360) - 180);
+                    driven += from.distanceTo(to);
+                    heading = bearing;
+                    from = to;
+                }
+                if (planAhead)
+                {
+                    planningThread.plan(snapshot, map.targetCell.midpoint, heading);
+                }
+                map.robotLocation = map.targetCell.midpoint;
+            }
+            planningThread.takePlan();
+            int cellSize = map.getCellSize();
+            for (int x = ROOM[0] + cellSize / 2; x < ROOM[2]; x += cellSize)
+            {
+                for (int y = ROOM[1] + cellSize / 2; y < ROOM[3]; y += cellSize)
+                {
+                    inside++;
+                    if (map.isKnown(map.indexWithPoint(x - offset.x, y - offset.y))) known++;
+                }
+            }
+        }
+        planningThread.interrupt();
+        int rooms = STARTS.length;
+        double seconds = (passes + rooms) * LOOK_AROUND_SECONDS
+            + turned / TURN_DEGREES_PER_SECOND + driven / DRIVE_CENTIMETRES_PER_SECOND;
+        System.out.println(mode + (plannerMode == DiscoveryMap.PlannerMode.BREADTH_FIRST ? "" : " " + plannerMode)
+            + (planAhead ? " planned ahead" : "") + " room mapping: "
+            + SmartRobot.formatFixed1(passes / (double)rooms) + " passes, " + Math.round(driven / rooms)
+            + " cm driven, " + Math.round(turned / rooms) + " degrees turned, about "
+            + Math.round(seconds / rooms) + " s per room; " + 100 * known / inside + "% of room known; "
+            + SmartRobot.formatFixed1(planning / (double)(passes + rooms) / 1000.0) + " us standing per pass, "
+            + searched / Math.max(1, plans) + " cells searched per plan"
+            + (planAhead ? " (" + 100 * plansFollowed / Math.max(1, passes) + "% of plans followed)" : ""));
+    }
+
+    /**
+     * Map the furnished room from a few known poses, then scan from random
+     * poses and match each scan starting from a pose that is out by up to
+     * 20 cm each way and 4 degrees, as dead reckoning might leave it.
+     */
+    public void benchmarkScanMatching()
+    {
+        Point offset = new Point(0, 0);
+        DiscoveryMap map = new DiscoveryMap();
+        for (int[] pose : VIEWPOINTS)
+        {
+            map.robotLocation = new Point(pose[0], pose[1]);
+            map.addObstacles(roomScan(map.robotLocation, offset, pose[2]), pose[2]);
+        }
+        ScanMatcher matcher = new ScanMatcher(map);
+        Random random = new Random(13);
+        int trials = 0, matched = 0, poses = 0;
+        double positionBefore = 0, positionAfter = 0, headingBefore = 0, headingAfter = 0;
+        long time = 0, slowest = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + TIMED_ROUNDS; round++)
+        {
+            Point truth = new Point(ROOM[0] + 40 + random.nextInt(ROOM[2] - ROOM[0] - 80),
+                ROOM[1] + 40 + random.nextInt(ROOM[3] - ROOM[1] - 80));
+            if (nearFurniture(truth, 30)) continue;
+            int heading = random.nextInt(360);
+            ProximityMap scan = roomScan(truth, offset, heading);
+            double errorX = 40 * random.nextDouble() - 20;
+            double errorY = 40 * random.nextDouble() - 20;
+            int errorAngle = random.nextInt(9) - 4;
+            map.robotLocation = new Point(truth.x + errorX, truth.y + errorY);
+            long t0 = System.nanoTime();
+            boolean ok = matcher.match(scan, heading + errorAngle);
+            long t = System.nanoTime() - t0;
+            if (round < WARMUP_ROUNDS) continue;
+            trials++;
+            if (ok) matched++;
+            poses += matcher.posesScored;
+            time += t;
+            slowest = Math.max(slowest, t);
+            positionBefore += Math.hypot(errorX, errorY);
+            positionAfter += map.robotLocation.distanceTo(truth);
+            headingBefore += Math.abs(errorAngle);
+            headingAfter += Math.abs(errorAngle + matcher.turn);
+        }
+        System.out.println("scan matching: position error " + SmartRobot.formatFixed1(positionBefore / trials)
+            + " cm -> " + SmartRobot.formatFixed1(positionAfter / trials) + " cm, heading error "
+            + SmartRobot.formatFixed1(headingBefore / trials) + " -> " + SmartRobot.formatFixed1(headingAfter / trials)
+            + " degrees; " + 100 * matched / trials + "% matched; " + poses / trials + " poses scored; "
+            + SmartRobot.formatFixed1(time / (double)trials / 1000.0) + " us per match ("
+            + SmartRobot.formatFixed1(slowest / 1000.0) + " us slowest)");
+    }
+
+    /**
+     * Map the furnished room from a few poses with noisy sonar sweeps (see
+     * sweepScan), with and without leaving out readings of low confidence,
+     * and count the obstacle cells that are nowhere near a real surface.
+     */
+    public void benchmarkSampleFiltering()
+    {
+        for (float minimumConfidence : new float[] { 0, 0.5f })
+        {
+            Random random = new Random(15);
+            DiscoveryMap map = new DiscoveryMap();
+            map.minimumConfidence = minimumConfidence;
+            for (int[] pose : VIEWPOINTS)
+            {
+                map.robotLocation = new Point(pose[0], pose[1]);
+                ProximityMap scan = new ProximityMap(null, -135, 135);
+                sweepScan(scan, map.robotLocation, pose[2], random);
+                map.addObstacles(scan, pose[2]);
+            }
+            int obstacles = 0, ghosts = 0, known = 0;
+            int cellSize = map.getCellSize();
+            for (int x = ROOM[0] + cellSize / 2; x < ROOM[2]; x += cellSize)
+            {
+                for (int y = ROOM[1] + cellSize / 2; y < ROOM[3]; y += cellSize)
+                {
+                    int index = map.indexWithPoint(x, y);
+                    if (map.isKnown(index)) known++;
+                    if (map.obstacleCount(index) == 0) continue;
+                    obstacles++;
+                    if (surfaceDistance(new Point(x, y)) > cellSize) ghosts++;
+                }
+            }
+            System.out.println("sonar sweeps, minimum confidence " + minimumConfidence + ": "
+                + obstacles + " obstacle cells, " + ghosts + " not near any surface, " + known + " cells known");
+        }
+        ProximityMap scan = new ProximityMap(null, -135, 135);
+        int samples = 100 * TIMED_ROUNDS;
+        long t0 = System.nanoTime();
+        for (int i = 0; i < samples; i++)
+        {
+            scan.addSample(i % 271 - 135, i % 7 == 0 ? Float.NaN : 50 + i % 13, i);
+        }
+        long elapsed = System.nanoTime() - t0;
+        float confidence = 0;
+        for (int angle = scan.minimumAngle; angle <= scan.maximumAngle; angle++)
+        {
+            confidence += scan.confidence(angle);
+        }
+        sink += (int)confidence;
+        System.out.println("sonar samples: " + SmartRobot.formatFixed1(elapsed / (double)samples) + " ns per sample");
+    }
+
+    /**
+     * Drive about the furnished room as AvoidanceMission does, from noisy
+     * sonar sweeps, steering the old way (the middle of all angles with
+     * about the longest distance) and by valleys, and count the moves that
+     * would run into something. The robot's own obstacle checks while
+     * moving are left out, so this only shows how good the steering is.
+     * One proximity map is reused, as the robot's is, and each decision is
+     * timed over DECISION_REPEATS runs.
+     */
+    public void benchmarkSteering()
+    {
+        float radius = 15; // half the safe passing width
+        float stopping = 20; // safe stopping distance
+        ProximityMap scan = new ProximityMap(null, -135, 135);
+        for (boolean valleys : new boolean[] { false, true })
+        {
+            Random random = new Random(16);
+            int moves = 0, collisions = 0;
+            double driven = 0;
+            long steering = 0;
+            for (int trial = 0; trial < 50; trial++)
+            {
+                Point at;
+                do
+                {
+                    at = new Point(ROOM[0] + 30 + random.nextInt(ROOM[2] - ROOM[0] - 60),
+                        ROOM[1] + 30 + random.nextInt(ROOM[3] - ROOM[1] - 60));
+                }
+                while (surfaceDistance(at) < 30);
+                int heading = random.nextInt(360);
+                for (int step = 0; step < 20; step++)
+                {
+                    scan.reset();
+                    sweepScan(scan, at, heading, random);
+                    scan.adjustForSafePassing(2 * radius);
+                    int angle = 0;
+                    float distance = 0;
+                    long t0 = System.nanoTime();
+                    for (int repeat = 0; repeat < DECISION_REPEATS; repeat++)
+                    {
+                        if (valleys)
+                        {
+                            angle = AvoidanceMission.steeringAngle(scan, radius);
+                            distance = Math.min(SmartRobot.MAXIMUM_TRUSTED_DISTANCE, scan.clearDistance(angle, radius, 0));
+                        }
+                        else
+                        {
+                            angle = oldSteeringAngle(scan);
+                            distance = scan.getDistanceAtAngle(angle);
+                        }
+                    }
+                    steering += (System.nanoTime() - t0) / DECISION_REPEATS;
+                    heading += angle;
+                    float move = Math.max(0, distance - stopping);
+                    moves++;
+                    boolean hit = false;
+                    for (float d = 0; d <= move; d += 2)
+                    {
+                        if (surfaceDistance(at.move(heading, d)) < radius - 5)
+                        {
+                            hit = true;
+                            move = d;
+                            break;
+                        }
+                    }
+                    if (hit) collisions++;
+                    driven += move;
+                    at = at.move(heading, move);
+                    if (hit) break;
+                }
+            }
+            System.out.println((valleys ? "valley" : "longest distance") + " steering: " + collisions
+                + " collisions in " + moves + " moves, " + Math.round(driven / moves) + " cm per move, "
+                + SmartRobot.formatFixed1(steering / (double)moves / 1000.0) + " us per decision");
+        }
+    }
+
+    /**
+     * Drive legs about the furnished room with the head sweeping ahead, as
+     * moveForward does, veering a little, and map the noisy readings taken
+     * on the way as if all were taken from where the leg ended, then each
+     * from the pose it was taken at. Counts the obstacle cells that are
+     * nowhere near a real surface.
+     */
+    public void benchmarkMovingScans()
+    {
+        for (boolean deskew : new boolean[] { false, true })
+        {
+            Random random = new Random(17);
+            DiscoveryMap map = new DiscoveryMap();
+            MovingScan moving = new MovingScan(4096);
+            long mapping = 0;
+            int samples = 0;
+            for (int leg = 0; leg < 40; leg++)
+            {
+                Point at;
+                int heading;
+                float length;
+                do
+                {
+                    at = new Point(ROOM[0] + 40 + random.nextInt(ROOM[2] - ROOM[0] - 80),
+                        ROOM[1] + 40 + random.nextInt(ROOM[3] - ROOM[1] - 80));
+                    heading = random.nextInt(360);
+                    length = Math.min(150, roomDistance(at, heading) - 40);
+                }
+                while (surfaceDistance(at) < 40 || Float.isNaN(length) || length < 50);
+                moving.clear();
+                double step = DRIVE_CENTIMETRES_PER_SECOND * SAMPLE_MILLISECONDS / 1000.0;
+                double headStep = HEAD_DEGREES_PER_SECOND * SAMPLE_MILLISECONDS / 1000.0;
+                double head = 0;
+                int direction = 1;
+                long time = 0;
+                Point pose = at;
+                for (double travelled = 0; travelled < length; travelled += step, time += SAMPLE_MILLISECONDS)
+                {
+                    if (random.nextInt(150) == 0) heading += random.nextBoolean() ? 1 : -1;
+                    pose = pose.move(heading, step);
+                    head += direction * headStep;
+                    if (Math.abs(head) >= 20) direction = -direction;
+                    int headAngle = (int)Math.round(head);
+                    float distance;
+                    double chance = random.nextDouble();
+                    if (chance < GHOST_RATE)
+                    {
+                        distance = 10 + random.nextInt(150);
+                    }
+                    else if (chance < GHOST_RATE + MISS_RATE)
+                    {
+                        distance = Float.NaN;
+                    }
+                    else
+                    {
+                        distance = roomDistance(pose, heading + headAngle);
+                        if (!Float.isNaN(distance)) distance += (float)(random.nextGaussian() * 2);
+                    }
+                    moving.add(pose.x, pose.y, heading, headAngle, distance, time);
+                }
+                samples += moving.count;
+                if (!deskew)
+                {
+                    // Every reading as if taken where the leg ended.
+                    for (int i = 0; i < moving.count; i++)
+                    {
+                        moving.x[i] = pose.x;
+                        moving.y[i] = pose.y;
+                        moving.headings[i] = heading;
+                    }
+                }
+                long t0 = System.nanoTime();
+                map.addObstacles(moving);
+                mapping += System.nanoTime() - t0;
+            }
+            int obstacles = 0, stray = 0, known = 0;
+            int cellSize = map.getCellSize();
+            for (int x = ROOM[0] + cellSize / 2; x < ROOM[2]; x += cellSize)
+            {
+                for (int y = ROOM[1] + cellSize / 2; y < ROOM[3]; y += cellSize)
+                {
+                    int index = map.indexWithPoint(x, y);
+                    if (map.isKnown(index)) known++;
+                    if (map.obstacleCount(index) == 0) continue;
+                    obstacles++;
+                    if (surfaceDistance(new Point(x, y)) > cellSize) stray++;
+                }
+            }
+            System.out.println("readings while moving, " + (deskew ? "each from its own pose" : "all from one pose") + ": " + obstacles + " obstacle cells, "
+                + stray + " not near any surface, " + known + " cells known, "
+                + SmartRobot.formatFixed1(mapping / (double)samples) + " ns per sample");
+        }
+    }
+
+    /**
+     * Read five devices, each taking about 200 us of I/O like a sysfs read,
+     * in a control loop: straight from the device under a lock, then from
+     * the sampler's snapshots while it polls them at their own rates.
+     */
+    public void benchmarkSensorSampler()
+    {
+        final Object lock = new Object();
+        SensorSampler.Device slow = new SensorSampler.Device()
+        {
+            public float read()
+            {
+                synchronized (lock)
+                {
+                    long until = System.nanoTime() + 200000;
+                    while (System.nanoTime() < until) { }
+                    return 1;
+                }
+            }
+        };
+        int reads = 5 * 2000;
+        long t0 = System.nanoTime();
+        float total = 0;
+        for (int i = 0; i < reads; i++)
+        {
+            total += slow.read();
+        }
+        long direct = System.nanoTime() - t0;
+        SensorSampler sampler = new SensorSampler();
+        int[] periods = { 5000, 5000, 20000, 10000, 10000 };
+        for (int period : periods)
+        {
+            sampler.addDevice("device " + sampler.deviceCount(), period, slow);
+        }
+        sampler.start();
+        for (int device = 0; device < periods.length; device++)
+        {
+            sampler.awaitSample(device, 0);
+        }
+        t0 = System.nanoTime();
+        for (int i = 0; i < reads * 100; i++)
+        {
+            total += sampler.value(i % periods.length);
+        }
+        long snapshot = System.nanoTime() - t0;
+        try
+        {
+            Thread.sleep(1100);
+        }
+        catch (InterruptedException unexpected)
+        {
+            throw new RuntimeException(unexpected);
+        }
+        sampler.interrupt();
+        sink += (int)total;
+        System.out.println("sensor reads: " + SmartRobot.formatFixed1(direct / (double)reads / 1000.0) + " us locked, "
+            + SmartRobot.formatFixed1(snapshot / (reads * 100.0)) + " ns from snapshots; sampler rates " + sampler);
+    }
+
+    /**
+     * Sweep the head to and fro at 300 degrees per second, with its whole
+     * degree position sampled every 5 ms and the sonar every 20 ms, and
+     * compare the angle paired with each sonar sample, from the latest head
+     * sample and interpolated from the head's history, with the true one.
+     */
+    public void benchmarkSampleHistory()
+    {
+        double degreesPerNanosecond = 300 / 1e9;
+        long headPeriod = 5000000, sonarPeriod = 20000000;
+        SampleRing head = new SampleRing(1024);
+        Random random = new Random(19);
+        double latestError = 0, interpolatedError = 0;
+        int samples = 0;
+        long nextHead = 0;
+        for (long time = 7000000; time < 60000000000L; time += sonarPeriod + random.nextInt(2000000))
+        {
+            // Up to the first head sample after the sonar one, which
+            // SmartRobot.headAngleAt waits for.
+            while (nextHead <= time + headPeriod)
+            {
+                head.add(nextHead, Math.round(sweepAngle(nextHead, degreesPerNanosecond)));
+                nextHead += headPeriod;
+            }
+            double truth = sweepAngle(time, degreesPerNanosecond);
+            latestError += Math.abs(head.value(head.firstAtOrAfter(time) - 1) - truth);
+            interpolatedError += Math.abs(Math.round(head.valueAt(time)) - truth);
+            samples++;
+        }
+        long newest = head.time(head.count() - 1);
+        long t0 = System.nanoTime();
+        float total = 0;
+        for (int i = 0; i < 100 * TIMED_ROUNDS; i++)
+        {
+            total += head.valueAt(newest - i % 4000 * 1000000L);
+        }
+        long lookups = System.nanoTime() - t0;
+        sink += (int)total;
+        System.out.println("head angle for sonar samples at 300 degrees per second: latest sample "
+            + SmartRobot.formatFixed1(latestError / samples) + " degrees out, interpolated "
+            + SmartRobot.formatFixed1(interpolatedError / samples) + " degrees out, "
+            + SmartRobot.formatFixed1(lookups / (100.0 * TIMED_ROUNDS)) + " ns per lookup");
+    }
+
+    /**
+     * Record a minute of a moveForward loop's hardware reads at 200 passes a
+     * second (clock, both tachos, gyro, head angle and a sonar sample) to a
+     * sensor trace, then replay it and check every value comes back.
+     */
+    public void benchmarkSensorTrace()
+    {
+        File file = new File(System.getProperty("java.io.tmpdir"), "benchmark.trace");
+        SensorTrace trace = SensorTrace.create(file, "benchmark");
+        Random random = new Random(21);
+        int passes = 60 * 200;
+        long[] times = new long[passes];
+        float[] sonar = new float[passes];
+        long t0 = System.nanoTime();
+        for (int pass = 0; pass < passes; pass++)
+        {
+            long time = 5000000000L + pass * 5000000L + random.nextInt(100000);
+            times[pass] = time;
+            sonar[pass] = 20 + random.nextInt(2000) / 10f;
+            trace.record(SensorTrace.TIME, 0, time);
+            trace.record(SensorTrace.POSITION, 1, (float)(pass * 3));
+            trace.record(SensorTrace.POSITION, 2, (float)(pass * 3 + pass % 2));
+            trace.record(SensorTrace.VALUE, SmartRobot.GYROSCOPE, (float)(pass / 200 % 4 - 2));
+            trace.record(SensorTrace.VALUE, SmartRobot.HEAD_POSITION, (float)Math.round(sweepAngle(time, 300 / 1e9)));
+            trace.record(SensorTrace.READ, SmartRobot.SONAR, sonar[pass], time - 2000000, pass / 4);
+        }
+        long recording = System.nanoTime() - t0;
+        long events = trace.events;
+        trace.close();
+        long bytes = file.length();
+        SensorTrace replay = SensorTrace.open(file);
+        boolean ok = true;
+        t0 = System.nanoTime();
+        for (int pass = 0; pass < passes; pass++)
+        {
+            replay.expect(SensorTrace.TIME, 0);
+            ok &= replay.readLong(0) == times[pass];
+            replay.expect(SensorTrace.POSITION, 1);
+            ok &= replay.readFloat(0) == pass * 3;
+            replay.expect(SensorTrace.POSITION, 2);
+            ok &= replay.readFloat(0) == pass * 3 + pass % 2;
+            replay.expect(SensorTrace.VALUE, SmartRobot.GYROSCOPE);
+            ok &= replay.readFloat(0) == pass / 200 % 4 - 2;
+            replay.expect(SensorTrace.VALUE, SmartRobot.HEAD_POSITION);
+            replay.readFloat(0);
+            replay.expect(SensorTrace.READ, SmartRobot.SONAR);
+            ok &= replay.readFloat(0) == sonar[pass] && replay.readLong(1) == times[pass] - 2000000
+                && replay.readLong(2) == pass / 4;
+        }
+        long replaying = System.nanoTime() - t0;
+        replay.close();
+        file.delete();
+        System.out.println("sensor trace: " + events + " events in " + bytes / 1024 + " KiB ("
+            + SmartRobot.formatFixed1(bytes / (double)events) + " bytes each), record "
+            + SmartRobot.formatFixed1(recording / (double)events) + " ns, replay "
+            + SmartRobot.formatFixed1(replaying / (double)events) + " ns per event"
+            + (ok ? "" : " (MISMATCH)"));
+    }
+
+    /**
+     * Read a motor's position and state from a fake sysfs tree in a
+     * temporary directory, with ev3dev-lang-java's Sysfs and with
+     * SysfsAttribute: check they agree as the files change, then time them
+     * and count the bytes each read allocates.
+     */
+    public void benchmarkSysfsReads()
+    {
+        File root = new File(System.getProperty("java.io.tmpdir"), "benchmark-sysfs");
+        File motor = new File(root, "tacho-motor/motor0");
+        motor.mkdirs();
+        File positionFile = new File(motor, "position");
+        File stateFile = new File(motor, "state");
+        writeAttribute(positionFile, "0");
+        writeAttribute(stateFile, "running stalled");
+        SysfsAttribute position = new SysfsAttribute(motor, "position");
+        SysfsAttribute state = new SysfsAttribute(motor, "state");
+        byte[] running = { 'r', 'u', 'n', 'n', 'i', 'n', 'g' };
+        boolean ok = state.hasWord(running);
+        writeAttribute(stateFile, "holding");
+        ok &= !state.hasWord(running);
+        int[] values = { 0, 7, -1234, 360000, Integer.MAX_VALUE, Integer.MIN_VALUE, 42 };
+        for (int value : values)
+        {
+            writeAttribute(positionFile, Integer.toString(value));
+            ok &= position.readInt() == value && ev3dev.utils.Sysfs.readInteger(positionFile.getPath()) == value;
+        }
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)java.lang.management.ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        String path = positionFile.getPath();
+        int reads = 20 * TIMED_ROUNDS;
+        long total = 0;
+        for (int i = 0; i < reads; i++)
+        {
+            total += ev3dev.utils.Sysfs.readInteger(path) + position.readInt();
+        }
+        long bytes0 = threads.getThreadAllocatedBytes(thread);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < reads; i++)
+        {
+            total += ev3dev.utils.Sysfs.readInteger(path);
+        }
+        long library = System.nanoTime() - t0;
+        long bytes1 = threads.getThreadAllocatedBytes(thread);
+        t0 = System.nanoTime();
+        for (int i = 0; i < reads; i++)
+        {
+            total += position.readInt();
+        }
+        long attribute = System.nanoTime() - t0;
+        long bytes2 = threads.getThreadAllocatedBytes(thread);
+        sink += (int)total;
+        position.close();
+        state.close();
+        positionFile.delete();
+        stateFile.delete();
+        motor.delete();
+        motor.getParentFile().delete();
+        root.delete();
+        System.out.println("sysfs position reads: ev3dev Sysfs " + SmartRobot.formatFixed1(library / (double)reads / 1000.0)
+            + " us and " + (bytes1 - bytes0) / reads + " bytes, SysfsAttribute "
+            + SmartRobot.formatFixed1(attribute / (double)reads / 1000.0) + " us and "
+            + (bytes2 - bytes1) / reads + " bytes per read" + (ok ? "" : " (MISMATCH)"));
+    }
+
+    /**
+     * Drive a path of spin turns and straight legs on wheels that do not
+     * quite match (the left rolls 0.2% further than it should and the right
+     * 0.2% less, so the robot veers), sampling
+     * the gyroscope (whole degrees) and both tachos every 5 ms as the
+     * SensorSampler does, and compare where moveForward's old dead reckoning
+     * (the lesser wheel's distance along the gyro angle, only while driving)
+     * and the PoseEstimator put the robot with where it went. Then time the
+     * estimator's updates and count the bytes they allocate.
+     */
+    public void benchmarkPoseEstimation()
+    {
+        double circumference = 5.6 * Math.PI;
+        int fullTurnSteps = 771;
+        double leftScale = 1.002, rightScale = 0.998;
+        PoseEstimator estimator = new PoseEstimator(new SensorSampler(), 1, 2, 0);
+        estimator.setGeometry(circumference, fullTurnSteps);
+        PoseEstimator.Pose pose = new PoseEstimator.Pose();
+        Random random = new Random(23);
+        double x = 0, y = 0, heading = 0; // where the robot really is
+        double left = 0, right = 0; // wheel degrees
+        double oldX = 0, oldY = 0;
+        int lastLeft = 0, lastRight = 0, gyro = 0; // as the sensors read them, in whole degrees
+        double oldError = 0, estimatedError = 0, deviation = 0;
+        int legs = 40;
+        long time = 0; // milliseconds
+        estimator.sampled(0, 0, 0);
+        for (int leg = 0; leg < legs; leg++)
+        {
+            double turnSteps = (random.nextDouble() * 300 - 150) / 360.0 * fullTurnSteps;
+            double driveSteps = (50 + random.nextInt(100)) / circumference * 360;
+            double turnStart = left, driveStart = Double.NaN;
+            while (Double.isNaN(driveStart) || left - driveStart < driveSteps)
+            {
+                double leftSpeed, rightSpeed; // degrees per millisecond
+                if (Double.isNaN(driveStart))
+                {
+                    leftSpeed = Math.signum(turnSteps) * 0.3;
+                    rightSpeed = -leftSpeed;
+                }
+                else
+                {
+                    leftSpeed = rightSpeed = 0.4;
+                }
+                left += leftSpeed;
+                right += rightSpeed;
+                double distance = (leftScale * leftSpeed + rightScale * rightSpeed) / 2 / 360 * circumference;
+                double turn = (leftScale * leftSpeed - rightScale * rightSpeed) / 2 / fullTurnSteps * 360;
+                double radians = MathHelper.degreesToRadians(heading + turn / 2);
+                x += distance * Math.sin(radians);
+                y += distance * Math.cos(radians);
+                heading += turn;
+                time++;
+                switch ((int)(time % 5))
+                {
+                    case 0:
+                        gyro = (int)Math.round(heading);
+                        estimator.sampled(0, time * 1000000, gyro);
+                        break;
+                    case 2:
+                        estimator.sampled(1, time * 1000000, (int)Math.floor(left));
+                        break;
+                    case 4:
+                        estimator.sampled(2, time * 1000000, (int)Math.floor(right));
+                        if (!Double.isNaN(driveStart))
+                        {
+                            int deltaSteps = Math.max(0, Math.min((int)Math.floor(left) - lastLeft, (int)Math.floor(right) - lastRight));
+                            double deltaDistance = deltaSteps / 360.0 * circumference;
+                            oldX += deltaDistance * MathHelper.sinDegrees(gyro);
+                            oldY += deltaDistance * MathHelper.cosDegrees(gyro);
+                        }
+                        lastLeft = (int)Math.floor(left);
+                        lastRight = (int)Math.floor(right);
+                        break;
+                }
+                if (Double.isNaN(driveStart) && Math.abs(left - turnStart) >= Math.abs(turnSteps))
+                {
+                    driveStart = left;
+                }
+            }
+            estimator.read(pose);
+            oldError += Math.hypot(oldX - x, oldY - y);
+            estimatedError += Math.hypot(pose.x - x, pose.y - y);
+            deviation += pose.deviation();
+        }
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)java.lang.management.ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        int samples = 300 * TIMED_ROUNDS;
+        long bytes0 = threads.getThreadAllocatedBytes(thread);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < samples; i++)
+        {
+            time += 2;
+            estimator.sampled(i % 3, time * 1000000, i % 3 == 0 ? gyro + i / 3000 : (float)(left + i / 3));
+        }
+        long updating = System.nanoTime() - t0;
+        long bytes1 = threads.getThreadAllocatedBytes(thread);
+        estimator.read(pose);
+        sink += (int)pose.x;
+        System.out.println("pose after " + legs + " legs, mean error: old dead reckoning "
+            + SmartRobot.formatFixed1(oldError / legs) + " cm, estimator "
+            + SmartRobot.formatFixed1(estimatedError / legs) + " cm (claims "
+            + SmartRobot.formatFixed1(deviation / legs) + " cm); "
+            + SmartRobot.formatFixed1(updating / (double)samples) + " ns and "
+            + (bytes1 - bytes0) / samples + " bytes per sample");
+    }
+
+    /**
+     * Turn the simulated robot (its right wheel 1% short, in an empty room) to
+     * 30 random headings, correcting until the gyroscope reads each one as
+     * SimpleMoves.updateAngle does, and drive 30 to 130 cm after each. Report
+     * the turns each heading took, their simulated time and how far off the
+     * robot really ended up; and each move's time and how far it veered.
+     * Done first with the base motions as they were before the heading
+     * controller (oldTurnDegrees and oldMoveForward), then as they are.
+     */
+    public void benchmarkBaseMotions()
+    {
+        for (boolean old : new boolean[] { true, false })
+        {
+            SimulatedRobot simulator = new SimulatedRobot(new FloorPlan(new int[] { -5000, -5000, 5000, 5000 }, new int[0][]), 0, 0, 0, 1);
+            simulator.rightWheelScale = 0.99;
+            SmartRobot robot = new SmartRobot();
+            robot.useConsole = true;
+            robot.silent = true;
+            robot.useHardware(simulator);
+            robot.calibrateGyroscope();
+            robot.calibrateMotors();
+            Random random = new Random(5);
+            int rounds = 30, turns = 0;
+            long turning = 0, moving = 0;
+            double headingError = 0, veer = 0;
+            int target = robot.gyroAngle();
+            for (int round = 0; round < rounds; round++)
+            {
+                target += random.nextInt(301) - 150;
+                long start = simulator.now;
+                for (int correction = 0; correction < 5; correction++)
+                {
+                    int angle = robot.gyroAngle();
+                    if (angle == target) break;
+                    if (old)
+                    {
+                        oldTurnDegrees(robot, target - angle);
+                    }
+                    else
+                    {
+                        robot.turnDegrees(target - angle);
+                    }
+                    turns++;
+                }
+                turning += simulator.now - start;
+                headingError += Math.abs(Math.IEEEremainder(simulator.heading - target, 360));
+                double heading = simulator.heading;
+                start = simulator.now;
+                float distance = 30 + random.nextInt(100);
+                if (old)
+                {
+                    oldMoveForward(robot, distance);
+                }
+                else
+                {
+                    robot.moveForward(distance);
+                }
+                moving += simulator.now - start;
+                veer += Math.abs(simulator.heading - heading);
+            }
+            // Nothing to stop: the motors are simulated.
+            Runtime.getRuntime().removeShutdownHook(robot.shutdown);
+            System.out.println((old ? "old" : "controlled") + " base motions: "
+                + SmartRobot.formatFixed2(turns / (double)rounds) + " turns per heading in "
+                + SmartRobot.formatFixed2(turning / 1e9 / rounds) + " s, ending "
+                + SmartRobot.formatFixed2(headingError / rounds) + " degrees off; moves of 30-130 cm in "
+                + SmartRobot.formatFixed2(moving / 1e9 / rounds) + " s, veering "
+                + SmartRobot.formatFixed2(veer / rounds) + " degrees");
+        }
+    }
+
+    /**
+     * SmartRobot.turnDegrees as it was before the heading controller: both
+     * wheels sent a fixed step target at the minimum turning power, then
+     * waited on until they stop.
+     */
+    private static void oldTurnDegrees(SmartRobot robot, int angle)
+    {
+        SmartRobot.Timeout timeout = robot.new TimeoutInSeconds("turning base", 10);
+        if (angle == 0) return;
+        while (angle < -180) angle += 360;
+        while (angle > 180) angle -= 360;
+        int power = robot.minimumTurningPower();
+        int speed = (int)(power * SmartRobot.BASE_POWER_TO_SPEED_FACTOR);
+        int steps = (int)(robot.fullTurnSteps() * (angle / 360.0));
+        int leftTarget = (int)robot.leftMotor.getPosition() + steps;
+        int rightTarget = (int)robot.rightMotor.getPosition() - steps;
+        robot.leftMotor.setSpeed(speed);
+        robot.rightMotor.setSpeed(speed);
+        robot.leftMotor.rotateTo(leftTarget, true);
+        robot.rightMotor.rotateTo(rightTarget, true);
+        robot.sleepForMilliseconds(200); // give motors a chance to start
+        robot.waitUntilBaseStopsMoving(timeout);
+    }
+
+    /**
+     * The driving in SmartRobot.moveForward as it was before the steering
+     * controller: the power ramps up, and each pass the gyroscope reads the
+     * robot veering, the wheel on the other side gets a point more; near the
+     * end it slows down, then stops with a short rotateTo. The obstacle checks
+     * are left out, as the room is empty.
+     */
+    private static void oldMoveForward(SmartRobot robot, float distance)
+    {
+        RobotHardware.Motor leftMotor = robot.leftMotor;
+        RobotHardware.Motor rightMotor = robot.rightMotor;
+        float wheelCircumference = (float)(robot.wheelDiameter() * Math.PI);
+        int leftStart = (int)leftMotor.getPosition();
+        int rightStart = (int)rightMotor.getPosition();
+        int lastLeftSteps = leftStart;
+        int lastRightSteps = rightStart;
+        int startAngle = robot.gyroAngle();
+        int rampUpPower = robot.minimumForwardPower();
+        int targetPower = robot.maximumForwardPower();
+        int addLeftPower = 0;
+        int addRightPower = 0;
+        int lastLeftPower = Integer.MIN_VALUE;
+        int lastRightPower = Integer.MIN_VALUE;
+        float remainingDistance = distance;
+        float stoppingDistance = 10; // cm
+        robot.movingLoop.start();
+        while (true)
+        {
+            robot.movingLoop.next();
+            int leftSteps = (int)leftMotor.getPosition();
+            int rightSteps = (int)rightMotor.getPosition();
+            int deltaSteps = Math.min(Math.max(0, leftSteps - lastLeftSteps), Math.max(0, rightSteps - lastRightSteps));
+            lastLeftSteps = leftSteps;
+            lastRightSteps = rightSteps;
+            remainingDistance -= deltaSteps / 360f * wheelCircumference;
+            if (remainingDistance <= stoppingDistance)
+            {
+                stoppingDistance = Math.max(0, remainingDistance);
+                break;
+            }
+            if (remainingDistance <= 50)
+            {
+                // Slow down when approaching target.
+                int newTargetPower = Math.min(targetPower, Math.max(robot.minimumForwardPower(), (int)remainingDistance));
+                float newPowerFactor = newTargetPower / targetPower;
+                addLeftPower = (int)(addLeftPower * newPowerFactor);
+                addRightPower = (int)(addRightPower * newPowerFactor);
+                targetPower = newTargetPower;
+            }
+            int currentPower = Math.min(rampUpPower, targetPower);
+            rampUpPower = Math.min(rampUpPower + 10, targetPower);
+            int angleDelta = robot.gyroAngle() - startAngle;
+            if (angleDelta < 0)
+            {
+                // Veering to left, need to straighten up.
+                addRightPower = 0;
+                addLeftPower++;
+            }
+            if (angleDelta > 0)
+            {
+                // Veering to right, need to straighten up.
+                addLeftPower = 0;
+                addRightPower++;
+            }
+            int leftPower = Math.max(0, Math.min(100 - addRightPower, currentPower + addLeftPower));
+            int rightPower = Math.max(0, Math.min(100 - addLeftPower, currentPower + addRightPower));
+            if (leftPower != lastLeftPower)
+            {
+                leftMotor.setSpeed((int)(leftPower * SmartRobot.BASE_POWER_TO_SPEED_FACTOR));
+                leftMotor.forward();
+                lastLeftPower = leftPower;
+            }
+            if (rightPower != lastRightPower)
+            {
+                rightMotor.setSpeed((int)(rightPower * SmartRobot.BASE_POWER_TO_SPEED_FACTOR));
+                rightMotor.forward();
+                lastRightPower = rightPower;
+            }
+        }
+        robot.movingLoop.finish();
+        int stopSteps = (int)(360 * (stoppingDistance / wheelCircumference));
+        int stopSpeed = (int)(robot.minimumForwardPower() * SmartRobot.BASE_POWER_TO_SPEED_FACTOR);
+        if (stopSteps < 5)
+        {
+            leftMotor.stop();
+            rightMotor.stop();
+        }
+        else
+        {
+            leftMotor.brake();
+            rightMotor.brake();
+            leftMotor.setSpeed(stopSpeed);
+            rightMotor.setSpeed(stopSpeed);
+            leftMotor.rotateTo((int)leftMotor.getPosition() + stopSteps, true);
+            rightMotor.rotateTo((int)rightMotor.getPosition() + stopSteps, true);
+        }
+        robot.waitUntilBaseStopsMoving(robot.new TimeoutInSeconds("forward movement", 5));
+        leftMotor.coast();
+        leftMotor.stop();
+        rightMotor.coast();
+        rightMotor.stop();
+    }
+
+    private static void writeAttribute(File file, String value)
+    {
+        try (FileOutputStream output = new FileOutputStream(file))
+        {
+            output.write((value + "\n").getBytes("US-ASCII"));
+        }
+        catch (IOException ex)
+        {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Head angle of a sweep from -135 to 135 degrees and back.
+     */
+    private static double sweepAngle(long time, double degreesPerNanosecond)
+    {
+        double travelled = (time * degreesPerNanosecond) % 540;
+        return travelled < 270 ? travelled - 135 : 405 - travelled;
+    }
+
+    /**
+     * The heading AvoidanceMission used to choose: the longest distance, then
+     * the middle one of all the angles within 20% of it.
+     */
+    private static int oldSteeringAngle(ProximityMap scan)
+    {
+        float longest = scan.getDistanceAtAngle(scan.angleWithMaximumDistance());
+        List<Integer> angles = new ArrayList<Integer>();
+        for (int angle = scan.minimumAngle; angle <= scan.maximumAngle; angle++)
+        {
+            float compare = scan.getDistanceAtAngle(angle) / longest;
+            if (compare >= 0.8 && compare <= 1.2) angles.add(angle);
+        }
+        return angles.isEmpty() ? 0 : angles.get(angles.size() / 2);
+    }
+
+    /**
+     * Sample a lookAround in the room into the map: the head turns out to
+     * the left, then across to the right.
+     */
+    private void sweepScan(ProximityMap scan, Point from, int heading, Random random)
+    {
+        double step = HEAD_DEGREES_PER_SECOND * SAMPLE_MILLISECONDS / 1000.0;
+        double angle = 0;
+        long time = 0;
+        for (int sweep = 0; sweep < 2; sweep++)
+        {
+            double end = sweep == 0 ? scan.minimumAngle : scan.maximumAngle;
+            double direction = Math.signum(end - angle);
+            for (; (end - angle) * direction >= 0; angle += direction * step, time += SAMPLE_MILLISECONDS)
+            {
+                int head = (int)Math.round(angle);
+                float distance;
+                double chance = random.nextDouble();
+                if (chance < GHOST_RATE)
+                {
+                    distance = 10 + random.nextInt(150);
+                }
+                else if (chance < GHOST_RATE + MISS_RATE)
+                {
+                    distance = Float.NaN;
+                }
+                else
+                {
+                    distance = roomDistance(from, heading + head);
+                    if (!Float.isNaN(distance)) distance += (float)(random.nextGaussian() * 2);
+                }
+                scan.addSample(head, distance, time);
+            }
+        }
+    }
+
+    /**
+     * Distance from a point to the nearest wall or piece of furniture.
+     */
+    private static double surfaceDistance(Point point)
+    {
+        return PLAN.surfaceDistance(point.x, point.y);
+    }
+
+    private static boolean nearFurniture(Point point, int distance)
+    {
+        for (int[] box : FURNITURE)
+        {
+            if (point.x > box[0] - distance && point.x < box[2] + distance
+                && point.y > box[1] - distance && point.y < box[3] + distance)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Readings a lookAround would give in the furnished room (see ROOM), with
+     * the map's origin at the given offset in the room, leaving out readings
+     * beyond the maximum trusted distance.
+     */
+    private ProximityMap roomScan(Point location, Point offset, int heading)
+    {
+        ProximityMap scan = new ProximityMap(null, -135, 135);
+        Point from = new Point(location.x + offset.x, location.y + offset.y);
+        for (int angle = scan.minimumAngle; angle <= scan.maximumAngle; angle++)
+        {
+            float distance = roomDistance(from, heading + angle);
+            if (!Float.isNaN(distance))
+            {
+                scan.setDistanceAtAngle(angle, distance);
+            }
+        }
+        return scan;
+    }
+
+    /**
+     * Distance from a point in the room to the first surface on a compass
+     * bearing, or NaN if it is beyond the maximum trusted distance.
+     */
+    private static float roomDistance(Point from, int bearing)
+    {
+        double distance = PLAN.distance(from.x, from.y, MathHelper.sinDegrees(bearing), MathHelper.cosDegrees(bearing));
+        return distance <= SmartRobot.MAXIMUM_TRUSTED_DISTANCE ? (float)distance : Float.NaN;
+    }
+
+    /**
+     * A map with a known corridor 4 m wide running east from the robot,
+     * open at the far end.
+     */
+    private DiscoveryMap corridor(int length)
+    {
+        DiscoveryMap map = new DiscoveryMap();
+        int cellSize = map.getCellSize();
+        Cell start = map.cellWithPoint(map.robotLocation);
+        int width = 400 / cellSize;
+        int top = start.row - width / 2;
+        int left = start.column - 2;
+        for (int row = top; row < top + width; row++)
+        {
+            for (int column = left; column < left + length / cellSize; column++)
+            {
+                Cell cell = map.cellAt(row, column);
+                cell.setKnown(true);
+                if (row == top || row == top + width - 1 || column == left)
+                {
+                    cell.setUnsafe(true);
+                }
+            }
+        }
+        return map;
+    }
+
+    private ProximityMap fullScan(float distance)
+    {
+        ProximityMap scan = new ProximityMap(null, -135, 135);
+        for (int angle = scan.minimumAngle; angle <= scan.maximumAngle; angle++)
+        {
+            scan.setDistanceAtAngle(angle, distance);
+        }
+        return scan;
+    }
+
+    /**
+     * The ray loop from the original addObstacles. Returns the number of cell lookups.
+     */
+    private int steppedRays(DiscoveryMap map, ProximityMap scan, int relativeTo)
+    {
+        Point location = map.robotLocation;
+        int lookups = 0;
+        for (int angle = scan.minimumAngle; angle <= scan.maximumAngle; angle++)
+        {
+            float distance = scan.getDistanceAtAngle(angle);
+            int bearing = angle + relativeTo;
+            for (float d = 1; d <= distance; d++)
+            {
+                Point p = location.move(bearing, d);
+                sink += map.indexWithPoint(p.x, p.y);
+                lookups++;
+            }
+        }
+        return lookups;
+    }
+
+    /**
+     * The ray loop from the current addObstacles. Returns the number of cells visited.
+     */
+    private int traversedRays(DiscoveryMap map, ProximityMap scan, int relativeTo)
+    {
+        Point location = map.robotLocation;
+        GridRay ray = new GridRay();
+        double fromColumn = map.gridColumn(location.x);
+        double fromRow = map.gridRow(location.y);
+        int visits = 0;
+        for (int angle = scan.minimumAngle; angle <= scan.maximumAngle; angle++)
+        {
+            float distance = scan.getDistanceAtAngle(angle);
+            int bearing = angle + relativeTo;
+            double x = location.x + distance * MathHelper.sinDegrees(bearing);
+            double y = location.y + distance * MathHelper.cosDegrees(bearing);
+            ray.start(fromColumn, fromRow, map.gridColumn(x), map.gridRow(y));
+            while (ray.next())
+            {
+                sink += map.indexOfCell(ray.row, ray.column);
+                visits++;
+            }
+        }
+        return visits;
+    }
+
+    private void report(String label, long nanoseconds, int cells)
+    {
+        double microsPerScan = nanoseconds / (double)TIMED_ROUNDS / 1000.0;
+        System.out.println(label + ": " + SmartRobot.formatFixed1(microsPerScan)
+            + " us per scan (" + cells + " cell visits)");
+    }
+}
@@ -4,252 +4,1941 @@ import java.util.*;
 
 public class DiscoveryMap
 {
+    public enum PlannerMode
+    {
+        BREADTH_FIRST,
+        D_STAR_LITE; // only used by DiscoveryBenchmark for now (see DStarLite)
+    };
+
+    public enum OccupancyMode
+    {
+        OVERWRITE, // latest reading through or at a cell decides its state
+        LOG_ODDS; // readings are fused as evidence, state decided by thresholds
+    };
+
+    public enum TargetMode
+    {
+        NEAREST_UNKNOWN, // the nearest reachable unknown cell
+        INFORMATION_GAIN; // the frontier cluster revealing the most area for the distance travelled
+    };
+
     public static int DEFAULT_CELL_SIZE = 10;
     public static int DEFAULT_GRID_SIZE = 100;
 
-    private int cellSize; // length and width of square cells (centimetres)
-    private int gridSize; // number of cells in each dimension: must be even
-    private Cell[][] gridOfCells; // matrix of size * size
-    private ArrayList<Cell> listOfCells = new ArrayList<Cell>();
+    // Bits in the per-cell flags array.
+    static final int KNOWN = 1;
+    static final int UNSAFE = 2;
+    static final int CHANGED = 4;
+    static final int FRONTIER = 8;
+    static final int RAISE = 16;
+    static final int JOURNAL = 32;
+    static final int SHOWN_KNOWN = 64; // as counted in the overview
+    static final int SHOWN_OBSTACLE = 128;
+
+    // Log-odds occupancy, in fixed point with 16 units per nat (natural log unit).
+    // Evidence is clamped so that cells can still change when the world does.
+    static final int LOG_ODDS_LIMIT = 64;
+    static final int LOG_ODDS_OCCUPIED = 24; // at or above: obstacle (p > 0.8)
+    static final int LOG_ODDS_FREE = -16; // at or below: known free (p < 0.27)
+    static final int LOG_ODDS_HIT = 14; // reading ends in cell (p = 0.7)
+    static final int LOG_ODDS_MISS = -6; // reading passes through cell (p = 0.4)
+
+    // Inverse sensor model for the EV3 ultrasonic sensor: the echo may come from
+    // anywhere in a cone either side of the head direction, with evidence weighted
+    // (in sixteenths) by how far off-axis each sampled ray is.
+    static final int ULTRASONIC_HALF_CONE = 15; // degrees
+    static final int ULTRASONIC_CONE_STEP = 5; // degrees
+    private static final int[] CONE_WEIGHTS = new int[2 * ULTRASONIC_HALF_CONE / ULTRASONIC_CONE_STEP + 1];
+
+    static
+    {
+        double sigma = ULTRASONIC_HALF_CONE / 2.0;
+        for (int i = 0; i < CONE_WEIGHTS.length; i++)
+        {
+            int offset = i * ULTRASONIC_CONE_STEP - ULTRASONIC_HALF_CONE;
+            CONE_WEIGHTS[i] = (int)Math.round(16 * Math.exp(-offset * offset / (2 * sigma * sigma)));
+        }
+    }
+
+    // Information gain targets: the unknown area expected to come into view is
+    // summed over rays this far apart, and discounted by a factor of e for
+    // each stretch of this length on the way there, since driving is slow.
+    // Clusters expected to reveal less than this many cells are not worth a pass.
+    private static final int GAIN_RAY_STEP = 5; // degrees
+    private static final int GAIN_DISCOUNT_DISTANCE = 50; // centimetres
+    private static final int MINIMUM_GAIN_CELLS = 10;
+
+    // Distance field is only maintained up to this distance from obstacles.
+    private static final int MAXIMUM_CLEARANCE = 100; // centimetres
+    private static final int NO_CLEARANCE_LIMIT = Integer.MAX_VALUE;
+
+    // Row and column deltas for the 8 neighbours of a cell;
+    // neighbour REVERSE_NEIGHBOUR[k] leads back from neighbour k.
+    private static final int[] NEIGHBOUR_ROWS = { -1, -1, -1, 0, 0, 1, 1, 1 };
+    private static final int[] NEIGHBOUR_COLUMNS = { -1, 0, 1, -1, 1, -1, 0, 1 };
+    private static final int[] REVERSE_NEIGHBOUR = { 7, 6, 5, 4, 3, 2, 1, 0 };
+
+    // Overview for console maps: for each zoom level, the number of known
+    // cells (low 16 bits) and obstacle cells (high 16 bits) in each block of
+    // 2^level by 2^level grid cells. Level 0 is the map itself. Console
+    // characters are about twice as tall as they are wide, so each console
+    // cell shows two blocks, one above the other.
+    public static final int OVERVIEW_LEVELS = 7;
+    private static final int OBSTACLE_SHIFT = 16;
+
+    private int cellSize; // length and width of square cells (centimetres)
+    private int gridSize; // number of cells in each dimension of the default view: must be even
+
+    // Cell state is stored in layers of a sparse tiled grid, so the map has no
+    // practical edge and only uses memory for the area explored. Cell indices
+    // pack the row and column; rows and columns are numbered from the top left
+    // of the default view (they may be negative), so the grid itself is offset.
+    private TiledGrid grid = new TiledGrid();
+    private int gridOffset; // grid row (and column) of view row (and column) 0
+    // One grid per level from 1, each with a single int layer: the levels'
+    // tiles around the robot would share slots in a single grid's tile cache.
+    private TiledGrid[] overview = new TiledGrid[OVERVIEW_LEVELS];
+
+    // Byte layers.
+    private static final int FLAGS = 0; // KNOWN, UNSAFE, CHANGED, FRONTIER, RAISE
+    private static final int OBSTACLE_COUNTS = 1; // number of obstacle echoes in cell (saturates at 127)
+    private static final int PATH_TO_SOURCE = 2; // 1 + direction to previous cell on path, or 0
+    private static final int LOG_ODDS = 3; // only written in LOG_ODDS mode
+
+    // Int layers.
+    private static final int VISIT_STAMPS = 0;
+    private static final int SEARCH_COSTS = 1; // path length from source (valid when stamped)
+    private static final int NEAREST_OBSTACLES = 2;
+    private static final int OBSTACLE_DISTANCES = 3; // squared, in cells
+    private int[] neighbourOffsets; // index deltas to the 8 neighbours
+    private int[] queue = new int[1024]; // BFS work queue (grows as needed)
+    private GridRay ray = new GridRay();
+    private GridRay sightLine = new GridRay(); // cuts corners
+
+    // Searches stamp each cell they reach with the current generation,
+    // so nothing needs to be cleared between searches.
+    private int generation = 0;
+    private MinHeap openCells = new MinHeap();
+
+    // Unknown cells next to known obstacle-free cells. Cells that stop being
+    // frontier cells lose their FRONTIER flag and are removed lazily.
+    private int[] frontierCells = new int[256];
+    private int frontierCount = 0;
+    private int staleFrontierCount = 0;
+
+    // Cells whose known or obstacle state changed while a scan was added,
+    // brought into the overview, bounds, planner and frontier once it is all in.
+    private int[] changedCells = new int[1024];
+    private int changedCount = 0;
+    // Changes to the overview counts not yet added, per level: neighbouring
+    // cells mostly share blocks, so these are added a run of cells at a time.
+    private int[] overviewBlocks = new int[OVERVIEW_LEVELS];
+    private int[] overviewDeltas = new int[OVERVIEW_LEVELS];
+
+    // Distance field: for each cell, the nearest obstacle cell and the squared
+    // distance to it (in cells), maintained incrementally as obstacles come and go
+    // in the NEAREST_OBSTACLES and OBSTACLE_DISTANCES layers.
+    private int maximumDistance; // squared, in cells
+    private MinHeap distanceUpdates = new MinHeap();
+
+    // Incremental planner, and the cells that changed since it last ran.
+    private DStarLite dStarLite;
+    private float plannedSafeRadius;
+    private int[] plannerChanges = new int[256];
+    private int plannerChangeCount = 0;
+
+    // Reachable frontier cells found by the last information gain search,
+    // with their path lengths from the source and their cluster (union-find) links.
+    private int[] reachedCells = new int[256];
+    private int[] reachedCosts = new int[256];
+    private int[] reachedLinks = new int[256];
+    private int reachedCount = 0;
+    // Per cluster, at its root's place in the reached list: size, sums of
+    // rows and columns, cell nearest the middle (and how far), nearest cell.
+    private int[] clusterSizes = new int[256];
+    private long[] clusterRowSums = new long[256];
+    private long[] clusterColumnSums = new long[256];
+    private int[] clusterMiddles = new int[256];
+    private double[] clusterMiddleDistances = new double[256];
+    private int[] clusterNearests = new int[256];
+
+    // Cells of the path the last D* Lite plan found, from the source.
+    private int[] pathCells = new int[256];
+    private int pathLength = 0;
+
+    // Cells whose stored state changed since the last checkpoint (see MissionCheckpoint).
+    private boolean journaling = false;
+    private int[] journalCells = new int[256];
+    private int journalCount = 0;
+
+    /**
+     * Number of cells taken off the work queue (or expanded, for D* Lite)
+     * by the last call to chooseTarget.
+     */
+    public int cellsSearched;
+
+    public PlannerMode plannerMode = PlannerMode.BREADTH_FIRST;
+
+    public TargetMode targetMode = TargetMode.NEAREST_UNKNOWN;
+
+    /**
+     * What the robot sees when it looks around on reaching a target, for
+     * INFORMATION_GAIN targets: the angle either side of its heading (degrees)
+     * and the furthest reading trusted (centimetres).
+     */
+    public int sweepAngle = 135;
+    public float sweepRange = SmartRobot.MAXIMUM_TRUSTED_DISTANCE;
+
+    /**
+     * Number of reachable frontier clusters scored by the last call to
+     * chooseTarget in INFORMATION_GAIN mode, and the area (square centimetres)
+     * expected to come into view at the chosen target.
+     */
+    public int frontierClusters;
+    public float expectedGain;
+
+    private OccupancyMode occupancyMode = OccupancyMode.OVERWRITE;
+
+    // Rows and columns spanned by the default view and every cell known so far.
+    private int firstRow, lastRow, firstColumn, lastColumn;
+
+    /**
+     * Cells are safe for the robot when their midpoint is at least this far
+     * (centimetres) from the midpoint of any obstacle cell.
+     */
+    public float safeRadius;
+
+    /**
+     * Readings less trusted than this (see ProximityMap.confidence) are left
+     * out of the map.
+     */
+    public float minimumConfidence = 0.5f;
+
+    public Point robotLocation;
+    public double locationVariance = 0; // square centimetres, gained by dead reckoning since the location was fixed
+    public Cell targetCell;
+    public ArrayList<Cell> cellsToTarget = new ArrayList<Cell>();
+    public ArrayList<Point> pointsToTarget = new ArrayList<Point>();
+
+    public DiscoveryMap()
+    {
+        this(DEFAULT_CELL_SIZE, DEFAULT_GRID_SIZE);
+    }
+
+    public DiscoveryMap(int cellSize, int gridSize)
+    {
+        if (gridSize % 2 != 0) throw new RuntimeException("Map grid size (" + gridSize + " ) is not even!");
+        this.cellSize = cellSize;
+        this.gridSize = gridSize;
+        this.gridOffset = TiledGrid.EXTENT / 2 - gridSize / 2;
+        grid.addByteLayer((byte)0); // FLAGS
+        grid.addByteLayer((byte)0); // OBSTACLE_COUNTS
+        grid.addByteLayer((byte)0); // PATH_TO_SOURCE
+        grid.addByteLayer((byte)0); // LOG_ODDS
+        grid.addIntLayer(0); // VISIT_STAMPS
+        grid.addIntLayer(0); // SEARCH_COSTS
+        grid.addIntLayer(-1); // NEAREST_OBSTACLES
+        grid.addIntLayer(NO_CLEARANCE_LIMIT); // OBSTACLE_DISTANCES
+        for (int level = 1; level <= OVERVIEW_LEVELS; level++)
+        {
+            overview[level - 1] = new TiledGrid();
+            overview[level - 1].addIntLayer(0);
+        }
+        this.firstRow = this.firstColumn = 0;
+        this.lastRow = this.lastColumn = gridSize - 1;
+        int maximumCells = Math.max(3, MAXIMUM_CLEARANCE / cellSize);
+        this.maximumDistance = maximumCells * maximumCells;
+        this.safeRadius = 1.5f * cellSize;
+        this.neighbourOffsets = new int[8];
+        for (int k = 0; k < 8; k++)
+        {
+            neighbourOffsets[k] = NEIGHBOUR_ROWS[k] * TiledGrid.ROW_STRIDE + NEIGHBOUR_COLUMNS[k];
+        }
+        this.sightLine.cutCorners = true;
+        this.robotLocation = new Point(0, 0);
+        this.selfTest();
+    }
+
+    /**
+     * A copy of the map (see snapshot), sharing nothing that either map writes.
+     * Planners are not copied: they are made again when needed.
+     */
+    private DiscoveryMap(DiscoveryMap other)
+    {
+        this.cellSize = other.cellSize;
+        this.gridSize = other.gridSize;
+        this.gridOffset = other.gridOffset;
+        this.grid = other.grid.snapshot();
+        for (int level = 1; level <= OVERVIEW_LEVELS; level++)
+        {
+            this.overview[level - 1] = other.overview[level - 1].snapshot();
+        }
+        this.neighbourOffsets = other.neighbourOffsets;
+        this.sightLine.cutCorners = true;
+        this.generation = other.generation;
+        this.frontierCells = other.frontierCells.clone();
+        this.frontierCount = other.frontierCount;
+        this.staleFrontierCount = other.staleFrontierCount;
+        this.maximumDistance = other.maximumDistance;
+        this.distanceUpdates = new MinHeap(other.distanceUpdates);
+        this.plannerMode = other.plannerMode;
+        this.targetMode = other.targetMode;
+        this.sweepAngle = other.sweepAngle;
+        this.sweepRange = other.sweepRange;
+        this.occupancyMode = other.occupancyMode;
+        this.firstRow = other.firstRow;
+        this.lastRow = other.lastRow;
+        this.firstColumn = other.firstColumn;
+        this.lastColumn = other.lastColumn;
+        this.safeRadius = other.safeRadius;
+        this.minimumConfidence = other.minimumConfidence;
+        this.robotLocation = other.robotLocation;
+        this.locationVariance = other.locationVariance;
+        for (Cell cell : other.cellsToTarget)
+        {
+            Cell copy = new Cell(this, cell.index);
+            cellsToTarget.add(copy);
+            pointsToTarget.add(copy.midpoint);
+            if (cell.equals(other.targetCell)) targetCell = copy;
+        }
+    }
+
+    /**
+     * A copy of the map as it is now, for another thread to read or change
+     * while this map carries on being updated (see PlanningThread). The cells
+     * are shared copy-on-write, a tile at a time, so this is cheap.
+     */
+    public DiscoveryMap snapshot()
+    {
+        return new DiscoveryMap(this);
+    }
+
+    public int getCellSize()
+    {
+        return cellSize;
+    }
+
+    /**
+     * Number of cells in each dimension of the default view (the map itself
+     * extends as far as the robot explores).
+     */
+    public int getGridSize()
+    {
+        return gridSize;
+    }
+
+    public OccupancyMode getOccupancyMode()
+    {
+        return occupancyMode;
+    }
+
+    public void setOccupancyMode(OccupancyMode mode)
+    {
+        occupancyMode = mode;
+    }
+
+    public void addObstacles(ProximityMap proximityMap, int relativeTo)
+    {
+        if (occupancyMode == OccupancyMode.LOG_ODDS)
+        {
+            fuseReadings(proximityMap, relativeTo);
+            updateChangedCells();
+            return;
+        }
+        Point location = robotLocation;
+        int minAngle = proximityMap.minimumAngle;
+        int maxAngle = proximityMap.maximumAngle;
+        GridRay ray = this.ray;
+        double fromColumn = gridColumn(location.x);
+        double fromRow = gridRow(location.y);
+        for (int pass = 1; pass <= 2; pass++)
+        {
+            for (int angle = minAngle; angle <= maxAngle; angle++)
+            {
+                float distance = proximityMap.getDistanceAtAngle(angle);
+                if (!Float.isNaN(distance) && proximityMap.confidence(angle) >= minimumConfidence)
+                {
+                    int bearing = angle + relativeTo;
+                    double x = location.x + distance * MathHelper.sinDegrees(bearing);
+                    double y = location.y + distance * MathHelper.cosDegrees(bearing);
+                    int cell = indexWithPoint(x, y);
+                    if (pass == 1)
+                    {
+                        // First pass: set "known" flags, clear obstacles.
+                        // Must "see through" every cell crossed on the way
+                        // to the obstacle, so mark those cells as "known".
+                        ray.start(fromColumn, fromRow, gridColumn(x), gridRow(y));
+                        while (ray.next())
+                        {
+                            int c = indexOfCell(ray.row, ray.column);
+                            if (c != -1)
+                            {
+                                markFree(c);
+                            }
+                        }
+                        if (cell != -1)
+                        {
+                            markFree(cell);
+                        }
+                    }
+                    else if (cell != -1)
+                    {
+                        // Second pass: set obstacles.
+                        addObstacle(cell);
+                    }
+                }
+            }
+        }
+        updateChangedCells();
+    }
+
+    /**
+     * Add readings taken while the robot moved (see MovingScan), with their
+     * poses in map coordinates and bearings. Each is traced from the pose it
+     * was taken at, so the cells it saw through are the ones marked free.
+     */
+    public void addObstacles(MovingScan scan)
+    {
+        GridRay ray = this.ray;
+        int count = scan.count;
+        for (int pass = 1; pass <= 2; pass++)
+        {
+            for (int i = 0; i < count; i++)
+            {
+                float distance = scan.distances[i];
+                if (Float.isNaN(distance) || scan.confidence(i) < minimumConfidence) continue;
+                if (occupancyMode == OccupancyMode.LOG_ODDS)
+                {
+                    if (pass == 1) fuseReading(scan.x[i], scan.y[i], scan.bearing(i), distance);
+                    continue;
+                }
+                double x = scan.pointX(i);
+                double y = scan.pointY(i);
+                int cell = indexWithPoint(x, y);
+                if (pass == 1)
+                {
+                    ray.start(gridColumn(scan.x[i]), gridRow(scan.y[i]), gridColumn(x), gridRow(y));
+                    while (ray.next())
+                    {
+                        int c = indexOfCell(ray.row, ray.column);
+                        if (c != -1)
+                        {
+                            markFree(c);
+                        }
+                    }
+                    if (cell != -1)
+                    {
+                        markFree(cell);
+                    }
+                }
+                else if (cell != -1)
+                {
+                    addObstacle(cell);
+                }
+            }
+        }
+        updateChangedCells();
+    }
+
+    /**
+     * Fuse a scan into the log-odds occupancy using the ultrasonic cone model.
+     * For each reading, several rays are traced across the cone: the cell where
+     * each ray reaches the measured distance gets "hit" evidence and the cells
+     * before it get "miss" evidence, scaled by the ray's cone weight. Each cell
+     * is updated at most once per reading, hits taking precedence and rays
+     * nearer the axis before those further out.
+     * All updates are integer adds on byte-sized log-odds.
+     */
+    private void fuseReadings(ProximityMap proximityMap, int relativeTo)
+    {
+        Point location = robotLocation;
+        for (int angle = proximityMap.minimumAngle; angle <= proximityMap.maximumAngle; angle++)
+        {
+            float distance = proximityMap.getDistanceAtAngle(angle);
+            if (Float.isNaN(distance) || proximityMap.confidence(angle) < minimumConfidence) continue;
+            fuseReading(location.x, location.y, angle + relativeTo, distance);
+        }
+    }
+
+    private void fuseReading(double fromX, double fromY, int readingBearing, float distance)
+    {
+        GridRay ray = this.ray;
+        double fromColumn = gridColumn(fromX);
+        double fromRow = gridRow(fromY);
+        int coneRays = CONE_WEIGHTS.length;
+        int generation = ++this.generation;
+        for (int j = 0; j < coneRays; j++)
+        {
+            int i = coneRay(j);
+            int bearing = readingBearing - ULTRASONIC_HALF_CONE + i * ULTRASONIC_CONE_STEP;
+            double x = fromX + distance * MathHelper.sinDegrees(bearing);
+            double y = fromY + distance * MathHelper.cosDegrees(bearing);
+            int cell = indexWithPoint(x, y);
+            if (cell != -1 && grid.getInt(VISIT_STAMPS, cell) != generation)
+            {
+                grid.setInt(VISIT_STAMPS, cell, generation);
+                addLogOdds(cell, (LOG_ODDS_HIT * CONE_WEIGHTS[i]) >> 4);
+            }
+        }
+        for (int j = 0; j < coneRays; j++)
+        {
+            int i = coneRay(j);
+            int bearing = readingBearing - ULTRASONIC_HALF_CONE + i * ULTRASONIC_CONE_STEP;
+            double x = fromX + distance * MathHelper.sinDegrees(bearing);
+            double y = fromY + distance * MathHelper.cosDegrees(bearing);
+            int miss = (LOG_ODDS_MISS * CONE_WEIGHTS[i]) >> 4;
+            ray.start(fromColumn, fromRow, gridColumn(x), gridRow(y));
+            while (ray.next())
+            {
+                int c = indexOfCell(ray.row, ray.column);
+                if (c != -1 && grid.getInt(VISIT_STAMPS, c) != generation)
+                {
+                    grid.setInt(VISIT_STAMPS, c, generation);
+                    addLogOdds(c, miss);
+                }
+            }
+        }
+    }
+
+    /**
+     * The j-th ray of the cone to trace, from the axis outwards, so that a
+     * cell crossed by several rays gets the evidence of the strongest.
+     */
+    private static int coneRay(int j)
+    {
+        int axis = CONE_WEIGHTS.length / 2;
+        return (j & 1) == 0 ? axis + j / 2 : axis - (j + 1) / 2;
+    }
+
+    private void addLogOdds(int index, int delta)
+    {
+        int oldValue = grid.getByte(LOG_ODDS, index);
+        int value = Math.max(-LOG_ODDS_LIMIT, Math.min(LOG_ODDS_LIMIT, oldValue + delta));
+        if (value != oldValue)
+        {
+            grid.setByte(LOG_ODDS, index, (byte)value);
+            cellStored(index);
+        }
+        boolean occupied = value >= LOG_ODDS_OCCUPIED;
+        boolean known = occupied || value <= LOG_ODDS_FREE;
+        boolean wasOccupied = obstacleCount(index) != 0;
+        boolean wasKnown = (flags(index) & KNOWN) != 0;
+        if (occupied == wasOccupied && known == wasKnown) return;
+        if (known)
+        {
+            addFlags(index, KNOWN);
+        }
+        else
+        {
+            removeFlags(index, KNOWN);
+        }
+        grid.setByte(OBSTACLE_COUNTS, index, (byte)(occupied ? 1 : 0));
+        cellStored(index);
+        cellChanged(index);
+        if (occupied && !wasOccupied)
+        {
+            obstacleAdded(index);
+        }
+        else if (!occupied && wasOccupied)
+        {
+            obstacleRemoved(index);
+        }
+    }
+
+    /**
+     * Log-odds of the cell being occupied, in sixteenths of a nat
+     * (always 0 unless the map is in LOG_ODDS mode).
+     */
+    public int logOddsAt(int index)
+    {
+        return grid.getByte(LOG_ODDS, index);
+    }
+
+    /**
+     * Column of the map as a real number, so that cell (row, column)
+     * contains the points with gridColumn(x) in [column, column + 1).
+     */
+    double gridColumn(double x)
+    {
+        return gridSize / 2 + x / cellSize;
+    }
+
+    /**
+     * Row of the map as a real number (see gridColumn).
+     */
+    double gridRow(double y)
+    {
+        return 1 + gridSize / 2 - y / cellSize;
+    }
+
+    /**
+     * Index of the cell at (row, column), or -1 if that is off the map.
+     */
+    public int indexOfCell(int row, int column)
+    {
+        row += gridOffset;
+        column += gridOffset;
+        if (!TiledGrid.contains(row, column))
+        {
+            return -1;
+        }
+        return TiledGrid.index(row, column);
+    }
+
+    public Cell cellWithPoint(Point point)
+    {
+        int index = indexWithPoint(point.x, point.y);
+        return index == -1 ? null : new Cell(this, index);
+    }
+
+    /**
+     * Index of the cell containing the point (x, y), or -1 if the point is off the map.
+     */
+    public int indexWithPoint(double x, double y)
+    {
+        int cellSize = this.cellSize;
+        int halfGrid = gridSize / 2;
+        double row = 1 + Math.floor(halfGrid - y / cellSize);
+        double column = Math.floor(halfGrid + x / cellSize);
+        if (row < -gridOffset || row >= TiledGrid.EXTENT - gridOffset
+            || column < -gridOffset || column >= TiledGrid.EXTENT - gridOffset)
+        {
+            return -1;
+        }
+        else
+        {
+            return TiledGrid.index((int)row + gridOffset, (int)column + gridOffset);
+        }
+    }
+
+    public Cell cellAt(int index)
+    {
+        return new Cell(this, index);
+    }
+
+    public Cell cellAt(int row, int column)
+    {
+        return new Cell(this, TiledGrid.index(row + gridOffset, column + gridOffset));
+    }
+
+    public int rowOf(int index)
+    {
+        return TiledGrid.row(index) - gridOffset;
+    }
+
+    public int columnOf(int index)
+    {
+        return TiledGrid.column(index) - gridOffset;
+    }
+
+    public double cellTop(int row)
+    {
+        return cellSize * gridSize / 2.0 - row * cellSize;
+    }
+
+    public double cellLeft(int column)
+    {
+        return -(cellSize * gridSize / 2.0) + column * cellSize;
+    }
+
+    public double midpointX(int column)
+    {
+        return cellLeft(column) + cellSize / 2;
+    }
+
+    public double midpointY(int row)
+    {
+        return cellTop(row) + cellSize / 2;
+    }
+
+    /**
+     * Index of neighbour k (0 to 7) of the given cell, or -1 if it would be off the map.
+     */
+    public int neighbourOf(int index, int k)
+    {
+        int row = TiledGrid.row(index) + NEIGHBOUR_ROWS[k];
+        int column = TiledGrid.column(index) + NEIGHBOUR_COLUMNS[k];
+        if (!TiledGrid.contains(row, column))
+        {
+            return -1;
+        }
+        return index + neighbourOffsets[k];
+    }
+
+    public boolean isKnown(int index)
+    {
+        return (flags(index) & KNOWN) != 0 || obstacleCount(index) != 0;
+    }
+
+    public int obstacleCount(int index)
+    {
+        return grid.getByte(OBSTACLE_COUNTS, index);
+    }
+
+    private int flags(int index)
+    {
+        return grid.getByte(FLAGS, index);
+    }
+
+    private void addFlags(int index, int bits)
+    {
+        grid.setByte(FLAGS, index, (byte)(grid.getByte(FLAGS, index) | bits));
+    }
+
+    private void removeFlags(int index, int bits)
+    {
+        grid.setByte(FLAGS, index, (byte)(grid.getByte(FLAGS, index) & ~bits));
+    }
+
+    /**
+     * The sparse grid holding the cell state, for planners that keep their own layers.
+     */
+    TiledGrid grid()
+    {
+        return grid;
+    }
+
+    boolean hasFlag(int index, int flag)
+    {
+        return (flags(index) & flag) != 0;
+    }
+
+    void setFlag(int index, int flag, boolean value)
+    {
+        boolean wasKnown = isKnown(index);
+        if (value)
+        {
+            addFlags(index, flag);
+        }
+        else
+        {
+            removeFlags(index, flag);
+        }
+        cellStored(index);
+        if (isKnown(index) != wasKnown)
+        {
+            cellChanged(index);
+            updateChangedCells();
+        }
+        else if (flag == UNSAFE)
+        {
+            plannerCellChanged(index);
+        }
+    }
+
+    boolean isVisited(int index)
+    {
+        return grid.getInt(VISIT_STAMPS, index) == generation;
+    }
+
+    void setVisited(int index, boolean visited)
+    {
+        grid.setInt(VISIT_STAMPS, index, visited ? generation : generation - 1);
+    }
+
+    public boolean anyNeighbourHasObstacles(int index)
+    {
+        int row = TiledGrid.row(index);
+        int column = TiledGrid.column(index);
+        int last = TiledGrid.EXTENT - 1;
+        if (row > 0 && row < last && column > 0 && column < last)
+        {
+            // Interior cell: all neighbours exist, so skip bounds checks.
+            for (int k = 0; k < 8; k++)
+            {
+                if (obstacleCount(index + neighbourOffsets[k]) != 0)
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        for (int k = 0; k < 8; k++)
+        {
+            int n = neighbourOf(index, k);
+            if (n != -1 && obstacleCount(n) != 0)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int anyNeighbourIsUnknown(int index)
+    {
+        for (int k = 0; k < 8; k++)
+        {
+            int n = neighbourOf(index, k);
+            if (n != -1 && (flags(n) & KNOWN) == 0)
+            {
+                return n;
+            }
+        }
+        return -1;
+    }
+
+    private void markFree(int index)
+    {
+        if ((flags(index) & KNOWN) == 0 || obstacleCount(index) != 0)
+        {
+            boolean hadObstacles = obstacleCount(index) != 0;
+            addFlags(index, KNOWN);
+            grid.setByte(OBSTACLE_COUNTS, index, (byte)0);
+            cellStored(index);
+            cellChanged(index);
+            if (hadObstacles)
+            {
+                obstacleRemoved(index);
+            }
+        }
+    }
+
+    private void addObstacle(int index)
+    {
+        int count = obstacleCount(index);
+        if (count < Byte.MAX_VALUE)
+        {
+            grid.setByte(OBSTACLE_COUNTS, index, (byte)(count + 1));
+            cellStored(index);
+            if (count == 0)
+            {
+                cellChanged(index);
+                obstacleAdded(index);
+            }
+        }
+    }
+
+    /**
+     * Called whenever the known or obstacle state of a cell changes; the rest
+     * of the map catches up in updateChangedCells.
+     */
+    private void cellChanged(int index)
+    {
+        if (changedCount == changedCells.length)
+        {
+            changedCells = Arrays.copyOf(changedCells, 2 * changedCount);
+        }
+        changedCells[changedCount++] = index;
+    }
+
+    /**
+     * Bring the overview, bounds, planner and frontier up to date with the
+     * cells passed to cellChanged, once per scan rather than once per change.
+     * A cell back in the state the overview counted (see the SHOWN_ flags)
+     * has not changed for any of these. Neighbours only need their frontier
+     * state checked when a cell starts or stops being known and free, and
+     * only the cell's own state is needed to tell which way they go unless
+     * it stops.
+     */
+    private void updateChangedCells()
+    {
+        int[] cells = changedCells;
+        int last = TiledGrid.EXTENT - 1;
+        for (int i = 0; i < changedCount; i++)
+        {
+            int index = cells[i];
+            boolean wasFree = (flags(index) & (SHOWN_KNOWN | SHOWN_OBSTACLE)) == SHOWN_KNOWN;
+            if (!updateOverview(index)) continue;
+            if (isKnown(index))
+            {
+                int row = rowOf(index);
+                int column = columnOf(index);
+                firstRow = Math.min(firstRow, row);
+                lastRow = Math.max(lastRow, row);
+                firstColumn = Math.min(firstColumn, column);
+                lastColumn = Math.max(lastColumn, column);
+            }
+            plannerCellChanged(index);
+            updateFrontier(index);
+            boolean free = isKnownFree(index);
+            if (free == wasFree) continue;
+            int row = TiledGrid.row(index);
+            int column = TiledGrid.column(index);
+            boolean interior = row > 0 && row < last && column > 0 && column < last;
+            for (int k = 0; k < 8; k++)
+            {
+                int n = interior ? index + neighbourOffsets[k] : neighbourOf(index, k);
+                if (n == -1) continue;
+                if (free)
+                {
+                    // Unknown next to a known free cell.
+                    if ((flags(n) & (KNOWN | FRONTIER)) == 0 && obstacleCount(n) == 0) addFrontier(n);
+                }
+                else if ((flags(n) & FRONTIER) != 0)
+                {
+                    updateFrontier(n);
+                }
+            }
+        }
+        changedCount = 0;
+        for (int level = 1; level <= OVERVIEW_LEVELS; level++)
+        {
+            addOverviewDelta(level);
+        }
+    }
+
+    /**
+     * Bring the overview counts for the cell up to date (once
+     * updateChangedCells adds the last run). Returns false if they already were.
+     */
+    private boolean updateOverview(int index)
+    {
+        int shown = flags(index) & (SHOWN_KNOWN | SHOWN_OBSTACLE);
+        int state = (isKnown(index) ? SHOWN_KNOWN : 0) | (obstacleCount(index) != 0 ? SHOWN_OBSTACLE : 0);
+        if (state == shown) return false;
+        int delta = 0;
+        if ((state & SHOWN_KNOWN) != (shown & SHOWN_KNOWN)) delta += (state & SHOWN_KNOWN) != 0 ? 1 : -1;
+        if ((state & SHOWN_OBSTACLE) != (shown & SHOWN_OBSTACLE)) delta += (state & SHOWN_OBSTACLE) != 0 ? 1 << OBSTACLE_SHIFT : -1 << OBSTACLE_SHIFT;
+        removeFlags(index, SHOWN_KNOWN | SHOWN_OBSTACLE);
+        addFlags(index, state);
+        int row = TiledGrid.row(index);
+        int column = TiledGrid.column(index);
+        for (int level = 1; level <= OVERVIEW_LEVELS; level++)
+        {
+            int block = TiledGrid.index(row >> level, column >> level);
+            if (block != overviewBlocks[level - 1])
+            {
+                addOverviewDelta(level);
+                overviewBlocks[level - 1] = block;
+            }
+            overviewDeltas[level - 1] += delta;
+        }
+        return true;
+    }
+
+    private void addOverviewDelta(int level)
+    {
+        int delta = overviewDeltas[level - 1];
+        if (delta == 0) return;
+        int block = overviewBlocks[level - 1];
+        TiledGrid counts = overview[level - 1];
+        counts.setInt(0, block, counts.getInt(0, block) + delta);
+        overviewDeltas[level - 1] = 0;
+    }
+
+    /**
+     * Known and obstacle cell counts (packed as in the overview) of a block
+     * at a zoom level, or -1 if the block is off the grid.
+     */
+    private int overviewCounts(int level, int blockRow, int blockColumn)
+    {
+        int blocks = TiledGrid.EXTENT >> level;
+        if (blockRow < 0 || blockRow >= blocks || blockColumn < 0 || blockColumn >= blocks) return -1;
+        int block = TiledGrid.index(blockRow, blockColumn);
+        if (level > 0) return overview[level - 1].getInt(0, block);
+        return (isKnown(block) ? 1 : 0) | (obstacleCount(block) != 0 ? 1 << OBSTACLE_SHIFT : 0);
+    }
+
+    private boolean isKnownFree(int index)
+    {
+        return (flags(index) & KNOWN) != 0 && obstacleCount(index) == 0;
+    }
+
+    private void updateFrontier(int index)
+    {
+        boolean frontier = false;
+        if (!isKnown(index))
+        {
+            for (int k = 0; k < 8; k++)
+            {
+                int n = neighbourOf(index, k);
+                if (n != -1 && isKnownFree(n))
+                {
+                    frontier = true;
+                    break;
+                }
+            }
+        }
+        boolean wasFrontier = (flags(index) & FRONTIER) != 0;
+        if (frontier && !wasFrontier)
+        {
+            addFrontier(index);
+        }
+        else if (!frontier && wasFrontier)
+        {
+            removeFlags(index, FRONTIER);
+            staleFrontierCount++;
+        }
+    }
+
+    private void addFrontier(int index)
+    {
+        addFlags(index, FRONTIER);
+        if (frontierCount == frontierCells.length)
+        {
+            compactFrontier();
+            if (frontierCount == frontierCells.length)
+            {
+                frontierCells = Arrays.copyOf(frontierCells, 2 * frontierCount);
+            }
+        }
+        frontierCells[frontierCount++] = index;
+    }
+
+    private void compactFrontier()
+    {
+        // A cell may appear more than once if it left and rejoined the
+        // frontier, so only keep entries for cells that are still flagged,
+        // using the FRONTIER flag as a "seen" marker while compacting.
+        int[] cells = frontierCells;
+        int n = 0;
+        for (int i = 0; i < frontierCount; i++)
+        {
+            int c = cells[i];
+            if ((flags(c) & FRONTIER) != 0)
+            {
+                removeFlags(c, FRONTIER);
+                cells[n++] = c;
+            }
+        }
+        for (int i = 0; i < n; i++)
+        {
+            addFlags(cells[i], FRONTIER);
+        }
+        frontierCount = n;
+        staleFrontierCount = 0;
+    }
+
+    /**
+     * Number of unknown cells that are next to known obstacle-free cells.
+     */
+    public int frontierSize()
+    {
+        if (staleFrontierCount != 0)
+        {
+            compactFrontier();
+        }
+        return frontierCount;
+    }
+
+    public boolean isFrontier(int index)
+    {
+        return (flags(index) & FRONTIER) != 0;
+    }
+
+    private void obstacleAdded(int index)
+    {
+        grid.setInt(NEAREST_OBSTACLES, index, index);
+        grid.setInt(OBSTACLE_DISTANCES, index, 0);
+        removeFlags(index, RAISE);
+        distanceUpdates.push(0, index);
+    }
+
+    private void obstacleRemoved(int index)
+    {
+        int oldDistance = grid.getInt(OBSTACLE_DISTANCES, index);
+        grid.setInt(NEAREST_OBSTACLES, index, -1);
+        grid.setInt(OBSTACLE_DISTANCES, index, NO_CLEARANCE_LIMIT);
+        addFlags(index, RAISE);
+        distanceUpdates.push(oldDistance, index);
+    }
+
+    /**
+     * Bring the distance field up to date after obstacles have been added or removed.
+     * This is the dynamic brushfire algorithm: removed obstacles send out a "raise"
+     * wave that invalidates cells whose nearest obstacle has gone, then "lower"
+     * waves from the remaining and new obstacles fill the distances back in.
+     * Only cells whose nearest obstacle changes are touched.
+     * See Lau, Sprunk and Burgard, "Improved updating of Euclidean distance
+     * maps and Voronoi diagrams" (IROS 2010).
+     */
+    private void updateDistanceField()
+    {
+        MinHeap open = distanceUpdates;
+        while (!open.isEmpty())
+        {
+            long key = open.peekKey();
+            int c = open.poll();
+            if ((flags(c) & RAISE) != 0)
+            {
+                for (int k = 0; k < 8; k++)
+                {
+                    int n = neighbourOf(c, k);
+                    if (n == -1 || grid.getInt(NEAREST_OBSTACLES, n) == -1 || (flags(n) & RAISE) != 0) continue;
+                    if (obstacleCount(grid.getInt(NEAREST_OBSTACLES, n)) == 0)
+                    {
+                        // Nearest obstacle has gone: invalidate and pass the wave on.
+                        open.push(grid.getInt(OBSTACLE_DISTANCES, n), n);
+                        grid.setInt(NEAREST_OBSTACLES, n, -1);
+                        grid.setInt(OBSTACLE_DISTANCES, n, NO_CLEARANCE_LIMIT);
+                        addFlags(n, RAISE);
+                        plannerCellChanged(n);
+                    }
+                    else
+                    {
+                        // Still valid: let it lower its neighbours again.
+                        open.push(grid.getInt(OBSTACLE_DISTANCES, n), n);
+                    }
+                }
+                removeFlags(c, RAISE);
+            }
+            else if (grid.getInt(NEAREST_OBSTACLES, c) != -1 && key == grid.getInt(OBSTACLE_DISTANCES, c))
+            {
+                int obstacle = grid.getInt(NEAREST_OBSTACLES, c);
+                if (obstacleCount(obstacle) == 0) continue;
+                int obstacleRow = rowOf(obstacle);
+                int obstacleColumn = columnOf(obstacle);
+                for (int k = 0; k < 8; k++)
+                {
+                    int n = neighbourOf(c, k);
+                    if (n == -1 || (flags(n) & RAISE) != 0) continue;
+                    int dr = rowOf(n) - obstacleRow;
+                    int dc = columnOf(n) - obstacleColumn;
+                    int d = dr * dr + dc * dc;
+                    if (d < grid.getInt(OBSTACLE_DISTANCES, n) && d <= maximumDistance)
+                    {
+                        grid.setInt(NEAREST_OBSTACLES, n, obstacle);
+                        grid.setInt(OBSTACLE_DISTANCES, n, d);
+                        open.push(d, n);
+                        plannerCellChanged(n);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Squared distance (in cells) to the nearest obstacle cell,
+     * or Integer.MAX_VALUE if there is none nearby.
+     */
+    int obstacleDistanceSquared(int index)
+    {
+        if (!distanceUpdates.isEmpty()) updateDistanceField();
+        return grid.getInt(OBSTACLE_DISTANCES, index);
+    }
+
+    /**
+     * Index of the nearest obstacle cell, or -1 if there is none nearby.
+     */
+    int nearestObstacle(int index)
+    {
+        if (!distanceUpdates.isEmpty()) updateDistanceField();
+        return grid.getInt(NEAREST_OBSTACLES, index);
+    }
+
+    private void plannerCellChanged(int index)
+    {
+        if (dStarLite == null || (flags(index) & CHANGED) != 0) return;
+        addFlags(index, CHANGED);
+        if (plannerChangeCount == plannerChanges.length)
+        {
+            plannerChanges = Arrays.copyOf(plannerChanges, 2 * plannerChangeCount);
+        }
+        plannerChanges[plannerChangeCount++] = index;
+    }
+
+    void setJournaling(boolean journaling)
+    {
+        this.journaling = journaling;
+        clearJournal();
+    }
+
+    private void cellStored(int index)
+    {
+        if (!journaling || (flags(index) & JOURNAL) != 0) return;
+        addFlags(index, JOURNAL);
+        if (journalCount == journalCells.length)
+        {
+            journalCells = Arrays.copyOf(journalCells, 2 * journalCount);
+        }
+        journalCells[journalCount++] = index;
+    }
+
+    int journalCount()
+    {
+        return journalCount;
+    }
+
+    int journalCell(int i)
+    {
+        return journalCells[i];
+    }
+
+    void clearJournal()
+    {
+        for (int i = 0; i < journalCount; i++)
+        {
+            removeFlags(journalCells[i], JOURNAL);
+        }
+        journalCount = 0;
+    }
+
+    /**
+     * The state of a cell as saved in checkpoints: the KNOWN and UNSAFE flags,
+     * obstacle count (bits 8 to 15) and log-odds (bits 16 to 23), or 0 if the
+     * cell has never been written.
+     */
+    int storedState(int index)
+    {
+        return (flags(index) & (KNOWN | UNSAFE))
+            | (obstacleCount(index) & 0xff) << 8
+            | (grid.getByte(LOG_ODDS, index) & 0xff) << 16;
+    }
+
+    /**
+     * Set a cell to a state from storedState, updating the frontier,
+     * distance field and planners to match.
+     */
+    void restoreState(int index, int state)
+    {
+        boolean wasKnown = isKnown(index);
+        boolean hadObstacles = obstacleCount(index) != 0;
+        int oldFlags = flags(index);
+        grid.setByte(FLAGS, index, (byte)((oldFlags & ~(KNOWN | UNSAFE)) | (state & (KNOWN | UNSAFE))));
+        grid.setByte(OBSTACLE_COUNTS, index, (byte)(state >> 8));
+        grid.setByte(LOG_ODDS, index, (byte)(state >> 16));
+        boolean hasObstacles = obstacleCount(index) != 0;
+        cellStored(index);
+        if (isKnown(index) != wasKnown || hasObstacles != hadObstacles)
+        {
+            cellChanged(index);
+            updateChangedCells();
+        }
+        else if (((oldFlags ^ state) & UNSAFE) != 0)
+        {
+            plannerCellChanged(index);
+        }
+        if (hasObstacles && !hadObstacles)
+        {
+            obstacleAdded(index);
+        }
+        else if (!hasObstacles && hadObstacles)
+        {
+            obstacleRemoved(index);
+        }
+    }
+
+    /**
+     * Indices of all cells with a stored state other than 0.
+     */
+    int[] storedCells()
+    {
+        StoredCellCollector collector = new StoredCellCollector();
+        grid.forEachTile(collector);
+        return Arrays.copyOf(collector.cells, collector.count);
+    }
+
+    private class StoredCellCollector implements TiledGrid.TileAction
+    {
+        int[] cells = new int[256];
+        int count = 0;
+
+        public void visit(int tileRow, int tileColumn)
+        {
+            int size = TiledGrid.TILE_SIZE;
+            for (int row = tileRow * size; row < (tileRow + 1) * size; row++)
+            {
+                int index = TiledGrid.index(row, tileColumn * size);
+                for (int column = 0; column < size; column++, index++)
+                {
+                    if (storedState(index) == 0) continue;
+                    if (count == cells.length)
+                    {
+                        cells = Arrays.copyOf(cells, 2 * count);
+                    }
+                    cells[count++] = index;
+                }
+            }
+        }
+    }
+
+    private void clearPlannerChanges()
+    {
+        for (int i = 0; i < plannerChangeCount; i++)
+        {
+            removeFlags(plannerChanges[i], CHANGED);
+        }
+        plannerChangeCount = 0;
+    }
+
+    /**
+     * Distance (centimetres) from the midpoint of a cell to the midpoint of
+     * the nearest obstacle cell, or infinity if there is none nearby.
+     */
+    public float clearanceAt(int index)
+    {
+        if (!distanceUpdates.isEmpty()) updateDistanceField();
+        int d = grid.getInt(OBSTACLE_DISTANCES, index);
+        return d == NO_CLEARANCE_LIMIT ? Float.POSITIVE_INFINITY : (float)(Math.sqrt(d) * cellSize);
+    }
 
-    public Point robotLocation;
-    public Cell targetCell;
-    public ArrayList<Cell> cellsToTarget = new ArrayList<Cell>();
-    public ArrayList<Point> pointsToTarget = new ArrayList<Point>();
+    /**
+     * Whether a robot of the given radius (centimetres) centred in the cell
+     * would be clear of all obstacle cells.
+     */
+    public boolean isClearFor(int index, float radius)
+    {
+        if (!distanceUpdates.isEmpty()) updateDistanceField();
+        int d = grid.getInt(OBSTACLE_DISTANCES, index);
+        return d == NO_CLEARANCE_LIMIT || (float)d * cellSize * cellSize >= radius * radius;
+    }
 
-    public DiscoveryMap()
+    public void robotMoved(float direction, float distance)
     {
-        this(DEFAULT_CELL_SIZE, DEFAULT_GRID_SIZE);
+        this.robotLocation = this.robotLocation.move(direction, distance);
     }
 
-    public DiscoveryMap(int cellSize, int gridSize)
+    /**
+     * Move the robot as a PoseEstimator saw it move between two poses, its
+     * gyro bearings turned to map bearings by the given offset (degrees);
+     * the location grows as much less certain as the estimate did.
+     */
+    public void robotMoved(PoseEstimator.Pose from, PoseEstimator.Pose to, double headingOffset)
     {
-        if (gridSize % 2 != 0) throw new RuntimeException("Map grid size (" + gridSize + " ) is not even!");
-        this.cellSize = cellSize;
-        this.gridSize = gridSize;
-        Cell[][] cells = new Cell[gridSize][gridSize];
-        double y = cellSize * gridSize / 2.0;
-        for (int row = 0; row < gridSize; row++)
+        double dx = to.x - from.x;
+        double dy = to.y - from.y;
+        double direction = MathHelper.radiansToDegrees(Math.atan2(dx, dy)) + headingOffset;
+        this.robotLocation = this.robotLocation.move(direction, Math.hypot(dx, dy));
+        double toDeviation = to.deviation();
+        double fromDeviation = from.deviation();
+        this.locationVariance += Math.max(0, toDeviation * toDeviation - fromDeviation * fromDeviation);
+    }
+
+    public void chooseTarget()
+    {
+        targetCell = null;
+        cellsToTarget.clear();
+        pointsToTarget.clear();
+        cellsSearched = 0;
+        int source = indexWithPoint(robotLocation.x, robotLocation.y);
+        if (source == -1)
+        {
+            return;
+        }
+        int target;
+        if (plannerMode == PlannerMode.D_STAR_LITE)
+        {
+            target = chooseTargetIncrementally(source);
+            if (target != -1)
+            {
+                targetCell = cellsToTarget.get(cellsToTarget.size() - 1);
+            }
+            return;
+        }
+        target = searchForTarget(source);
+        if (target != -1)
         {
-            double x = -(cellSize * gridSize / 2.0);
-            for (int column = 0; column < gridSize; column++)
+            targetCell = new Cell(this, target);
+            for (int p = target; p != -1; p = parentOf(p))
             {
-                Cell cell = new Cell();
-                cell.row = row;
-                cell.column = column;
-                cell.top = y;
-                cell.bottom = y + cellSize;
-                cell.left = x;
-                cell.right = x + cellSize;
-                cell.midpoint = new Point(x + cellSize / 2, y + cellSize / 2);
-                cells[row][column] = cell;
-                listOfCells.add(cell);
-                x += cellSize;
+                Cell cell = p == target ? targetCell : new Cell(this, p);
+                cellsToTarget.add(cell);
+                pointsToTarget.add(cell.midpoint);
             }
-            y -= cellSize;
+            Collections.reverse(cellsToTarget);
+        }
+    }
+
+    private int searchForTarget(int source)
+    {
+        int target;
+        if (targetMode == TargetMode.INFORMATION_GAIN && isKnownFree(source))
+        {
+            target = searchBestFrontier(source);
         }
-        for (int row = 0; row < gridSize; row++)
+        else if (isKnownFree(source))
         {
-            for (int column = 0; column < gridSize; column++)
+            // Every reachable unknown cell is behind a frontier cell,
+            // so with no safe frontier cells there is nothing to reach.
+            int nearest = nearestSafeFrontier(source);
+            if (nearest == -1)
+            {
+                return -1;
+            }
+            target = searchPath(source, nearest);
+            if (target == -1)
             {
-                Cell cell = cells[row][column];
-                addNeighbours(cell, cells);
+                // Nearest frontier cell (as the crow flies) is not the
+                // nearest by path, so fall back to searching outwards.
+                target = searchNearestUnknown(source);
             }
         }
-        this.gridOfCells = cells;
-        this.robotLocation = new Point(0, 0);
-        this.selfTest();
+        else
+        {
+            target = searchNearestUnknown(source);
+        }
+        return target;
     }
 
-    public void addObstacles(ProximityMap proximityMap, int relativeTo)
+    /**
+     * Keep heading for the previous target while it is still unknown and
+     * reachable, repairing the previous D* Lite search for the cells that
+     * changed since then. Only choose a new target (and start a new search)
+     * when the old one has been reached, explored or blocked.
+     */
+    private int chooseTargetIncrementally(int source)
     {
-        Point location = robotLocation;
-        int minAngle = proximityMap.minimumAngle;
-        int maxAngle = proximityMap.maximumAngle;
-        for (int pass = 1; pass <= 2; pass++)
+        if (!distanceUpdates.isEmpty()) updateDistanceField();
+        DStarLite planner = dStarLite;
+        if (planner == null)
         {
-            for (int angle = minAngle; angle <= maxAngle; angle++)
+            planner = dStarLite = new DStarLite(this);
+        }
+        int goal = planner.getGoal();
+        boolean repaired = false;
+        if (goal != -1 && goal != source && !isKnown(goal) && isSafe(goal)
+            && plannedSafeRadius == safeRadius)
+        {
+            planner.replan(source, plannerChanges, plannerChangeCount);
+            repaired = planner.hasPath();
+            cellsSearched = planner.nodesExpanded;
+        }
+        clearPlannerChanges();
+        if (!repaired)
+        {
+            goal = searchForTarget(source);
+            if (goal == -1)
             {
-                float distance = proximityMap.getDistanceAtAngle(angle);
-                if (!Float.isNaN(distance))
+                return -1;
+            }
+            plannedSafeRadius = safeRadius;
+            planner.initialize(source, goal);
+            cellsSearched += planner.nodesExpanded;
+            if (!planner.hasPath())
+            {
+                return -1;
+            }
+        }
+        pathLength = 0;
+        planner.extractPath();
+        addPathToTarget();
+        return goal;
+    }
+
+    /**
+     * Append a cell to the path being planned.
+     */
+    void addPathCell(int index)
+    {
+        if (pathLength == pathCells.length)
+        {
+            pathCells = Arrays.copyOf(pathCells, 2 * pathLength);
+        }
+        pathCells[pathLength++] = index;
+    }
+
+    private void addPathToTarget()
+    {
+        for (int i = 0; i < pathLength; i++)
+        {
+            Cell cell = new Cell(this, pathCells[i]);
+            cellsToTarget.add(cell);
+            pointsToTarget.add(cell.midpoint);
+        }
+    }
+
+    /**
+     * The incremental planner used in D_STAR_LITE mode, for its expansion counters.
+     */
+    public DStarLite incrementalPlanner()
+    {
+        return dStarLite;
+    }
+
+    public boolean isSafe(int index)
+    {
+        return (flags(index) & UNSAFE) == 0 && isClearFor(index, safeRadius);
+    }
+
+    private int chebyshevDistance(int from, int to)
+    {
+        int dr = Math.abs(rowOf(from) - rowOf(to));
+        int dc = Math.abs(columnOf(from) - columnOf(to));
+        return Math.max(dr, dc);
+    }
+
+    private int nearestSafeFrontier(int source)
+    {
+        frontierSize(); // drop stale entries
+        int nearest = -1;
+        int nearestDistance = Integer.MAX_VALUE;
+        int[] cells = frontierCells;
+        for (int i = 0; i < frontierCount; i++)
+        {
+            int c = cells[i];
+            int d = chebyshevDistance(source, c);
+            if (d < nearestDistance && isSafe(c))
+            {
+                nearest = c;
+                nearestDistance = d;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * A* search over known safe cells from source to goal. With one step per
+     * move in any of 8 directions the Chebyshev distance is an exact lower bound,
+     * and goal is the closest frontier cell by that measure, so if the path is
+     * no longer than that bound then no other unknown cell can be nearer.
+     * Returns goal if such a path was found, otherwise -1.
+     */
+    private int searchPath(int source, int goal)
+    {
+        int generation = ++this.generation;
+        int limit = chebyshevDistance(source, goal);
+        MinHeap open = openCells;
+        open.clear();
+        grid.setInt(VISIT_STAMPS, source, generation);
+        grid.setInt(SEARCH_COSTS, source, 0);
+        grid.setByte(PATH_TO_SOURCE, source, (byte)0);
+        open.push(searchKey(limit, 0), source);
+        while (!open.isEmpty())
+        {
+            long key = open.peekKey();
+            int c = open.poll();
+            int cost = grid.getInt(SEARCH_COSTS, c);
+            int f = cost + chebyshevDistance(c, goal);
+            if (key != searchKey(f, cost)) continue; // stale entry
+            if (f > limit) break;
+            cellsSearched++;
+            if (c == goal) return goal;
+            for (int k = 0; k < 8; k++)
+            {
+                int n = neighbourOf(c, k);
+                if (n == -1) continue;
+                int newCost = cost + 1;
+                if (grid.getInt(VISIT_STAMPS, n) == generation && grid.getInt(SEARCH_COSTS, n) <= newCost) continue;
+                if (n != goal && !(isKnown(n) && isSafe(n))) continue;
+                grid.setInt(VISIT_STAMPS, n, generation);
+                grid.setInt(SEARCH_COSTS, n, newCost);
+                grid.setByte(PATH_TO_SOURCE, n, (byte)(1 + REVERSE_NEIGHBOUR[k]));
+                open.push(searchKey(newCost + chebyshevDistance(n, goal), newCost), n);
+            }
+        }
+        return -1;
+    }
+
+    private static long searchKey(int f, int cost)
+    {
+        // Order by f, then prefer cells further from the source.
+        return ((long)f << 32) - cost;
+    }
+
+    /**
+     * Breadth first search outwards from source for the nearest safe unknown cell.
+     */
+    private int searchNearestUnknown(int source)
+    {
+        int generation = ++this.generation;
+        int[] queue = this.queue;
+        int head = 0, tail = 0;
+        grid.setInt(VISIT_STAMPS, source, generation);
+        grid.setByte(PATH_TO_SOURCE, source, (byte)0);
+        queue[tail++] = source;
+        while (head < tail)
+        {
+            int c = queue[head++];
+            cellsSearched++;
+            for (int k = 0; k < 8; k++)
+            {
+                int n = neighbourOf(c, k);
+                if (n != -1 && grid.getInt(VISIT_STAMPS, n) != generation)
                 {
-                    int bearing = angle + relativeTo;
-                    Point point = location.move(bearing, distance);
-                    Cell cell = cellWithPoint(point);
-                    if (cell != null)
+                    grid.setInt(VISIT_STAMPS, n, generation);
+                    if (isSafe(n))
+                    {
+                        if (tail == queue.length)
+                        {
+                            queue = this.queue = Arrays.copyOf(queue, 2 * queue.length);
+                        }
+                        queue[tail++] = n;
+                        grid.setByte(PATH_TO_SOURCE, n, (byte)(1 + REVERSE_NEIGHBOUR[k]));
+                        if (!isKnown(n))
+                        {
+                            return n;
+                        }
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Choose the frontier cluster worth the most: breadth first search finds
+     * every reachable frontier cell (a safe unknown cell next to a known safe
+     * one) and its path length; neighbouring frontier cells are joined into
+     * clusters; each cluster is scored at its nearest cell and its cell nearest
+     * the cluster middle, by the unknown area the robot would see from there
+     * (see expectedGainAt) discounted by the distance to drive. An isolated
+     * unknown cell in the shadow of a chair leg reveals almost nothing, so it
+     * is not worth a pass of its own.
+     * Returns the cell chosen, with its path to the source, or -1 if no cluster
+     * is worth visiting.
+     */
+    private int searchBestFrontier(int source)
+    {
+        if (!distanceUpdates.isEmpty()) updateDistanceField();
+        int generation = ++this.generation;
+        int[] queue = this.queue;
+        int head = 0, tail = 0;
+        reachedCount = 0;
+        grid.setInt(VISIT_STAMPS, source, generation);
+        grid.setInt(SEARCH_COSTS, source, 0);
+        grid.setByte(PATH_TO_SOURCE, source, (byte)0);
+        queue[tail++] = source;
+        while (head < tail)
+        {
+            int c = queue[head++];
+            cellsSearched++;
+            int cost = grid.getInt(SEARCH_COSTS, c) + 1;
+            for (int k = 0; k < 8; k++)
+            {
+                int n = neighbourOf(c, k);
+                if (n != -1 && grid.getInt(VISIT_STAMPS, n) != generation)
+                {
+                    grid.setInt(VISIT_STAMPS, n, generation);
+                    grid.setInt(SEARCH_COSTS, n, -1);
+                    if (isSafe(n))
                     {
-                        if (pass == 1)
+                        grid.setByte(PATH_TO_SOURCE, n, (byte)(1 + REVERSE_NEIGHBOUR[k]));
+                        if (isKnown(n))
                         {
-                            // First pass: set "known" flags, clear obstacles.
-                            cell.setKnown(true);
-                            cell.obstacles.clear();
-                            for (float d = 1; d <= distance; d++)
+                            if (tail == queue.length)
                             {
-                                Point p = location.move(bearing, d);
-                                Cell c = cellWithPoint(p);
-                                if (c != null)
-                                {
-                                    // Must "see through" cell c to see obstacle
-                                    // so mark cell c as "known".
-                                    c.setKnown(true);
-                                    c.obstacles.clear();
-                                }
+                                queue = this.queue = Arrays.copyOf(queue, 2 * queue.length);
                             }
+                            queue[tail++] = n;
+                            grid.setInt(SEARCH_COSTS, n, cost);
                         }
                         else
                         {
-                            // Second pass: set obstacles.
-                            cell.obstacles.add(point);
+                            // Frontier cell: remember where it is in the reached list.
+                            grid.setInt(SEARCH_COSTS, n, reachedCount);
+                            addReachedCell(n, cost);
                         }
                     }
                 }
             }
         }
+        // Join neighbouring reached cells into clusters.
+        int[] cells = reachedCells;
+        int[] links = reachedLinks;
+        for (int i = 0; i < reachedCount; i++)
+        {
+            int c = cells[i];
+            for (int k = 0; k < 8; k++)
+            {
+                int n = neighbourOf(c, k);
+                if (n != -1 && grid.getInt(VISIT_STAMPS, n) == generation && !isKnown(n))
+                {
+                    int j = grid.getInt(SEARCH_COSTS, n);
+                    if (j != -1)
+                    {
+                        int a = clusterRoot(i);
+                        int b = clusterRoot(j);
+                        if (a != b) links[Math.max(a, b)] = Math.min(a, b);
+                    }
+                }
+            }
+        }
+        // Each root (the first cell of its cluster) collects the cluster's size
+        // and middle, then its cell nearest the middle and its nearest cell.
+        int count = reachedCount;
+        if (clusterSizes.length < count)
+        {
+            int length = reachedCells.length;
+            clusterSizes = new int[length];
+            clusterRowSums = new long[length];
+            clusterColumnSums = new long[length];
+            clusterMiddles = new int[length];
+            clusterMiddleDistances = new double[length];
+            clusterNearests = new int[length];
+        }
+        int[] sizes = clusterSizes;
+        long[] rowSums = clusterRowSums;
+        long[] columnSums = clusterColumnSums;
+        Arrays.fill(sizes, 0, count, 0);
+        Arrays.fill(rowSums, 0, count, 0);
+        Arrays.fill(columnSums, 0, count, 0);
+        for (int i = 0; i < count; i++)
+        {
+            int root = clusterRoot(i);
+            sizes[root]++;
+            rowSums[root] += rowOf(cells[i]);
+            columnSums[root] += columnOf(cells[i]);
+        }
+        // A root comes before the rest of its cluster, so it sets these first.
+        int[] middles = clusterMiddles;
+        double[] middleDistances = clusterMiddleDistances;
+        int[] nearests = clusterNearests;
+        for (int i = 0; i < count; i++)
+        {
+            int root = clusterRoot(i);
+            double dr = rowOf(cells[i]) - rowSums[root] / (double)sizes[root];
+            double dc = columnOf(cells[i]) - columnSums[root] / (double)sizes[root];
+            double d = dr * dr + dc * dc;
+            if (root == i || d < middleDistances[root])
+            {
+                middles[root] = i;
+                middleDistances[root] = d;
+            }
+            if (root == i || reachedCosts[i] < reachedCosts[nearests[root]])
+            {
+                nearests[root] = i;
+            }
+        }
+        int best = -1;
+        double bestScore = 0;
+        float minimumGain = MINIMUM_GAIN_CELLS * cellSize * cellSize;
+        frontierClusters = 0;
+        expectedGain = 0;
+        for (int i = 0; i < count; i++)
+        {
+            if (clusterRoot(i) != i) continue;
+            frontierClusters++;
+            // Try the nearest cell and the middle cell of each cluster.
+            for (int k = 0; k < 2; k++)
+            {
+                int candidate = k == 0 ? nearests[i] : middles[i];
+                if (k == 1 && candidate == nearests[i]) break;
+                int cell = cells[candidate];
+                float gain = expectedGainAt(cell, arrivalBearing(cell));
+                double score = gain * Math.exp(-reachedCosts[candidate] * cellSize / (double)GAIN_DISCOUNT_DISTANCE);
+                if (gain >= minimumGain && score > bestScore)
+                {
+                    best = cell;
+                    bestScore = score;
+                    expectedGain = gain;
+                }
+            }
+        }
+        return best;
     }
 
-    public Cell cellWithPoint(Point point)
+    private void addReachedCell(int index, int cost)
     {
-        int cellSize = this.cellSize;
-        int gridSize = this.gridSize;
-        int halfGrid = gridSize / 2;
-        int row = 1 + (int)(halfGrid - point.y / cellSize);
-        int column = (int)(halfGrid + point.x / cellSize);
-        if (row < 0 || row >= gridSize || column < 0 || column >= gridSize)
+        if (reachedCount == reachedCells.length)
         {
-            return null;
+            reachedCells = Arrays.copyOf(reachedCells, 2 * reachedCount);
+            reachedCosts = Arrays.copyOf(reachedCosts, 2 * reachedCount);
+            reachedLinks = Arrays.copyOf(reachedLinks, 2 * reachedCount);
         }
-        else
+        reachedCells[reachedCount] = index;
+        reachedCosts[reachedCount] = cost;
+        reachedLinks[reachedCount] = reachedCount;
+        reachedCount++;
+    }
+
+    /**
+     * First reached cell of the cluster containing reached cell i
+     * (links always point to earlier cells, and are shortened on the way).
+     */
+    private int clusterRoot(int i)
+    {
+        int[] links = reachedLinks;
+        while (links[i] != i)
         {
-            return gridOfCells[row][column];
+            links[i] = links[links[i]];
+            i = links[i];
         }
+        return i;
     }
 
-    public void robotMoved(float direction, float distance)
+    /**
+     * Compass bearing (degrees) the robot will be heading in when it reaches
+     * the cell: along the last few steps of its path from the source.
+     */
+    private int arrivalBearing(int index)
     {
-        this.robotLocation = this.robotLocation.move(direction, distance);
+        int from = index;
+        for (int step = 0; step < 5; step++)
+        {
+            int p = parentOf(from);
+            if (p == -1) break;
+            from = p;
+        }
+        return bearingBetween(from, index);
     }
 
-    public void chooseTarget()
+    private int bearingBetween(int from, int to)
     {
-        for (Cell cell : listOfCells)
+        if (from == to) return 0;
+        double dx = columnOf(to) - columnOf(from);
+        double dy = rowOf(from) - rowOf(to);
+        return (int)Math.round(MathHelper.radiansToDegrees(Math.atan2(dx, dy)));
+    }
+
+    /**
+     * Mark the unknown cells the robot should see when it looks around from
+     * robotLocation, facing the given compass bearing, as known and clear,
+     * so that a snapshot can plan the next move while the robot is still
+     * driving to its target. Rays are traced either side of the bearing by
+     * sweepAngle; as readings beyond the maximum trusted distance are dropped,
+     * only rays reaching a known obstacle within sweepRange reveal anything.
+     */
+    public void assumeClearView(int bearing)
+    {
+        Point location = robotLocation;
+        GridRay ray = this.ray;
+        double fromColumn = gridColumn(location.x);
+        double fromRow = gridRow(location.y);
+        for (int angle = -sweepAngle; angle <= sweepAngle; angle++)
         {
-            cell.setUnsafe(false);
-            cell.setVisited(false);
-            cell.pathToSource = null;
+            double toColumn = gridColumn(location.x + sweepRange * MathHelper.sinDegrees(bearing + angle));
+            double toRow = gridRow(location.y + sweepRange * MathHelper.cosDegrees(bearing + angle));
+            int obstacle = -1;
+            ray.start(fromColumn, fromRow, toColumn, toRow);
+            while (ray.next())
+            {
+                int c = indexOfCell(ray.row, ray.column);
+                if (c == -1) break;
+                if (obstacleCount(c) > 0)
+                {
+                    obstacle = c;
+                    break;
+                }
+            }
+            if (obstacle == -1) continue;
+            ray.start(fromColumn, fromRow, toColumn, toRow);
+            while (ray.next())
+            {
+                int c = indexOfCell(ray.row, ray.column);
+                if (c == obstacle) break;
+                markFree(c);
+            }
         }
+        updateChangedCells();
+    }
+
+    /**
+     * Take a path planned ahead (by chooseTarget and smoothenPath on a
+     * snapshot) as the path to the target, if it is still good on this map
+     * now. The robot should be in the path's first cell, but it may have
+     * stopped short of or beside it, so any cell with a clear line to it
+     * will do. The cells on the way must still be known and safe, and the
+     * waypoints must still have clear lines between them; if they do not,
+     * the cells are smoothed again. The target must still be unknown and
+     * safe, and still worth a pass for INFORMATION_GAIN targets. Otherwise
+     * returns false and leaves the map without a target, so chooseTarget
+     * should be called instead.
+     */
+    public boolean followPlan(int[] path, int[] waypoints)
+    {
         targetCell = null;
         cellsToTarget.clear();
         pointsToTarget.clear();
-        Cell source = cellWithPoint(robotLocation);
-        if (source == null)
+        cellsSearched = 0;
+        int n = path.length;
+        if (n < 2 || waypoints.length < 2) return false;
+        int start = indexWithPoint(robotLocation.x, robotLocation.y);
+        if (start == -1) return false;
+        if (!distanceUpdates.isEmpty()) updateDistanceField();
+        Cell startCell = new Cell(this, start);
+        Cell first = new Cell(this, path[0]);
+        boolean fromStart = path[0] == start;
+        if (!fromStart && !(isSafe(path[0]) && isClearLine(startCell, first))) return false;
+        for (int i = 1; i < n - 1; i++)
         {
-            return;
+            if (!isKnown(path[i]) || !isSafe(path[i])) return false;
+        }
+        int target = path[n - 1];
+        if (isKnown(target) || !isSafe(target)) return false;
+        if (targetMode == TargetMode.INFORMATION_GAIN)
+        {
+            float gain = expectedGainAt(target, bearingBetween(path[Math.max(0, n - 6)], target));
+            if (gain < MINIMUM_GAIN_CELLS * cellSize * cellSize) return false;
+            expectedGain = gain;
+        }
+        if (!fromStart)
+        {
+            cellsToTarget.add(startCell);
+        }
+        Cell from = first;
+        for (int i = 1; i < waypoints.length; i++)
+        {
+            Cell to = new Cell(this, waypoints[i]);
+            if (!isClearLine(from, to)) break;
+            from = to;
         }
-        source.setVisited(true);
-        ArrayList<Cell> lastRound = new ArrayList<Cell>();
-        ArrayList<Cell> thisRound = new ArrayList<Cell>();
-        source.setVisited(true);
-        lastRound.add(source);
-        OUTER:
-        for (int round = 1;; round++)
+        if (from.index == target)
         {
-            for (Cell c : lastRound)
+            cellsToTarget.add(first);
+            for (int i = 1; i < waypoints.length; i++)
             {
-                for (Cell n : c.neighbours)
-                {
-                    if (!n.isVisited())
-                    {
-                        n.setVisited(true);
-                        if (!n.anyNeighbourHasObstacles())
-                        {
-                            thisRound.add(n);
-                            n.pathToSource = c;
-                            if (!n.isKnown())
-                            {
-                                targetCell = n;
-                                break OUTER;
-                            }
-                        }
-                    }
-                }
+                cellsToTarget.add(new Cell(this, waypoints[i]));
+            }
+            for (Cell c : cellsToTarget)
+            {
+                pointsToTarget.add(c.midpoint);
             }
-            ArrayList<Cell> temp = lastRound;
-            lastRound = thisRound;
-            thisRound = temp;
-            thisRound.clear();
         }
-        if (targetCell != null)
+        else
         {
-            for (Cell p = targetCell; p != null; p = p.pathToSource)
+            for (int p : path)
             {
-                cellsToTarget.add(p);
-                pointsToTarget.add(p.midpoint);
+                cellsToTarget.add(new Cell(this, p));
             }
-            Collections.reverse(cellsToTarget);
+            smoothenPath();
         }
+        targetCell = cellsToTarget.get(cellsToTarget.size() - 1);
+        return true;
     }
 
-    public void smoothenPath()
+    /**
+     * Unknown area (square centimetres) that should come into view when the
+     * robot looks around from the cell, facing the given compass bearing:
+     * rays out to sweepRange, either side of the bearing by sweepAngle, each
+     * stopped by the first known obstacle. Unknown cells are assumed to be
+     * clear, so this is an upper bound; each unknown point along a ray counts
+     * for the strip of the sweep it stands for, which widens with distance.
+     */
+    public float expectedGainAt(int index, int bearing)
     {
-        for (;;)
-        {
-            boolean changed = false;
-            int n = cellsToTarget.size();
-            for (int i = 0; i + 2 < n; i++)
-            {
-                Cell a = cellsToTarget.get(i);
-                Cell c = cellsToTarget.get(i + 2);
-                Point ap = a.midpoint, cp = c.midpoint;
-                System.out.println("compare segments " + a + " @ " + ap + ", " + c + " @ " + cp);
-                double ax = ap.x, ay = ap.y;
-                double cx = cp.x, cy = cp.y;
-                double dx = cx - ax;
-                double dy = cy - ay;
-                double nr = Math.abs(c.row - a.row);
-                double nc = Math.abs(c.column - a.column);
-                double m = cellSize * Math.max(nr, nc);
-                double ix = dx / m;
-                double iy = dy / m;
-                // System.out.println("    ix = " + SmartRobot.formatFixed1(ix) + ", iy = " + SmartRobot.formatFixed1(iy));
-                boolean drop = true;
-                for (int j = 1; j < m; j++)
+        double x0 = midpointX(columnOf(index));
+        double y0 = midpointY(rowOf(index));
+        double strip = MathHelper.degreesToRadians(GAIN_RAY_STEP) * cellSize;
+        double gain = 0;
+        for (int angle = -sweepAngle; angle <= sweepAngle; angle += GAIN_RAY_STEP)
+        {
+            double sin = MathHelper.sinDegrees(bearing + angle);
+            double cos = MathHelper.cosDegrees(bearing + angle);
+            for (double d = cellSize / 2.0; d <= sweepRange; d += cellSize)
+            {
+                int c = indexWithPoint(x0 + d * sin, y0 + d * cos);
+                if (c == -1 || obstacleCount(c) > 0) break;
+                if (!isKnown(c))
                 {
-                    double jx = ax + j * ix;
-                    double jy = ay + j * iy;
-                    Cell z = cellWithPoint(new Point(jx, jy));
-                    /*
-                    System.out.println("        jx = " + SmartRobot.formatFixed1(jx)
-                     + ", jy = " + SmartRobot.formatFixed1(jy) + ", z = " + z
-                     + "; left = " + SmartRobot.formatFixed1(z.left)
-                     + " right = " + SmartRobot.formatFixed1(z.right)
-                     + " top = " + SmartRobot.formatFixed1(z.top)
-                     + " bottom = " + SmartRobot.formatFixed1(z.bottom));
-                     */
-                    if (z != null)
-                    {
-                        if (z.anyNeighbourHasObstacles())
-                        {
-                            System.out.println("Cell " + z + " has neighbour obstacles");
-                            drop = false;
-                            break;
-                        }
-                    }
-                    else
-                    {
-                        System.out.println("*** no cell for point: " + z);
-                        drop = false;
-                        break;
-                    }
+                    gain += d * strip;
                 }
-                if (drop)
+            }
+        }
+        return (float)gain;
+    }
+
+    private int parentOf(int index)
+    {
+        int direction = grid.getByte(PATH_TO_SOURCE, index);
+        return direction == 0 ? -1 : index + neighbourOffsets[direction - 1];
+    }
+
+    /**
+     * Drop waypoints wherever the robot can go straight from an earlier
+     * waypoint to a later one. A straight leg is extended from the last
+     * waypoint kept for as long as the line to the next cell on the path stays
+     * clear (string pulling), so each cell is tried once and the number of
+     * line of sight checks grows linearly with the length of the path.
+     */
+    public void smoothenPath()
+    {
+        ArrayList<Cell> cells = cellsToTarget;
+        int n = cells.size();
+        if (n > 2)
+        {
+            ArrayList<Cell> waypoints = new ArrayList<Cell>();
+            Cell from = cells.get(0);
+            waypoints.add(from);
+            for (int i = 2; i < n; i++)
+            {
+                if (!isClearLine(from, cells.get(i)))
                 {
-                    System.out.println("dropping segment " + cellsToTarget.get(i + 1));
-                    cellsToTarget.remove(i + 1);
-                    changed = true;
-                    break;
+                    from = cells.get(i - 1);
+                    waypoints.add(from);
                 }
             }
-            if (!changed) break;
+            waypoints.add(cells.get(n - 1));
+            cellsToTarget = waypoints;
         }
         pointsToTarget.clear();
         for (Cell c : cellsToTarget)
@@ -258,64 +1947,118 @@ public class DiscoveryMap
         }
     }
 
+    /**
+     * Whether every cell crossed by the line between the midpoints of two
+     * cells, apart from the two cells themselves, is safe. Cells the line
+     * only touches at a corner do not count, as for a diagonal step.
+     */
+    private boolean isClearLine(Cell from, Cell to)
+    {
+        GridRay ray = this.sightLine;
+        ray.start(from.column + 0.5, from.row + 0.5, to.column + 0.5, to.row + 0.5);
+        while (ray.next())
+        {
+            if (ray.row == from.row && ray.column == from.column) continue;
+            if (ray.row == to.row && ray.column == to.column) break;
+            int c = indexOfCell(ray.row, ray.column);
+            if (c == -1 || !isSafe(c))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public ConsoleGrid consoleGrid()
     {
         return consoleGrid("Discovery Map");
     }
 
+    /**
+     * Console map of the default view and every cell known so far, at the
+     * closest zoom level that fits it all in.
+     */
     public ConsoleGrid consoleGrid(String label)
+    {
+        int mapSize = Math.max(lastRow - firstRow, lastColumn - firstColumn) + 1;
+        int level = 0;
+        while (level < OVERVIEW_LEVELS
+            && ((2 * ConsoleGrid.ROWS - 2) << level < mapSize || (ConsoleGrid.COLS - 1) << level < mapSize))
+        {
+            level++;
+        }
+        int centreRow = gridOffset + (firstRow + lastRow) / 2;
+        int centreColumn = gridOffset + (firstColumn + lastColumn) / 2;
+        return consoleGrid(label, level, centreRow, centreColumn);
+    }
+
+    /**
+     * Console map centred on the robot, at a zoom level from 0 (a console
+     * cell for each map cell, or two above each other) to OVERVIEW_LEVELS
+     * (each zoom level out doubles the area on each side).
+     */
+    public ConsoleGrid consoleGrid(String label, int level)
+    {
+        int atCell = indexWithPoint(robotLocation.x, robotLocation.y);
+        if (atCell == -1) return consoleGrid(label);
+        return consoleGrid(label, level, TiledGrid.row(atCell), TiledGrid.column(atCell));
+    }
+
+    /**
+     * Console map at a zoom level with the given grid cell in the middle.
+     * Only reads the overview blocks shown, so it takes the same time however
+     * big the map is.
+     */
+    private ConsoleGrid consoleGrid(String label, int level, int centreRow, int centreColumn)
     {
         int rows = ConsoleGrid.ROWS;
         int cols = ConsoleGrid.COLS;
         char[][] array = ConsoleGrid.newArray(rows, cols);
-        int mapSize = this.gridSize;
+        int fromRow = (centreRow >> level) - rows; // in blocks, two to each console row
+        int fromCol = (centreColumn >> level) - cols / 2;
+        int blockCells = 1 << (2 * level);
         for (int row = 0; row < rows; row++)
         {
+            char[] line = array[row];
             for (int col = 0; col < cols; col++)
             {
-                // Not all map cells map to console grid cells.
-                array[row][col] = ' ';
-            }
-        }
-        for (int mapRow = 0; mapRow < mapSize; mapRow++)
-        {
-            int row = (int)(mapRow * ((double)rows / mapSize));
-            for (int mapCol = 0; mapCol < mapSize; mapCol++)
-            {
-                int col = (int)(mapCol * ((double)cols / mapSize));
-                Cell cell = gridOfCells[mapRow][mapCol];
-                if (!cell.isKnown())
+                int upper = overviewCounts(level, fromRow + 2 * row, fromCol + col);
+                int lower = overviewCounts(level, fromRow + 2 * row + 1, fromCol + col);
+                int cells = (upper == -1 ? 0 : blockCells) + (lower == -1 ? 0 : blockCells);
+                int counts = Math.max(0, upper) + Math.max(0, lower);
+                if (counts >>> OBSTACLE_SHIFT != 0)
                 {
-                    array[row][col] = '?'; // unknown cell
+                    line[col] = 'O'; // obstacle cell
                 }
-            }
-        }
-        for (int mapRow = 0; mapRow < mapSize; mapRow++)
-        {
-            int row = (int)(mapRow * ((double)rows / mapSize));
-            for (int mapCol = 0; mapCol < mapSize; mapCol++)
-            {
-                int col = (int)(mapCol * ((double)cols / mapSize));
-                Cell cell = gridOfCells[mapRow][mapCol];
-                if (!cell.obstacles.isEmpty())
+                else if ((counts & ((1 << OBSTACLE_SHIFT) - 1)) < cells)
                 {
-                    array[row][col] = 'O'; // obstacle cell
+                    line[col] = '?'; // unknown cell
+                }
+                else
+                {
+                    line[col] = ' ';
                 }
             }
         }
         for (Cell cell : cellsToTarget)
         {
-            int row = (int)(cell.row * ((double)rows / mapSize));
-            int col = (int)(cell.column * ((double)cols / mapSize));
-            array[row][col] = cell == targetCell ? '$' : ':';
+            int row = Math.floorDiv((TiledGrid.row(cell.index) >> level) - fromRow, 2);
+            int col = (TiledGrid.column(cell.index) >> level) - fromCol;
+            if (row >= 0 && row < rows && col >= 0 && col < cols)
+            {
+                array[row][col] = cell.equals(targetCell) ? '$' : ':';
+            }
         }
         Point atPoint = robotLocation;
-        Cell atCell = cellWithPoint(atPoint);
-        if (atCell != null)
+        int atCell = indexWithPoint(atPoint.x, atPoint.y);
+        if (atCell != -1)
         {
-            int row = (int)(atCell.row * ((double)rows / mapSize));
-            int col = (int)(atCell.column * ((double)cols / mapSize));
-            array[row][col] = '#';
+            int row = Math.floorDiv((TiledGrid.row(atCell) >> level) - fromRow, 2);
+            int col = (TiledGrid.column(atCell) >> level) - fromCol;
+            if (row >= 0 && row < rows && col >= 0 && col < cols)
+            {
+                array[row][col] = '#';
+            }
         }
         return new ConsoleGrid(array, label);
     }
@@ -330,7 +2073,6 @@ public class DiscoveryMap
         int rows = 21;
         int cols = rows * 2;
         char[][] array = ConsoleGrid.newArray(rows, cols);
-        int mapSize = this.gridSize;
         for (int row = 0; row < rows; row++)
         {
             for (int col = 0; col < cols; col++)
@@ -339,28 +2081,29 @@ public class DiscoveryMap
                 array[row][col] = ' ';
             }
         }
-        Cell robotCell = cellWithPoint(robotLocation);
-        if (robotCell != null)
+        int robotCell = indexWithPoint(robotLocation.x, robotLocation.y);
+        if (robotCell != -1)
         {
-            int robotRow = robotCell.row;
-            int robotCol = robotCell.column;
-            int fromRow = Math.max(0, robotRow - 10);
-            int toRow = Math.min(mapSize - 1, robotRow + 10);
-            int fromCol = Math.max(0, robotCol - 10);
-            int toCol = Math.min(mapSize - 1, robotCol + 10);
+            int robotRow = rowOf(robotCell);
+            int robotCol = columnOf(robotCell);
+            int fromRow = robotRow - 10;
+            int toRow = robotRow + 10;
+            int fromCol = robotCol - 10;
+            int toCol = robotCol + 10;
             for (int mapRow = fromRow; mapRow <= toRow; mapRow++)
             {
                 int cgRow = mapRow - (robotRow - 10);
                 for (int mapCol = fromCol; mapCol <= toCol; mapCol++)
                 {
                     int cgCol = mapCol - (robotCol - 10);
-                    Cell cell = gridOfCells[mapRow][mapCol];
-                    if (!cell.isKnown())
+                    int index = indexOfCell(mapRow, mapCol);
+                    if (index == -1) continue;
+                    if (!isKnown(index))
                     {
                         array[cgRow][2 * cgCol] = '?'; // unknown cell
                         array[cgRow][2 * cgCol + 1] = '?';
                     }
-                    if (!cell.obstacles.isEmpty())
+                    if (obstacleCount(index) != 0)
                     {
                         array[cgRow][2 * cgCol] = '('; // obstacle cell
                         array[cgRow][2 * cgCol + 1] = ')';
@@ -376,7 +2119,7 @@ public class DiscoveryMap
                 {
                     int cgRow = mapRow - (robotRow - 10);
                     int cgCol = mapCol - (robotCol - 10);
-                    char marker = cell == targetCell ? '$' : ':';
+                    char marker = cell.equals(targetCell) ? '$' : ':';
                     array[cgRow][2 * cgCol] = marker; // breadcrumb cell
                     array[cgRow][2 * cgCol + 1] = marker;
                 }
@@ -387,43 +2130,18 @@ public class DiscoveryMap
         return new ConsoleGrid(array, label);
     }
 
-    private void addNeighbours(Cell cell, Cell[][] cells)
-    {
-        int row = cell.row;
-        int column = cell.column;
-        for (int i = -1; i <= 1; i++)
-        {
-            for (int j = -1; j <= 1; j++)
-            {
-                addNeighbour(cell, row + i, column + j, cells);
-            }
-        }
-    }
-
-    private void addNeighbour(Cell cell, int row, int column, Cell[][] cells)
-    {
-        if (row == cell.row && column == cell.column)
-        {
-            return; // Cell is not its own neighbour.
-        }
-        if (row >= 0 && row < gridSize && column >= 0 && column < gridSize)
-        {
-            cell.neighbours.add(cells[row][column]);
-        }
-    }
-
     private void selfTest()
     {
         int n = gridSize, i = 2, j = n - 2;
-        selfTest(gridOfCells[i][i]);
-        selfTest(gridOfCells[j][j]);
+        selfTest(cellAt(i, i));
+        selfTest(cellAt(j, j));
     }
 
     private void selfTest(Cell cell)
     {
         Point mp = cell.midpoint;
         Cell mc = cellWithPoint(mp);
-        if (mc != cell)
+        if (!cell.equals(mc))
         {
             throw new RuntimeException("DiscoveryMap cell " + cell + " midpoint maps to cell " + mc + "!");
         }
@@ -10,24 +10,41 @@ public class DiscoveryMission
     private org.slf4j.Logger logger;
     private int pauseInterval;
     private DiscoveryMap discoveryMap;
+    private MissionCheckpoint checkpoint;
+    private int headingOffset = 0; // map bearing of gyro angle 0, when resuming a mission
+    private PlanningThread planningThread;
+    private ScanMatcher scanMatcher;
 
     public DiscoveryMission(SmartRobot robot, int pauseInterval)
     {
         this.robot = robot;
         this.logger = robot.logger;
         this.pauseInterval = pauseInterval;
-        this.discoveryMap = new DiscoveryMap();
+        newMap();
+    }
+
+    private void newMap()
+    {
+        discoveryMap = new DiscoveryMap();
+        discoveryMap.safeRadius = robot.safePassingWidth() / 2;
+        discoveryMap.targetMode = DiscoveryMap.TargetMode.INFORMATION_GAIN;
+        discoveryMap.sweepAngle = DISCOVERY_ANGLE;
+        scanMatcher = new ScanMatcher(discoveryMap);
+        checkpoint = new MissionCheckpoint("discovery", discoveryMap);
     }
 
     public void run()
     {
         robot.discoveryMode = true;
+        planningThread = new PlanningThread();
+        planningThread.start();
         try
         {
             runDiscovery();
         }
         finally
         {
+            planningThread.interrupt();
             robot.discoveryMode = false;
         }
     }
@@ -50,11 +67,27 @@ public class DiscoveryMission
                 pauseInterval = 9;
             }
         }
+        int firstPass = 1;
+        if (checkpoint.exists()
+            && robot.askYesNoQuestion("Should I carry on with my last discovery mission from where I stopped?"))
+        {
+            if (checkpoint.load())
+            {
+                // Assume the robot has not been moved since, so it now faces the saved heading.
+                firstPass = checkpoint.pass + 1;
+                headingOffset = checkpoint.heading;
+            }
+            else
+            {
+                robot.say("Sorry, I could not load my last discovery mission. I will start a new one.");
+                newMap();
+            }
+        }
         robot.calibrate();
         int relativeTo = 0;
-        for (int pass = 1;; pass++)
+        for (int pass = firstPass;; pass++)
         {
-            if (pass > 1)
+            if (pass > firstPass)
             {
                 robot.lookAround(DISCOVERY_ANGLE, 1);
             }
@@ -62,29 +95,64 @@ public class DiscoveryMission
             ConsoleGrid proximityGrid = proximityMap.consoleGrid();
             if (pass > 1)
             {
-                relativeTo = robot.gyroAngle();
+                relativeTo = robot.gyroAngle() + headingOffset;
+                // Correct the dead-reckoned pose by fitting the scan to the map.
+                if (scanMatcher.match(proximityMap, relativeTo))
+                {
+                    headingOffset += scanMatcher.turn;
+                    relativeTo += scanMatcher.turn;
+                }
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("........ discoveryMission: scan match score = " + SmartRobot.formatFixed1(scanMatcher.score)
+                        + ", shift = " + SmartRobot.formatFixed1(scanMatcher.shiftX) + ", " + SmartRobot.formatFixed1(scanMatcher.shiftY)
+                        + ", turn = " + scanMatcher.turn + ", robot location = " + discoveryMap.robotLocation
+                        + " +/- " + SmartRobot.formatFixed1(Math.sqrt(discoveryMap.locationVariance)) + " cm");
+                }
             }
             discoveryMap.addObstacles(proximityMap, relativeTo);
-            discoveryMap.chooseTarget();
-            Cell target = discoveryMap.targetCell;
-            if (target == null)
-            {
-                break;
-            }
-            if (logger.isDebugEnabled())
+            PlanningThread.Plan plan = planningThread.takePlan();
+            boolean plannedAhead = plan != null && discoveryMap.followPlan(plan.path, plan.waypoints);
+            if (!plannedAhead)
             {
-                logger.debug("........ discoveryMission: cells to target = " + discoveryMap.cellsToTarget);
-                logger.debug("........ discoveryMission: points to target = " + discoveryMap.pointsToTarget);
+                discoveryMap.chooseTarget();
             }
-            discoveryMap.smoothenPath();
-            if (logger.isDebugEnabled())
+            Cell target = discoveryMap.targetCell;
+            if (target != null)
             {
-                logger.debug("........ discoveryMission: now cells to target = " + discoveryMap.cellsToTarget);
-                logger.debug("........ discoveryMission: now points to target = " + discoveryMap.pointsToTarget);
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("........ discoveryMission: planned ahead = " + plannedAhead
+                        + " (" + planningThread.planningTime / 1000 + " us)");
+                    logger.debug("........ discoveryMission: cells searched = " + discoveryMap.cellsSearched);
+                    logger.debug("........ discoveryMission: frontier clusters = " + discoveryMap.frontierClusters
+                        + ", expected gain = " + (int)discoveryMap.expectedGain + " cm2");
+                    logger.debug("........ discoveryMission: cells to target = " + discoveryMap.cellsToTarget);
+                    logger.debug("........ discoveryMission: points to target = " + discoveryMap.pointsToTarget);
+                }
+                if (!plannedAhead)
+                {
+                    discoveryMap.smoothenPath();
+                    if (logger.isDebugEnabled())
+                    {
+                        logger.debug("........ discoveryMission: now cells to target = " + discoveryMap.cellsToTarget);
+                        logger.debug("........ discoveryMission: now points to target = " + discoveryMap.pointsToTarget);
+                    }
+                }
+                if (discoveryMap.plannerMode == DiscoveryMap.PlannerMode.BREADTH_FIRST)
+                {
+                    // Plan the next move while this one runs. The incremental
+                    // planners keep their state in the live map, so cannot.
+                    planningThread.plan(discoveryMap.snapshot(), target.midpoint, arrivalBearing());
+                }
             }
             ConsoleGrid discoveryGrid = discoveryMap.consoleGrid();
             System.out.println(proximityGrid.join(discoveryGrid));
             System.out.print(discoveryMap.nearObjects());
+            if (target == null)
+            {
+                break;
+            }
             if (pass % pauseInterval == 0)
             {
                 if (!robot.askYesNoQuestion("Should I continue the mission?"))
@@ -92,20 +160,36 @@ public class DiscoveryMission
                     break;
                 }
             }
-            moveToTarget();
-            discoveryMap.robotLocation = target.midpoint; // TODO: better estimate
+            moveToTarget(); // leaves robotLocation where dead reckoning puts it
+            checkpoint.pass = pass;
+            checkpoint.heading = robot.gyroAngle() + headingOffset;
+            checkpoint.save();
         }
+        checkpoint.delete();
         if (logger.isDebugEnabled())
         {
             logger.debug("Finished new discoveryMission");
         }
     }
 
+    /**
+     * Compass bearing of the last leg of the path to the target.
+     */
+    private int arrivalBearing()
+    {
+        ArrayList<Point> points = discoveryMap.pointsToTarget;
+        Point from = points.get(points.size() - 2);
+        Point to = points.get(points.size() - 1);
+        double r = Math.atan2(to.y - from.y, to.x - from.x);
+        return (int)-(MathHelper.radiansToDegrees(r) - 90);
+    }
+
     private void moveToTarget()
     {
         ArrayList<Point> pathToTarget = discoveryMap.pointsToTarget;
         boolean firstPoint = true;
         Point fromPoint = discoveryMap.robotLocation;
+        PoseEstimator.Pose legStartingPose = new PoseEstimator.Pose();
         for (Point toPoint : pathToTarget)
         {
             if (firstPoint) { firstPoint = false; continue; }
@@ -117,23 +201,21 @@ public class DiscoveryMission
             logger.debug("fromPoint = " + fromPoint + ", toPoint = " + toPoint);
             logger.debug("    dx = " + dx + ", dy = " + dy + ", bearing = " + bearing + ", distance = " + SmartRobot.formatFixed1(distance));
             if (pauseInterval == 1) robot.askYesNoQuestion("Turn now?");
-            robot.turnToBearing(bearing);
+            robot.poseEstimator.read(legStartingPose);
+            robot.turnToBearing(bearing - headingOffset);
             if (pauseInterval == 1) robot.askYesNoQuestion("Move now?");
-            try
-            {
-                robot.moveStartingAt = fromPoint;
-                robot.moveForward((float)distance);
-                Point finishedAt = robot.moveFinishedAt;
-                discoveryMap.robotLocation = finishedAt;
-                fromPoint = finishedAt;
-                double locationDiff = toPoint.distanceTo(finishedAt);
-                System.out.println("*** moveForward: distance error = " + SmartRobot.formatFixed1(locationDiff));
-            }
-            finally
-            {
-                robot.moveStartingAt = null;
-                robot.moveFinishedAt = null;
-            }
+            robot.moveForward((float)distance);
+            // The turn may have moved the robot a little before the move started.
+            discoveryMap.robotMoved(legStartingPose, robot.moveStartingPose, headingOffset);
+            Point startedAt = discoveryMap.robotLocation;
+            // Map what the head saw on the way, each reading from where it was taken.
+            MovingScan scan = robot.movingScan;
+            scan.transform(startedAt.x, startedAt.y, headingOffset);
+            discoveryMap.addObstacles(scan);
+            discoveryMap.robotMoved(robot.moveStartingPose, robot.moveFinishedPose, headingOffset);
+            fromPoint = discoveryMap.robotLocation;
+            double locationDiff = toPoint.distanceTo(fromPoint);
+            System.out.println("*** moveForward: distance error = " + SmartRobot.formatFixed1(locationDiff));
         }
     }
 }
@@ -0,0 +1,220 @@
+package smartev3;
+
+import java.io.File;
+import java.lang.reflect.Field;
+
+import ev3dev.actuators.lego.motors.*;
+import ev3dev.hardware.EV3DevDevice;
+import ev3dev.sensors.ev3.*;
+import lejos.hardware.port.Port;
+import lejos.robotics.SampleProvider;
+
+/**
+ * The EV3's own motors and sensors, on the ports SmartRobot names.
+ * Commands and mode switches go through ev3dev-lang-java, but the reads a
+ * control loop makes over and over (motor position and state, sensor
+ * values) read the device's attribute files directly (SysfsAttribute),
+ * with the same results.
+ */
+public class Ev3Hardware implements RobotHardware
+{
+    private final Port headMotorPort, leftMotorPort, rightMotorPort;
+    private final Port gyroSensorPort, sonarSensorPort, leftTouchPort, rightTouchPort;
+
+    public Ev3Hardware(Port headMotorPort, Port leftMotorPort, Port rightMotorPort,
+        Port gyroSensorPort, Port sonarSensorPort, Port leftTouchPort, Port rightTouchPort)
+    {
+        this.headMotorPort = headMotorPort;
+        this.leftMotorPort = leftMotorPort;
+        this.rightMotorPort = rightMotorPort;
+        this.gyroSensorPort = gyroSensorPort;
+        this.sonarSensorPort = sonarSensorPort;
+        this.leftTouchPort = leftTouchPort;
+        this.rightTouchPort = rightTouchPort;
+    }
+
+    private static final byte[] RUNNING = { 'r', 'u', 'n', 'n', 'i', 'n', 'g' };
+
+    /**
+     * Directory of a device's attributes, as ev3dev-lang-java found it.
+     */
+    private static File deviceDirectory(EV3DevDevice device)
+    {
+        try
+        {
+            Field path = EV3DevDevice.class.getDeclaredField("PATH_DEVICE");
+            path.setAccessible(true);
+            return (File)path.get(device);
+        }
+        catch (ReflectiveOperationException ex)
+        {
+            throw new RuntimeException("Cannot find the device directory: " + ex.getMessage(), ex);
+        }
+    }
+
+    private static class RegulatedMotor implements Motor
+    {
+        private final BaseRegulatedMotor motor;
+        private final SysfsAttribute position;
+        private final SysfsAttribute state;
+
+        RegulatedMotor(BaseRegulatedMotor motor)
+        {
+            this.motor = motor;
+            File directory = deviceDirectory(motor);
+            this.position = new SysfsAttribute(directory, "position");
+            this.state = new SysfsAttribute(directory, "state");
+        }
+
+        public void setSpeed(int degreesPerSecond)
+        {
+            motor.setSpeed(degreesPerSecond);
+        }
+
+        public void forward()
+        {
+            motor.forward();
+        }
+
+        public void rotateTo(int position, boolean immediateReturn)
+        {
+            motor.rotateTo(position, immediateReturn);
+        }
+
+        public void stop()
+        {
+            motor.stop();
+        }
+
+        public void brake()
+        {
+            motor.brake();
+        }
+
+        public void coast()
+        {
+            motor.coast();
+        }
+
+        public boolean isMoving()
+        {
+            return state.hasWord(RUNNING);
+        }
+
+        public float getPosition()
+        {
+            return position.readInt();
+        }
+    }
+
+    public long nanoTime()
+    {
+        return Clock.SYSTEM.nanoTime();
+    }
+
+    public void sleep(long nanoseconds)
+    {
+        Clock.SYSTEM.sleep(nanoseconds);
+    }
+
+    public boolean isSimulated()
+    {
+        return false;
+    }
+
+    public Motor headMotor()
+    {
+        return new RegulatedMotor(new EV3MediumRegulatedMotor(headMotorPort));
+    }
+
+    public Motor leftMotor()
+    {
+        return new RegulatedMotor(new EV3LargeRegulatedMotor(leftMotorPort));
+    }
+
+    public Motor rightMotor()
+    {
+        return new RegulatedMotor(new EV3LargeRegulatedMotor(rightMotorPort));
+    }
+
+    public Gyroscope gyroSensor()
+    {
+        final EV3GyroSensor sensor = new EV3GyroSensor(gyroSensorPort);
+        final SysfsAttribute value = new SysfsAttribute(deviceDirectory(sensor), "value0");
+        final SampleProvider provider = new Provider()
+        {
+            public void fetchSample(float[] sample, int offset)
+            {
+                sample[offset] = value.readInt();
+            }
+        };
+        return new Gyroscope()
+        {
+            public SampleProvider getRateMode()
+            {
+                sensor.getRateMode();
+                return provider;
+            }
+
+            public SampleProvider getAngleMode()
+            {
+                sensor.getAngleMode();
+                return provider;
+            }
+        };
+    }
+
+    public Sonar sonarSensor()
+    {
+        final EV3UltrasonicSensor sensor = new EV3UltrasonicSensor(sonarSensorPort);
+        final SysfsAttribute value = new SysfsAttribute(deviceDirectory(sensor), "value0");
+        return new Sonar()
+        {
+            public SampleProvider getDistanceMode()
+            {
+                sensor.getDistanceMode();
+                return new Provider()
+                {
+                    public void fetchSample(float[] sample, int offset)
+                    {
+                        // As EV3UltrasonicSensor's distance mode: value0 is in millimetres.
+                        float distance = value.readInt() / 10f;
+                        if (distance < EV3UltrasonicSensor.MIN_RANGE) distance = 0;
+                        else if (distance > EV3UltrasonicSensor.MAX_RANGE) distance = Float.POSITIVE_INFINITY;
+                        sample[offset] = distance;
+                    }
+                };
+            }
+        };
+    }
+
+    public TouchSensor leftTouchSensor()
+    {
+        return touchSensor(leftTouchPort);
+    }
+
+    public TouchSensor rightTouchSensor()
+    {
+        return touchSensor(rightTouchPort);
+    }
+
+    private static TouchSensor touchSensor(Port port)
+    {
+        final SysfsAttribute value = new SysfsAttribute(deviceDirectory(new EV3TouchSensor(port)), "value0");
+        return new TouchSensor()
+        {
+            public boolean isPressed()
+            {
+                return value.readInt() != 0;
+            }
+        };
+    }
+
+    private abstract static class Provider implements SampleProvider
+    {
+        public int sampleSize()
+        {
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package smartev3;
+
+/**
+ * A room seen from above, in centimetres: walls, and boxes of furniture
+ * standing in it, each as { left, bottom, right, top }. Answers how far a
+ * ray goes before it meets a surface, and how far a point is from the
+ * nearest one.
+ */
+public class FloorPlan
+{
+    // A furnished room, with the robot starting at (0, 0): table legs,
+    // chair legs, a sofa and a cupboard.
+    public static final int[] FURNISHED_ROOM = { -200, -150, 400, 350 };
+    public static final int[][] FURNITURE = {
+        { 100, 100, 104, 104 }, { 216, 100, 220, 104 }, { 100, 176, 104, 180 }, { 216, 176, 220, 180 },
+        { 60, 120, 63, 123 }, { 90, 120, 93, 123 }, { 60, 150, 63, 153 }, { 90, 150, 93, 153 },
+        { 240, 40, 243, 43 }, { 270, 40, 273, 43 }, { 240, 70, 243, 73 }, { 270, 70, 273, 73 },
+        { -190, 250, -10, 330 },
+        { 300, -140, 390, -60 },
+    };
+
+    public final int[] walls;
+    public final int[][] boxes;
+
+    /**
+     * Axis of the face the last ray met: 0 for one facing east or west,
+     * 1 for one facing north or south.
+     */
+    public int hitAxis;
+
+    public FloorPlan(int[] walls, int[][] boxes)
+    {
+        this.walls = walls;
+        this.boxes = boxes;
+    }
+
+    public static FloorPlan furnishedRoom()
+    {
+        return new FloorPlan(FURNISHED_ROOM, FURNITURE);
+    }
+
+    /**
+     * Distance from a point along a direction (a unit vector) to the first
+     * surface.
+     */
+    public double distance(double x, double y, double dx, double dy)
+    {
+        double exitX = exitDistance(x, dx, walls[0], walls[2]);
+        double exitY = exitDistance(y, dy, walls[1], walls[3]);
+        double distance = Math.min(exitX, exitY);
+        int axis = exitX <= exitY ? 0 : 1;
+        for (int[] box : boxes)
+        {
+            double hit = hitDistance(x, y, dx, dy, box);
+            if (hit < distance)
+            {
+                distance = hit;
+                axis = hitAxis;
+            }
+        }
+        hitAxis = axis;
+        return distance;
+    }
+
+    /**
+     * Distance from a point to the nearest wall or piece of furniture.
+     */
+    public double surfaceDistance(double x, double y)
+    {
+        double distance = Math.min(Math.min(x - walls[0], walls[2] - x),
+            Math.min(y - walls[1], walls[3] - y));
+        for (int[] box : boxes)
+        {
+            double dx = Math.max(0, Math.max(box[0] - x, x - box[2]));
+            double dy = Math.max(0, Math.max(box[1] - y, y - box[3]));
+            distance = Math.min(distance, Math.hypot(dx, dy));
+        }
+        return distance;
+    }
+
+    private static double exitDistance(double from, double step, double low, double high)
+    {
+        if (step > 1e-9) return (high - from) / step;
+        if (step < -1e-9) return (low - from) / step;
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Distance along a ray to where it enters a box, by the slab method;
+     * sets hitAxis to the axis of the face it enters by.
+     */
+    private double hitDistance(double x, double y, double dx, double dy, int[] box)
+    {
+        double near = 0, far = Double.POSITIVE_INFINITY;
+        for (int axis = 0; axis < 2; axis++)
+        {
+            double start = axis == 0 ? x : y;
+            double step = axis == 0 ? dx : dy;
+            double low = box[axis], high = box[axis + 2];
+            if (Math.abs(step) < 1e-9)
+            {
+                if (start < low || start > high) return Double.POSITIVE_INFINITY;
+                continue;
+            }
+            double t1 = (low - start) / step;
+            double t2 = (high - start) / step;
+            double entry = Math.min(t1, t2);
+            if (entry > near)
+            {
+                near = entry;
+                hitAxis = axis;
+            }
+            far = Math.min(far, Math.max(t1, t2));
+        }
+        return near <= far && near > 0 ? near : Double.POSITIVE_INFINITY;
+    }
+}
@@ -0,0 +1,86 @@
+package smartev3;
+
+/**
+ * Walks the grid cells crossed by a straight line, in order, visiting each
+ * cell exactly once and without allocating anything.
+ * See Amanatides and Woo, "A Fast Voxel Traversal Algorithm for Ray Tracing" (1987).
+ * Coordinates are in cells: column increases with x, row increases as y decreases,
+ * and the cell (row, column) covers [column, column + 1) x [row, row + 1).
+ */
+public class GridRay
+{
+    public int row, column;
+
+    /**
+     * When set, a line passing exactly through the corner of a cell goes
+     * straight on to the diagonal cell, skipping the two cells that only
+     * touch it at that corner.
+     */
+    public boolean cutCorners;
+
+    private int stepRow, stepColumn;
+    private double tMaxRow, tMaxColumn;
+    private double tDeltaRow, tDeltaColumn;
+    private int remaining;
+    private boolean first;
+
+    /**
+     * Start a ray from (fromColumn, fromRow) to (toColumn, toRow).
+     * The first call to next() will return the starting cell.
+     */
+    public void start(double fromColumn, double fromRow, double toColumn, double toRow)
+    {
+        row = (int)Math.floor(fromRow);
+        column = (int)Math.floor(fromColumn);
+        int endRow = (int)Math.floor(toRow);
+        int endColumn = (int)Math.floor(toColumn);
+        double dr = toRow - fromRow;
+        double dc = toColumn - fromColumn;
+        stepRow = dr > 0 ? 1 : dr < 0 ? -1 : 0;
+        stepColumn = dc > 0 ? 1 : dc < 0 ? -1 : 0;
+        // Parameter t runs from 0 at the start to 1 at the end of the line.
+        tDeltaRow = stepRow == 0 ? Double.POSITIVE_INFINITY : Math.abs(1 / dr);
+        tDeltaColumn = stepColumn == 0 ? Double.POSITIVE_INFINITY : Math.abs(1 / dc);
+        tMaxRow = stepRow == 0 ? Double.POSITIVE_INFINITY
+            : (stepRow > 0 ? (row + 1 - fromRow) : (fromRow - row)) * tDeltaRow;
+        tMaxColumn = stepColumn == 0 ? Double.POSITIVE_INFINITY
+            : (stepColumn > 0 ? (column + 1 - fromColumn) : (fromColumn - column)) * tDeltaColumn;
+        // Each step moves one cell along one axis, so this many cells reach the end.
+        remaining = 1 + Math.abs(endRow - row) + Math.abs(endColumn - column);
+        first = true;
+    }
+
+    /**
+     * Advance to the next cell crossed by the line, updating row and column.
+     * Returns false when the cell containing the end of the line has been passed.
+     */
+    public boolean next()
+    {
+        if (remaining <= 0) return false;
+        remaining--;
+        if (first)
+        {
+            first = false;
+            return true;
+        }
+        if (tMaxColumn == tMaxRow && cutCorners)
+        {
+            column += stepColumn;
+            row += stepRow;
+            tMaxColumn += tDeltaColumn;
+            tMaxRow += tDeltaRow;
+            remaining--; // counted as two steps
+        }
+        else if (tMaxColumn < tMaxRow)
+        {
+            column += stepColumn;
+            tMaxColumn += tDeltaColumn;
+        }
+        else
+        {
+            row += stepRow;
+            tMaxRow += tDeltaRow;
+        }
+        return true;
+    }
+}
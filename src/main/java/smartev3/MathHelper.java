@@ -2,6 +2,35 @@ package smartev3;
 
 public class MathHelper
 {
+    private static final double[] SINE_BY_DEGREE = new double[360];
+    private static final double[] COSINE_BY_DEGREE = new double[360];
+
+    static
+    {
+        for (int angle = 0; angle < 360; angle++)
+        {
+            double radians = degreesToRadians(angle);
+            SINE_BY_DEGREE[angle] = Math.sin(radians);
+            COSINE_BY_DEGREE[angle] = Math.cos(radians);
+        }
+    }
+
+    /**
+     * Sine of a whole number of degrees, from a lookup table.
+     */
+    public static double sinDegrees(int angle)
+    {
+        return SINE_BY_DEGREE[Math.floorMod(angle, 360)];
+    }
+
+    /**
+     * Cosine of a whole number of degrees, from a lookup table.
+     */
+    public static double cosDegrees(int angle)
+    {
+        return COSINE_BY_DEGREE[Math.floorMod(angle, 360)];
+    }
+
     public static double degreesToRadians(double angle)
     {
         return angle * (Math.PI / 180);
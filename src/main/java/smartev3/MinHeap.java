@@ -0,0 +1,104 @@
+package smartev3;
+
+/**
+ * Binary min-heap of (long key, int value) pairs held in primitive arrays.
+ * There is no decrease-key: callers push a new entry and skip stale ones
+ * when they are polled.
+ */
+public class MinHeap
+{
+    private long[] keys;
+    private int[] values;
+    private int size;
+
+    public MinHeap()
+    {
+        this(256);
+    }
+
+    public MinHeap(int capacity)
+    {
+        keys = new long[capacity];
+        values = new int[capacity];
+    }
+
+    public MinHeap(MinHeap other)
+    {
+        keys = other.keys.clone();
+        values = other.values.clone();
+        size = other.size;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public void clear()
+    {
+        size = 0;
+    }
+
+    public void push(long key, int value)
+    {
+        if (size == keys.length)
+        {
+            keys = java.util.Arrays.copyOf(keys, 2 * size);
+            values = java.util.Arrays.copyOf(values, 2 * size);
+        }
+        int i = size++;
+        while (i > 0)
+        {
+            int parent = (i - 1) >>> 1;
+            if (keys[parent] <= key) break;
+            keys[i] = keys[parent];
+            values[i] = values[parent];
+            i = parent;
+        }
+        keys[i] = key;
+        values[i] = value;
+    }
+
+    public long peekKey()
+    {
+        return keys[0];
+    }
+
+    public int peekValue()
+    {
+        return values[0];
+    }
+
+    /**
+     * Remove the entry with the smallest key and return its value.
+     */
+    public int poll()
+    {
+        int result = values[0];
+        int n = --size;
+        if (n > 0)
+        {
+            long key = keys[n];
+            int value = values[n];
+            int i = 0;
+            for (;;)
+            {
+                int child = 2 * i + 1;
+                if (child >= n) break;
+                if (child + 1 < n && keys[child + 1] < keys[child]) child++;
+                if (keys[child] >= key) break;
+                keys[i] = keys[child];
+                values[i] = values[child];
+                i = child;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+        return result;
+    }
+}
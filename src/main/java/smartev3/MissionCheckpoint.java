@@ -0,0 +1,347 @@
+package smartev3;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Saved state of a mission, so that it can carry on where it left off after
+ * a mission failure or a restart, instead of exploring again from scratch.
+ * A snapshot file holds the whole state: the pass counter, robot pose, route
+ * and (for missions with a DiscoveryMap) every cell written so far. After
+ * each pass only a small record of what changed is appended to a journal
+ * file; when the journal grows bigger than the snapshot, a new snapshot is
+ * written and the journal started again.
+ * Loading maps both files into memory and replays the journal over the
+ * snapshot. A journal record cut short by a crash is dropped.
+ * Each snapshot has a new generation number, and each journal record names
+ * the generation it follows on from, so the records of an old journal that
+ * a crash left behind a new snapshot are never replayed over it.
+ * All numbers are big-endian; each journal record starts with its length.
+ */
+public class MissionCheckpoint
+{
+    public static String DIRECTORY = "."; // where checkpoint files are kept
+
+    private static final int MAGIC = 0x534d4350; // "SMCP"
+    private static final int VERSION = 2;
+    private static final int MAXIMUM_INDEX = TiledGrid.EXTENT * TiledGrid.EXTENT;
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private final DiscoveryMap map; // null for missions without a map
+
+    public int pass;
+    public int heading; // degrees
+    public int targetHeading; // degrees the mission means to face, in the same frame as heading
+
+    private int routeLength = 0;
+    private byte[] routeKinds = new byte[16];
+    private float[] routeNumbers = new float[16];
+
+    private long generation = 0; // of the snapshot the journal follows on from
+    private long snapshotBytes = 0;
+    private long journalBytes = 0;
+
+    public MissionCheckpoint(String name, DiscoveryMap map)
+    {
+        this.snapshotFile = new File(DIRECTORY, name + ".checkpoint");
+        this.journalFile = new File(DIRECTORY, name + ".journal");
+        this.map = map;
+        if (map != null)
+        {
+            map.setJournaling(true);
+        }
+    }
+
+    public int routeLength()
+    {
+        return routeLength;
+    }
+
+    public int routeKind(int i)
+    {
+        return routeKinds[i];
+    }
+
+    public float routeNumber(int i)
+    {
+        return routeNumbers[i];
+    }
+
+    public void clearRoute()
+    {
+        routeLength = 0;
+    }
+
+    public void addRouteStep(int kind, float number)
+    {
+        if (routeLength == routeKinds.length)
+        {
+            routeKinds = Arrays.copyOf(routeKinds, 2 * routeLength);
+            routeNumbers = Arrays.copyOf(routeNumbers, 2 * routeLength);
+        }
+        routeKinds[routeLength] = (byte)kind;
+        routeNumbers[routeLength] = number;
+        routeLength++;
+    }
+
+    public boolean exists()
+    {
+        return snapshotFile.exists();
+    }
+
+    /**
+     * Total size of the checkpoint files (bytes).
+     */
+    public long size()
+    {
+        return snapshotBytes + journalBytes;
+    }
+
+    /**
+     * Save the current state: a journal record of the cells written since the
+     * last save, or a whole new snapshot if there is none yet or the journal
+     * has outgrown it.
+     */
+    public void save()
+    {
+        try
+        {
+            if (snapshotBytes == 0 || journalBytes > snapshotBytes)
+            {
+                writeSnapshot();
+            }
+            else
+            {
+                appendJournal();
+            }
+        }
+        catch (IOException ex)
+        {
+            throw new RuntimeException("Cannot save mission checkpoint: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Restore the saved state into this checkpoint (and its map, which should
+     * be new). Returns false if there is no usable checkpoint, in which case
+     * the map may have been partly restored.
+     */
+    public boolean load()
+    {
+        if (!snapshotFile.exists()) return false;
+        try
+        {
+            ByteBuffer snapshot = mapFile(snapshotFile);
+            if (snapshot.remaining() < 24 || snapshot.getInt() != MAGIC || snapshot.getInt() != VERSION)
+            {
+                return false;
+            }
+            long snapshotGeneration = snapshot.getLong();
+            int cellSize = snapshot.getInt();
+            int gridSize = snapshot.getInt();
+            if (map != null && (cellSize != map.getCellSize() || gridSize != map.getGridSize()))
+            {
+                return false;
+            }
+            readState(snapshot);
+            generation = snapshotGeneration;
+            snapshotBytes = snapshotFile.length();
+            journalBytes = 0;
+            if (journalFile.exists())
+            {
+                ByteBuffer journal = mapFile(journalFile);
+                while (journal.remaining() >= 4)
+                {
+                    int length = journal.getInt();
+                    if (length < 8 || length > journal.remaining()) break; // cut short
+                    ByteBuffer record = journal.slice();
+                    record.limit(length);
+                    if (record.getLong() != generation) break; // left over from an older snapshot
+                    readState(record);
+                    journal.position(journal.position() + length);
+                    journalBytes = journal.position();
+                }
+                if (journalBytes < journalFile.length())
+                {
+                    // Drop a partial or stale record, so new records follow on from the last good one.
+                    RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+                    try
+                    {
+                        file.setLength(journalBytes);
+                    }
+                    finally
+                    {
+                        file.close();
+                    }
+                }
+            }
+            if (map != null)
+            {
+                map.clearJournal();
+            }
+            return true;
+        }
+        catch (IOException ex)
+        {
+            return false;
+        }
+        catch (BufferUnderflowException ex)
+        {
+            return false;
+        }
+    }
+
+    public void delete()
+    {
+        journalFile.delete();
+        snapshotFile.delete();
+        snapshotBytes = 0;
+        journalBytes = 0;
+    }
+
+    private void writeSnapshot() throws IOException
+    {
+        int[] cells = map == null ? new int[0] : map.storedCells();
+        long newGeneration = Math.max(generation + 1, System.currentTimeMillis());
+        File temporary = new File(DIRECTORY, snapshotFile.getName() + ".new");
+        FileOutputStream file = new FileOutputStream(temporary);
+        try
+        {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(file, 65536));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(newGeneration);
+            output.writeInt(map == null ? 0 : map.getCellSize());
+            output.writeInt(map == null ? 0 : map.getGridSize());
+            writeState(output, cells, cells.length);
+            output.flush();
+            file.getChannel().force(false);
+        }
+        finally
+        {
+            file.close();
+        }
+        // Replace the old snapshot in one step, then drop the old journal:
+        // a crash in between leaves records of the old generation, which
+        // load skips, and never leaves the journal without its snapshot.
+        Files.move(temporary.toPath(), snapshotFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        generation = newGeneration;
+        journalFile.delete();
+        snapshotBytes = snapshotFile.length();
+        journalBytes = 0;
+        if (map != null)
+        {
+            map.clearJournal();
+        }
+    }
+
+    private void appendJournal() throws IOException
+    {
+        int count = map == null ? 0 : map.journalCount();
+        int[] cells = new int[count];
+        for (int i = 0; i < count; i++)
+        {
+            cells[i] = map.journalCell(i);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(72 + 8 * count);
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(0); // length, filled in below
+        output.writeLong(generation);
+        writeState(output, cells, count);
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        record.putInt(0, record.capacity() - 4);
+        FileOutputStream file = new FileOutputStream(journalFile, true);
+        try
+        {
+            FileChannel channel = file.getChannel();
+            while (record.hasRemaining())
+            {
+                channel.write(record);
+            }
+            channel.force(false);
+        }
+        finally
+        {
+            file.close();
+        }
+        journalBytes += record.capacity();
+        if (map != null)
+        {
+            map.clearJournal();
+        }
+    }
+
+    private void writeState(DataOutputStream output, int[] cells, int count) throws IOException
+    {
+        output.writeInt(pass);
+        output.writeInt(heading);
+        output.writeInt(targetHeading);
+        output.writeDouble(map == null ? 0 : map.robotLocation.x);
+        output.writeDouble(map == null ? 0 : map.robotLocation.y);
+        output.writeInt(routeLength);
+        for (int i = 0; i < routeLength; i++)
+        {
+            output.writeByte(routeKinds[i]);
+            output.writeFloat(routeNumbers[i]);
+        }
+        output.writeInt(count);
+        for (int i = 0; i < count; i++)
+        {
+            output.writeInt(cells[i]);
+            output.writeInt(map.storedState(cells[i]));
+        }
+    }
+
+    private void readState(ByteBuffer input) throws IOException
+    {
+        pass = input.getInt();
+        heading = input.getInt();
+        targetHeading = input.getInt();
+        double x = input.getDouble();
+        double y = input.getDouble();
+        if (map != null)
+        {
+            map.robotLocation = new Point(x, y);
+        }
+        int steps = input.getInt();
+        routeLength = 0;
+        for (int i = 0; i < steps; i++)
+        {
+            int kind = input.get();
+            addRouteStep(kind, input.getFloat());
+        }
+        int count = input.getInt();
+        for (int i = 0; i < count; i++)
+        {
+            int index = input.getInt();
+            int state = input.getInt();
+            if (index < 0 || index >= MAXIMUM_INDEX)
+            {
+                throw new IOException("Cell index " + index + " is off the map");
+            }
+            if (map != null)
+            {
+                map.restoreState(index, state);
+            }
+        }
+    }
+
+    private static ByteBuffer mapFile(File file) throws IOException
+    {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = input.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+}
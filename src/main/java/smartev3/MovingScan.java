@@ -0,0 +1,168 @@
+package smartev3;
+
+/**
+ * Sonar samples taken while the robot moves, each tagged with the robot's
+ * pose (dead-reckoned position and gyro heading) at the time it was taken.
+ * A reading only locates an obstacle from the pose it was taken at, so the
+ * samples are turned into points in a common frame before they are used:
+ * addTo re-measures them from one pose into a ProximityMap, and
+ * DiscoveryMap.addObstacles(MovingScan) traces each from its own pose.
+ * Positions and headings are in whatever frame they were recorded in
+ * (SmartRobot uses the gyro's, from where the move started) until
+ * transform moves them into another. Distances are as a ProximityMap
+ * takes them, or NaN for a miss. Nothing is allocated once the scan is
+ * made; samples beyond its capacity are dropped.
+ */
+public class MovingScan
+{
+    private static final int CONFIDENCE_SPREAD = 2; // samples either side
+    private static final int CONFIDENT_SAMPLES = 2; // agreeing samples for full confidence
+    private static final float AGREEMENT_DISTANCE = 10; // centimetres, or 10% if more
+
+    public final int capacity;
+    public int count;
+    public int dropped;
+
+    public final double[] x, y; // robot position (centimetres)
+    public final int[] headings; // robot heading (compass degrees)
+    public final int[] headAngles; // head angle from the robot's heading (degrees)
+    public final float[] distances; // centimetres, NaN for a miss
+    public final long[] times; // milliseconds
+
+    public MovingScan(int capacity)
+    {
+        this.capacity = capacity;
+        this.x = new double[capacity];
+        this.y = new double[capacity];
+        this.headings = new int[capacity];
+        this.headAngles = new int[capacity];
+        this.distances = new float[capacity];
+        this.times = new long[capacity];
+    }
+
+    public void clear()
+    {
+        count = 0;
+        dropped = 0;
+    }
+
+    public void add(double x, double y, int heading, int headAngle, float distance, long time)
+    {
+        if (count == capacity)
+        {
+            dropped++;
+            return;
+        }
+        int i = count++;
+        this.x[i] = x;
+        this.y[i] = y;
+        this.headings[i] = heading;
+        this.headAngles[i] = headAngle;
+        this.distances[i] = distance;
+        this.times[i] = time;
+    }
+
+    /**
+     * Move the samples into a frame in which the recording frame's origin is
+     * at (originX, originY) and its bearings are turned by the given angle.
+     */
+    public void transform(double originX, double originY, int turn)
+    {
+        double sin = MathHelper.sinDegrees(turn);
+        double cos = MathHelper.cosDegrees(turn);
+        for (int i = 0; i < count; i++)
+        {
+            double sx = x[i], sy = y[i];
+            x[i] = originX + sx * cos + sy * sin;
+            y[i] = originY - sx * sin + sy * cos;
+            headings[i] += turn;
+        }
+    }
+
+    /**
+     * Compass bearing of a sample's reading.
+     */
+    public int bearing(int i)
+    {
+        return headings[i] + headAngles[i];
+    }
+
+    public double pointX(int i)
+    {
+        return x[i] + distances[i] * MathHelper.sinDegrees(bearing(i));
+    }
+
+    public double pointY(int i)
+    {
+        return y[i] + distances[i] * MathHelper.cosDegrees(bearing(i));
+    }
+
+    /**
+     * Share of the readings just before and after a sample (and itself) that
+     * put an obstacle within agreement distance of where it puts one, from 0
+     * to 1. Misses and lone readings (likely ghosts) score low.
+     */
+    public float confidence(int i)
+    {
+        float distance = distances[i];
+        if (Float.isNaN(distance)) return 0;
+        double px = pointX(i), py = pointY(i);
+        double limit = Math.max(AGREEMENT_DISTANCE, distance / 10);
+        int agreeing = 0;
+        int first = Math.max(0, i - CONFIDENCE_SPREAD);
+        int last = Math.min(count - 1, i + CONFIDENCE_SPREAD);
+        for (int j = first; j <= last; j++)
+        {
+            if (j == i || Float.isNaN(distances[j])) continue;
+            double dx = pointX(j) - px, dy = pointY(j) - py;
+            if (dx * dx + dy * dy <= limit * limit) agreeing++;
+        }
+        return Math.min(1f, (agreeing + 1) / (float)(CONFIDENT_SAMPLES + 1));
+    }
+
+    /**
+     * Add every sample to a ProximityMap as seen from the given pose.
+     */
+    public void addTo(ProximityMap map, double x, double y, int heading)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            addTo(map, i, x, y, heading);
+        }
+    }
+
+    /**
+     * Add one sample to a ProximityMap as seen from the given pose: the
+     * distance and angle from there to where the reading puts the obstacle,
+     * or for a miss, the angle to the far end of its beam.
+     */
+    public void addTo(ProximityMap map, int i, double x, double y, int heading)
+    {
+        float distance = distances[i];
+        int angle;
+        if (this.x[i] == x && this.y[i] == y)
+        {
+            angle = bearing(i) - heading;
+        }
+        else
+        {
+            float reach = Float.isNaN(distance) ? SmartRobot.MAXIMUM_TRUSTED_DISTANCE : distance;
+            double dx = this.x[i] + reach * MathHelper.sinDegrees(bearing(i)) - x;
+            double dy = this.y[i] + reach * MathHelper.cosDegrees(bearing(i)) - y;
+            angle = (int)Math.round(MathHelper.radiansToDegrees(Math.atan2(dx, dy))) - heading;
+            if (!Float.isNaN(distance))
+            {
+                distance = (float)Math.hypot(dx, dy);
+            }
+        }
+        while (angle < 0 && angle < map.minimumAngle)
+        {
+            angle += 360;
+        }
+        while (angle > 0 && angle > map.maximumAngle)
+        {
+            angle -= 360;
+        }
+        map.addSample(angle, distance, times[i]);
+    }
+}
@@ -257,7 +257,7 @@ public class MyRobot extends SmartRobot
         sleepForSeconds(5); // Give time for hand to move away from eyes, or we'll just wake up straight away below.
         for (;;)
         {
-            if (leftTouch() || rightTouch() || headDistance() <= MAXIMUM_HAND_SIGNAL_DISTANCE)
+            if (leftTouch() || rightTouch() || nextHeadDistance() <= MAXIMUM_HAND_SIGNAL_DISTANCE)
             {
                 break;
             }
@@ -0,0 +1,51 @@
+package smartev3;
+
+/**
+ * Proportional, integral and derivative control of one error, such as how
+ * far the robot's heading is off the one it should hold. The integral is
+ * kept within integralLimit (of output), so a long stall cannot wind it up
+ * into an overshoot, and the derivative is left out of the first update
+ * after a reset, having no earlier error to go on.
+ */
+public class PidController
+{
+    public double proportional;
+    public double integral; // per second
+    public double derivative; // seconds
+    public double integralLimit;
+
+    private double _sum = 0;
+    private double _lastError = Double.NaN;
+
+    public PidController(double proportional, double integral, double derivative, double integralLimit)
+    {
+        this.proportional = proportional;
+        this.integral = integral;
+        this.derivative = derivative;
+        this.integralLimit = integralLimit;
+    }
+
+    public void reset()
+    {
+        _sum = 0;
+        _lastError = Double.NaN;
+    }
+
+    /**
+     * The output for the latest error, the given seconds after the last.
+     */
+    public double update(double error, double seconds)
+    {
+        double output = proportional * error;
+        if (seconds > 0)
+        {
+            _sum = Math.max(-integralLimit, Math.min(integralLimit, _sum + integral * error * seconds));
+            if (!Double.isNaN(_lastError))
+            {
+                output += derivative * (error - _lastError) / seconds;
+            }
+        }
+        _lastError = error;
+        return output + _sum;
+    }
+}
@@ -0,0 +1,169 @@
+package smartev3;
+
+import java.util.concurrent.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Plans the next move of a discovery mission while the robot is still
+ * carrying out the current one, so that it does not sit idle between moves.
+ * Each job gets a snapshot of the DiscoveryMap taken as the move starts, with
+ * the robot placed at its target: it assumes the robot will see everything
+ * in clear view when it looks around there (see DiscoveryMap.assumeClearView),
+ * chooses the next target on that basis and smooths the path to it.
+ * When the move is over and the real readings have been added, the mission
+ * checks the planned path against the live map (DiscoveryMap.followPlan),
+ * and only plans again if it is no longer good.
+ */
+public class PlanningThread extends Thread
+{
+    private static final int[] NO_PATH = new int[0];
+    private static final long POLL_INTERVAL = 100; // milliseconds
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private LinkedBlockingQueue<Job> _jobs = new LinkedBlockingQueue<Job>();
+    private LinkedBlockingQueue<Plan> _plans = new LinkedBlockingQueue<Plan>();
+    private int _pending = 0; // jobs queued and not yet taken (only used by the mission thread)
+
+    /**
+     * Time taken by the last job to choose a target and smooth the path (nanoseconds).
+     */
+    public volatile long planningTime;
+
+    private static class Job
+    {
+        DiscoveryMap snapshot;
+        Point location;
+        int bearing;
+    }
+
+    /**
+     * A path planned ahead: every cell from the robot to the target, and
+     * the waypoints left after smoothing. Both are empty if no target was
+     * found.
+     */
+    public static class Plan
+    {
+        public int[] path = NO_PATH;
+        public int[] waypoints = NO_PATH;
+    }
+
+    public PlanningThread()
+    {
+        setDaemon(true);
+        setName("planning");
+    }
+
+    /**
+     * Plan ahead on a snapshot, from where the robot will be and facing the
+     * given compass bearing.
+     */
+    public void plan(DiscoveryMap snapshot, Point location, int bearing)
+    {
+        Job job = new Job();
+        job.snapshot = snapshot;
+        job.location = location;
+        job.bearing = bearing;
+        // Only the latest plan is wanted.
+        while (_pending > 0 && takePlan() != null)
+        {
+        }
+        try
+        {
+            _jobs.put(job);
+            _pending++;
+        }
+        catch (InterruptedException unexpected)
+        {
+            throw new RuntimeException(unexpected);
+        }
+    }
+
+    /**
+     * The plan made by the last job, waiting for it to finish if need be.
+     * Returns null if there is no job, or if the thread has died.
+     */
+    public Plan takePlan()
+    {
+        try
+        {
+            while (_pending > 0)
+            {
+                Plan plan = _plans.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (plan != null)
+                {
+                    _pending--;
+                    return plan;
+                }
+                if (!isAlive() && _plans.isEmpty())
+                {
+                    _pending = 0;
+                }
+            }
+            return null;
+        }
+        catch (InterruptedException unexpected)
+        {
+            throw new RuntimeException(unexpected);
+        }
+    }
+
+    public void run()
+    {
+        while (true)
+        {
+            Job job;
+            try
+            {
+                job = _jobs.take();
+            }
+            catch (InterruptedException finished)
+            {
+                return;
+            }
+            Plan plan = new Plan();
+            try
+            {
+                planAhead(job, plan);
+            }
+            catch (RuntimeException ex)
+            {
+                // Leave it to the mission to plan on the live map.
+                logger.warn("PlanningThread: planning ahead failed", ex);
+                plan = new Plan();
+            }
+            finally
+            {
+                _plans.add(plan);
+            }
+        }
+    }
+
+    private void planAhead(Job job, Plan plan)
+    {
+        long t0 = System.nanoTime();
+        DiscoveryMap map = job.snapshot;
+        map.robotLocation = job.location;
+        map.assumeClearView(job.bearing);
+        map.chooseTarget();
+        int n = map.cellsToTarget.size();
+        if (n == 0) return;
+        int[] path = new int[n];
+        for (int i = 0; i < n; i++)
+        {
+            path[i] = map.cellsToTarget.get(i).index;
+        }
+        map.smoothenPath();
+        int m = map.cellsToTarget.size();
+        int[] waypoints = new int[m];
+        for (int i = 0; i < m; i++)
+        {
+            waypoints[i] = map.cellsToTarget.get(i).index;
+        }
+        plan.path = path;
+        plan.waypoints = waypoints;
+        planningTime = System.nanoTime() - t0;
+    }
+}
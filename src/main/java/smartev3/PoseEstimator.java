@@ -0,0 +1,435 @@
+package smartev3;
+
+import java.util.Arrays;
+
+/**
+ * Where the robot is and which way it faces, kept up to date from every
+ * wheel and gyroscope sample as the SensorSampler takes it, so the pose
+ * follows every move and turn without the mission asking.
+ * The pose is an extended Kalman filter's: each pair of wheel samples
+ * moves it by the distance the wheels rolled, along the heading halfway
+ * through the step, and turns it by the difference between the wheels;
+ * then the gyroscope's reading from within the step corrects the heading
+ * it had then. The wheels give the heading between the gyroscope's whole
+ * degrees, and the gyroscope keeps the wheels from drifting when they slip.
+ * Wheels that are not quite alike make the robot veer as it drives, which
+ * the wheels cannot see, so the filter also learns the veer (degrees per
+ * centimetre) from the gyroscope. A whole-degree reading tells little
+ * while it stays the same, and most just as it changes, when the heading
+ * is crossing the half degree between the two; the filter takes readings
+ * so. The covariance grows with the distance rolled and the turning done,
+ * and shrinks when the gyroscope agrees, so a mission can tell how far to
+ * trust a position.
+ * Positions are in centimetres from where the estimator was last reset,
+ * along the gyroscope's bearings (x += d sin, y += d cos), and headings are
+ * gyroscope degrees, not wrapped. The filter runs on the sampler's thread
+ * and publishes each pose as a seqlock snapshot (see SensorSampler), so
+ * reading it takes no lock and nothing is allocated.
+ */
+public class PoseEstimator implements SensorSampler.Listener
+{
+    /**
+     * A copy of the estimated pose, with its covariance.
+     */
+    public static class Pose
+    {
+        public double x, y; // centimetres
+        public double heading; // degrees
+        public double varianceX, varianceY, covarianceXY; // square centimetres
+        public double varianceHeading; // square degrees
+        public long time; // nanoseconds, of the latest sample used
+
+        /**
+         * Standard deviation of the position in its least certain direction.
+         */
+        public double deviation()
+        {
+            double half = (varianceX + varianceY) / 2;
+            double spread = Math.hypot((varianceX - varianceY) / 2, covarianceXY);
+            return Math.sqrt(half + spread);
+        }
+
+        public void copy(Pose other)
+        {
+            x = other.x;
+            y = other.y;
+            heading = other.heading;
+            varianceX = other.varianceX;
+            varianceY = other.varianceY;
+            covarianceXY = other.covarianceXY;
+            varianceHeading = other.varianceHeading;
+            time = other.time;
+        }
+
+        /**
+         * The pose at the given time (nanoseconds), along the straight line
+         * from an earlier pose to a later one, or whichever of them is
+         * nearest if the time is not between them.
+         */
+        public void interpolate(Pose earlier, Pose later, long time)
+        {
+            if (time <= earlier.time)
+            {
+                copy(earlier);
+                return;
+            }
+            if (time >= later.time)
+            {
+                copy(later);
+                return;
+            }
+            double fraction = (double)(time - earlier.time) / (later.time - earlier.time);
+            x = earlier.x + fraction * (later.x - earlier.x);
+            y = earlier.y + fraction * (later.y - earlier.y);
+            heading = earlier.heading + fraction * (later.heading - earlier.heading);
+            varianceX = later.varianceX;
+            varianceY = later.varianceY;
+            covarianceXY = later.covarianceXY;
+            varianceHeading = later.varianceHeading;
+            this.time = time;
+        }
+
+        public String toString()
+        {
+            return "(x=" + SmartRobot.formatFixed1(x) + ",y=" + SmartRobot.formatFixed1(y)
+                + ",heading=" + SmartRobot.formatFixed1(heading)
+                + ",deviation=" + SmartRobot.formatFixed1(deviation()) + ")";
+        }
+    }
+
+    // Noise, growing with how far the robot goes.
+    public double distanceVariance = 0.01; // square centimetres per centimetre rolled
+    public double turnVariance = 0.05; // square degrees per degree the wheels turn
+    public double gyroVariance = 1.0 / 12; // square degrees: whole-degree readings
+    public double driftVariance = 1; // square degrees per second, either drifting
+    public double veerVariance = 0.0025; // square degrees per centimetre, wheels unlike at the start
+    public double veerDrift = 1e-6; // square degrees per centimetre per centimetre rolled
+
+    private static final int STATE = 4; // x, y, heading, veer
+    private static final int X = 0, Y = 1, HEADING = 2, VEER = 3;
+
+    private final SensorSampler _sampler;
+    private final int _leftWheel, _rightWheel, _gyroscope;
+    private volatile double _wheelCircumference = 0; // centimetres
+    private volatile int _fullTurnSteps = 0; // steps of each wheel turning the robot round, 0 if not known
+    private volatile boolean _resetRequested = true;
+    private SensorTrace _trace;
+
+    // Filter state, sampler thread only.
+    private float _left = Float.NaN, _right = Float.NaN; // latest wheel positions
+    private long _leftTime, _rightTime;
+    private boolean _leftFresh = false, _rightFresh = false; // sampled since the pose last moved
+    private float _usedLeft = Float.NaN, _usedRight = Float.NaN; // wheel positions the pose has moved by
+    private float _gyroAngle; // latest reading, until the wheels catch up with it
+    private long _gyroTime;
+    private boolean _gyroPending = false;
+    private double _lastGyroAngle = Double.NaN, _lastGyroHeading; // reading last used, and the heading then
+    private double _x, _y, _heading;
+    private double _veer; // degrees per centimetre the wheels turn the robot without showing it
+    private final double[] _p = new double[STATE * STATE]; // covariance of x, y, heading and veer
+    private final double[] _f = new double[STATE * STATE]; // predict's Jacobian
+    private final double[] _product = new double[STATE * STATE];
+    private final double[] _gain = new double[STATE];
+    private long _time;
+
+    // Published pose, all volatile so a reader sees them in the order they were written.
+    private volatile long _sequence;
+    private volatile double _publishedX, _publishedY, _publishedHeading;
+    private volatile double _publishedXX, _publishedYY, _publishedXY, _publishedHH;
+    private volatile long _publishedTime;
+
+    private final double[] _traced = new double[7];
+
+    /**
+     * Follow the given sampler's wheel and gyroscope devices.
+     */
+    public PoseEstimator(SensorSampler sampler, int leftWheel, int rightWheel, int gyroscope)
+    {
+        _sampler = sampler;
+        _leftWheel = leftWheel;
+        _rightWheel = rightWheel;
+        _gyroscope = gyroscope;
+        sampler.setListener(this);
+        _p[VEER * STATE + VEER] = veerVariance;
+    }
+
+    /**
+     * Set how far the robot rolls for a degree of its wheels, and how many
+     * steps of each wheel (in opposite directions) turn it round; until
+     * that is known (0), the heading is the gyroscope's alone.
+     */
+    public void setGeometry(double wheelCircumference, int fullTurnSteps)
+    {
+        _wheelCircumference = wheelCircumference;
+        _fullTurnSteps = fullTurnSteps;
+    }
+
+    /**
+     * Record the poses read in a trace, or replay them from one.
+     */
+    public void setTrace(SensorTrace trace)
+    {
+        _trace = trace;
+    }
+
+    /**
+     * Start again from (0, 0), certain, at the gyroscope's next reading:
+     * after the gyroscope has been calibrated, say.
+     */
+    public void reset()
+    {
+        _resetRequested = true;
+    }
+
+    /**
+     * Copy the latest pose.
+     */
+    public void read(Pose into)
+    {
+        if (_trace != null && !_trace.recording)
+        {
+            _trace.expect(SensorTrace.POSE, 0);
+            into.time = _trace.readLong(0);
+            into.x = _trace.readDouble();
+            into.y = _trace.readDouble();
+            into.heading = _trace.readDouble();
+            into.varianceX = _trace.readDouble();
+            into.varianceY = _trace.readDouble();
+            into.covarianceXY = _trace.readDouble();
+            into.varianceHeading = _trace.readDouble();
+            return;
+        }
+        _sampler.poll();
+        while (true)
+        {
+            long before = _sequence;
+            into.x = _publishedX;
+            into.y = _publishedY;
+            into.heading = _publishedHeading;
+            into.varianceX = _publishedXX;
+            into.varianceY = _publishedYY;
+            into.covarianceXY = _publishedXY;
+            into.varianceHeading = _publishedHH;
+            into.time = _publishedTime;
+            if ((before & 1) == 0 && _sequence == before) break;
+            Thread.yield();
+        }
+        if (_trace != null)
+        {
+            synchronized (_traced)
+            {
+                _traced[0] = into.x;
+                _traced[1] = into.y;
+                _traced[2] = into.heading;
+                _traced[3] = into.varianceX;
+                _traced[4] = into.varianceY;
+                _traced[5] = into.covarianceXY;
+                _traced[6] = into.varianceHeading;
+                _trace.record(SensorTrace.POSE, 0, into.time, _traced);
+            }
+        }
+    }
+
+    public void sampled(int device, long time, float value)
+    {
+        if (Float.isNaN(value)) return;
+        if (device == _gyroscope)
+        {
+            if (_resetRequested)
+            {
+                _resetRequested = false;
+                _x = _y = 0;
+                _heading = value;
+                double veer = _p[VEER * STATE + VEER]; // the wheels are as they were
+                Arrays.fill(_p, 0);
+                _p[VEER * STATE + VEER] = veer;
+                _usedLeft = _left;
+                _usedRight = _right;
+                _gyroPending = false;
+                _lastGyroAngle = Double.NaN;
+                _time = time;
+                publish();
+                return;
+            }
+            if (_gyroPending)
+            {
+                // The wheels have not caught up with the last one: use it as it is.
+                correct(_gyroAngle, _heading);
+            }
+            _gyroAngle = value;
+            _gyroTime = time;
+            _gyroPending = true;
+            return;
+        }
+        if (device == _leftWheel)
+        {
+            _left = value;
+            _leftTime = time;
+            _leftFresh = true;
+        }
+        else if (device == _rightWheel)
+        {
+            _right = value;
+            _rightTime = time;
+            _rightFresh = true;
+        }
+        else
+        {
+            return;
+        }
+        // Move once both wheels have a new sample, so they are read at nearly the same time.
+        if (!_leftFresh || !_rightFresh) return;
+        _leftFresh = _rightFresh = false;
+        long now = _leftTime + (_rightTime - _leftTime) / 2;
+        if (_resetRequested) return; // waiting for the gyroscope
+        if (Float.isNaN(_usedLeft) || Float.isNaN(_usedRight))
+        {
+            _usedLeft = _left;
+            _usedRight = _right;
+            _time = now;
+            return;
+        }
+        double heading = _heading;
+        predict(_left - _usedLeft, _right - _usedRight, (now - _time) / 1e9);
+        _usedLeft = _left;
+        _usedRight = _right;
+        if (_gyroPending && _gyroTime - now <= 0)
+        {
+            // Compare the gyroscope with the heading when it was read, not now.
+            double part = Math.max(0, (double)(_gyroTime - _time) / (now - _time));
+            correct(_gyroAngle, heading + (_heading - heading) * part);
+            _gyroPending = false;
+        }
+        _time = now;
+        publish();
+    }
+
+    /**
+     * Move the pose by the wheels' steps since the last, and grow its
+     * covariance (P = F P Ft + Q).
+     */
+    private void predict(double leftSteps, double rightSteps, double seconds)
+    {
+        double distance = (leftSteps + rightSteps) / 2 / 360 * _wheelCircumference;
+        int fullTurnSteps = _fullTurnSteps;
+        double turn = fullTurnSteps == 0 ? 0 : (leftSteps - rightSteps) / 2 / fullTurnSteps * 360;
+        turn += _veer * distance;
+        double radians = MathHelper.degreesToRadians(_heading + turn / 2);
+        double sin = Math.sin(radians);
+        double cos = Math.cos(radians);
+        _x += distance * sin;
+        _y += distance * cos;
+        _heading += turn;
+        // How x and y change with the heading (per degree), and the heading with the veer.
+        double a = distance * cos * Math.PI / 180;
+        double b = -distance * sin * Math.PI / 180;
+        Arrays.fill(_f, 0);
+        for (int i = 0; i < STATE; i++) _f[i * STATE + i] = 1;
+        _f[X * STATE + HEADING] = a;
+        _f[X * STATE + VEER] = a * distance / 2;
+        _f[Y * STATE + HEADING] = b;
+        _f[Y * STATE + VEER] = b * distance / 2;
+        _f[HEADING * STATE + VEER] = distance;
+        // P = F P Ft
+        for (int i = 0; i < STATE; i++)
+        {
+            for (int j = 0; j < STATE; j++)
+            {
+                double sum = 0;
+                for (int k = 0; k < STATE; k++) sum += _f[i * STATE + k] * _p[k * STATE + j];
+                _product[i * STATE + j] = sum;
+            }
+        }
+        for (int i = 0; i < STATE; i++)
+        {
+            for (int j = 0; j < STATE; j++)
+            {
+                double sum = 0;
+                for (int k = 0; k < STATE; k++) sum += _product[i * STATE + k] * _f[j * STATE + k];
+                _p[i * STATE + j] = sum;
+            }
+        }
+        // Wheel slip along the way and in the turn, the gyroscope drifting, and the veer changing.
+        double along = distanceVariance * Math.abs(distance);
+        _p[X * STATE + X] += along * sin * sin;
+        _p[X * STATE + Y] += along * sin * cos;
+        _p[Y * STATE + X] += along * sin * cos;
+        _p[Y * STATE + Y] += along * cos * cos;
+        _p[HEADING * STATE + HEADING] += turnVariance * Math.abs(turn) + driftVariance * seconds;
+        _p[VEER * STATE + VEER] += veerDrift * Math.abs(distance);
+    }
+
+    /**
+     * Correct the pose by a gyroscope reading, against the heading the pose
+     * had when it was read.
+     */
+    private void correct(double gyroAngle, double heading)
+    {
+        double previous = _lastGyroAngle, previousHeading = _lastGyroHeading;
+        _lastGyroAngle = gyroAngle;
+        _lastGyroHeading = heading;
+        double innovation = gyroAngle - heading;
+        double variance = gyroVariance;
+        if (Math.abs(gyroAngle - previous) == 1)
+        {
+            // The heading has just gone over the half degree between this
+            // reading and the last, some time since the last.
+            double crossed = gyroAngle - 0.5 * (gyroAngle - previous);
+            double swept = heading - previousHeading;
+            innovation = crossed - (heading + previousHeading) / 2;
+            variance = Math.max(swept * swept / 12, 0.01);
+        }
+        else
+        {
+            // A reading is only a whole number of degrees, so it only tells
+            // the heading is wrong by however much they are more than half a
+            // degree apart. (Taken as it is, the same reading over and over
+            // would pull the heading to the whole degree.)
+            innovation -= Math.max(-0.5, Math.min(0.5, innovation));
+        }
+        if (_fullTurnSteps == 0)
+        {
+            // The wheels cannot tell the heading yet.
+            _heading += innovation;
+            for (int i = 0; i < STATE; i++)
+            {
+                _p[i * STATE + HEADING] = _p[HEADING * STATE + i] = 0;
+            }
+            _p[HEADING * STATE + HEADING] = variance;
+            return;
+        }
+        // K = P Ht / (H P Ht + R), x += K y, P -= K H P, with H picking the heading.
+        double s = _p[HEADING * STATE + HEADING] + variance;
+        for (int i = 0; i < STATE; i++)
+        {
+            _gain[i] = _p[i * STATE + HEADING] / s;
+        }
+        _x += _gain[X] * innovation;
+        _y += _gain[Y] * innovation;
+        _heading += _gain[HEADING] * innovation;
+        _veer += _gain[VEER] * innovation;
+        for (int i = 0; i < STATE; i++)
+        {
+            for (int j = 0; j < STATE; j++)
+            {
+                _product[i * STATE + j] = _p[i * STATE + j] - _gain[i] * _p[HEADING * STATE + j];
+            }
+        }
+        System.arraycopy(_product, 0, _p, 0, _p.length);
+    }
+
+    private void publish()
+    {
+        long sequence = _sequence;
+        _sequence = sequence + 1;
+        _publishedX = _x;
+        _publishedY = _y;
+        _publishedHeading = _heading;
+        _publishedXX = _p[X * STATE + X];
+        _publishedYY = _p[Y * STATE + Y];
+        _publishedXY = _p[X * STATE + Y];
+        _publishedHH = _p[HEADING * STATE + HEADING];
+        _publishedTime = _time;
+        _sequence = sequence + 2;
+    }
+}
@@ -2,8 +2,31 @@ package smartev3;
 
 import java.util.*;
 
+/**
+ * Obstacle distance (centimetres) by whole degree of angle from the robot's
+ * heading. Sonar readings are added as samples: each angle keeps a ring of
+ * its latest few samples (a reading or a miss, with the time it was taken),
+ * and a sorted copy of the readings in it, so the minimum and median are
+ * read off directly and each new sample costs a fixed number of steps.
+ * The distance at an angle is the median reading. Ultrasonic ghosts show up
+ * as readings that nothing nearby agrees with, so each angle also has a
+ * confidence: the share of samples at and either side of it (within the
+ * sonar cone) that agree with its median.
+ * For steering, findValleys builds a polar histogram of the angles blocked
+ * for a robot of a given width, and finds the runs of open angles between.
+ * findBlockingDistances finds how far each angle is open instead, so that
+ * valleys for any lookahead can then be found without going over the
+ * readings again.
+ * Nothing is allocated once the map is made.
+ */
 public class ProximityMap
 {
+    public static final int SAMPLES = 5; // kept for each angle
+    public static final int SAMPLE_LIFETIME = 4000; // milliseconds
+    public static final int CONFIDENCE_SPREAD = 2; // degrees either side
+    private static final int CONFIDENT_SAMPLES = 2; // agreeing samples for full confidence
+    private static final float AGREEMENT_DISTANCE = 10; // centimetres, or 10% if more
+
     public final int minimumAngle;
     public final int maximumAngle;
 
@@ -11,6 +34,43 @@ public class ProximityMap
     private final float[] array;
     private final float[] saveArray;
 
+    // For each angle: a ring of samples (NaN for a miss) with their times,
+    // and the readings among them in ascending order.
+    private final float[] sampleDistances;
+    private final long[] sampleTimes;
+    private final byte[] firstSamples;
+    private final byte[] sampleCounts;
+    private final float[] sortedReadings;
+    private final byte[] readingCounts;
+
+    // Polar histogram: by angle, the number of readings blocking it (kept as
+    // differences while filling), and half the angle blocked by a reading
+    // at each whole centimetre of distance, for the last radius used.
+    private final int[] blockingCounts;
+    private final int[] blockedAngles = new int[(int)SmartRobot.MAXIMUM_TRUSTED_DISTANCE + 2];
+    private float blockedRadius = Float.NaN;
+
+    /**
+     * By angle (from minimumAngle), the distance (whole centimetres) of the
+     * nearest reading blocking it, or Integer.MAX_VALUE if none does, as found
+     * by the last call to findBlockingDistances.
+     */
+    public final int[] blockingDistances;
+    // Readings by whole centimetre of distance (linked lists through the
+    // angles), and by angle the next angle at or after it not yet given a
+    // blocking distance (a path-compressed skip list, with a sentinel at the end).
+    private final int[] firstReadings = new int[blockedAngles.length];
+    private final int[] nextReadings;
+    private final int[] unblocked;
+
+    /**
+     * Open valleys found by the last call to findValleys: the angle in the
+     * middle of each and its width (degrees), from left to right.
+     */
+    public final int[] valleyCentres;
+    public final int[] valleyWidths;
+    public int valleyCount;
+
     public ProximityMap(SmartRobot robot, int minimumAngle, int maximumAngle)
     {
         this.robot = robot;
@@ -18,6 +78,19 @@ public class ProximityMap
         this.maximumAngle = maximumAngle;
         this.array = new float[1 + maximumAngle - minimumAngle];
         this.saveArray = new float[1 + maximumAngle - minimumAngle];
+        int angles = 1 + maximumAngle - minimumAngle;
+        this.sampleDistances = new float[angles * SAMPLES];
+        this.sampleTimes = new long[angles * SAMPLES];
+        this.firstSamples = new byte[angles];
+        this.sampleCounts = new byte[angles];
+        this.sortedReadings = new float[angles * SAMPLES];
+        this.readingCounts = new byte[angles];
+        this.blockingCounts = new int[angles + 1];
+        this.blockingDistances = new int[angles];
+        this.nextReadings = new int[angles];
+        this.unblocked = new int[angles + 1];
+        this.valleyCentres = new int[angles / 2 + 1];
+        this.valleyWidths = new int[angles / 2 + 1];
         this.reset();
     }
 
@@ -29,6 +102,134 @@ public class ProximityMap
         {
             setDistanceAtAngle(angle, Float.NaN);
         }
+        Arrays.fill(sampleCounts, (byte)0);
+        Arrays.fill(readingCounts, (byte)0);
+    }
+
+    /**
+     * Add a sonar sample taken at the given time (milliseconds): a distance,
+     * or NaN if there was no echo in range. Drops the oldest sample for the
+     * angle if its ring is full, and any that are out of date.
+     */
+    public void addSample(int angle, float distance, long time)
+    {
+        if (angle < minimumAngle || angle > maximumAngle) return;
+        int i = angle - minimumAngle;
+        int base = i * SAMPLES;
+        int first = firstSamples[i];
+        int count = sampleCounts[i];
+        while (count > 0 && (count == SAMPLES || sampleTimes[base + first] < time - SAMPLE_LIFETIME))
+        {
+            float oldest = sampleDistances[base + first];
+            if (!Float.isNaN(oldest)) removeReading(i, oldest);
+            first = (first + 1) % SAMPLES;
+            count--;
+        }
+        int slot = base + (first + count) % SAMPLES;
+        sampleDistances[slot] = distance;
+        sampleTimes[slot] = time;
+        firstSamples[i] = (byte)first;
+        sampleCounts[i] = (byte)(count + 1);
+        if (!Float.isNaN(distance)) insertReading(i, distance);
+        int readings = readingCounts[i];
+        array[i] = readings > 0 ? sortedReadings[base + (readings - 1) / 2] : Float.NaN;
+    }
+
+    private void insertReading(int i, float distance)
+    {
+        int base = i * SAMPLES;
+        int j = base + readingCounts[i];
+        while (j > base && sortedReadings[j - 1] > distance)
+        {
+            sortedReadings[j] = sortedReadings[j - 1];
+            j--;
+        }
+        sortedReadings[j] = distance;
+        readingCounts[i]++;
+    }
+
+    private void removeReading(int i, float distance)
+    {
+        int base = i * SAMPLES;
+        int end = base + readingCounts[i];
+        int j = base;
+        while (j < end && sortedReadings[j] != distance) j++;
+        for (; j < end - 1; j++)
+        {
+            sortedReadings[j] = sortedReadings[j + 1];
+        }
+        readingCounts[i]--;
+    }
+
+    /**
+     * Number of samples (readings and misses) kept for the angle.
+     */
+    public int sampleCount(int angle)
+    {
+        if (angle < minimumAngle || angle > maximumAngle) return 0;
+        return sampleCounts[angle - minimumAngle];
+    }
+
+    /**
+     * Time (milliseconds) of the latest sample for the angle, or -1 if none.
+     */
+    public long lastSampleTime(int angle)
+    {
+        int count = sampleCount(angle);
+        if (count == 0) return -1;
+        int i = angle - minimumAngle;
+        return sampleTimes[i * SAMPLES + (firstSamples[i] + count - 1) % SAMPLES];
+    }
+
+    /**
+     * Shortest reading kept for the angle, or NaN if none.
+     */
+    public float minimumDistance(int angle)
+    {
+        if (angle < minimumAngle || angle > maximumAngle) return Float.NaN;
+        int i = angle - minimumAngle;
+        return readingCounts[i] > 0 ? sortedReadings[i * SAMPLES] : Float.NaN;
+    }
+
+    /**
+     * Median reading kept for the angle (the lower one of the middle two if
+     * there is an even number), or NaN if none.
+     */
+    public float medianDistance(int angle)
+    {
+        if (angle < minimumAngle || angle > maximumAngle) return Float.NaN;
+        int i = angle - minimumAngle;
+        int readings = readingCounts[i];
+        return readings > 0 ? sortedReadings[i * SAMPLES + (readings - 1) / 2] : Float.NaN;
+    }
+
+    /**
+     * How far the distance at the angle can be trusted, from 0 to 1: the
+     * number of readings within CONFIDENCE_SPREAD degrees that agree with
+     * its median, over the number of samples there (or CONFIDENT_SAMPLES if
+     * fewer). Distances set directly, rather than sampled, count as 1.
+     */
+    public float confidence(int angle)
+    {
+        if (angle < minimumAngle || angle > maximumAngle) return 0;
+        int i = angle - minimumAngle;
+        if (sampleCounts[i] == 0) return Float.isNaN(array[i]) ? 0 : 1;
+        float median = medianDistance(angle);
+        if (Float.isNaN(median)) return 0;
+        float tolerance = Math.max(AGREEMENT_DISTANCE, 0.1f * median);
+        int samples = 0, agreeing = 0;
+        int from = Math.max(0, i - CONFIDENCE_SPREAD);
+        int to = Math.min(array.length - 1, i + CONFIDENCE_SPREAD);
+        for (int j = from; j <= to; j++)
+        {
+            samples += sampleCounts[j];
+            int base = j * SAMPLES;
+            for (int k = base; k < base + readingCounts[j]; k++)
+            {
+                if (Math.abs(sortedReadings[k] - median) <= tolerance) agreeing++;
+            }
+        }
+        return Math.min(1f, agreeing / (float)Math.max(samples, CONFIDENT_SAMPLES));
     }
 
     public float getDistanceAtAngle(int angle)
@@ -69,10 +270,19 @@ public class ProximityMap
     }
 
     public void adjustForSafePassing()
+    {
+        adjustForSafePassing(robot.safePassingWidth());
+    }
+
+    /**
+     * Fill in the missing distances between two readings that are closer
+     * together than the given width (centimetres), so the gap is not taken
+     * for a way through.
+     */
+    public void adjustForSafePassing(float safeWidth)
     {
         int min = this.minimumAngle;
         int max = this.maximumAngle;
-        float safeWidth = robot.safePassingWidth();
         for (int angle1 = min; angle1 <= max; angle1++)
         {
             float distance1 = getDistanceAtAngle(angle1);
@@ -87,8 +297,7 @@ public class ProximityMap
                         int anglesBetween = angle2 - angle1 - 1;
                         if (anglesBetween > 0)
                         {
-                            double gap = MathHelper.distanceBetweenPolarDegrees(angle1, distance1, angle2, distance2);
-                            if (gap < safeWidth)
+                            if (gapSquared(angle2 - angle1, distance1, distance2) < safeWidth * safeWidth)
                             {
                                 float deltaDistance = distance2 - distance1;
                                 for (int angle = angle1 + 1; angle < angle2; angle++)
@@ -109,6 +318,14 @@ public class ProximityMap
     }
 
     public int angleWithMaximumDistance()
+    {
+        return angleWithMaximumDistance(0);
+    }
+
+    /**
+     * Angle with the longest distance among those with at least the given confidence.
+     */
+    public int angleWithMaximumDistance(float minimumConfidence)
     {
         int min = this.minimumAngle;
         int max = this.maximumAngle;
@@ -117,7 +334,7 @@ public class ProximityMap
         for (int angle = min; angle <= max; angle++)
         {
             float distance = getDistanceAtAngle(angle);
-            if (distance > maxDistance && !Float.isNaN(distance))
+            if (distance > maxDistance && !Float.isNaN(distance) && confidence(angle) >= minimumConfidence)
             {
                 resultAngle = angle;
                 maxDistance = distance;
@@ -126,30 +343,189 @@ public class ProximityMap
         return resultAngle;
     }
 
-    public List<Integer> anglesWithSimilarDistance(float distance)
+    /**
+     * Square of the distance between the obstacles at two distances, the
+     * given number of degrees apart (by the law of cosines).
+     */
+    private static float gapSquared(int angleBetween, float distance1, float distance2)
     {
-        List<Integer> result = new ArrayList<Integer>();
-        int min = this.minimumAngle;
-        int max = this.maximumAngle;
-        for (int i = min; i <= max; i++)
+        return (float)(distance1 * distance1 + distance2 * distance2
+            - 2 * distance1 * distance2 * MathHelper.cosDegrees(angleBetween));
+    }
+
+    /**
+     * Find the valleys: runs of angles along which a robot of the given
+     * radius (centimetres) could drive at least the lookahead distance
+     * without coming closer than its radius to an obstacle. A reading
+     * blocks its own angle and those either side of it within the angle
+     * the robot's radius takes up at its distance; readings further away
+     * than the lookahead, or less confident than minimumConfidence, block
+     * nothing. Results are in valleyCentres and valleyWidths; returns the
+     * number of valleys.
+     */
+    public int findValleys(float radius, float lookahead, float minimumConfidence)
+    {
+        setBlockedAngles(radius);
+        int n = array.length;
+        int[] counts = blockingCounts;
+        Arrays.fill(counts, 0);
+        for (int i = 0; i < n; i++)
         {
-            float x = getDistanceAtAngle(i);
-            if (Float.isNaN(x)) continue;
-            float compare = x / distance;
-            if (compare >= 0.8 && compare <= 1.2)
+            float distance = array[i];
+            if (!(distance < lookahead)) continue;
+            if (minimumConfidence > 0 && confidence(i + minimumAngle) < minimumConfidence) continue;
+            int half = blockedAngles[Math.min(blockedAngles.length - 1, (int)Math.max(0, distance))];
+            counts[Math.max(0, i - half)]++;
+            counts[Math.min(n, i + half + 1)]--;
+        }
+        valleyCount = 0;
+        int blocking = 0;
+        int start = -1;
+        for (int i = 0; i <= n; i++)
+        {
+            blocking += counts[i];
+            boolean open = i < n && blocking == 0;
+            if (open && start == -1)
+            {
+                start = i;
+            }
+            else if (!open && start != -1)
+            {
+                addValley(start, i);
+                start = -1;
+            }
+        }
+        return valleyCount;
+    }
+
+    /**
+     * Find how far along each angle a robot of the given radius could see
+     * the way open, as findValleys counts blocking: the distance of the
+     * nearest reading blocking it, in blockingDistances. Readings are taken
+     * nearest first, so each angle only needs setting once. Returns the
+     * largest blocking distance, which is the furthest lookahead with a valley.
+     */
+    public int findBlockingDistances(float radius, float minimumConfidence)
+    {
+        setBlockedAngles(radius);
+        int n = array.length;
+        int buckets = firstReadings.length;
+        Arrays.fill(firstReadings, -1);
+        for (int i = n - 1; i >= 0; i--)
+        {
+            float distance = array[i];
+            if (Float.isNaN(distance)) continue;
+            if (minimumConfidence > 0 && confidence(i + minimumAngle) < minimumConfidence) continue;
+            int d = Math.min(buckets - 1, (int)Math.max(0, distance));
+            nextReadings[i] = firstReadings[d];
+            firstReadings[d] = i;
+        }
+        for (int i = 0; i <= n; i++)
+        {
+            unblocked[i] = i;
+        }
+        int furthest = 0;
+        for (int d = 0; d < buckets; d++)
+        {
+            int half = blockedAngles[d];
+            for (int i = firstReadings[d]; i != -1; i = nextReadings[i])
+            {
+                int last = Math.min(n - 1, i + half);
+                for (int a = nextUnblocked(Math.max(0, i - half)); a <= last; a = nextUnblocked(a + 1))
+                {
+                    blockingDistances[a] = d;
+                    unblocked[a] = a + 1;
+                    furthest = d;
+                }
+            }
+        }
+        for (int a = nextUnblocked(0); a < n; a = nextUnblocked(a + 1))
+        {
+            blockingDistances[a] = Integer.MAX_VALUE;
+            unblocked[a] = a + 1;
+            furthest = Integer.MAX_VALUE;
+        }
+        return furthest;
+    }
+
+    /**
+     * Find the valleys for a lookahead (centimetres) from the blocking
+     * distances found by the last call to findBlockingDistances: the same as
+     * findValleys would find with the same radius and confidence, for
+     * lookaheads up to 255 (readings further away count as at 255).
+     */
+    public int findValleys(int lookahead)
+    {
+        int n = array.length;
+        valleyCount = 0;
+        int start = -1;
+        for (int i = 0; i <= n; i++)
+        {
+            boolean open = i < n && blockingDistances[i] >= lookahead;
+            if (open && start == -1)
             {
-                // within 20% of distance
-                result.add(i);
+                start = i;
             }
+            else if (!open && start != -1)
+            {
+                addValley(start, i);
+                start = -1;
+            }
+        }
+        return valleyCount;
+    }
+
+    private void addValley(int start, int end)
+    {
+        valleyCentres[valleyCount] = minimumAngle + (start + end - 1) / 2;
+        valleyWidths[valleyCount] = end - start;
+        valleyCount++;
+    }
+
+    private int nextUnblocked(int i)
+    {
+        while (unblocked[i] != i)
+        {
+            unblocked[i] = unblocked[unblocked[i]];
+            i = unblocked[i];
+        }
+        return i;
+    }
+
+    /**
+     * Half the angle blocked by a reading at each whole centimetre of distance.
+     */
+    private void setBlockedAngles(float radius)
+    {
+        if (radius == blockedRadius) return;
+        for (int d = 0; d < blockedAngles.length; d++)
+        {
+            double half = d <= radius ? 90 : MathHelper.radiansToDegrees(Math.asin(radius / d));
+            blockedAngles[d] = (int)Math.ceil(half);
         }
-        return result;
+        blockedRadius = radius;
     }
 
-    public int middleWithSimilarDistance(float distance)
+    /**
+     * How far (centimetres) a robot of the given radius could drive along the
+     * angle before coming closer than its radius to an obstacle reading with
+     * at least the given confidence, or infinity if none is in the way.
+     */
+    public float clearDistance(int angle, float radius, float minimumConfidence)
     {
-        List<Integer> angles = anglesWithSimilarDistance(distance);
-        int n = angles.size();
-        return n > 0 ? angles.get(n / 2) : 0;
+        float clear = Float.POSITIVE_INFINITY;
+        int from = Math.max(minimumAngle, angle - 90);
+        int to = Math.min(maximumAngle, angle + 90);
+        for (int a = from; a <= to; a++)
+        {
+            float distance = array[a - minimumAngle];
+            if (Float.isNaN(distance)) continue;
+            double across = distance * Math.abs(MathHelper.sinDegrees(a - angle));
+            if (across >= radius) continue;
+            float along = (float)(distance * MathHelper.cosDegrees(a - angle) - Math.sqrt(radius * radius - across * across));
+            if (along < clear && confidence(a) >= minimumConfidence) clear = Math.max(0, along);
+        }
+        return clear;
     }
 
     public ConsoleGrid consoleGrid()
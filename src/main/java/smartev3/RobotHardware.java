@@ -0,0 +1,55 @@
+package smartev3;
+
+import lejos.robotics.SampleProvider;
+
+/**
+ * The devices SmartRobot drives, so that it can run on the EV3 itself
+ * (Ev3Hardware) or in a simulated room (SimulatedRobot). Each method makes
+ * the device on the given port, as the EV3 classes' constructors do, and
+ * the devices offer just the calls SmartRobot makes on them.
+ * The hardware is also the robot's clock.
+ */
+public interface RobotHardware extends Clock
+{
+    interface Motor
+    {
+        void setSpeed(int degreesPerSecond);
+        void forward();
+        void rotateTo(int position, boolean immediateReturn);
+        void stop();
+        void brake();
+        void coast();
+        boolean isMoving();
+        float getPosition(); // degrees
+    }
+
+    interface Gyroscope
+    {
+        SampleProvider getRateMode();
+        SampleProvider getAngleMode(); // degrees, from zero when switched to
+    }
+
+    interface Sonar
+    {
+        SampleProvider getDistanceMode(); // centimetres, 255 for no echo
+    }
+
+    interface TouchSensor
+    {
+        boolean isPressed();
+    }
+
+    /**
+     * True if time is virtual: nothing runs on threads of its own, and the
+     * robot has no speaker.
+     */
+    boolean isSimulated();
+
+    Motor headMotor();
+    Motor leftMotor();
+    Motor rightMotor();
+    Gyroscope gyroSensor();
+    Sonar sonarSensor();
+    TouchSensor leftTouchSensor();
+    TouchSensor rightTouchSensor();
+}
@@ -0,0 +1,142 @@
+package smartev3;
+
+/**
+ * The latest samples from one device, each a time (System.nanoTime) and a
+ * value, in primitive arrays used as a ring. Samples are numbered from 0 in
+ * the order they were added; the ring holds the last capacity of them.
+ * One thread adds samples, and any thread may read. The arrays are written
+ * before the count is published, so a reader sees a sample once it is
+ * counted. A sample only changes when the writer comes round to its slot
+ * again, so readers only use samples at least SAFETY_MARGIN short of the
+ * full capacity (see oldest): to see a torn sample, a reader would have to
+ * stall while that many more were added.
+ * Nothing is allocated once the ring is made.
+ */
+public class SampleRing
+{
+    public static final int SAFETY_MARGIN = 16;
+
+    private final long[] times;
+    private final float[] values;
+    private final int mask;
+    private volatile long count;
+
+    /**
+     * Make a ring holding at least the given number of samples (rounded up
+     * to a power of two).
+     */
+    public SampleRing(int capacity)
+    {
+        int size = Integer.highestOneBit(Math.max(2 * SAFETY_MARGIN, capacity) - 1) << 1;
+        times = new long[size];
+        values = new float[size];
+        mask = size - 1;
+    }
+
+    public int capacity()
+    {
+        return mask + 1;
+    }
+
+    /**
+     * Add a sample; times must not go backwards.
+     */
+    public void add(long time, float value)
+    {
+        long n = count;
+        int slot = (int)n & mask;
+        times[slot] = time;
+        values[slot] = value;
+        count = n + 1;
+    }
+
+    /**
+     * Number of samples added so far (one more than the newest's number).
+     */
+    public long count()
+    {
+        return count;
+    }
+
+    /**
+     * Number of the oldest sample safe to read.
+     */
+    public long oldest()
+    {
+        return Math.max(0, count - capacity() + SAFETY_MARGIN);
+    }
+
+    public long time(long n)
+    {
+        return times[(int)n & mask];
+    }
+
+    public float value(long n)
+    {
+        return values[(int)n & mask];
+    }
+
+    /**
+     * Number of the first sample taken at or after the given time, or
+     * count() if there is none. Samples too old to read are skipped.
+     */
+    public long firstAtOrAfter(long time)
+    {
+        long low = oldest(), high = count;
+        while (low < high)
+        {
+            long middle = (low + high) >>> 1;
+            if (times[(int)middle & mask] < time)
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * The value at the given time, interpolated between the samples either
+     * side of it. After the newest sample, that sample's value; before the
+     * oldest one safe to read (or with no samples), NaN.
+     */
+    public float valueAt(long time)
+    {
+        long end = count;
+        long n = firstAtOrAfter(time);
+        if (n == end)
+        {
+            return n > oldest() ? values[(int)(n - 1) & mask] : Float.NaN;
+        }
+        long after = times[(int)n & mask];
+        float afterValue = values[(int)n & mask];
+        if (after == time) return afterValue;
+        if (n == oldest()) return Float.NaN;
+        long before = times[(int)(n - 1) & mask];
+        float beforeValue = values[(int)(n - 1) & mask];
+        return beforeValue + (afterValue - beforeValue) * (float)(time - before) / (after - before);
+    }
+
+    /**
+     * Copy the samples taken from one time up to (not including) another
+     * into the given arrays, as many as they hold; returns how many.
+     */
+    public int window(long from, long to, long[] intoTimes, float[] intoValues)
+    {
+        int copied = 0;
+        long end = count;
+        for (long n = firstAtOrAfter(from); n < end && copied < intoTimes.length; n++)
+        {
+            int slot = (int)n & mask;
+            long time = times[slot];
+            if (time >= to) break;
+            intoTimes[copied] = time;
+            intoValues[copied] = values[slot];
+            copied++;
+        }
+        return copied;
+    }
+}
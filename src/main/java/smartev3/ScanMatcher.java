@@ -0,0 +1,318 @@
+package smartev3;
+
+import java.util.*;
+
+/**
+ * Corrects the robot's position and heading on a DiscoveryMap by finding the
+ * pose, within a small window around the dead-reckoned one, at which a new
+ * scan best lines up with the obstacles already on the map.
+ * The map's distance field is turned into a likelihood grid, finer than the
+ * map's cells, giving each point a score that falls off with the distance to
+ * the nearest obstacle. A second grid holds the highest score over each
+ * block of BLOCK by BLOCK fine cells, so scoring the scan against it gives
+ * an upper bound for a whole block of shifts at once. Blocks are searched
+ * best bound first, and the search stops when no block can beat the best
+ * pose found so far.
+ * See Olson, "Real-time correlative scan matching" (ICRA 2009).
+ */
+public class ScanMatcher
+{
+    private static final int FINE_CELLS = 4; // likelihood grid cells along each side of a map cell
+    private static final int BLOCK = 4; // fine cells along each side of a coarse search block
+    private static final int MINIMUM_POINTS = 20;
+    private static final byte[] LIKELIHOOD; // by squared distance in fine cells
+
+    static
+    {
+        // Gaussian with a standard deviation of one map cell, cut off at three.
+        int sigma = FINE_CELLS;
+        LIKELIHOOD = new byte[9 * sigma * sigma + 1];
+        for (int d = 0; d < LIKELIHOOD.length; d++)
+        {
+            LIKELIHOOD[d] = (byte)Math.round(255 * Math.exp(-d / (2.0 * sigma * sigma)));
+        }
+    }
+
+    private final DiscoveryMap map;
+
+    /**
+     * How far the pose may be out, each way (centimetres and degrees).
+     */
+    public float searchDistance = 30;
+    public int searchAngle = 5;
+
+    /**
+     * Lowest mean likelihood (0 to 1) of the scan's points for a match to be taken.
+     */
+    public float minimumScore = 0.3f;
+
+    // Result of the last match.
+    public double shiftX, shiftY; // centimetres
+    public int turn; // degrees
+    public float score; // mean likelihood, 0 to 1
+    public int posesScored;
+
+    // Scan points, then their fine grid cells (within the window) for each turn.
+    private int[] angles = new int[0];
+    private float[] distances = new float[0];
+    private int pointCount;
+    private int[][] pointCells = new int[0][];
+
+    // Likelihood and coarse bound grids over the window, row by row.
+    private byte[] fine = new byte[0];
+    private byte[] coarse = new byte[0];
+    private int windowSize; // fine cells along each side
+    private int windowRow, windowColumn; // fine row and column of the top left cell
+
+    private long[] candidates = new long[0];
+
+    public ScanMatcher(DiscoveryMap map)
+    {
+        this.map = map;
+    }
+
+    /**
+     * Find the pose at which the scan (taken from robotLocation, with angle 0
+     * at compass bearing relativeTo) best fits the map. If it fits well
+     * enough, and better than the pose as it is, move robotLocation there, set
+     * turn to the correction to add to relativeTo, and return true.
+     */
+    public boolean match(ProximityMap scan, int relativeTo)
+    {
+        shiftX = shiftY = 0;
+        turn = 0;
+        score = 0;
+        posesScored = 0;
+        float range = collectPoints(scan);
+        if (pointCount < MINIMUM_POINTS) return false;
+        int cellSize = map.getCellSize();
+        int shifts = Math.max(1, Math.round(searchDistance * FINE_CELLS / cellSize));
+        int turns = 2 * searchAngle + 1;
+        double robotColumn = map.gridColumn(map.robotLocation.x) * FINE_CELLS;
+        double robotRow = map.gridRow(map.robotLocation.y) * FINE_CELLS;
+        int reach = (int)Math.ceil(range * FINE_CELLS / cellSize) + shifts + BLOCK + 1;
+        windowSize = 2 * reach + 1;
+        windowColumn = (int)Math.floor(robotColumn) - reach;
+        windowRow = (int)Math.floor(robotRow) - reach;
+        buildLikelihood();
+        buildBounds();
+        projectPoints(robotColumn, robotRow, relativeTo, turns);
+
+        int best = score(searchAngle, 0, 0);
+        int unmoved = best;
+        int bestTurn = 0, bestRow = 0, bestColumn = 0;
+
+        // Bound every block of shifts, then refine the best bounds first.
+        int blocks = (2 * shifts + BLOCK) / BLOCK;
+        int count = 0;
+        if (candidates.length < turns * blocks * blocks)
+        {
+            candidates = new long[turns * blocks * blocks];
+        }
+        for (int t = 0; t < turns; t++)
+        {
+            for (int i = 0; i < blocks; i++)
+            {
+                for (int j = 0; j < blocks; j++)
+                {
+                    int bound = bound(t, -shifts + i * BLOCK, -shifts + j * BLOCK);
+                    candidates[count++] = ((long)bound << 32) | (t * blocks + i) * blocks + j;
+                }
+            }
+        }
+        Arrays.sort(candidates, 0, count);
+        for (int k = count - 1; k >= 0; k--)
+        {
+            int bound = (int)(candidates[k] >>> 32);
+            if (bound <= best) break;
+            int n = (int)candidates[k];
+            int t = n / (blocks * blocks);
+            int row0 = -shifts + (n / blocks) % blocks * BLOCK;
+            int column0 = -shifts + n % blocks * BLOCK;
+            for (int row = row0; row < row0 + BLOCK && row <= shifts; row++)
+            {
+                for (int column = column0; column < column0 + BLOCK && column <= shifts; column++)
+                {
+                    int s = score(t, row, column);
+                    if (s > best)
+                    {
+                        best = s;
+                        bestTurn = t - searchAngle;
+                        bestRow = row;
+                        bestColumn = column;
+                    }
+                }
+            }
+        }
+        score = best / (255f * pointCount);
+        if (best == unmoved || score < minimumScore) return false;
+        shiftX = bestColumn * (double)cellSize / FINE_CELLS;
+        shiftY = -bestRow * (double)cellSize / FINE_CELLS;
+        turn = bestTurn;
+        map.robotLocation = new Point(map.robotLocation.x + shiftX, map.robotLocation.y + shiftY);
+        map.locationVariance = 0;
+        return true;
+    }
+
+    /**
+     * Copy the scan's readings into the point arrays; returns the longest.
+     */
+    private float collectPoints(ProximityMap scan)
+    {
+        int size = 1 + scan.maximumAngle - scan.minimumAngle;
+        if (angles.length < size)
+        {
+            angles = new int[size];
+            distances = new float[size];
+        }
+        pointCount = 0;
+        float range = 0;
+        for (int angle = scan.minimumAngle; angle <= scan.maximumAngle; angle++)
+        {
+            float distance = scan.getDistanceAtAngle(angle);
+            if (Float.isNaN(distance) || scan.confidence(angle) < map.minimumConfidence) continue;
+            angles[pointCount] = angle;
+            distances[pointCount] = distance;
+            pointCount++;
+            range = Math.max(range, distance);
+        }
+        return range;
+    }
+
+    /**
+     * Fill the likelihood grid from the map's distance field. Each fine cell
+     * scores by its squared distance to the obstacle cell nearest to the map
+     * cell it is in. A reading may have put the obstacle anywhere in that
+     * cell, so the distance is to its edge rather than its midpoint.
+     */
+    private void buildLikelihood()
+    {
+        int size = windowSize;
+        if (fine.length < size * size)
+        {
+            fine = new byte[size * size];
+            coarse = new byte[size * size];
+        }
+        Arrays.fill(fine, 0, size * size, (byte)0);
+        int firstRow = Math.floorDiv(windowRow, FINE_CELLS);
+        int lastRow = Math.floorDiv(windowRow + size - 1, FINE_CELLS);
+        int firstColumn = Math.floorDiv(windowColumn, FINE_CELLS);
+        int lastColumn = Math.floorDiv(windowColumn + size - 1, FINE_CELLS);
+        for (int row = firstRow; row <= lastRow; row++)
+        {
+            for (int column = firstColumn; column <= lastColumn; column++)
+            {
+                int index = map.indexOfCell(row, column);
+                if (index == -1) continue;
+                int obstacle = map.nearestObstacle(index);
+                if (obstacle == -1) continue;
+                int obstacleTop = map.rowOf(obstacle) * FINE_CELLS;
+                int obstacleLeft = map.columnOf(obstacle) * FINE_CELLS;
+                int top = Math.max(row * FINE_CELLS, windowRow);
+                int bottom = Math.min(row * FINE_CELLS + FINE_CELLS, windowRow + size);
+                int left = Math.max(column * FINE_CELLS, windowColumn);
+                int right = Math.min(column * FINE_CELLS + FINE_CELLS, windowColumn + size);
+                for (int r = top; r < bottom; r++)
+                {
+                    int dr = gap(r, obstacleTop);
+                    int base = (r - windowRow) * size - windowColumn;
+                    for (int c = left; c < right; c++)
+                    {
+                        int dc = gap(c, obstacleLeft);
+                        int d = dr * dr + dc * dc;
+                        if (d < LIKELIHOOD.length) fine[base + c] = LIKELIHOOD[d];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Fine cells between a fine row (or column) and a map cell starting at another.
+     */
+    private static int gap(int fine, int start)
+    {
+        if (fine < start) return start - fine;
+        if (fine >= start + FINE_CELLS) return fine - (start + FINE_CELLS - 1);
+        return 0;
+    }
+
+    /**
+     * Fill the bound grid: each cell holds the highest likelihood in the
+     * block of fine cells with it at the top left.
+     */
+    private void buildBounds()
+    {
+        int size = windowSize;
+        // Along rows into the bound grid, then down columns in place.
+        for (int r = 0; r < size; r++)
+        {
+            int base = r * size;
+            for (int c = 0; c < size; c++)
+            {
+                int highest = 0;
+                int end = Math.min(c + BLOCK, size);
+                for (int k = c; k < end; k++) highest = Math.max(highest, fine[base + k] & 0xFF);
+                coarse[base + c] = (byte)highest;
+            }
+        }
+        for (int c = 0; c < size; c++)
+        {
+            for (int r = 0; r < size; r++)
+            {
+                int highest = 0;
+                int end = Math.min(r + BLOCK, size);
+                for (int k = r; k < end; k++) highest = Math.max(highest, coarse[k * size + c] & 0xFF);
+                coarse[r * size + c] = (byte)highest;
+            }
+        }
+    }
+
+    /**
+     * Work out the fine cell (within the window) of each point for each turn.
+     * A point outside the window for any shift is left out (-1).
+     */
+    private void projectPoints(double robotColumn, double robotRow, int relativeTo, int turns)
+    {
+        if (pointCells.length < turns || pointCells[0].length < pointCount)
+        {
+            pointCells = new int[turns][Math.max(pointCount, angles.length)];
+        }
+        int size = windowSize;
+        double scale = FINE_CELLS / (double)map.getCellSize();
+        for (int t = 0; t < turns; t++)
+        {
+            int[] cells = pointCells[t];
+            int bearing = relativeTo + t - searchAngle;
+            for (int i = 0; i < pointCount; i++)
+            {
+                double distance = distances[i] * scale;
+                int c = (int)Math.floor(robotColumn + distance * MathHelper.sinDegrees(angles[i] + bearing)) - windowColumn;
+                int r = (int)Math.floor(robotRow - distance * MathHelper.cosDegrees(angles[i] + bearing)) - windowRow;
+                cells[i] = r >= 0 && r < size && c >= 0 && c < size ? r * size + c : -1;
+            }
+        }
+    }
+
+    private int score(int t, int row, int column)
+    {
+        posesScored++;
+        return sum(fine, pointCells[t], row * windowSize + column);
+    }
+
+    private int bound(int t, int row, int column)
+    {
+        return sum(coarse, pointCells[t], row * windowSize + column);
+    }
+
+    private int sum(byte[] grid, int[] cells, int shift)
+    {
+        int total = 0;
+        for (int i = 0; i < pointCount; i++)
+        {
+            int cell = cells[i];
+            if (cell != -1) total += grid[cell + shift] & 0xFF;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,438 @@
+package smartev3;
+
+import java.util.concurrent.locks.*;
+
+/**
+ * Polls each sensor at its own rate on one thread, and publishes the
+ * latest value of each with the time it was read (nanoseconds, by its
+ * Clock) and a count of samples, so control loops can read them without
+ * taking a lock or waiting for device I/O. Each device's snapshot is a
+ * seqlock: its sequence is odd while the sampler writes it, and a reader
+ * tries again if the sequence was odd or changed while it read. A loop
+ * that wants each new sample once (the sonar distances going into a
+ * ProximityMap, say) keeps the count of the last one it used and waits for
+ * the next (awaitSample).
+ * Each device also keeps its recent samples in a SampleRing, so a value
+ * can be had for any recent time: the head angle when a sonar sample was
+ * taken, say, rather than when the angle was next read.
+ * Times come from a Clock. Against a simulator's virtual clock the sampler
+ * is not started: instead every read first polls whichever devices are
+ * due, on the reading thread, so a simulated run does the same every time.
+ * With a SensorTrace, the sampler records what it answers, or answers from
+ * a recording.
+ * A Listener hears of every sample as it is taken, on the sampler's thread,
+ * before the sample is published: so once a reader sees a sample counted,
+ * whatever the listener made of it is there too.
+ */
+public class SensorSampler extends Thread
+{
+    public interface Device
+    {
+        float read();
+    }
+
+    public interface Listener
+    {
+        void sampled(int device, long time, float value);
+    }
+
+    /**
+     * A consistent copy of a device's latest sample.
+     */
+    public static class Sample
+    {
+        public float value;
+        public long time; // nanoseconds
+        public long count;
+    }
+
+    private static final int MAXIMUM_DEVICES = 8;
+    private static final long RATE_WINDOW = 1000000000L; // nanoseconds
+    private static final int HISTORY = 1024; // samples kept for each device
+
+    private String[] _names = new String[MAXIMUM_DEVICES];
+    private Device[] _devices = new Device[MAXIMUM_DEVICES];
+    private long[] _periods = new long[MAXIMUM_DEVICES]; // nanoseconds
+    private long[] _due = new long[MAXIMUM_DEVICES];
+    private Snapshot[] _snapshots = new Snapshot[MAXIMUM_DEVICES];
+    private SampleRing[] _histories = new SampleRing[MAXIMUM_DEVICES];
+    private int _count = 0;
+    private Clock _clock = Clock.SYSTEM;
+    private volatile boolean _threaded = false;
+    private boolean _polling = false; // sampling on the caller's thread
+    private SensorTrace _trace;
+    private Listener _listener;
+
+    private static class Snapshot
+    {
+        // All volatile, so a reader sees them in the order they were written.
+        volatile long sequence;
+        volatile float value = Float.NaN;
+        volatile long time;
+
+        volatile float rate; // samples per second over the last whole window
+        volatile int errors;
+        int windowSamples; // sampler thread only
+        long windowStart;
+    }
+
+    public SensorSampler()
+    {
+        setDaemon(true);
+        setName("sensor sampler");
+    }
+
+    /**
+     * Add a device to poll every so many microseconds (about as often as it
+     * has a new value), before the sampler is started. Returns its number.
+     */
+    public int addDevice(String name, int periodMicroseconds, Device device)
+    {
+        if (getState() != State.NEW)
+        {
+            throw new RuntimeException("SensorSampler: please add " + name + " before starting the sampler!");
+        }
+        if (_count == MAXIMUM_DEVICES)
+        {
+            throw new RuntimeException("SensorSampler: too many devices to add " + name + "!");
+        }
+        int i = _count++;
+        _names[i] = name;
+        _devices[i] = device;
+        _periods[i] = periodMicroseconds * 1000L;
+        _snapshots[i] = new Snapshot();
+        _histories[i] = new SampleRing(HISTORY);
+        return i;
+    }
+
+    /**
+     * Take times from the given clock (before any devices are added).
+     */
+    public void setClock(Clock clock)
+    {
+        if (_count > 0)
+        {
+            throw new RuntimeException("SensorSampler: please set the clock before adding devices!");
+        }
+        _clock = clock;
+    }
+
+    /**
+     * Tell the given listener of every sample (before the sampler is started).
+     */
+    public void setListener(Listener listener)
+    {
+        _listener = listener;
+    }
+
+    public void start()
+    {
+        _threaded = true;
+        super.start();
+    }
+
+    /**
+     * When the sampler is not running on its own thread, sample every device
+     * that is due now.
+     */
+    public void poll()
+    {
+        if (_threaded) return;
+        _polling = true;
+        try
+        {
+            long now = _clock.nanoTime();
+            for (int i = 0; i < _count; i++)
+            {
+                if (_snapshots[i].sequence == 0)
+                {
+                    _due[i] = now;
+                    _snapshots[i].windowStart = now;
+                }
+                if (now - _due[i] >= 0)
+                {
+                    sample(i);
+                    _due[i] = Math.max(_due[i] + _periods[i], now);
+                }
+            }
+        }
+        finally
+        {
+            _polling = false;
+        }
+    }
+
+    public int deviceCount()
+    {
+        return _count;
+    }
+
+    public String deviceName(int device)
+    {
+        return _names[device];
+    }
+
+    /**
+     * Recent samples from a device.
+     */
+    public SampleRing history(int device)
+    {
+        return _histories[device];
+    }
+
+    /**
+     * The latest value read from a device (NaN if none yet).
+     */
+    public float value(int device)
+    {
+        if (replaying())
+        {
+            _trace.expect(SensorTrace.VALUE, device);
+            return _trace.readFloat(0);
+        }
+        poll();
+        Snapshot s = _snapshots[device];
+        while (true)
+        {
+            long before = s.sequence;
+            float value = s.value;
+            if ((before & 1) == 0 && s.sequence == before)
+            {
+                if (_trace != null) _trace.record(SensorTrace.VALUE, device, value);
+                return value;
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Copy the latest sample from a device.
+     */
+    public void read(int device, Sample into)
+    {
+        if (replaying())
+        {
+            _trace.expect(SensorTrace.READ, device);
+            into.value = _trace.readFloat(0);
+            into.time = _trace.readLong(1);
+            into.count = _trace.readLong(2);
+            return;
+        }
+        poll();
+        Snapshot s = _snapshots[device];
+        while (true)
+        {
+            long before = s.sequence;
+            float value = s.value;
+            long time = s.time;
+            if ((before & 1) == 0 && s.sequence == before)
+            {
+                into.value = value;
+                into.time = time;
+                into.count = before >> 1;
+                if (_trace != null) _trace.record(SensorTrace.READ, device, value, time, into.count);
+                return;
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Number of samples published for a device so far.
+     */
+    public long sampleCount(int device)
+    {
+        if (replaying())
+        {
+            _trace.expect(SensorTrace.COUNT, device);
+            return _trace.readLong(0);
+        }
+        long count = count(device);
+        if (_trace != null) _trace.record(SensorTrace.COUNT, device, count);
+        return count;
+    }
+
+    private long count(int device)
+    {
+        poll();
+        return _snapshots[device].sequence >> 1;
+    }
+
+    /**
+     * Wait until a device has more than the given number of samples, and
+     * return how many it has. Gives up after ten of its periods, or at once
+     * if the sampler thread has stopped, so a broken device cannot hang a
+     * loop.
+     */
+    public long awaitSample(int device, long count)
+    {
+        if (replaying())
+        {
+            _trace.expect(SensorTrace.AWAIT, device, count);
+            return _trace.readLong(1);
+        }
+        long reached = await(device, count);
+        if (_trace != null) _trace.record(SensorTrace.AWAIT, device, count, reached);
+        return reached;
+    }
+
+    private long await(int device, long count)
+    {
+        long started = _clock.nanoTime();
+        long limit = 10 * _periods[device];
+        long park = Math.max(100000, _periods[device] / 4);
+        while (true)
+        {
+            long now = count(device);
+            if (now > count || _clock.nanoTime() - started > limit) return now;
+            if (_threaded)
+            {
+                if (!isAlive()) return now;
+                LockSupport.parkNanos(park);
+            }
+            else
+            {
+                _clock.sleep(Math.max(1, _due[device] - _clock.nanoTime()));
+            }
+        }
+    }
+
+    /**
+     * A device's value at a recent time, interpolated between its samples
+     * either side (waiting for the one after, if need be); NaN if there is
+     * no sample from then.
+     */
+    public float valueAt(int device, long time)
+    {
+        if (replaying())
+        {
+            _trace.expect(SensorTrace.VALUE_AT, device, time);
+            return _trace.readFloat(1);
+        }
+        SampleRing history = _histories[device];
+        long count = history.count();
+        if (count > 0 && history.time(count - 1) < time)
+        {
+            await(device, count);
+        }
+        float value = history.valueAt(time);
+        if (_trace != null) _trace.record(SensorTrace.VALUE_AT, device, time, value);
+        return value;
+    }
+
+    /**
+     * Record what is read from the sampler in a trace, or replay it from
+     * one: then the sampler answers from the trace and reads no devices.
+     */
+    public void setTrace(SensorTrace trace)
+    {
+        _trace = trace;
+        trace.sampler = this;
+    }
+
+    private boolean replaying()
+    {
+        return _trace != null && !_trace.recording;
+    }
+
+    /**
+     * True on the sampler's own thread, or while it polls devices on the
+     * caller's: device reads then are the sampler's, not the caller's.
+     */
+    public boolean isSampling()
+    {
+        return _polling || Thread.currentThread() == this;
+    }
+
+    /**
+     * Samples per second the sampler achieved for a device over the last
+     * second, and reads that threw an exception.
+     */
+    public float sampleRate(int device)
+    {
+        return _snapshots[device].rate;
+    }
+
+    public int errorCount(int device)
+    {
+        return _snapshots[device].errors;
+    }
+
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < _count; i++)
+        {
+            if (i > 0) builder.append(", ");
+            builder.append(_names[i]).append(": ").append(Math.round(_snapshots[i].rate)).append("/s");
+            int errors = _snapshots[i].errors;
+            if (errors > 0) builder.append(" (").append(errors).append(" errors)");
+        }
+        return builder.toString();
+    }
+
+    public void run()
+    {
+        long start = _clock.nanoTime();
+        for (int i = 0; i < _count; i++)
+        {
+            _due[i] = start;
+            _snapshots[i].windowStart = start;
+        }
+        while (!isInterrupted())
+        {
+            long now = _clock.nanoTime();
+            long next = Long.MAX_VALUE;
+            for (int i = 0; i < _count; i++)
+            {
+                if (now - _due[i] >= 0)
+                {
+                    sample(i);
+                    // Falling behind, sample again as soon as possible rather than catching up.
+                    _due[i] = Math.max(_due[i] + _periods[i], now);
+                }
+                next = Math.min(next, _due[i]);
+            }
+            long wait = next - _clock.nanoTime();
+            if (wait > 0)
+            {
+                LockSupport.parkNanos(wait);
+            }
+        }
+    }
+
+    private void sample(int device)
+    {
+        Snapshot s = _snapshots[device];
+        long before = _clock.nanoTime();
+        float value;
+        try
+        {
+            value = _devices[device].read();
+        }
+        catch (RuntimeException error)
+        {
+            s.errors++;
+            return;
+        }
+        long after = _clock.nanoTime();
+        long time = before + (after - before) / 2;
+        _histories[device].add(time, value);
+        if (_listener != null)
+        {
+            _listener.sampled(device, time, value);
+        }
+        long sequence = s.sequence;
+        s.sequence = sequence + 1;
+        s.value = value;
+        s.time = time;
+        s.sequence = sequence + 2;
+        s.windowSamples++;
+        if (after - s.windowStart >= RATE_WINDOW)
+        {
+            s.rate = s.windowSamples * 1e9f / (after - s.windowStart);
+            s.windowSamples = 0;
+            s.windowStart = after;
+        }
+    }
+}
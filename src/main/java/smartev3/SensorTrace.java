@@ -0,0 +1,364 @@
+package smartev3;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Log of everything a mission got from the robot's hardware, so the mission
+ * can be run again off the robot (TraceReplay) and do exactly what it did.
+ * Recording (TraceRecorder) writes an event for each clock read, sleep,
+ * motor command and device read the mission makes, with its arguments and
+ * result. What the mission saw of the SensorSampler (values, sample counts,
+ * interpolated angles) is logged instead of the sampler's own device reads,
+ * because when the sampler has its own thread those are not in step with
+ * the mission.
+ * Each event is a byte, the event kind times eight plus the device number,
+ * then its fields. A number is written as a varint of its difference from
+ * the last one in the same field of the same event, zigzag encoded, so
+ * small changes take a byte or two. A float that is a whole number is
+ * written the same way with a 0 bit below it; any other float is written as
+ * its bits with a 1 bit below. Doubles (a pose estimate's) are written as
+ * their eight bytes. The file is written through a memory map a
+ * few megabytes at a time, so an event costs no system call, and a trace
+ * cut short by a crash ends at the first zero byte.
+ */
+public class SensorTrace
+{
+    // Event kinds.
+    public static final int TIME = 1; // clock read: nanoseconds
+    public static final int SLEEP = 2; // nanoseconds
+    public static final int SPEED = 3; // motor: degrees per second
+    public static final int FORWARD = 4; // motor
+    public static final int ROTATE_TO = 5; // motor: position, immediate return
+    public static final int STOP = 6; // motor
+    public static final int BRAKE = 7; // motor
+    public static final int COAST = 8; // motor
+    public static final int MOVING = 9; // motor: 1 if moving
+    public static final int POSITION = 10; // motor: degrees
+    public static final int RATE_MODE = 11; // gyroscope switched to rate mode
+    public static final int ANGLE_MODE = 12; // gyroscope switched to angle mode
+    public static final int DISTANCE_MODE = 13; // sonar switched to distance mode
+    public static final int FETCH = 14; // sample provider (0 gyro rate, 1 gyro angle, 2 sonar): value
+    public static final int PRESSED = 15; // touch sensor (0 left, 1 right): 1 if pressed
+    public static final int VALUE = 16; // sampler device: latest value
+    public static final int READ = 17; // sampler device: value, time, count
+    public static final int COUNT = 18; // sampler device: sample count
+    public static final int AWAIT = 19; // sampler device: count waited after, count reached
+    public static final int VALUE_AT = 20; // sampler device: time, value
+    public static final int POSE = 21; // pose estimate: time, then its doubles
+
+    private static final int MAGIC = 0x534d5452; // "SMTR"
+    private static final int VERSION = 2;
+    private static final int REGION = 1 << 22; // bytes mapped at a time when recording
+    private static final int MAXIMUM_EVENT = 128; // bytes
+    private static final int FIELDS = 4; // most fields in an event
+
+    /**
+     * Thrown on replay when the mission asks for more than was recorded.
+     */
+    public static class TraceEnded extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        public TraceEnded(String message)
+        {
+            super(message);
+        }
+    }
+
+    public final boolean recording;
+    public final String mission; // how the recorded mission was run
+    public long events = 0;
+    public boolean ended = false; // replay has run out of events
+
+    SensorSampler sampler; // whose own device reads are not recorded
+
+    private final File file;
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long base = 0; // file offset of the buffer
+    private final long[] last = new long[256 * FIELDS]; // last number in each field of each event
+    private int code; // of the event being replayed
+
+    private SensorTrace(File file, FileChannel channel, boolean recording, String mission)
+    {
+        this.file = file;
+        this.channel = channel;
+        this.recording = recording;
+        this.mission = mission;
+    }
+
+    /**
+     * Start a new trace, recording how the mission is run (the robot's
+     * arguments, say) for the replay to do the same.
+     */
+    public static SensorTrace create(File file, String mission)
+    {
+        try
+        {
+            FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+            channel.truncate(0);
+            SensorTrace trace = new SensorTrace(file, channel, true, mission);
+            trace.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, REGION);
+            byte[] text = mission.getBytes(StandardCharsets.UTF_8);
+            trace.buffer.putInt(MAGIC);
+            trace.buffer.putInt(VERSION);
+            trace.buffer.putShort((short)text.length);
+            trace.buffer.put(text);
+            return trace;
+        }
+        catch (IOException ex)
+        {
+            throw new RuntimeException("Cannot create sensor trace " + file + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Open a trace to replay.
+     */
+    public static SensorTrace open(File file)
+    {
+        try
+        {
+            FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+            {
+                throw new IOException("trace is too big");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 10 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+            {
+                throw new IOException("not a sensor trace");
+            }
+            byte[] text = new byte[buffer.getShort()];
+            buffer.get(text);
+            SensorTrace trace = new SensorTrace(file, channel, false, new String(text, StandardCharsets.UTF_8));
+            trace.buffer = buffer;
+            return trace;
+        }
+        catch (IOException | BufferUnderflowException ex)
+        {
+            throw new RuntimeException("Cannot open sensor trace " + file + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Bytes written or read so far.
+     */
+    public long size()
+    {
+        return base + buffer.position();
+    }
+
+    /**
+     * Finish the trace, cutting the file down to the events written.
+     */
+    public synchronized void close()
+    {
+        try
+        {
+            if (recording)
+            {
+                long length = size();
+                buffer.force();
+                buffer = null;
+                channel.truncate(length);
+            }
+            channel.close();
+        }
+        catch (IOException ex)
+        {
+            throw new RuntimeException("Cannot close sensor trace " + file + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    public synchronized void record(int kind, int unit)
+    {
+        begin(kind, unit);
+    }
+
+    public synchronized void record(int kind, int unit, long a)
+    {
+        begin(kind, unit);
+        putLong(0, a);
+    }
+
+    public synchronized void record(int kind, int unit, float a)
+    {
+        begin(kind, unit);
+        putFloat(0, a);
+    }
+
+    public synchronized void record(int kind, int unit, long a, long b)
+    {
+        begin(kind, unit);
+        putLong(0, a);
+        putLong(1, b);
+    }
+
+    public synchronized void record(int kind, int unit, long a, float b)
+    {
+        begin(kind, unit);
+        putLong(0, a);
+        putFloat(1, b);
+    }
+
+    public synchronized void record(int kind, int unit, float a, long b, long c)
+    {
+        begin(kind, unit);
+        putFloat(0, a);
+        putLong(1, b);
+        putLong(2, c);
+    }
+
+    public synchronized void record(int kind, int unit, long a, double[] b)
+    {
+        begin(kind, unit);
+        putLong(0, a);
+        for (double value : b)
+        {
+            buffer.putLong(Double.doubleToRawLongBits(value));
+        }
+    }
+
+    /**
+     * Take the next event on replay, which must be of the given kind and
+     * device; its fields are then read in the order they were recorded.
+     */
+    public void expect(int kind, int unit)
+    {
+        int expected = kind << 3 | unit;
+        code = buffer.hasRemaining() ? buffer.get() & 0xff : 0;
+        if (code == 0)
+        {
+            ended = true;
+            throw new TraceEnded("Sensor trace ended after " + events + " events.");
+        }
+        if (code != expected)
+        {
+            throw new RuntimeException("Replay has left the sensor trace at event " + events
+                + ": expected " + describe(expected) + " but found " + describe(code) + ".");
+        }
+        events++;
+    }
+
+    /**
+     * Take the next event, which must also have the given first field: a
+     * command with the argument it was given when recorded.
+     */
+    public void expect(int kind, int unit, long a)
+    {
+        expect(kind, unit);
+        long recorded = readLong(0);
+        if (recorded != a)
+        {
+            throw new RuntimeException("Replay has left the sensor trace at event " + events
+                + ": " + describe(code) + " with " + a + " but recorded with " + recorded + ".");
+        }
+    }
+
+    public long readLong(int field)
+    {
+        int slot = code * FIELDS + field;
+        long value = last[slot] + unzigzag(getVarint());
+        last[slot] = value;
+        return value;
+    }
+
+    public float readFloat(int field)
+    {
+        long bits = getVarint();
+        if ((bits & 1) != 0)
+        {
+            return Float.intBitsToFloat((int)(bits >>> 1));
+        }
+        int slot = code * FIELDS + field;
+        long value = last[slot] + unzigzag(bits >>> 1);
+        last[slot] = value;
+        return value;
+    }
+
+    public double readDouble()
+    {
+        return Double.longBitsToDouble(buffer.getLong());
+    }
+
+    private static String describe(int code)
+    {
+        return "event " + (code >> 3) + " on device " + (code & 7);
+    }
+
+    private void begin(int kind, int unit)
+    {
+        if (buffer.remaining() < MAXIMUM_EVENT)
+        {
+            try
+            {
+                base += buffer.position();
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, base, REGION);
+            }
+            catch (IOException ex)
+            {
+                throw new RuntimeException("Cannot extend sensor trace " + file + ": " + ex.getMessage(), ex);
+            }
+        }
+        code = kind << 3 | unit;
+        buffer.put((byte)code);
+        events++;
+    }
+
+    private void putLong(int field, long value)
+    {
+        int slot = code * FIELDS + field;
+        putVarint(zigzag(value - last[slot]));
+        last[slot] = value;
+    }
+
+    private void putFloat(int field, float value)
+    {
+        int whole = (int)value;
+        if (whole == value && Float.floatToRawIntBits(value) != 0x80000000)
+        {
+            int slot = code * FIELDS + field;
+            putVarint(zigzag(whole - last[slot]) << 1);
+            last[slot] = whole;
+        }
+        else
+        {
+            putVarint((Float.floatToRawIntBits(value) & 0xffffffffL) << 1 | 1);
+        }
+    }
+
+    private void putVarint(long value)
+    {
+        while ((value & ~0x7fL) != 0)
+        {
+            buffer.put((byte)(value | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte)value);
+    }
+
+    private long getVarint()
+    {
+        long value = 0;
+        for (int shift = 0;; shift += 7)
+        {
+            byte b = buffer.get();
+            value |= (long)(b & 0x7f) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    private static long zigzag(long value)
+    {
+        return value << 1 ^ value >> 63;
+    }
+
+    private static long unzigzag(long value)
+    {
+        return value >>> 1 ^ -(value & 1);
+    }
+}
@@ -9,6 +9,7 @@ public class SimpleMoves
     private SmartRobot robot;
     private List<Action> route = new ArrayList<Action>();
     private int targetAngle;
+    private MissionCheckpoint checkpoint = new MissionCheckpoint("simple-moves", null);
 
     enum ActionKind
     {
@@ -36,8 +37,33 @@ public class SimpleMoves
         robot.say("I can turn around, to face the other way.");
         robot.say("So the voice commands are: go forward, step forward, step back, turn left, turn right, turn around, and return to base.");
         robot.say("When you are finished, say: stop mission.");
+        int firstPass = 1;
+        boolean resumed = false;
+        if (checkpoint.exists()
+            && robot.askYesNoQuestion("Should I carry on with my last mission, so I can still return to base?"))
+        {
+            if (checkpoint.load())
+            {
+                firstPass = checkpoint.pass + 1;
+                resumed = true;
+                for (int i = 0; i < checkpoint.routeLength(); i++)
+                {
+                    addAction(ActionKind.values()[checkpoint.routeKind(i)], checkpoint.routeNumber(i));
+                }
+            }
+            else
+            {
+                robot.say("Sorry, I could not load my last mission. I will start a new one.");
+            }
+        }
         robot.say("I'll just check out my surroundings.");
         targetAngle = robot.gyroAngle() % 360;
+        if (resumed)
+        {
+            // Assume the robot has not been moved since, so it now faces the
+            // saved heading: keep the heading it was meant to face from there.
+            targetAngle = (targetAngle + checkpoint.targetHeading - checkpoint.heading) % 360;
+        }
         robot.calibrate();
         System.out.println(robot.proximityMap.consoleGrid().toString());
         robot.say("OK, I'm ready for my mission.");
@@ -59,7 +85,7 @@ public class SimpleMoves
             .add("back", "backward", "backwards")
             .add("forward", "ford", "fort", "forwards", "foreword", "for it")
             .add("mission", "motion");
-        for (int pass = 1;; pass++)
+        for (int pass = firstPass;; pass++)
         {
             int choice = robot.askUserToChoose("What should I do "
                 + (pass == 1 ? "first" : "next")
@@ -73,13 +99,27 @@ public class SimpleMoves
                 case 5: turnRight(); break;
                 case 6: turnAround(); break;
                 case 7: returnToBase(); break;
-                case 8: return;
+                case 8: checkpoint.delete(); return;
             }
+            saveCheckpoint(pass);
             robot.lookAround();
             System.out.println(robot.proximityMap.consoleGrid().toString());
         }
     }
 
+    private void saveCheckpoint(int pass)
+    {
+        checkpoint.pass = pass;
+        checkpoint.heading = robot.gyroAngle();
+        checkpoint.targetHeading = targetAngle;
+        checkpoint.clearRoute();
+        for (Action action : route)
+        {
+            checkpoint.addRouteStep(action.kind.ordinal(), action.number);
+        }
+        checkpoint.save();
+    }
+
     private void goForward()
     {
         int metres = robot.askUserForNumber("How many metres?", 1, 9);
@@ -0,0 +1,373 @@
+package smartev3;
+
+import java.util.*;
+
+import lejos.robotics.SampleProvider;
+
+/**
+ * A robot in a FloorPlan, to run missions off the EV3: a differential
+ * drive, a head turning the sonar, a gyroscope and two front bumpers.
+ * Time is virtual. It only moves on when the robot sleeps or uses a
+ * device (each use takes IO_TIME, about as long as reading the EV3's
+ * device files), and the robot's motion is worked out a millisecond at a
+ * time as it does. Missions therefore run much faster than real time, and
+ * the same way every time for the same seed.
+ * Positions are in centimetres and headings are compass bearings, with the
+ * room's y axis to the north. The gyroscope turns the same way as the
+ * bearings, as SmartRobot expects of it.
+ */
+public class SimulatedRobot implements RobotHardware
+{
+    public static final long IO_TIME = 2000000; // nanoseconds per device use
+    private static final long STEP = 1000000; // nanoseconds of motion worked out at once
+    private static final int LARGE_MOTOR_MAXIMUM_SPEED = 1050; // degrees per second
+    private static final int MEDIUM_MOTOR_MAXIMUM_SPEED = 1560;
+    private static final int SONAR_HALF_CONE = 15; // degrees
+    private static final int SONAR_CONE_STEP = 5;
+    private static final double SONAR_MAXIMUM_INCIDENCE = 60; // degrees off square to a surface that still echoes
+    private static final float SONAR_MINIMUM = 4; // centimetres; any closer and there is no echo
+    private static final float NO_ECHO = 255;
+
+    /**
+     * Thrown by any device once the virtual time runs past timeLimit.
+     */
+    public static class SimulationOver extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        public SimulationOver(String message)
+        {
+            super(message);
+        }
+    }
+
+    public final FloorPlan plan;
+
+    // Shape of the robot (centimetres): as SmartRobot's defaults.
+    public double wheelDiameter = 5.6;
+    public double trackWidth = 12; // between the wheels
+    public double bodyRadius = 10; // nothing may come closer to the midpoint
+    public double headAhead = 5; // head's pivot ahead of the midpoint
+    public double eyesAhead = 6; // sonar ahead of the head's pivot
+    public double bumperAhead = 11, bumperAside = 6;
+
+    // Imperfections.
+    public double rightWheelScale = 1; // distance the right wheel covers for each degree, against the left
+    public double sonarNoise = 1; // standard deviation (centimetres)
+
+    // Pose, time and what happened.
+    public double x, y, heading;
+    public long now = 0; // nanoseconds
+    public long timeLimit = Long.MAX_VALUE;
+    public double distanceDriven = 0;
+    public double degreesTurned = 0;
+    public int collisions = 0;
+
+    private final Random random;
+    private final SimulatedMotor head = new SimulatedMotor(MEDIUM_MOTOR_MAXIMUM_SPEED);
+    private final SimulatedMotor left = new SimulatedMotor(LARGE_MOTOR_MAXIMUM_SPEED);
+    private final SimulatedMotor right = new SimulatedMotor(LARGE_MOTOR_MAXIMUM_SPEED);
+    private double gyroZero = 0;
+    private boolean blocked = false;
+
+    public SimulatedRobot(FloorPlan plan, double x, double y, double heading, long seed)
+    {
+        this.plan = plan;
+        this.x = x;
+        this.y = y;
+        this.heading = heading;
+        this.random = new Random(seed);
+    }
+
+    private class SimulatedMotor implements Motor
+    {
+        private final int maximumSpeed;
+        double position; // degrees
+        int speed;
+        boolean running;
+        boolean toTarget;
+        double target;
+
+        SimulatedMotor(int maximumSpeed)
+        {
+            this.maximumSpeed = maximumSpeed;
+        }
+
+        public void setSpeed(int degreesPerSecond)
+        {
+            io();
+            speed = Math.min(Math.abs(degreesPerSecond), maximumSpeed);
+        }
+
+        public void forward()
+        {
+            io();
+            running = true;
+            toTarget = false;
+        }
+
+        public void rotateTo(int position, boolean immediateReturn)
+        {
+            io();
+            target = position;
+            toTarget = true;
+            running = true;
+            while (!immediateReturn && running)
+            {
+                advance(STEP);
+            }
+        }
+
+        public void stop()
+        {
+            io();
+            running = false;
+        }
+
+        public void brake()
+        {
+            stop();
+        }
+
+        public void coast()
+        {
+            stop();
+        }
+
+        public boolean isMoving()
+        {
+            io();
+            return running;
+        }
+
+        public float getPosition()
+        {
+            io();
+            return Math.round(position);
+        }
+
+        /**
+         * Turn for the given time; returns the degrees turned.
+         */
+        double step(double seconds)
+        {
+            if (!running) return 0;
+            double turn = speed * seconds;
+            if (toTarget)
+            {
+                double remaining = target - position;
+                if (Math.abs(remaining) <= turn)
+                {
+                    running = false;
+                    position = target;
+                    return remaining;
+                }
+                turn = Math.copySign(turn, remaining);
+            }
+            position += turn;
+            return turn;
+        }
+    }
+
+    public long nanoTime()
+    {
+        return now;
+    }
+
+    public void sleep(long nanoseconds)
+    {
+        advance(nanoseconds);
+    }
+
+    public boolean isSimulated()
+    {
+        return true;
+    }
+
+    private void io()
+    {
+        advance(IO_TIME);
+    }
+
+    /**
+     * Move virtual time on, working out the robot's motion as it goes.
+     */
+    public void advance(long nanoseconds)
+    {
+        long end = now + nanoseconds;
+        while (now < end)
+        {
+            long step = Math.min(STEP, end - now);
+            double seconds = step / 1e9;
+            head.step(seconds);
+            double leftDistance = left.step(seconds) / 360 * Math.PI * wheelDiameter;
+            double rightDistance = right.step(seconds) / 360 * Math.PI * wheelDiameter * rightWheelScale;
+            double turn = MathHelper.radiansToDegrees((leftDistance - rightDistance) / trackWidth);
+            double forward = (leftDistance + rightDistance) / 2;
+            double bearing = MathHelper.degreesToRadians(heading + turn / 2);
+            double newX = x + forward * Math.sin(bearing);
+            double newY = y + forward * Math.cos(bearing);
+            double clearance = plan.surfaceDistance(newX, newY);
+            if (clearance < bodyRadius && clearance < plan.surfaceDistance(x, y))
+            {
+                // Pushing against something: the wheels slip.
+                if (!blocked) collisions++;
+                blocked = true;
+            }
+            else
+            {
+                blocked = false;
+                x = newX;
+                y = newY;
+                distanceDriven += Math.abs(forward);
+            }
+            heading += turn;
+            degreesTurned += Math.abs(turn);
+            now += step;
+        }
+        if (now > timeLimit)
+        {
+            throw new SimulationOver("Simulation stopped after " + now / 1000000000 + " seconds.");
+        }
+    }
+
+    public Motor headMotor()
+    {
+        return head;
+    }
+
+    public Motor leftMotor()
+    {
+        return left;
+    }
+
+    public Motor rightMotor()
+    {
+        return right;
+    }
+
+    public Gyroscope gyroSensor()
+    {
+        return new Gyroscope()
+        {
+            public SampleProvider getRateMode()
+            {
+                io();
+                return new Provider()
+                {
+                    public void fetchSample(float[] sample, int offset)
+                    {
+                        io();
+                        double leftSpeed = left.running ? left.speed : 0, rightSpeed = right.running ? right.speed : 0;
+                        sample[offset] = (float)Math.round((leftSpeed - rightSpeed) * wheelDiameter / trackWidth);
+                    }
+                };
+            }
+
+            public SampleProvider getAngleMode()
+            {
+                io();
+                gyroZero = heading;
+                return new Provider()
+                {
+                    public void fetchSample(float[] sample, int offset)
+                    {
+                        io();
+                        sample[offset] = (float)Math.floor(heading - gyroZero + 0.5);
+                    }
+                };
+            }
+        };
+    }
+
+    public Sonar sonarSensor()
+    {
+        return new Sonar()
+        {
+            public SampleProvider getDistanceMode()
+            {
+                io();
+                return new Provider()
+                {
+                    public void fetchSample(float[] sample, int offset)
+                    {
+                        io();
+                        sample[offset] = sonarDistance();
+                    }
+                };
+            }
+        };
+    }
+
+    public TouchSensor leftTouchSensor()
+    {
+        return new TouchSensor()
+        {
+            public boolean isPressed()
+            {
+                io();
+                return bumperPressed(-bumperAside);
+            }
+        };
+    }
+
+    public TouchSensor rightTouchSensor()
+    {
+        return new TouchSensor()
+        {
+            public boolean isPressed()
+            {
+                io();
+                return bumperPressed(bumperAside);
+            }
+        };
+    }
+
+    private abstract static class Provider implements SampleProvider
+    {
+        public int sampleSize()
+        {
+            return 1;
+        }
+    }
+
+    /**
+     * Nearest echo across the sonar's cone, from surfaces it meets squarely
+     * enough to send the sound back.
+     */
+    private float sonarDistance()
+    {
+        double bearing = heading + head.position;
+        double radians = MathHelper.degreesToRadians(heading);
+        double eyeX = x + headAhead * Math.sin(radians);
+        double eyeY = y + headAhead * Math.cos(radians);
+        radians = MathHelper.degreesToRadians(bearing);
+        eyeX += eyesAhead * Math.sin(radians);
+        eyeY += eyesAhead * Math.cos(radians);
+        double nearest = Double.POSITIVE_INFINITY;
+        double square = Math.cos(MathHelper.degreesToRadians(SONAR_MAXIMUM_INCIDENCE));
+        for (int angle = -SONAR_HALF_CONE; angle <= SONAR_HALF_CONE; angle += SONAR_CONE_STEP)
+        {
+            radians = MathHelper.degreesToRadians(bearing + angle);
+            double dx = Math.sin(radians), dy = Math.cos(radians);
+            double distance = plan.distance(eyeX, eyeY, dx, dy);
+            double facing = Math.abs(plan.hitAxis == 0 ? dx : dy);
+            if (facing >= square) nearest = Math.min(nearest, distance);
+        }
+        if (Double.isInfinite(nearest)) return NO_ECHO;
+        float distance = (float)(nearest + random.nextGaussian() * sonarNoise);
+        return distance < SONAR_MINIMUM || distance > NO_ECHO ? NO_ECHO : distance;
+    }
+
+    /**
+     * Whether a bumper (so far to the right of the middle of the front) is
+     * touching something.
+     */
+    private boolean bumperPressed(double aside)
+    {
+        double radians = MathHelper.degreesToRadians(heading);
+        double bumperX = x + bumperAhead * Math.sin(radians) + aside * Math.cos(radians);
+        double bumperY = y + bumperAhead * Math.cos(radians) - aside * Math.sin(radians);
+        return plan.surfaceDistance(bumperX, bumperY) < 1;
+    }
+}
@@ -0,0 +1,161 @@
+package smartev3;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Run a mission off the EV3, on a SimulatedRobot in the furnished room, and
+ * report how it went: how far it drove, how often it hit something and
+ * how much faster than real time it ran. With -record, the run's sensor
+ * trace is saved; replay runs a trace again (from the simulator, or from
+ * the robot run with -record), and should end with the same map.
+ *
+ *     java smartev3.Simulation discovery|avoidance [minutes [seed]] [-record file]
+ *     java smartev3.Simulation replay file
+ */
+public class Simulation
+{
+    private static final String SIMULATED = "simulation "; // starts the mission of a simulated run's trace
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length == 2 && args[0].equals("replay"))
+        {
+            replay(new File(args[1]));
+            return;
+        }
+        File traceFile = null;
+        if (args.length >= 2 && args[args.length - 2].equals("-record"))
+        {
+            traceFile = new File(args[args.length - 1]);
+            args = Arrays.copyOf(args, args.length - 2);
+        }
+        String mission = args.length > 0 ? args[0] : "discovery";
+        int minutes = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        SimulatedRobot simulator = new SimulatedRobot(FloorPlan.furnishedRoom(), 0, 0, 0, seed);
+        simulator.timeLimit = minutes * 60 * 1000000000L;
+        SmartRobot robot = new SmartRobot();
+        if (traceFile != null)
+        {
+            robot.trace = SensorTrace.create(traceFile, SIMULATED + mission);
+        }
+        long start = System.nanoTime();
+        String outcome = run(robot, simulator, mission);
+        double realSeconds = (System.nanoTime() - start) / 1e9;
+        double simulatedSeconds = simulator.now / 1e9;
+        System.out.println();
+        System.out.printf("%s mission %s%n", mission, outcome);
+        System.out.printf("simulated %.1f s in %.1f s (%.0fx real time)%n",
+            simulatedSeconds, realSeconds, simulatedSeconds / realSeconds);
+        System.out.printf("drove %.0f cm, turned %.0f degrees, %d collisions%n",
+            simulator.distanceDriven, simulator.degreesTurned, simulator.collisions);
+        System.out.printf("finished at (%.1f, %.1f) facing %.1f degrees%n",
+            simulator.x, simulator.y, (simulator.heading % 360 + 360) % 360);
+        System.out.println("sensor rates: " + robot.sensors);
+        for (ControlLoop loop : robot.controlLoops())
+        {
+            if (loop.passes > 0) System.out.println("control loop " + loop);
+        }
+        if (traceFile != null)
+        {
+            robot.trace.close();
+            System.out.printf("recorded %d events in %d bytes%n", robot.trace.events, traceFile.length());
+            robot.poseEstimator.setTrace(null); // the report is not part of the mission
+        }
+        PoseEstimator.Pose pose = new PoseEstimator.Pose();
+        robot.poseEstimator.read(pose);
+        System.out.printf("estimated (%.1f, %.1f) facing %.1f degrees, give or take %.1f cm%n",
+            pose.x, pose.y, (pose.heading % 360 + 360) % 360, pose.deviation());
+        robot.shutdown.normal();
+    }
+
+    /**
+     * Run a sensor trace again, as fast as it goes.
+     */
+    private static void replay(File file) throws IOException
+    {
+        SensorTrace trace = SensorTrace.open(file);
+        long start = System.nanoTime();
+        if (trace.mission.startsWith(SIMULATED))
+        {
+            SmartRobot robot = new SmartRobot();
+            robot.trace = trace;
+            String mission = trace.mission.substring(SIMULATED.length());
+            String outcome = run(robot, new TraceReplay(trace), mission);
+            System.out.println();
+            System.out.printf("%s mission %s%n", mission, outcome);
+            robot.shutdown.normal();
+        }
+        else
+        {
+            // Recorded on the robot: run with the same arguments.
+            MyRobot robot = new MyRobot();
+            robot.trace = trace;
+            robot.run(trace.mission.split(" "));
+        }
+        System.out.printf("replayed %d events in %.1f s%n", trace.events, (System.nanoTime() - start) / 1e9);
+        trace.close();
+    }
+
+    /**
+     * Run a mission until it ends or the hardware gives out, and say how it
+     * went, with a checksum of the map it made.
+     */
+    private static String run(SmartRobot robot, RobotHardware hardware, String mission) throws IOException
+    {
+        File directory = Files.createTempDirectory("simulation").toFile();
+        MissionCheckpoint.DIRECTORY = directory.getPath();
+        robot.useConsole = true;
+        robot.silent = true;
+        String outcome = "completed";
+        try
+        {
+            robot.useHardware(hardware);
+            robot.calibrateGyroscope();
+            if (mission.equals("discovery"))
+            {
+                new DiscoveryMission(robot, Integer.MAX_VALUE).run();
+            }
+            else if (mission.equals("avoidance"))
+            {
+                new AvoidanceMission(robot, Integer.MAX_VALUE).run();
+            }
+            else
+            {
+                throw new RuntimeException("Unknown mission: " + mission);
+            }
+        }
+        catch (SimulatedRobot.SimulationOver over)
+        {
+            outcome = "out of time";
+        }
+        catch (SensorTrace.TraceEnded end)
+        {
+            outcome = "replayed to the end of its trace";
+        }
+        catch (SmartRobot.MissionFailure failure)
+        {
+            outcome = "failed: " + failure.getMessage();
+        }
+        // The discovery map is in the mission's checkpoint files.
+        CRC32 checksum = new CRC32();
+        File[] files = directory.listFiles();
+        Arrays.sort(files);
+        for (File file : files)
+        {
+            checksum.update(Files.readAllBytes(file.toPath()));
+            file.delete();
+        }
+        directory.delete();
+        ProximityMap map = robot.proximityMap;
+        for (int angle = map.minimumAngle; angle <= map.maximumAngle; angle++)
+        {
+            int bits = Float.floatToIntBits(map.getDistanceAtAngle(angle));
+            for (int shift = 24; shift >= 0; shift -= 8) checksum.update(bits >>> shift);
+        }
+        return String.format("%s (map checksum %08x)", outcome, checksum.getValue());
+    }
+}
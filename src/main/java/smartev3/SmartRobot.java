@@ -6,9 +6,7 @@ import java.util.*;
 import java.util.concurrent.*;
 
 import ev3dev.actuators.*;
-import ev3dev.actuators.lego.motors.*;
 import ev3dev.robotics.tts.*;
-import ev3dev.sensors.ev3.*;
 import lejos.hardware.port.*;
 import lejos.hardware.sensor.*;
 import lejos.robotics.*;
@@ -29,18 +27,33 @@ public class SmartRobot
     public static final float MAXIMUM_HAND_SIGNAL_DISTANCE = 30;
     public static final float MAXIMUM_TRUSTED_DISTANCE = 254;
 
+    // Devices polled by the sensor sampler, in the order they are added.
+    public static final int GYROSCOPE = 0;
+    public static final int HEAD_POSITION = 1;
+    public static final int SONAR = 2;
+    public static final int LEFT_TOUCH = 3;
+    public static final int RIGHT_TOUCH = 4;
+    public static final int LEFT_WHEEL = 5;
+    public static final int RIGHT_WHEEL = 6;
+
+    // A control loop falling this far behind stops the robot (see ControlLoop).
+    public static final int WATCHDOG_PASSES = 5; // passes in a row, each more than its watchdog lateness late
+    public static final int WATCHDOG_LIMIT = 2000; // milliseconds late, once
+
     public Logger logger = LoggerFactory.getLogger(this.getClass());
     public boolean silent = false;
     public boolean useConsole = false;
     public boolean useTelevision = false;
 
-    public EV3MediumRegulatedMotor headMotor;
-    public EV3LargeRegulatedMotor leftMotor;
-    public EV3LargeRegulatedMotor rightMotor;
-    public EV3GyroSensor gyroSensor;
-    public EV3UltrasonicSensor sonarSensor;
-    public EV3TouchSensor leftTouchSensor;
-    public EV3TouchSensor rightTouchSensor;
+    public RobotHardware hardware; // the EV3's own unless set before connecting
+    public SensorTrace trace; // to record to or replay from, if set before connecting
+    public RobotHardware.Motor headMotor;
+    public RobotHardware.Motor leftMotor;
+    public RobotHardware.Motor rightMotor;
+    public RobotHardware.Gyroscope gyroSensor;
+    public RobotHardware.Sonar sonarSensor;
+    public RobotHardware.TouchSensor leftTouchSensor;
+    public RobotHardware.TouchSensor rightTouchSensor;
 
     public Shutdown shutdown = new Shutdown();
     public Bump bump = new Bump();
@@ -49,13 +62,54 @@ public class SmartRobot
     public boolean discoveryMode = false;
     public Point moveStartingAt;
     public Point moveFinishedAt;
+    /**
+     * Samples taken during the last moveForward or calibrateMotors, each with
+     * the pose it was taken at: gyro heading, and position from where the
+     * move started along the gyro's bearings.
+     */
+    public final MovingScan movingScan = new MovingScan(4096);
+    public final SensorSampler sensors = new SensorSampler();
+    /**
+     * The robot's pose, followed through every move and turn, from where the
+     * gyroscope was last calibrated; and its pose where the last moveForward
+     * started and finished.
+     */
+    public final PoseEstimator poseEstimator = new PoseEstimator(sensors, LEFT_WHEEL, RIGHT_WHEEL, GYROSCOPE);
+    public final PoseEstimator.Pose moveStartingPose = new PoseEstimator.Pose();
+    public final PoseEstimator.Pose moveFinishedPose = new PoseEstimator.Pose();
+    /**
+     * The control loops, each run at a fixed period. A pass that finishes
+     * far too late is logged and counted; if one loop does so for
+     * WATCHDOG_PASSES passes in a row, or once by WATCHDOG_LIMIT
+     * milliseconds (well beyond a garbage collection's pause), its watchdog
+     * stops the motors and fails the mission.
+     */
+    public final ControlLoop movingLoop = new ControlLoop("moving forward", 20, 200);
+    public final ControlLoop baseLoop = new ControlLoop("waiting for base", 20, 250);
+    public final ControlLoop headLoop = new ControlLoop("waiting for head", 20, 500);
+    public final ControlLoop gestureLoop = new ControlLoop("watching for hand signals", 20, 0);
+    public final ControlLoop turningLoop = new ControlLoop("turning", 20, 250);
+    /**
+     * Heading control from the pose estimate: the wheel speed (degrees per
+     * second) a turn may keep for the degrees it has left, and how much
+     * faster the left wheel runs than the right, driving forward, for each
+     * degree the robot has veered left.
+     */
+    public final PidController turnController = new PidController(40, 20, 0, 30);
+    public final PidController steeringController = new PidController(40, 20, 1, 50);
 
     private boolean firstQuestion = true;
     private volatile int fullTurnSteps = 0;
-    private SampleProvider gyroProvider = null;
+    private volatile SampleProvider gyroProvider = null;
     private SampleProvider sonarProvider;
     private float[] gyroSample = new float[1];
     private float[] sonarSample = new float[1];
+    private final PoseEstimator.Pose turnPose = new PoseEstimator.Pose();
+    private final PoseEstimator.Pose moveLastPose = new PoseEstimator.Pose(); // the pass before moveFinishedPose
+    private final PoseEstimator.Pose sonarPose = new PoseEstimator.Pose(); // where the head's last reading was taken
+
+    private Clock clock = Clock.SYSTEM;
+    private Clock sensorClock = Clock.SYSTEM; // not recorded in a trace
 
     private Object baseLock = new Object();
     private Object headLock = new Object();
@@ -74,6 +128,26 @@ public class SmartRobot
     {
         // Ensure that motors are stopped on program exit.
         Runtime.getRuntime().addShutdownHook(shutdown);
+        ControlLoop.Watchdog watchdog = new ControlLoop.Watchdog()
+        {
+            public void missedDeadline(ControlLoop loop, long lateNanoseconds)
+            {
+                long milliseconds = lateNanoseconds / 1000000;
+                logger.warn(loop.name + " fell " + milliseconds + " milliseconds behind ("
+                    + loop.consecutiveMisses + " passes in a row, " + loop.missedDeadlines + " in all)");
+                if (loop.consecutiveMisses >= WATCHDOG_PASSES || milliseconds >= WATCHDOG_LIMIT)
+                {
+                    stopAllMotorsWithCoast();
+                    fail("Stopped my motors: " + loop.name + " fell " + milliseconds
+                        + " milliseconds behind!");
+                }
+            }
+        };
+        movingLoop.setWatchdog(watchdog);
+        baseLoop.setWatchdog(watchdog);
+        headLoop.setWatchdog(watchdog);
+        turningLoop.setWatchdog(watchdog);
+        // Nothing moves while watching for hand signals: no watchdog.
     }
 
     public String robotName()
@@ -168,6 +242,29 @@ public class SmartRobot
         return 10;
     }
 
+    public int maximumTurningPower()
+    {
+        return 40;
+    }
+
+    /**
+     * Wheel steps for a full turn on the spot, as found by calibrateMotors
+     * (0 until then).
+     */
+    public int fullTurnSteps()
+    {
+        return fullTurnSteps;
+    }
+
+    /**
+     * How quickly the base motors may speed up or slow down, in degrees per
+     * second each second.
+     */
+    public float baseAcceleration()
+    {
+        return 1500;
+    }
+
     public float eyesToMidpoint()
     {
         return 11.0f;
@@ -190,10 +287,40 @@ public class SmartRobot
 
     private synchronized void connect()
     {
+        if (hardware == null && trace != null && !trace.recording)
+        {
+            hardware = new TraceReplay(trace);
+        }
+        if (hardware == null)
+        {
+            hardware = new Ev3Hardware(headMotorPort(), leftMotorPort(), rightMotorPort(),
+                gyroSensorPort(), sonarSensorPort(), leftTouchPort(), rightTouchPort());
+        }
+        sensorClock = hardware;
+        if (trace != null && trace.recording)
+        {
+            hardware = new TraceRecorder(hardware, trace);
+        }
+        clock = hardware;
+        for (ControlLoop loop : controlLoops())
+        {
+            loop.setClock(clock);
+        }
         connectMotors();
         connectSensors();
     }
 
+    /**
+     * Connect to the given hardware, such as a SimulatedRobot, and start
+     * the sensors, ready for a mission to be run on this thread.
+     */
+    public void useHardware(RobotHardware hardware)
+    {
+        this.hardware = hardware;
+        connect();
+        startSensors();
+    }
+
     private synchronized void connectMotors()
     {
         if (logger.isDebugEnabled())
@@ -205,9 +332,9 @@ public class SmartRobot
         {
             try
             {
-                if (headMotor == null) headMotor = new EV3MediumRegulatedMotor(headMotorPort());
-                if (leftMotor == null) leftMotor = new EV3LargeRegulatedMotor(leftMotorPort());
-                if (rightMotor == null) rightMotor = new EV3LargeRegulatedMotor(rightMotorPort());
+                if (headMotor == null) headMotor = hardware.headMotor();
+                if (leftMotor == null) leftMotor = hardware.leftMotor();
+                if (rightMotor == null) rightMotor = hardware.rightMotor();
                 break;
             }
             catch (Exception error)
@@ -235,12 +362,12 @@ public class SmartRobot
         {
             try
             {
-                if (sound == null) sound = Sound.getInstance();
-                if (gyroSensor == null) gyroSensor = new EV3GyroSensor(gyroSensorPort());
-                if (sonarSensor == null) sonarSensor = new EV3UltrasonicSensor(sonarSensorPort());
+                if (sound == null && !hardware.isSimulated()) sound = Sound.getInstance();
+                if (gyroSensor == null) gyroSensor = hardware.gyroSensor();
+                if (sonarSensor == null) sonarSensor = hardware.sonarSensor();
                 if (sonarProvider == null) sonarProvider = sonarSensor.getDistanceMode();
-                if (leftTouchSensor == null) leftTouchSensor = new EV3TouchSensor(leftTouchPort());
-                if (rightTouchSensor == null) rightTouchSensor = new EV3TouchSensor(rightTouchPort());
+                if (leftTouchSensor == null) leftTouchSensor = hardware.leftTouchSensor();
+                if (rightTouchSensor == null) rightTouchSensor = hardware.rightTouchSensor();
                 break;
             }
             catch (Exception error)
@@ -257,29 +384,71 @@ public class SmartRobot
         }
     }
 
-    public int gyroAngle()
+    /**
+     * Start polling the sensors (see SensorSampler), and wait for the first
+     * sample from each.
+     */
+    private void startSensors()
+    {
+        if (trace != null)
+        {
+            sensors.setTrace(trace);
+            poseEstimator.setTrace(trace);
+        }
+        poseEstimator.setGeometry(wheelDiameter() * Math.PI, fullTurnSteps);
+        sensors.setClock(sensorClock);
+        sensors.addDevice("gyroscope", 5000, new SensorSampler.Device() { public float read() { return readGyroscope(); } });
+        sensors.addDevice("head position", 5000, new SensorSampler.Device() { public float read() { return readHeadPosition(); } });
+        sensors.addDevice("sonar", 20000, new SensorSampler.Device() { public float read() { return readSonar(); } });
+        sensors.addDevice("left touch", 10000, new SensorSampler.Device() { public float read() { return readTouch(leftTouchSensor); } });
+        sensors.addDevice("right touch", 10000, new SensorSampler.Device() { public float read() { return readTouch(rightTouchSensor); } });
+        sensors.addDevice("left wheel", 5000, new SensorSampler.Device() { public float read() { return leftMotor.getPosition(); } });
+        sensors.addDevice("right wheel", 5000, new SensorSampler.Device() { public float read() { return rightMotor.getPosition(); } });
+        if (!hardware.isSimulated())
+        {
+            sensors.start();
+        }
+        for (int device = 0; device < sensors.deviceCount(); device++)
+        {
+            for (int tries = 0; tries < 10 && sensors.sampleCount(device) == 0; tries++)
+            {
+                sensors.awaitSample(device, 0);
+            }
+        }
+    }
+
+    /**
+     * Wait for the next sample from a device, so that loops watching it
+     * neither use a value twice nor spin while the sampler reads it.
+     */
+    public void awaitSensor(int device)
+    {
+        sensors.awaitSample(device, sensors.sampleCount(device));
+    }
+
+    private float readGyroscope()
     {
         synchronized (gyroLock)
         {
             SampleProvider provider = gyroProvider;
             if (provider == null)
             {
-                fail("Gyroscope sensor is not calibrated! Call calibrateGyroscope() before using it.");
+                return Float.NaN;
             }
             provider.fetchSample(gyroSample, 0);
-            return (int)gyroSample[0];
+            return gyroSample[0];
         }
     }
 
-    public int headAngle()
+    private float readHeadPosition()
     {
         synchronized (headLock)
         {
-            return (int)headMotor.getPosition();
+            return headMotor.getPosition();
         }
     }
 
-    public float headDistance()
+    private float readSonar()
     {
         synchronized (sonarLock)
         {
@@ -288,20 +457,97 @@ public class SmartRobot
         }
     }
 
-    public boolean leftTouch()
+    private float readTouch(RobotHardware.TouchSensor sensor)
     {
         synchronized (touchLock)
         {
-            return leftTouchSensor.isPressed();
+            return sensor.isPressed() ? 1 : 0;
         }
     }
 
-    public boolean rightTouch()
+    public int gyroAngle()
     {
-        synchronized (touchLock)
+        if (gyroProvider == null)
         {
-            return rightTouchSensor.isPressed();
+            fail("Gyroscope sensor is not calibrated! Call calibrateGyroscope() before using it.");
         }
+        return (int)sensors.value(GYROSCOPE);
+    }
+
+    public int headAngle()
+    {
+        return (int)sensors.value(HEAD_POSITION);
+    }
+
+    /**
+     * The gyroscope and head angles at a recent time (System.nanoTime), such
+     * as when a sonar sample was taken, interpolated between their samples
+     * either side of it (waiting for the one after, if need be); the latest
+     * angle if there is no sample from then.
+     */
+    public int gyroAngleAt(long time)
+    {
+        float angle = valueAt(GYROSCOPE, time);
+        return Float.isNaN(angle) ? gyroAngle() : Math.round(angle);
+    }
+
+    public int headAngleAt(long time)
+    {
+        float angle = valueAt(HEAD_POSITION, time);
+        return Float.isNaN(angle) ? headAngle() : Math.round(angle);
+    }
+
+    private float valueAt(int device, long time)
+    {
+        return sensors.valueAt(device, time);
+    }
+
+    private int wheelAt(int device, long time)
+    {
+        float position = valueAt(device, time);
+        return Math.round(Float.isNaN(position) ? sensors.value(device) : position);
+    }
+
+    public float headDistance()
+    {
+        return sensors.value(SONAR);
+    }
+
+    /**
+     * The next sonar distance, waiting for it to be read.
+     */
+    public float nextHeadDistance()
+    {
+        awaitSensor(SONAR);
+        return headDistance();
+    }
+
+    /**
+     * The next sonar distance, once per pass of the hand signal loop.
+     */
+    private float nextHandSignalDistance()
+    {
+        gestureLoop.next();
+        return nextHeadDistance();
+    }
+
+    /**
+     * Wait for the next sonar sample and copy it (distance and time).
+     */
+    public void nextHeadDistance(SensorSampler.Sample into)
+    {
+        awaitSensor(SONAR);
+        sensors.read(SONAR, into);
+    }
+
+    public boolean leftTouch()
+    {
+        return sensors.value(LEFT_TOUCH) != 0;
+    }
+
+    public boolean rightTouch()
+    {
+        return sensors.value(RIGHT_TOUCH) != 0;
     }
 
     public void fail(String reason)
@@ -316,16 +562,8 @@ public class SmartRobot
 
     public void run(String[] args)
     {
-        connect(); // motors and sensors
-        soundThread.start();
-        speechThread.start();
-        if (logger.isDebugEnabled())
-        {
-            SpeechServer.DEBUG = true;
-        }
-        speechServer.start();
-        calibrateGyroscope(); // if this doesn't work, robot might need rebooting
         int optionIndex = 0;
+        File traceFile = null;
         while (optionIndex < args.length && args[optionIndex].startsWith("-"))
         {
             if (args[optionIndex].equals("-silent"))
@@ -340,12 +578,37 @@ public class SmartRobot
             {
                 useTelevision = true;
             }
+            else if (args[optionIndex].equals("-record") && optionIndex + 1 < args.length)
+            {
+                // Record a sensor trace of the run, to replay it off the robot with Simulation.
+                traceFile = new File(args[++optionIndex]);
+            }
             else
             {
                 throw new RuntimeException("Unknown option: " + args[optionIndex]);
             }
             optionIndex++;
         }
+        if (traceFile != null)
+        {
+            StringBuilder replayArgs = new StringBuilder();
+            for (int i = 0; i < args.length; i++)
+            {
+                if (args[i].equals("-record")) i++;
+                else replayArgs.append(replayArgs.length() == 0 ? "" : " ").append(args[i]);
+            }
+            trace = SensorTrace.create(traceFile, replayArgs.toString());
+        }
+        connect(); // motors and sensors
+        startSensors();
+        soundThread.start();
+        speechThread.start();
+        if (logger.isDebugEnabled())
+        {
+            SpeechServer.DEBUG = true;
+        }
+        speechServer.start();
+        calibrateGyroscope(); // if this doesn't work, robot might need rebooting
         Throwable failure = null;
         boolean useDefault = optionIndex == args.length;        
         try
@@ -390,6 +653,10 @@ public class SmartRobot
         }
         shutdown.normal();
         stopAllMotorsWithCoast();
+        if (traceFile != null)
+        {
+            trace.close();
+        }
     }
 
     public void pause()
@@ -449,13 +716,14 @@ public class SmartRobot
 
     public void playTone(int frequency, int duration, int volume)
     {
+        if (sound == null) return; // simulated: no speaker
         soundThread.playTone(frequency, duration, volume);
     }
 
     public void say(String message)
     {
         InputMode mode = inputMode();
-        if (mode == InputMode.CONSOLE)
+        if (mode == InputMode.CONSOLE || hardware != null && hardware.isSimulated())
         {
             System.out.println("\n" + message);
         }
@@ -638,7 +906,8 @@ public class SmartRobot
                 logger.debug("Waiting to see start of hand wave (1).");
             }
             timer = new Timer();
-            while (headDistance() > MAXIMUM_HAND_SIGNAL_DISTANCE)
+            gestureLoop.start();
+            while (nextHandSignalDistance() > MAXIMUM_HAND_SIGNAL_DISTANCE)
             {
                 // Waiting to see user's hand...
                 if (timer.getSeconds() > sayAgainTime) continue SAY_AGAIN;
@@ -650,7 +919,8 @@ public class SmartRobot
                 logger.debug("Waiting to see end of hand wave (1).");
             }
             timer = new Timer();
-            while (headDistance() <= MAXIMUM_HAND_SIGNAL_DISTANCE
+            gestureLoop.start();
+            while (nextHandSignalDistance() <= MAXIMUM_HAND_SIGNAL_DISTANCE
                 || timer.getMilliseconds() < 250)
             {
                 // Waiting until can't see user's hand...
@@ -661,7 +931,8 @@ public class SmartRobot
                 logger.debug("Waiting to see start of hand wave (2).");
             }
             timer = new Timer();
-            while (headDistance() > MAXIMUM_HAND_SIGNAL_DISTANCE)
+            gestureLoop.start();
+            while (nextHandSignalDistance() > MAXIMUM_HAND_SIGNAL_DISTANCE)
             {
                 // Waiting to see user's hand...
                 if (soundThread.busy())
@@ -682,7 +953,8 @@ public class SmartRobot
                 logger.debug("Waiting to see end of hand wave (2).");
             }
             timer = new Timer();
-            while (headDistance() <= MAXIMUM_HAND_SIGNAL_DISTANCE
+            gestureLoop.start();
+            while (nextHandSignalDistance() <= MAXIMUM_HAND_SIGNAL_DISTANCE
                 || timer.getMilliseconds() < 250)
             {
                 // Waiting until can't see user's hand...
@@ -693,7 +965,8 @@ public class SmartRobot
                 logger.debug("Waiting to see start of hand wave (3).");
             }
             timer = new Timer();
-            while (headDistance() > MAXIMUM_HAND_SIGNAL_DISTANCE)
+            gestureLoop.start();
+            while (nextHandSignalDistance() > MAXIMUM_HAND_SIGNAL_DISTANCE)
             {
                 // Waiting to see user's hand...
                 if (soundThread.busy())
@@ -733,6 +1006,7 @@ public class SmartRobot
             long startedWaiting = elapsedTimeMilliseconds();
             do
             {
+                awaitSensor(RIGHT_TOUCH);
                 if (rightTouch()) // Robot's right == user's left.
                 {
                     say("Yes.");
@@ -839,6 +1113,7 @@ public class SmartRobot
         calibrateMotors();
         if (logger.isDebugEnabled())
         {
+            logger.debug("........ calibrate (sensor rates: " + sensors + ")");
             logger.debug("Finished calibrate");
         }
     }
@@ -865,7 +1140,7 @@ public class SmartRobot
             synchronized (gyroLock)
             {
                 gyroProvider = angleMode;
-                int angle = gyroAngle();
+                int angle = (int)readGyroscope();
                 if (angle == 0) break;
                 gyroProvider = null;
             }
@@ -879,6 +1154,11 @@ public class SmartRobot
                 say("I'm having some trouble with my gyroscope calibration. If it doesn't work, I might need to be powered off and restarted!");
             }
         }
+        // The sampler may have read the old provider just before; skip past that.
+        awaitSensor(GYROSCOPE);
+        awaitSensor(GYROSCOPE);
+        poseEstimator.reset();
+        awaitSensor(GYROSCOPE);
         if (logger.isDebugEnabled())
         {
             logger.debug("Finished calibrateGyroscope");
@@ -893,6 +1173,7 @@ public class SmartRobot
             logger.debug("Starting calibrateMotors (angle: " + startAngle + " degrees)");
         }
         proximityMap = new ProximityMap(this, -180, 180);
+        movingScan.clear();
         Timeout timeout = new TimeoutInSeconds("motor calibration", 20);
         int targetSpeed = 100;
         int targetSteps = 500; // Expect this to be probably less than 360 degree turn
@@ -913,6 +1194,7 @@ public class SmartRobot
         {
             fail("Expected full turn steps in range 600 to 1200, but calibration found " + fullTurnSteps + "!");
         }
+        poseEstimator.setGeometry(wheelDiameter() * Math.PI, fullTurnSteps);
         int remainingSteps = fullTurnSteps - targetSteps;
         leftMotor.rotateTo((int)leftMotor.getPosition() + remainingSteps, true);
         rightMotor.rotateTo((int)rightMotor.getPosition() - remainingSteps, true);
@@ -979,20 +1261,65 @@ public class SmartRobot
         }
         Timeout timeout = new TimeoutInSeconds("turning base", 10);
         int startGyro = gyroAngle();
-        if (angle != 0)
+        if (angle != 0 && fullTurnSteps != 0)
         {
             while (angle < -180) angle += 360;
             while (angle > 180) angle -= 360;
-            int power = minimumTurningPower();
-            int speed = (int)(power * BASE_POWER_TO_SPEED_FACTOR);
-            int steps = (int)(fullTurnSteps * (angle / 360.0));
-            int leftTarget = (int)leftMotor.getPosition() + steps;
-            int rightTarget = (int)rightMotor.getPosition() - steps;
-            leftMotor.setSpeed(speed);
-            rightMotor.setSpeed(speed);
-            leftMotor.rotateTo(leftTarget, true);
-            rightMotor.rotateTo(rightTarget, true);
-            sleepForMilliseconds(200); // give motors a chance to start
+            // Each pass sends the wheels towards where the rest of the turn
+            // would leave them, at a speed that speeds up and slows down
+            // steadily and that the heading controller keeps down near the
+            // end. The turn is over once the wheels have settled within a
+            // degree (one gyro step) of the angle wanted, or with nothing
+            // left to correct: so backlash cannot keep it hunting.
+            double goal = startGyro + angle;
+            double stepsPerDegree = fullTurnSteps / 360.0;
+            double minimumSpeed = 3 * BASE_POWER_TO_SPEED_FACTOR;
+            double maximumSpeed = maximumTurningPower() * BASE_POWER_TO_SPEED_FACTOR;
+            double speed = 0;
+            int lastSpeed = -1, lastLeftTarget = 0, lastRightTarget = 0;
+            int lastLeft = Integer.MIN_VALUE, lastRight = Integer.MIN_VALUE;
+            long lastTime = elapsedTimeMilliseconds();
+            turnController.reset();
+            turningLoop.start();
+            while (true)
+            {
+                turningLoop.next();
+                shutdown.check();
+                poseEstimator.read(turnPose);
+                double remaining = goal - turnPose.heading;
+                int steps = (int)Math.round(remaining * stepsPerDegree);
+                int left = Math.round(sensors.value(LEFT_WHEEL));
+                int right = Math.round(sensors.value(RIGHT_WHEEL));
+                boolean settled = left == lastLeft && right == lastRight;
+                lastLeft = left;
+                lastRight = right;
+                if (settled && (Math.abs(remaining) < 1 || steps == 0))
+                {
+                    break;
+                }
+                long time = elapsedTimeMilliseconds();
+                double seconds = (time - lastTime) / 1000.0;
+                lastTime = time;
+                double remainingSteps = Math.abs(remaining) * stepsPerDegree;
+                speed = profiledSpeed(speed, seconds, remainingSteps, minimumSpeed, maximumSpeed, baseAcceleration());
+                double control = Math.abs(turnController.update(remaining, seconds));
+                int newSpeed = (int)Math.max(minimumSpeed, Math.min(speed, control));
+                // From where the wheels were when the heading was estimated.
+                int leftTarget = wheelAt(LEFT_WHEEL, turnPose.time) + steps;
+                int rightTarget = wheelAt(RIGHT_WHEEL, turnPose.time) - steps;
+                if (newSpeed != lastSpeed || leftTarget != lastLeftTarget || rightTarget != lastRightTarget)
+                {
+                    leftMotor.setSpeed(newSpeed);
+                    rightMotor.setSpeed(newSpeed);
+                    leftMotor.rotateTo(leftTarget, true);
+                    rightMotor.rotateTo(rightTarget, true);
+                    lastSpeed = newSpeed;
+                    lastLeftTarget = leftTarget;
+                    lastRightTarget = rightTarget;
+                }
+                timeout.check();
+            }
+            turningLoop.finish();
             waitUntilBaseStopsMoving(timeout);
         }
         if (logger.isDebugEnabled())
@@ -1003,6 +1330,19 @@ public class SmartRobot
         }
     }
 
+    /**
+     * The next speed of a trapezoidal profile (in wheel degrees per second):
+     * no more than the base's acceleration allows since the last, nor than
+     * the maximum, and slow enough to come down to the minimum, slowing
+     * at the given rate, within the wheel degrees remaining.
+     */
+    private double profiledSpeed(double speed, double seconds, double remaining,
+        double minimum, double maximum, double deceleration)
+    {
+        double stopping = minimum + Math.sqrt(2 * deceleration * Math.max(0, remaining));
+        return Math.max(minimum, Math.min(Math.min(speed + baseAcceleration() * seconds, maximum), stopping));
+    }
+
     public void turnToBearing(double bearing)
     {
         int target = (int)bearing % 360;
@@ -1035,19 +1375,21 @@ public class SmartRobot
         }
         long startTime = elapsedTimeMilliseconds();
         moveFinishedAt = moveStartingAt;
+        movingScan.clear();
+        poseEstimator.read(moveStartingPose);
+        moveFinishedPose.copy(moveStartingPose);
         if (distance > 0)
         {
             int leftStart = (int)leftMotor.getPosition();
             int rightStart = (int)rightMotor.getPosition();
             int lastLeftSteps = leftStart;
             int lastRightSteps = rightStart;
-            int startAngle = gyroAngle();
-            int rampUpPower = minimumForwardPower();
-            int targetPower = maximumForwardPower();
-            int addLeftPower = 0;
-            int addRightPower = 0;
-            int lastLeftPower = Integer.MIN_VALUE;
-            int lastRightPower = Integer.MIN_VALUE;
+            double minimumSpeed = minimumForwardPower() * BASE_POWER_TO_SPEED_FACTOR;
+            double maximumSpeed = maximumForwardPower() * BASE_POWER_TO_SPEED_FACTOR;
+            double speed = minimumSpeed;
+            int lastLeftSpeed = -1;
+            int lastRightSpeed = -1;
+            steeringController.reset();
             float halfSafePassingWidth = safePassingWidth() / 2;
             List<ObstacleAhead> obstaclesAhead = new ArrayList<ObstacleAhead>();
             float remainingDistance = distance;
@@ -1057,8 +1399,10 @@ public class SmartRobot
             int checkAngle = (int)MathHelper.radiansToDegrees(Math.atan(checkAside / checkAhead));
             HeadTurner headTurner = new HeadTurner(checkAngle, 5);
             long lastTime = elapsedTimeMilliseconds();
+            movingLoop.start();
             for (int pass = 1;; pass++)
             {
+                movingLoop.next();
                 shutdown.check();
                 bump.check();
                 int leftSteps = (int)leftMotor.getPosition();
@@ -1135,10 +1479,19 @@ public class SmartRobot
                             : ", safe distance: " + formatFixed1(safeDistance) + " cm")
                         + ")");
                 }
-                int newAngle = gyroAngle();
-                if (moveFinishedAt != null)
+                moveLastPose.copy(moveFinishedPose);
+                poseEstimator.read(moveFinishedPose);
+                if (headTurner.sampled)
                 {
-                    moveFinishedAt = moveFinishedAt.move(newAngle, deltaDistance);
+                    // Tag the reading with the pose it was taken at, from the start along gyro bearings.
+                    long sampleTime = headTurner.sampleTime * 1000000;
+                    sonarPose.interpolate(moveLastPose, moveFinishedPose, sampleTime);
+                    int heading = gyroAngleAt(sampleTime);
+                    movingScan.add(sonarPose.x - moveStartingPose.x, sonarPose.y - moveStartingPose.y,
+                        heading, headTurner.currentAngle,
+                        proximityDistance(headTurner.currentAngle, headTurner.obstacleDistance),
+                        headTurner.sampleTime);
+                    headTurner.sampled = false;
                 }
                 if (safeDistance <= 0)
                 {
@@ -1150,55 +1503,42 @@ public class SmartRobot
                     stoppingDistance = Math.max(0, remainingDistance);
                     break;
                 }
-                float minRemainingSafe = Math.min(remainingDistance, safeDistance);
-                if (minRemainingSafe <= 50)
-                {
-                    // Slow down when approaching target.
-                    int newTargetPower = Math.min(targetPower, Math.max(minimumForwardPower(), (int)minRemainingSafe));
-                    float newPowerFactor = newTargetPower / targetPower;
-                    addLeftPower = (int)(addLeftPower * newPowerFactor);
-                    addRightPower = (int)(addRightPower * newPowerFactor);
-                    targetPower = newTargetPower;
-                }
-                int currentPower = Math.min(rampUpPower, targetPower);
-                rampUpPower = Math.min(rampUpPower + 10, targetPower);
-                int angleDelta = newAngle - startAngle;
-                if (angleDelta < 0)
-                {
-                    // Veering to left, need to straighten up.
-                    addRightPower = 0;
-                    addLeftPower++;
-                }
-                if (angleDelta > 0)
-                {
-                    // Veering to right, need to straighten up.
-                    addLeftPower = 0;
-                    addRightPower++;
-                }
-                int leftPower = Math.max(0, Math.min(100 - addRightPower, currentPower + addLeftPower));
-                int rightPower = Math.max(0, Math.min(100 - addLeftPower, currentPower + addRightPower));
+                // Speed up and slow down steadily, coming down to the
+                // lowest speed where the stopping distance begins; and
+                // steer back to the heading the move started on. Slowing
+                // more gently than speeding up gives the sonar longer to
+                // see what lies near the end of the move.
+                long time = elapsedTimeMilliseconds();
+                double seconds = (time - lastTime) / 1000.0;
+                lastTime = time;
+                float minRemainingSafe = Math.min(remainingDistance, safeDistance) - stoppingDistance;
+                double remainingSteps = minRemainingSafe / wheelCircumference * 360;
+                speed = profiledSpeed(speed, seconds, remainingSteps, minimumSpeed, maximumSpeed, baseAcceleration() / 8);
+                double headingError = moveStartingPose.heading - moveFinishedPose.heading;
+                double steering = steeringController.update(headingError, seconds);
+                int leftSpeed = (int)Math.max(0, Math.min(100 * BASE_POWER_TO_SPEED_FACTOR, speed + steering / 2));
+                int rightSpeed = (int)Math.max(0, Math.min(100 * BASE_POWER_TO_SPEED_FACTOR, speed - steering / 2));
                 if (logger.isDebugEnabled())
                 {
-                    logger.debug("........ moveForward (gyroscope delta: " + angleDelta
-                        + " degrees, target power: " + targetPower
-                        + "%, left power: " + leftPower
-                        + "%, right power: " + rightPower + "%)");
+                    logger.debug("........ moveForward (heading error: " + formatFixed1(headingError)
+                        + " degrees, speed: " + (int)speed
+                        + ", left speed: " + leftSpeed
+                        + ", right speed: " + rightSpeed + ")");
                 }
-                if (leftPower != lastLeftPower)
+                if (leftSpeed != lastLeftSpeed)
                 {
-                    int leftSpeed = (int)(leftPower * BASE_POWER_TO_SPEED_FACTOR);
                     leftMotor.setSpeed(leftSpeed);
                     leftMotor.forward();
-                    lastLeftPower = leftPower;
+                    lastLeftSpeed = leftSpeed;
                 }
-                if (rightPower != lastRightPower)
+                if (rightSpeed != lastRightSpeed)
                 {
-                    int rightSpeed = (int)(rightPower * BASE_POWER_TO_SPEED_FACTOR);
                     rightMotor.setSpeed(rightSpeed);
                     rightMotor.forward();
-                    lastRightPower = rightPower;
+                    lastRightSpeed = rightSpeed;
                 }
             }
+            movingLoop.finish();
             if (logger.isDebugEnabled())
             {
                 logger.debug("........ moveForward (stopping distance: "
@@ -1233,9 +1573,14 @@ public class SmartRobot
                 (int)rightMotor.getPosition() - rightStart);
             float finalRotations = finalSteps / 360.0f;
             distance = wheelCircumference * finalRotations;
-            if (moveFinishedAt != null)
+            // Let the estimator see the wheels at rest.
+            awaitSensor(LEFT_WHEEL);
+            awaitSensor(RIGHT_WHEEL);
+            poseEstimator.read(moveFinishedPose);
+            if (moveStartingAt != null)
             {
-                moveFinishedAt = moveFinishedAt.move(gyroAngle(), stoppingDistance);
+                moveFinishedAt = new Point(moveStartingAt.x + moveFinishedPose.x - moveStartingPose.x,
+                    moveStartingAt.y + moveFinishedPose.y - moveStartingPose.y);
             }
         }
         if (logger.isDebugEnabled())
@@ -1331,15 +1676,14 @@ public class SmartRobot
         return (int)(Math.random() * (to - from + 1)) + from;
     }
 
+    public ControlLoop[] controlLoops()
+    {
+        return new ControlLoop[] { movingLoop, turningLoop, baseLoop, headLoop, gestureLoop };
+    }
+
     public void sleepForMilliseconds(int milliseconds)
     {
-        try
-        {
-            Thread.sleep(milliseconds);
-        }
-        catch (Exception ignore)
-        {
-        }
+        clock.sleep(milliseconds * 1000000L);
     }
 
     public void stopAllMotorsWithCoast()
@@ -1359,82 +1703,76 @@ public class SmartRobot
 
     public void waitUntilBaseStopsMoving(Timeout timeout, boolean updateProximity, int startingAngle)
     {
+        SensorSampler.Sample sonar = new SensorSampler.Sample();
+        baseLoop.start();
         for (int pass = 1;; pass++)
         {
+            baseLoop.next();
             shutdown.check();
             if (updateProximity)
             {
-                int angle = gyroAngle() - startingAngle;
-                float distance = headDistance();
-                if (distance > MAXIMUM_TRUSTED_DISTANCE)
-                {
-                    distance = Float.NaN;
-                }
-                if (discoveryMode && !Float.isNaN(distance))
-                {
-                    distance += eyesToMidpoint();
-                }
-                while (angle < 0 && angle < proximityMap.minimumAngle)
-                {
-                    angle += 360;
-                }
-                while (angle > 0 && angle > proximityMap.maximumAngle)
-                {
-                    angle -= 360;
-                }
-                if (!Float.isNaN(distance))
-                {
-                    proximityMap.setDistanceAtAngle(angle, distance);
-                }
+                // Turning on the spot: only the heading changes.
+                nextHeadDistance(sonar);
+                float distance = proximityDistance(0, sonar.value);
+                int heading = gyroAngleAt(sonar.time);
+                movingScan.add(0, 0, heading, 0, distance, sonar.time / 1000000);
+                movingScan.addTo(proximityMap, movingScan.count - 1, 0, 0, startingAngle);
             }
-            if (!updateProximity || pass % 10 == 0)
+            if (!leftMotor.isMoving() && !rightMotor.isMoving())
             {
-                if (!leftMotor.isMoving() && !rightMotor.isMoving())
-                {
-                    break;
-                }
+                break;
             }
             timeout.check();
         }
+        baseLoop.finish();
+    }
+
+    /**
+     * A sonar distance as a ProximityMap takes it: NaN if out of trusted
+     * range, and in discovery mode, measured from the turning midpoint.
+     */
+    private float proximityDistance(int headAngle, float distance)
+    {
+        if (distance > MAXIMUM_TRUSTED_DISTANCE)
+        {
+            return Float.NaN;
+        }
+        if (discoveryMode)
+        {
+            float adjust = Math.abs(headAngle) / 15; // e.g. 6 for angle of +/- 90
+            // As eyes in head gets closer to turning midpoint
+            // the obstacle distance is also closer to midpoint.
+            distance += eyesToMidpoint() - adjust;
+        }
+        return distance;
     }
 
     public void waitUntilHeadStopsMoving(Timeout timeout)
     {
+        SensorSampler.Sample sonar = new SensorSampler.Sample();
+        headLoop.start();
         for (int pass = 1;; pass++)
         {
+            headLoop.next();
             shutdown.check();
-            float distance = headDistance();
-            if (distance > MAXIMUM_TRUSTED_DISTANCE)
-            {
-                distance = Float.NaN;
-            }
-            int angle = headAngle();
-            if (discoveryMode && !Float.isNaN(distance))
-            {
-                float adjust = Math.abs(angle) / 15; // e.g. 6 for angle of +/- 90
-                // As eyes in head gets closer to turning midpoint
-                // the obstacle distance is also closer to midpoint.
-                distance += eyesToMidpoint() - adjust;
-            }
-            if (!Float.isNaN(distance))
-            {
-                proximityMap.setDistanceAtAngle(angle, distance);
-            }
-            if (pass % 5 == 0)
-            {
-                // Don't access headMotor.isMoving too frequently
-                // as it will reduce the number of angle/distance
-                // measurements.
-                synchronized (headLock)
+            // Each pass takes the next sonar sample, so checking the
+            // motor every time no longer costs any measurements.
+            // The head angle is taken for when the distance was read, so
+            // the head can turn quickly without smearing the map.
+            nextHeadDistance(sonar);
+            int angle = headAngleAt(sonar.time);
+            float distance = proximityDistance(angle, sonar.value);
+            proximityMap.addSample(angle, distance, sonar.time / 1000000);
+            synchronized (headLock)
+            {
+                if (!headMotor.isMoving())
                 {
-                    if (!headMotor.isMoving())
-                    {
-                        break;
-                    }
+                    break;
                 }
             }
             timeout.check();
         }
+        headLoop.finish();
     }
 
     public static String formatFixed1(double x)
@@ -1449,7 +1787,7 @@ public class SmartRobot
 
     public long elapsedTimeMilliseconds()
     {
-        return System.nanoTime() / 1000000;
+        return clock.nanoTime() / 1000000;
     }
 
     public void sleepForSeconds(int seconds)
@@ -1545,6 +1883,11 @@ public class SmartRobot
     {
         public int currentAngle;
         public float obstacleDistance;
+        public long sampleTime;
+        public boolean sampled; // set with each new sample, for the caller to clear
+
+        private long lastSonarSample = -1;
+        private SensorSampler.Sample sonar = new SensorSampler.Sample();
 
         private boolean startCalled = false;
         private boolean stopCalled = false;
@@ -1575,6 +1918,9 @@ public class SmartRobot
         {
             currentAngle = headAngle();
             obstacleDistance = headDistance();
+            lastSonarSample = sensors.sampleCount(SONAR);
+            sampleTime = elapsedTimeMilliseconds();
+            sampled = true;
             int steps = currentAngle - targetAngle;
             if (steps < 0) targetAngle = -targetAngle; // Start towards rightmost position
             setTurnTimeout();
@@ -1605,8 +1951,21 @@ public class SmartRobot
             {
                 return;
             }
-            currentAngle = headAngle(); // sample motor sensor
-            obstacleDistance = headDistance(); // sample ultrasonic sensor
+            sensors.read(SONAR, sonar);
+            if (sonar.count != lastSonarSample)
+            {
+                // Only a new distance counts as a sample, with the head
+                // angle at the time it was read.
+                obstacleDistance = sonar.value;
+                currentAngle = headAngleAt(sonar.time);
+                sampleTime = sonar.time / 1000000;
+                sampled = true;
+                lastSonarSample = sonar.count;
+            }
+            else
+            {
+                currentAngle = headAngle(); // latest motor position
+            }
             boolean checkMoving = true;
             boolean closeEnough = Math.abs(currentAngle - targetAngle) <= 3;
             if (checkMoving && lastFullScanStarted != -1)
@@ -1664,12 +2023,18 @@ public class SmartRobot
             {
                 fail("HeadTurner: Please call stopScanning before calling waitUntilStopped!");
             }
-            while (headMotor.isMoving())
+            headLoop.start();
+            while (true)
             {
+                headLoop.next();
                 shutdown.check();
+                if (!headMotor.isMoving())
+                {
+                    break;
+                }
                 turnTimeout.check();
-                sleepForMilliseconds(10);
             }
+            headLoop.finish();
             headMotor.coast();
             headMotor.stop();
         }
@@ -0,0 +1,135 @@
+package smartev3;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * One attribute file of an ev3dev device (a motor's position, a sensor's
+ * value0), kept open to be read over and over without making garbage.
+ * ev3dev-lang-java opens the file, reads it into a String and parses that
+ * on every read, which on the EV3 costs far more than the read itself.
+ * Here each read is a single positioned read (pread) from the start of the
+ * file into the attribute's own direct buffer, and the number is parsed
+ * from the bytes. A sysfs attribute gives its current value each time it is
+ * read from the start, and an ordinary file does the same, so a directory
+ * of files can stand in for a device.
+ * A thread interrupted while reading closes the channel (as FileChannels
+ * do), so it is opened again for the next read.
+ */
+public class SysfsAttribute
+{
+    private static final int CAPACITY = 64; // bytes: more than any number or state needs
+
+    public final File file;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(CAPACITY);
+    private FileChannel channel;
+
+    public SysfsAttribute(File directory, String name)
+    {
+        this.file = new File(directory, name);
+        open();
+    }
+
+    private void open()
+    {
+        try
+        {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+        catch (IOException ex)
+        {
+            throw new RuntimeException("Cannot open " + file + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Read the attribute afresh; returns the number of bytes in the buffer.
+     */
+    private int read()
+    {
+        for (int tries = 1;; tries++)
+        {
+            try
+            {
+                buffer.clear();
+                int length = channel.read(buffer, 0);
+                return Math.max(0, length);
+            }
+            catch (ClosedChannelException closed)
+            {
+                // Closed by an interrupt, on this thread or another.
+                open();
+                if (tries == 2 || Thread.currentThread().isInterrupted())
+                {
+                    throw new RuntimeException("Interrupted reading " + file, closed);
+                }
+            }
+            catch (IOException ex)
+            {
+                throw new RuntimeException("Cannot read " + file + ": " + ex.getMessage(), ex);
+            }
+        }
+    }
+
+    /**
+     * The attribute's value as a whole number, such as "-123\n".
+     */
+    public synchronized int readInt()
+    {
+        int length = read();
+        int i = 0;
+        boolean negative = length > 0 && buffer.get(0) == '-';
+        if (negative) i++;
+        long value = 0;
+        int digits = 0;
+        for (; i < length; i++)
+        {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) break;
+            value = value * 10 + digit;
+            digits++;
+        }
+        if (digits == 0 || digits > 10 || i < length && buffer.get(i) != '\n' && buffer.get(i) != ' ')
+        {
+            throw new RuntimeException("Not a whole number in " + file);
+        }
+        return (int)(negative ? -value : value);
+    }
+
+    /**
+     * Whether the attribute holds the given word, as one of a list of words
+     * such as a motor's state "running stalled".
+     */
+    public synchronized boolean hasWord(byte[] word)
+    {
+        int length = read();
+        int start = 0;
+        for (int i = 0; i <= length; i++)
+        {
+            if (i == length || buffer.get(i) == ' ' || buffer.get(i) == '\n')
+            {
+                if (i - start == word.length)
+                {
+                    int j = 0;
+                    while (j < word.length && buffer.get(start + j) == word[j]) j++;
+                    if (j == word.length) return true;
+                }
+                start = i + 1;
+            }
+        }
+        return false;
+    }
+
+    public synchronized void close()
+    {
+        try
+        {
+            channel.close();
+        }
+        catch (IOException ignore)
+        {
+        }
+    }
+}
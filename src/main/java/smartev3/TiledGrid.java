@@ -0,0 +1,353 @@
+package smartev3;
+
+import java.util.*;
+
+/**
+ * Sparse storage for per-cell values on a very large square grid.
+ * The grid is split into square tiles, kept in a hash map keyed by tile
+ * position and only allocated when a value in them is first written, so memory
+ * grows with the area actually explored. Reads of unwritten cells return the
+ * layer's default value.
+ * Each kind of value is a "layer" (a byte or int per cell). Cells are named by
+ * a single int index packing row and column, so neighbours are found by adding
+ * fixed offsets, as with a dense array.
+ */
+public class TiledGrid
+{
+    public static final int COORDINATE_BITS = 15;
+    public static final int EXTENT = 1 << COORDINATE_BITS; // rows and columns are 0 to EXTENT - 1
+    public static final int ROW_STRIDE = EXTENT; // index difference between vertically adjacent cells
+
+    public static final int TILE_BITS = 5;
+    public static final int TILE_SIZE = 1 << TILE_BITS; // cells along each side of a tile
+    private static final int TILE_MASK = TILE_SIZE - 1;
+    private static final int TILE_CELLS = TILE_SIZE * TILE_SIZE;
+
+    private static final int CACHE_SIZE = 64; // direct-mapped, must be a power of 2
+    private static final long NO_KEY = -1;
+
+    private static class Tile
+    {
+        byte[][] bytes = new byte[0][];
+        int[][] ints = new int[0][];
+        boolean shared; // layers may be shared with a snapshot, so copy them before writing
+    }
+
+    private byte[] byteDefaults = new byte[0];
+    private int[] intDefaults = new int[0];
+
+    // Open-addressing hash map from tile key to tile.
+    private long[] keys = new long[64];
+    private Tile[] tiles = new Tile[64];
+    private int tileCount = 0;
+
+    // Recently used tiles (including absent ones, as null).
+    private long[] cacheKeys = new long[CACHE_SIZE];
+    private Tile[] cacheTiles = new Tile[CACHE_SIZE];
+    private long lastKey = NO_KEY;
+    private Tile lastTile;
+
+    public TiledGrid()
+    {
+        Arrays.fill(keys, NO_KEY);
+        Arrays.fill(cacheKeys, NO_KEY);
+    }
+
+    public static int index(int row, int column)
+    {
+        return (row << COORDINATE_BITS) | column;
+    }
+
+    public static int row(int index)
+    {
+        return index >>> COORDINATE_BITS;
+    }
+
+    public static int column(int index)
+    {
+        return index & (EXTENT - 1);
+    }
+
+    public static boolean contains(int row, int column)
+    {
+        return row >= 0 && row < EXTENT && column >= 0 && column < EXTENT;
+    }
+
+    /**
+     * Add a layer of bytes and return its number.
+     */
+    public int addByteLayer(byte defaultValue)
+    {
+        int layer = byteDefaults.length;
+        byteDefaults = Arrays.copyOf(byteDefaults, layer + 1);
+        byteDefaults[layer] = defaultValue;
+        return layer;
+    }
+
+    /**
+     * Add a layer of ints and return its number.
+     */
+    public int addIntLayer(int defaultValue)
+    {
+        int layer = intDefaults.length;
+        intDefaults = Arrays.copyOf(intDefaults, layer + 1);
+        intDefaults[layer] = defaultValue;
+        return layer;
+    }
+
+    public byte getByte(int layer, int index)
+    {
+        Tile tile = findTile(index);
+        if (tile == null || layer >= tile.bytes.length || tile.bytes[layer] == null)
+        {
+            return byteDefaults[layer];
+        }
+        return tile.bytes[layer][offset(index)];
+    }
+
+    public void setByte(int layer, int index, byte value)
+    {
+        byteArray(layer, index)[offset(index)] = value;
+    }
+
+    public int getInt(int layer, int index)
+    {
+        Tile tile = findTile(index);
+        if (tile == null || layer >= tile.ints.length || tile.ints[layer] == null)
+        {
+            return intDefaults[layer];
+        }
+        return tile.ints[layer][offset(index)];
+    }
+
+    public void setInt(int layer, int index, int value)
+    {
+        intArray(layer, index)[offset(index)] = value;
+    }
+
+    /**
+     * A copy of the grid that can be read (and written) independently of it,
+     * for example by another thread. Layers are shared until either grid
+     * writes to a tile, which then gets its own copy (copy-on-write), so this
+     * only costs a small array per tile. Must not be called while another
+     * thread is writing to this grid.
+     */
+    public TiledGrid snapshot()
+    {
+        TiledGrid copy = new TiledGrid();
+        copy.byteDefaults = byteDefaults.clone();
+        copy.intDefaults = intDefaults.clone();
+        copy.keys = keys.clone();
+        copy.tiles = new Tile[tiles.length];
+        copy.tileCount = tileCount;
+        for (int i = 0; i < tiles.length; i++)
+        {
+            Tile tile = tiles[i];
+            if (tile != null)
+            {
+                Tile shared = new Tile();
+                shared.bytes = tile.bytes.clone();
+                shared.ints = tile.ints.clone();
+                shared.shared = tile.shared = true;
+                copy.tiles[i] = shared;
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Whether any layer has been written in the tile containing the cell.
+     */
+    public boolean isAllocated(int index)
+    {
+        return findTile(index) != null;
+    }
+
+    public int tileCount()
+    {
+        return tileCount;
+    }
+
+    /**
+     * Approximate number of bytes used by allocated layers in all tiles.
+     */
+    public long bytesUsed()
+    {
+        long total = 0;
+        for (Tile tile : tiles)
+        {
+            if (tile == null) continue;
+            for (byte[] layer : tile.bytes) if (layer != null) total += layer.length;
+            for (int[] layer : tile.ints) if (layer != null) total += 4L * layer.length;
+        }
+        return total;
+    }
+
+    /**
+     * Call action.accept(tileRow, tileColumn) for every allocated tile.
+     */
+    public void forEachTile(TileAction action)
+    {
+        for (int i = 0; i < keys.length; i++)
+        {
+            long key = keys[i];
+            if (key != NO_KEY)
+            {
+                action.visit((int)(key >>> 32), (int)key);
+            }
+        }
+    }
+
+    public interface TileAction
+    {
+        void visit(int tileRow, int tileColumn);
+    }
+
+    private static int offset(int index)
+    {
+        return ((row(index) & TILE_MASK) << TILE_BITS) | (column(index) & TILE_MASK);
+    }
+
+    private static long tileKey(int index)
+    {
+        return ((long)(row(index) >>> TILE_BITS) << 32) | (column(index) >>> TILE_BITS);
+    }
+
+    private Tile findTile(int index)
+    {
+        long key = tileKey(index);
+        if (key == lastKey)
+        {
+            return lastTile;
+        }
+        int slot = cacheSlot(key);
+        Tile tile;
+        if (cacheKeys[slot] == key)
+        {
+            tile = cacheTiles[slot];
+        }
+        else
+        {
+            tile = lookup(key);
+            cacheKeys[slot] = key;
+            cacheTiles[slot] = tile;
+        }
+        lastKey = key;
+        lastTile = tile;
+        return tile;
+    }
+
+    private Tile findOrCreateTile(int index)
+    {
+        Tile tile = findTile(index);
+        if (tile == null)
+        {
+            long key = tileKey(index);
+            tile = new Tile();
+            insert(key, tile);
+            int slot = cacheSlot(key);
+            cacheKeys[slot] = key;
+            cacheTiles[slot] = tile;
+            lastKey = key;
+            lastTile = tile;
+        }
+        return tile;
+    }
+
+    private byte[] byteArray(int layer, int index)
+    {
+        Tile tile = findOrCreateTile(index);
+        if (tile.shared) unshare(tile);
+        if (layer >= tile.bytes.length)
+        {
+            tile.bytes = Arrays.copyOf(tile.bytes, byteDefaults.length);
+        }
+        byte[] values = tile.bytes[layer];
+        if (values == null)
+        {
+            values = tile.bytes[layer] = new byte[TILE_CELLS];
+            if (byteDefaults[layer] != 0) Arrays.fill(values, byteDefaults[layer]);
+        }
+        return values;
+    }
+
+    private int[] intArray(int layer, int index)
+    {
+        Tile tile = findOrCreateTile(index);
+        if (tile.shared) unshare(tile);
+        if (layer >= tile.ints.length)
+        {
+            tile.ints = Arrays.copyOf(tile.ints, intDefaults.length);
+        }
+        int[] values = tile.ints[layer];
+        if (values == null)
+        {
+            values = tile.ints[layer] = new int[TILE_CELLS];
+            if (intDefaults[layer] != 0) Arrays.fill(values, intDefaults[layer]);
+        }
+        return values;
+    }
+
+    private static void unshare(Tile tile)
+    {
+        byte[][] bytes = tile.bytes;
+        for (int i = 0; i < bytes.length; i++)
+        {
+            if (bytes[i] != null) bytes[i] = bytes[i].clone();
+        }
+        int[][] ints = tile.ints;
+        for (int i = 0; i < ints.length; i++)
+        {
+            if (ints[i] != null) ints[i] = ints[i].clone();
+        }
+        tile.shared = false;
+    }
+
+    private static int cacheSlot(long key)
+    {
+        return (int)(key ^ (key >>> 29)) & (CACHE_SIZE - 1);
+    }
+
+    private static int hash(long key, int mask)
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h >>> 32) & mask;
+    }
+
+    private Tile lookup(long key)
+    {
+        int mask = keys.length - 1;
+        for (int i = hash(key, mask);; i = (i + 1) & mask)
+        {
+            if (keys[i] == key) return tiles[i];
+            if (keys[i] == NO_KEY) return null;
+        }
+    }
+
+    private void insert(long key, Tile tile)
+    {
+        if (2 * (tileCount + 1) > keys.length)
+        {
+            long[] oldKeys = keys;
+            Tile[] oldTiles = tiles;
+            keys = new long[2 * oldKeys.length];
+            tiles = new Tile[2 * oldKeys.length];
+            Arrays.fill(keys, NO_KEY);
+            for (int i = 0; i < oldKeys.length; i++)
+            {
+                if (oldKeys[i] != NO_KEY) put(oldKeys[i], oldTiles[i]);
+            }
+        }
+        put(key, tile);
+        tileCount++;
+    }
+
+    private void put(long key, Tile tile)
+    {
+        int mask = keys.length - 1;
+        int i = hash(key, mask);
+        while (keys[i] != NO_KEY) i = (i + 1) & mask;
+        keys[i] = key;
+        tiles[i] = tile;
+    }
+}
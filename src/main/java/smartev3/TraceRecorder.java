@@ -0,0 +1,209 @@
+package smartev3;
+
+import lejos.robotics.SampleProvider;
+
+/**
+ * Hardware that records everything the mission gets from it in a
+ * SensorTrace, passing each call on to the real (or simulated) hardware.
+ * Reads the SensorSampler makes for itself are not recorded: the sampler
+ * records what the mission saw of them.
+ */
+public class TraceRecorder implements RobotHardware
+{
+    public final RobotHardware hardware;
+    private final SensorTrace trace;
+
+    public TraceRecorder(RobotHardware hardware, SensorTrace trace)
+    {
+        this.hardware = hardware;
+        this.trace = trace;
+    }
+
+    private boolean recorded()
+    {
+        SensorSampler sampler = trace.sampler;
+        return sampler == null || !sampler.isSampling();
+    }
+
+    private class RecordedMotor implements Motor
+    {
+        private final Motor motor;
+        private final int unit;
+
+        RecordedMotor(Motor motor, int unit)
+        {
+            this.motor = motor;
+            this.unit = unit;
+        }
+
+        public void setSpeed(int degreesPerSecond)
+        {
+            motor.setSpeed(degreesPerSecond);
+            if (recorded()) trace.record(SensorTrace.SPEED, unit, degreesPerSecond);
+        }
+
+        public void forward()
+        {
+            motor.forward();
+            if (recorded()) trace.record(SensorTrace.FORWARD, unit);
+        }
+
+        public void rotateTo(int position, boolean immediateReturn)
+        {
+            motor.rotateTo(position, immediateReturn);
+            if (recorded()) trace.record(SensorTrace.ROTATE_TO, unit, position, immediateReturn ? 1 : 0);
+        }
+
+        public void stop()
+        {
+            motor.stop();
+            if (recorded()) trace.record(SensorTrace.STOP, unit);
+        }
+
+        public void brake()
+        {
+            motor.brake();
+            if (recorded()) trace.record(SensorTrace.BRAKE, unit);
+        }
+
+        public void coast()
+        {
+            motor.coast();
+            if (recorded()) trace.record(SensorTrace.COAST, unit);
+        }
+
+        public boolean isMoving()
+        {
+            boolean moving = motor.isMoving();
+            if (recorded()) trace.record(SensorTrace.MOVING, unit, moving ? 1 : 0);
+            return moving;
+        }
+
+        public float getPosition()
+        {
+            float position = motor.getPosition();
+            if (recorded()) trace.record(SensorTrace.POSITION, unit, position);
+            return position;
+        }
+    }
+
+    private class RecordedProvider implements SampleProvider
+    {
+        private final SampleProvider provider;
+        private final int unit;
+
+        RecordedProvider(SampleProvider provider, int unit)
+        {
+            this.provider = provider;
+            this.unit = unit;
+        }
+
+        public int sampleSize()
+        {
+            return provider.sampleSize();
+        }
+
+        public void fetchSample(float[] sample, int offset)
+        {
+            provider.fetchSample(sample, offset);
+            if (recorded()) trace.record(SensorTrace.FETCH, unit, sample[offset]);
+        }
+    }
+
+    private class RecordedTouchSensor implements TouchSensor
+    {
+        private final TouchSensor sensor;
+        private final int unit;
+
+        RecordedTouchSensor(TouchSensor sensor, int unit)
+        {
+            this.sensor = sensor;
+            this.unit = unit;
+        }
+
+        public boolean isPressed()
+        {
+            boolean pressed = sensor.isPressed();
+            if (recorded()) trace.record(SensorTrace.PRESSED, unit, pressed ? 1 : 0);
+            return pressed;
+        }
+    }
+
+    public long nanoTime()
+    {
+        long time = hardware.nanoTime();
+        if (recorded()) trace.record(SensorTrace.TIME, 0, time);
+        return time;
+    }
+
+    public void sleep(long nanoseconds)
+    {
+        hardware.sleep(nanoseconds);
+        if (recorded()) trace.record(SensorTrace.SLEEP, 0, nanoseconds);
+    }
+
+    public boolean isSimulated()
+    {
+        return hardware.isSimulated();
+    }
+
+    public Motor headMotor()
+    {
+        return new RecordedMotor(hardware.headMotor(), 0);
+    }
+
+    public Motor leftMotor()
+    {
+        return new RecordedMotor(hardware.leftMotor(), 1);
+    }
+
+    public Motor rightMotor()
+    {
+        return new RecordedMotor(hardware.rightMotor(), 2);
+    }
+
+    public Gyroscope gyroSensor()
+    {
+        final Gyroscope gyroscope = hardware.gyroSensor();
+        return new Gyroscope()
+        {
+            public SampleProvider getRateMode()
+            {
+                SampleProvider provider = gyroscope.getRateMode();
+                if (recorded()) trace.record(SensorTrace.RATE_MODE, 0);
+                return new RecordedProvider(provider, 0);
+            }
+
+            public SampleProvider getAngleMode()
+            {
+                SampleProvider provider = gyroscope.getAngleMode();
+                if (recorded()) trace.record(SensorTrace.ANGLE_MODE, 0);
+                return new RecordedProvider(provider, 1);
+            }
+        };
+    }
+
+    public Sonar sonarSensor()
+    {
+        final Sonar sonar = hardware.sonarSensor();
+        return new Sonar()
+        {
+            public SampleProvider getDistanceMode()
+            {
+                SampleProvider provider = sonar.getDistanceMode();
+                if (recorded()) trace.record(SensorTrace.DISTANCE_MODE, 0);
+                return new RecordedProvider(provider, 2);
+            }
+        };
+    }
+
+    public TouchSensor leftTouchSensor()
+    {
+        return new RecordedTouchSensor(hardware.leftTouchSensor(), 0);
+    }
+
+    public TouchSensor rightTouchSensor()
+    {
+        return new RecordedTouchSensor(hardware.rightTouchSensor(), 1);
+    }
+}
@@ -0,0 +1,187 @@
+package smartev3;
+
+import lejos.robotics.SampleProvider;
+
+/**
+ * Hardware that answers from a recorded SensorTrace, so a mission does what
+ * it did when recorded, as fast as it can. Each call must be the one
+ * recorded next, with the same arguments: if the mission asks for anything
+ * else it no longer follows the trace, and the replay fails. Once the
+ * trace has run out, reads throw SensorTrace.TraceEnded and commands are
+ * ignored, so the robot can still be stopped.
+ */
+public class TraceReplay implements RobotHardware
+{
+    private final SensorTrace trace;
+
+    public TraceReplay(SensorTrace trace)
+    {
+        this.trace = trace;
+    }
+
+    private class ReplayedMotor implements Motor
+    {
+        private final int unit;
+
+        ReplayedMotor(int unit)
+        {
+            this.unit = unit;
+        }
+
+        public void setSpeed(int degreesPerSecond)
+        {
+            if (!trace.ended) trace.expect(SensorTrace.SPEED, unit, degreesPerSecond);
+        }
+
+        public void forward()
+        {
+            if (!trace.ended) trace.expect(SensorTrace.FORWARD, unit);
+        }
+
+        public void rotateTo(int position, boolean immediateReturn)
+        {
+            if (trace.ended) return;
+            trace.expect(SensorTrace.ROTATE_TO, unit, position);
+            if (trace.readLong(1) != (immediateReturn ? 1 : 0))
+            {
+                throw new RuntimeException("Replay has left the sensor trace at event " + trace.events
+                    + ": rotateTo recorded with immediateReturn " + !immediateReturn + ".");
+            }
+        }
+
+        public void stop()
+        {
+            if (!trace.ended) trace.expect(SensorTrace.STOP, unit);
+        }
+
+        public void brake()
+        {
+            if (!trace.ended) trace.expect(SensorTrace.BRAKE, unit);
+        }
+
+        public void coast()
+        {
+            if (!trace.ended) trace.expect(SensorTrace.COAST, unit);
+        }
+
+        public boolean isMoving()
+        {
+            trace.expect(SensorTrace.MOVING, unit);
+            return trace.readLong(0) != 0;
+        }
+
+        public float getPosition()
+        {
+            trace.expect(SensorTrace.POSITION, unit);
+            return trace.readFloat(0);
+        }
+    }
+
+    private class ReplayedProvider implements SampleProvider
+    {
+        private final int unit;
+
+        ReplayedProvider(int unit)
+        {
+            this.unit = unit;
+        }
+
+        public int sampleSize()
+        {
+            return 1;
+        }
+
+        public void fetchSample(float[] sample, int offset)
+        {
+            trace.expect(SensorTrace.FETCH, unit);
+            sample[offset] = trace.readFloat(0);
+        }
+    }
+
+    private class ReplayedTouchSensor implements TouchSensor
+    {
+        private final int unit;
+
+        ReplayedTouchSensor(int unit)
+        {
+            this.unit = unit;
+        }
+
+        public boolean isPressed()
+        {
+            trace.expect(SensorTrace.PRESSED, unit);
+            return trace.readLong(0) != 0;
+        }
+    }
+
+    public long nanoTime()
+    {
+        trace.expect(SensorTrace.TIME, 0);
+        return trace.readLong(0);
+    }
+
+    public void sleep(long nanoseconds)
+    {
+        trace.expect(SensorTrace.SLEEP, 0, nanoseconds);
+    }
+
+    public boolean isSimulated()
+    {
+        return true;
+    }
+
+    public Motor headMotor()
+    {
+        return new ReplayedMotor(0);
+    }
+
+    public Motor leftMotor()
+    {
+        return new ReplayedMotor(1);
+    }
+
+    public Motor rightMotor()
+    {
+        return new ReplayedMotor(2);
+    }
+
+    public Gyroscope gyroSensor()
+    {
+        return new Gyroscope()
+        {
+            public SampleProvider getRateMode()
+            {
+                trace.expect(SensorTrace.RATE_MODE, 0);
+                return new ReplayedProvider(0);
+            }
+
+            public SampleProvider getAngleMode()
+            {
+                trace.expect(SensorTrace.ANGLE_MODE, 0);
+                return new ReplayedProvider(1);
+            }
+        };
+    }
+
+    public Sonar sonarSensor()
+    {
+        return new Sonar()
+        {
+            public SampleProvider getDistanceMode()
+            {
+                trace.expect(SensorTrace.DISTANCE_MODE, 0);
+                return new ReplayedProvider(2);
+            }
+        };
+    }
+
+    public TouchSensor leftTouchSensor()
+    {
+        return new ReplayedTouchSensor(0);
+    }
+
+    public TouchSensor rightTouchSensor()
+    {
+        return new ReplayedTouchSensor(1);
+    }
+}
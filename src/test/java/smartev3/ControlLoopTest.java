@@ -0,0 +1,198 @@
+package smartev3;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ControlLoopTest
+{
+    private static class TestClock implements Clock
+    {
+        long now = 1000000;
+
+        public long nanoTime()
+        {
+            return now;
+        }
+
+        public void sleep(long nanoseconds)
+        {
+            now += nanoseconds;
+        }
+    }
+
+    private static final long MILLISECOND = 1000000;
+
+    private TestClock clock;
+    private ControlLoop loop;
+    private List<Integer> misses; // consecutiveMisses each time the watchdog heard
+
+    @Before
+    public void setUp()
+    {
+        clock = new TestClock();
+        loop = new ControlLoop("test", 20, 100);
+        loop.setClock(clock);
+        misses = new ArrayList<Integer>();
+        loop.setWatchdog(new ControlLoop.Watchdog()
+        {
+            public void missedDeadline(ControlLoop loop, long lateNanoseconds)
+            {
+                misses.add(loop.consecutiveMisses);
+            }
+        });
+    }
+
+    /**
+     * A pass that takes the given milliseconds, then the start of the next.
+     */
+    private void pass(int milliseconds)
+    {
+        clock.now += milliseconds * MILLISECOND;
+        loop.next();
+    }
+
+    @Test
+    public void passesArePacedAtThePeriod()
+    {
+        loop.start();
+        loop.next();
+        long first = clock.now;
+        pass(5);
+        assertEquals(first + 20 * MILLISECOND, clock.now);
+        pass(19);
+        assertEquals(first + 40 * MILLISECOND, clock.now);
+        // An overrun goes straight on, and the period counts from then.
+        pass(30);
+        assertEquals(first + 70 * MILLISECOND, clock.now);
+        pass(1);
+        assertEquals(first + 90 * MILLISECOND, clock.now);
+        loop.finish();
+        assertEquals(5, loop.passes);
+        assertEquals(1, loop.overruns);
+        assertEquals(10 * MILLISECOND, loop.worstLateness);
+        assertEquals(0, loop.missedDeadlines);
+        assertTrue(misses.isEmpty());
+    }
+
+    @Test
+    public void watchdogHearsOfPassesTooLateInARow()
+    {
+        loop.start();
+        loop.next();
+        pass(20 + 100); // late, but not too late
+        assertTrue(misses.isEmpty());
+        pass(20 + 101);
+        pass(20 + 150);
+        pass(20 + 101);
+        assertEquals(Arrays.asList(1, 2, 3), misses);
+        assertEquals(3, loop.consecutiveMisses);
+        // One on time ends the run of misses.
+        pass(10);
+        assertEquals(0, loop.consecutiveMisses);
+        pass(200);
+        assertEquals(Arrays.asList(1, 2, 3, 1), misses);
+        assertEquals(4, loop.missedDeadlines);
+        assertEquals(5, loop.overruns);
+        // So does starting again.
+        loop.finish();
+        loop.start();
+        assertEquals(0, loop.consecutiveMisses);
+        loop.next();
+        pass(200);
+        assertEquals(Arrays.asList(1, 2, 3, 1, 1), misses);
+    }
+
+    @Test
+    public void withoutAWatchdogLatePassesAreOnlyOverruns()
+    {
+        loop.setWatchdog(null);
+        loop.start();
+        loop.next();
+        for (int i = 0; i < 10; i++)
+        {
+            pass(500);
+        }
+        assertEquals(10, loop.overruns);
+        assertEquals(0, loop.missedDeadlines);
+        assertEquals(0, loop.consecutiveMisses);
+    }
+
+    /**
+     * A robot on a simulator, with its wheels running, and its loop for
+     * moving forward started.
+     */
+    private static SmartRobot movingRobot(SimulatedRobot simulator)
+    {
+        SmartRobot robot = new SmartRobot();
+        robot.silent = true;
+        robot.useHardware(simulator);
+        simulator.leftMotor().setSpeed(100);
+        simulator.rightMotor().setSpeed(100);
+        simulator.leftMotor().forward();
+        simulator.rightMotor().forward();
+        robot.movingLoop.start();
+        robot.movingLoop.next();
+        return robot;
+    }
+
+    @Test
+    public void robotStopsAfterWatchdogPassesMissedInARow()
+    {
+        SimulatedRobot simulator = new SimulatedRobot(FloorPlan.furnishedRoom(), 0, 0, 0, 1);
+        SmartRobot robot = movingRobot(simulator);
+        ControlLoop loop = robot.movingLoop;
+        long late = loop.period + loop.watchdogLateness + MILLISECOND;
+        for (int round = 0; round < 2; round++)
+        {
+            // Short of the limit, then a pass on time.
+            for (int i = 1; i < SmartRobot.WATCHDOG_PASSES; i++)
+            {
+                simulator.sleep(late);
+                loop.next();
+                assertEquals(i, loop.consecutiveMisses);
+            }
+            loop.next();
+            assertEquals(0, loop.consecutiveMisses);
+        }
+        assertTrue(simulator.leftMotor().isMoving());
+        for (int i = 1; i < SmartRobot.WATCHDOG_PASSES; i++)
+        {
+            simulator.sleep(late);
+            loop.next();
+        }
+        simulator.sleep(late);
+        try
+        {
+            loop.next();
+            fail("the watchdog let the robot carry on");
+        }
+        catch (SmartRobot.MissionFailure expected)
+        {
+        }
+        assertEquals(SmartRobot.WATCHDOG_PASSES, loop.consecutiveMisses);
+        assertFalse(simulator.leftMotor().isMoving());
+        assertFalse(simulator.rightMotor().isMoving());
+    }
+
+    @Test
+    public void robotStopsAtOnceWhenAPassIsFarTooLate()
+    {
+        SimulatedRobot simulator = new SimulatedRobot(FloorPlan.furnishedRoom(), 0, 0, 0, 1);
+        SmartRobot robot = movingRobot(simulator);
+        simulator.sleep(robot.movingLoop.period + SmartRobot.WATCHDOG_LIMIT * MILLISECOND);
+        try
+        {
+            robot.movingLoop.next();
+            fail("the watchdog let the robot carry on");
+        }
+        catch (SmartRobot.MissionFailure expected)
+        {
+        }
+        assertEquals(1, robot.movingLoop.consecutiveMisses);
+        assertFalse(simulator.leftMotor().isMoving());
+    }
+}
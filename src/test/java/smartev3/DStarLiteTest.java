@@ -0,0 +1,143 @@
+package smartev3;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+public class DStarLiteTest
+{
+    private static final int WIDTH = 20; // cells across the corridor
+    private static final int LENGTH = 60; // cells along it
+
+    /**
+     * A known corridor with unsafe walls, open to the unknown at its far
+     * (eastern) end, with the robot near its western end.
+     */
+    private static DiscoveryMap corridor(DiscoveryMap.PlannerMode mode)
+    {
+        DiscoveryMap map = new DiscoveryMap();
+        map.plannerMode = mode;
+        Cell start = map.cellWithPoint(map.robotLocation);
+        int top = start.row - WIDTH / 2;
+        int left = start.column - 2;
+        for (int row = top; row < top + WIDTH; row++)
+        {
+            for (int column = left; column < left + LENGTH; column++)
+            {
+                Cell cell = map.cellAt(row, column);
+                cell.setKnown(true);
+                if (row == top || row == top + WIDTH - 1 || column == left)
+                {
+                    cell.setUnsafe(true);
+                }
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Close the corridor off 10 cells east of the robot, but for one cell.
+     */
+    private static Cell addWall(DiscoveryMap map)
+    {
+        Cell start = map.cellWithPoint(map.robotLocation);
+        Cell gap = map.cellAt(start.row + WIDTH / 2 - 3, start.column + 10);
+        for (int row = start.row - WIDTH / 2; row < start.row + WIDTH / 2; row++)
+        {
+            if (row != gap.row) map.cellAt(row, gap.column).setUnsafe(true);
+        }
+        return gap;
+    }
+
+    /**
+     * Check the path is unbroken from the robot to an unknown cell through
+     * known safe cells, and return its cost in the planner's units.
+     */
+    private static int checkPath(DiscoveryMap map)
+    {
+        List<Cell> path = map.cellsToTarget;
+        assertTrue(path.size() > 1);
+        assertEquals(map.cellWithPoint(map.robotLocation), path.get(0));
+        Cell target = path.get(path.size() - 1);
+        assertEquals(map.targetCell, target);
+        assertFalse(target.isKnown());
+        int cost = 0;
+        for (int i = 1; i < path.size(); i++)
+        {
+            Cell from = path.get(i - 1), to = path.get(i);
+            int dr = Math.abs(to.row - from.row), dc = Math.abs(to.column - from.column);
+            assertTrue("step " + from + " to " + to, dr <= 1 && dc <= 1 && dr + dc > 0);
+            assertTrue(to.isSafe());
+            if (to != target) assertTrue(to.isKnown());
+            cost += dr + dc == 2 ? DStarLite.DIAGONAL_COST : DStarLite.STRAIGHT_COST;
+        }
+        return cost;
+    }
+
+    @Test
+    public void findsAPathToTheUnknown()
+    {
+        DiscoveryMap map = corridor(DiscoveryMap.PlannerMode.D_STAR_LITE);
+        map.chooseTarget();
+        checkPath(map);
+        assertTrue(map.incrementalPlanner().nodesExpanded > 0);
+    }
+
+    @Test
+    public void repairsThePathWhenAWallAppears()
+    {
+        DiscoveryMap map = corridor(DiscoveryMap.PlannerMode.D_STAR_LITE);
+        map.chooseTarget();
+        Cell target = map.targetCell;
+        int firstExpanded = map.incrementalPlanner().nodesExpanded;
+        Cell gap = addWall(map);
+        map.chooseTarget();
+        int repairedCost = checkPath(map);
+        assertEquals(target, map.targetCell);
+        assertTrue(map.cellsToTarget.contains(gap));
+        assertTrue(map.incrementalPlanner().nodesExpanded < firstExpanded);
+
+        // The repair is as cheap as a search from scratch.
+        DiscoveryMap fresh = corridor(DiscoveryMap.PlannerMode.D_STAR_LITE);
+        addWall(fresh);
+        fresh.chooseTarget();
+        assertEquals(target.index, fresh.targetCell.index);
+        assertEquals(checkPath(fresh), repairedCost);
+    }
+
+    @Test
+    public void repairsThePathWhenTheWallGoesAgain()
+    {
+        DiscoveryMap map = corridor(DiscoveryMap.PlannerMode.D_STAR_LITE);
+        addWall(map);
+        map.chooseTarget();
+        int walledCost = checkPath(map);
+        Cell start = map.cellWithPoint(map.robotLocation);
+        for (int row = start.row - WIDTH / 2 + 1; row < start.row + WIDTH / 2 - 1; row++)
+        {
+            map.cellAt(row, start.column + 10).setUnsafe(false);
+        }
+        map.chooseTarget();
+        int openCost = checkPath(map);
+        assertTrue(openCost < walledCost);
+
+        DiscoveryMap fresh = corridor(DiscoveryMap.PlannerMode.D_STAR_LITE);
+        fresh.chooseTarget();
+        assertEquals(fresh.targetCell.index, map.targetCell.index);
+        assertEquals(checkPath(fresh), openCost);
+    }
+
+    @Test
+    public void noPathWhenTheWayIsClosed()
+    {
+        DiscoveryMap map = corridor(DiscoveryMap.PlannerMode.D_STAR_LITE);
+        map.chooseTarget();
+        Cell gap = addWall(map);
+        gap.setUnsafe(true);
+        map.chooseTarget();
+        assertNull(map.targetCell);
+        assertTrue(map.cellsToTarget.isEmpty());
+    }
+}
@@ -0,0 +1,391 @@
+package smartev3;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DiscoveryMapTest
+{
+    static ProximityMap fullScan(float distance)
+    {
+        ProximityMap scan = new ProximityMap(null, -135, 135);
+        for (int angle = scan.minimumAngle; angle <= scan.maximumAngle; angle++)
+        {
+            scan.setDistanceAtAngle(angle, distance);
+        }
+        return scan;
+    }
+
+    @Test
+    public void cellsAreViewsOfTheMapsState()
+    {
+        DiscoveryMap map = new DiscoveryMap();
+        Cell cell = map.cellAt(3, 4);
+        Cell same = map.cellAt(cell.index);
+        assertEquals(cell, same);
+        assertEquals(cell.hashCode(), same.hashCode());
+        assertFalse(same.isKnown());
+        cell.setKnown(true);
+        cell.setUnsafe(true);
+        assertTrue(same.isKnown());
+        assertTrue(same.isUnsafe());
+        assertFalse(same.isSafe());
+        cell.setUnsafe(false);
+        assertTrue(same.isSafe());
+        assertFalse(map.cellAt(3, 5).isKnown());
+    }
+
+    @Test
+    public void cellsAndPointsAgree()
+    {
+        DiscoveryMap map = new DiscoveryMap();
+        Cell cell = map.cellWithPoint(new Point(123, -45));
+        assertTrue(cell.left <= 123 && 123 < cell.right);
+        assertTrue(cell.top <= -45 && -45 < cell.bottom);
+        assertEquals(cell, map.cellWithPoint(cell.midpoint));
+        Cell north = map.cellWithPoint(new Point(123, -45 + map.getCellSize()));
+        assertEquals(cell.row - 1, north.row);
+        assertEquals(cell.column, north.column);
+    }
+
+    @Test
+    public void scanMarksObstaclesAndTheFreeSpaceBeforeThem()
+    {
+        DiscoveryMap map = new DiscoveryMap();
+        map.addObstacles(fullScan(100), 0);
+        Cell robot = map.cellWithPoint(map.robotLocation);
+        assertTrue(robot.isKnown());
+        assertFalse(robot.hasObstacles());
+        assertTrue(map.cellWithPoint(new Point(0, 100)).hasObstacles());
+        assertTrue(map.cellWithPoint(new Point(100, 0)).hasObstacles());
+        Cell between = map.cellWithPoint(new Point(0, 50));
+        assertTrue(between.isKnown());
+        assertFalse(between.hasObstacles());
+        assertFalse(map.cellWithPoint(new Point(0, 200)).isKnown());
+        // Behind the robot, outside the scan.
+        assertFalse(map.cellWithPoint(new Point(0, -50)).isKnown());
+    }
+
+    private static final int FREE = DiscoveryMap.KNOWN;
+    private static final int OBSTACLE = DiscoveryMap.KNOWN | 1 << 8;
+
+    private static boolean isKnownFree(DiscoveryMap map, int index)
+    {
+        int state = map.storedState(index);
+        return (state & DiscoveryMap.KNOWN) != 0 && (state & 0xff00) == 0;
+    }
+
+    @Test
+    public void frontierMatchesAFullRescanAfterRandomUpdates()
+    {
+        DiscoveryMap map = new DiscoveryMap();
+        Random random = new Random(5);
+        int[] states = { 0, FREE, FREE, OBSTACLE, 1 << 8 };
+        int first = 30;
+        int last = 70;
+        map.addObstacles(fullScan(100), 0);
+        for (int round = 0; round < 40; round++)
+        {
+            for (int i = 0; i < 60; i++)
+            {
+                int index = map.indexOfCell(first + random.nextInt(last - first), first + random.nextInt(last - first));
+                map.restoreState(index, states[random.nextInt(states.length)]);
+            }
+            if (round % 10 == 9)
+            {
+                map.robotLocation = new Point(random.nextInt(200) - 100, random.nextInt(200) - 100);
+                map.addObstacles(fullScan(20 + random.nextInt(100)), random.nextInt(360));
+            }
+            int frontier = 0;
+            for (int row = 0; row < map.getGridSize(); row++)
+            {
+                for (int column = 0; column < map.getGridSize(); column++)
+                {
+                    int index = map.indexOfCell(row, column);
+                    boolean expected = false;
+                    if (!map.isKnown(index))
+                    {
+                        for (int k = 0; k < 8; k++)
+                        {
+                            int n = map.neighbourOf(index, k);
+                            if (n != -1 && isKnownFree(map, n)) expected = true;
+                        }
+                    }
+                    assertEquals("cell " + row + ", " + column + " in round " + round, expected, map.isFrontier(index));
+                    if (expected) frontier++;
+                }
+            }
+            assertEquals(frontier, map.frontierSize());
+        }
+    }
+
+    @Test
+    public void distanceFieldMatchesBruteForceAfterAddingAndRemovingObstacles()
+    {
+        DiscoveryMap map = new DiscoveryMap();
+        Random random = new Random(3);
+        int limit = 100 / map.getCellSize(); // the field reaches a metre
+        int first = 30;
+        int last = 70;
+        for (int round = 0; round < 30; round++)
+        {
+            // Mostly removals once the map fills up, so raise waves meet lower ones.
+            int changes = round < 5 ? 40 : 15;
+            for (int i = 0; i < changes; i++)
+            {
+                int index = map.indexOfCell(first + random.nextInt(last - first), first + random.nextInt(last - first));
+                map.restoreState(index, random.nextInt(3) == 0 ? OBSTACLE : FREE);
+            }
+            int[] obstacles = new int[map.getGridSize() * map.getGridSize()];
+            int count = 0;
+            for (int row = 0; row < map.getGridSize(); row++)
+            {
+                for (int column = 0; column < map.getGridSize(); column++)
+                {
+                    int index = map.indexOfCell(row, column);
+                    if (map.obstacleCount(index) != 0) obstacles[count++] = index;
+                }
+            }
+            for (int row = 0; row < map.getGridSize(); row++)
+            {
+                for (int column = 0; column < map.getGridSize(); column++)
+                {
+                    int expected = Integer.MAX_VALUE;
+                    for (int i = 0; i < count; i++)
+                    {
+                        int dr = map.rowOf(obstacles[i]) - row;
+                        int dc = map.columnOf(obstacles[i]) - column;
+                        expected = Math.min(expected, dr * dr + dc * dc);
+                    }
+                    if (expected > limit * limit) expected = Integer.MAX_VALUE;
+                    int index = map.indexOfCell(row, column);
+                    assertEquals("cell " + row + ", " + column + " in round " + round, expected, map.obstacleDistanceSquared(index));
+                }
+            }
+        }
+    }
+
+    private static ProximityMap reading(float distance)
+    {
+        ProximityMap scan = new ProximityMap(null, -135, 135);
+        scan.setDistanceAtAngle(0, distance);
+        return scan;
+    }
+
+    @Test
+    public void coneModelWeighsEvidenceAcrossTheBeam()
+    {
+        DiscoveryMap map = new DiscoveryMap();
+        map.setOccupancyMode(DiscoveryMap.OccupancyMode.LOG_ODDS);
+        map.robotLocation = new Point(5, 5); // middle of a cell
+        map.addObstacles(reading(100), 0);
+        int hit = map.indexWithPoint(5, 105);
+        int before = map.indexWithPoint(5, 55);
+        assertEquals(DiscoveryMap.LOG_ODDS_HIT, map.logOddsAt(hit));
+        // Several rays cross the cells near the robot, but each counts once.
+        assertEquals(DiscoveryMap.LOG_ODDS_MISS, map.logOddsAt(before));
+        assertEquals(0, map.logOddsAt(map.indexWithPoint(5, 205)));
+        // Off axis, at the edge of the cone: weaker evidence of the same kind.
+        double edge = Math.toRadians(DiscoveryMap.ULTRASONIC_HALF_CONE);
+        int side = map.indexWithPoint(5 + 100 * Math.sin(edge), 5 + 100 * Math.cos(edge));
+        assertTrue(map.logOddsAt(side) > 0 && map.logOddsAt(side) < DiscoveryMap.LOG_ODDS_HIT);
+        // One reading is not enough to decide either way.
+        assertFalse(map.isKnown(hit));
+        assertFalse(map.isKnown(before));
+        assertEquals(0, map.frontierSize());
+    }
+
+    @Test
+    public void coneModelDecidesOnRepeatedEvidence()
+    {
+        DiscoveryMap map = new DiscoveryMap();
+        map.setOccupancyMode(DiscoveryMap.OccupancyMode.LOG_ODDS);
+        map.robotLocation = new Point(5, 5);
+        int hit = map.indexWithPoint(5, 105);
+        int before = map.indexWithPoint(5, 55);
+        for (int i = 0; i < 3; i++)
+        {
+            map.addObstacles(reading(100), 0);
+        }
+        assertTrue(map.obstacleCount(hit) != 0);
+        assertTrue(map.isKnown(before));
+        assertEquals(0, map.obstacleCount(before));
+        assertEquals(0, map.obstacleDistanceSquared(hit));
+        for (int i = 0; i < 20; i++)
+        {
+            map.addObstacles(reading(100), 0);
+        }
+        assertEquals(DiscoveryMap.LOG_ODDS_LIMIT, map.logOddsAt(hit));
+        assertEquals(-DiscoveryMap.LOG_ODDS_LIMIT, map.logOddsAt(before));
+        // The obstacle has moved away: readings through the cell clear it,
+        // after enough of them to outweigh what was seen before.
+        map.addObstacles(reading(200), 0);
+        assertTrue(map.obstacleCount(hit) != 0);
+        for (int i = 0; i < 20; i++)
+        {
+            map.addObstacles(reading(200), 0);
+        }
+        assertEquals(0, map.obstacleCount(hit));
+        assertTrue(map.isKnown(hit));
+        assertTrue(map.obstacleCount(map.indexWithPoint(5, 205)) != 0);
+        assertEquals(100, map.obstacleDistanceSquared(hit));
+    }
+
+    /**
+     * A known free square room from first to last (rows and columns), walled
+     * in, with the rest of the map unknown.
+     */
+    private static void room(DiscoveryMap map, int first, int last)
+    {
+        for (int row = first - 1; row <= last + 1; row++)
+        {
+            for (int column = first - 1; column <= last + 1; column++)
+            {
+                boolean wall = row < first || row > last || column < first || column > last;
+                map.restoreState(map.indexOfCell(row, column), wall ? OBSTACLE : FREE);
+            }
+        }
+    }
+
+    private static void doorway(DiscoveryMap map, int column, int firstRow, int lastRow)
+    {
+        for (int row = firstRow; row <= lastRow; row++)
+        {
+            map.restoreState(map.indexOfCell(row, column), 0);
+        }
+    }
+
+    @Test
+    public void informationGainPassesOverALoneUnknownCell()
+    {
+        DiscoveryMap map = new DiscoveryMap();
+        map.sweepRange = 50; // keep the view from the lone cell inside the room
+        room(map, 40, 60);
+        doorway(map, 61, 45, 55);
+        int lone = map.indexOfCell(50, 45);
+        map.restoreState(lone, 0);
+        map.robotLocation = map.cellAt(50, 50).midpoint;
+
+        map.chooseTarget();
+        assertEquals(lone, map.targetCell.index);
+
+        map.targetMode = DiscoveryMap.TargetMode.INFORMATION_GAIN;
+        map.chooseTarget();
+        assertEquals(2, map.frontierClusters);
+        assertEquals(61, map.targetCell.column);
+        assertTrue(map.targetCell.row > 45 && map.targetCell.row < 55);
+        assertTrue(map.expectedGain > map.expectedGainAt(lone, 270));
+        assertEquals(map.targetCell, map.cellsToTarget.get(map.cellsToTarget.size() - 1));
+        assertEquals(map.cellWithPoint(map.robotLocation), map.cellsToTarget.get(0));
+
+        // Close the doorway: the lone cell is still not worth a pass.
+        room(map, 40, 60);
+        map.restoreState(lone, 0);
+        map.chooseTarget();
+        assertEquals(1, map.frontierClusters);
+        assertNull(map.targetCell);
+        assertTrue(map.cellsToTarget.isEmpty());
+    }
+
+    @Test
+    public void informationGainDiscountsTheDistanceToDrive()
+    {
+        DiscoveryMap map = new DiscoveryMap();
+        map.targetMode = DiscoveryMap.TargetMode.INFORMATION_GAIN;
+        room(map, 40, 60);
+        doorway(map, 39, 46, 54);
+        doorway(map, 61, 46, 54);
+        map.robotLocation = map.cellAt(50, 44).midpoint;
+        map.chooseTarget();
+        assertEquals(2, map.frontierClusters);
+        assertEquals(39, map.targetCell.column);
+        map.robotLocation = map.cellAt(50, 56).midpoint;
+        map.chooseTarget();
+        assertEquals(61, map.targetCell.column);
+        // Unless the near doorway only leads into a closet.
+        for (int row = 45; row <= 55; row++)
+        {
+            map.restoreState(map.indexOfCell(row, 64), OBSTACLE);
+        }
+        for (int column = 61; column <= 64; column++)
+        {
+            map.restoreState(map.indexOfCell(45, column), OBSTACLE);
+            map.restoreState(map.indexOfCell(55, column), OBSTACLE);
+        }
+        map.chooseTarget();
+        assertEquals(2, map.frontierClusters);
+        assertEquals(39, map.targetCell.column);
+    }
+
+    /**
+     * The console map at a zoom level centred on the robot, worked out from
+     * every cell the view covers rather than from the overview counts.
+     */
+    private static String consoleByCells(DiscoveryMap map, int level)
+    {
+        int rows = ConsoleGrid.ROWS;
+        int cols = ConsoleGrid.COLS;
+        char[][] array = ConsoleGrid.newArray(rows, cols);
+        int robot = map.indexWithPoint(map.robotLocation.x, map.robotLocation.y);
+        int fromRow = ((TiledGrid.row(robot) >> level) - rows) << level;
+        int fromColumn = ((TiledGrid.column(robot) >> level) - cols / 2) << level;
+        int size = 1 << level;
+        for (int row = 0; row < rows; row++)
+        {
+            for (int col = 0; col < cols; col++)
+            {
+                boolean obstacle = false, unknown = false;
+                for (int r = fromRow + 2 * row * size; r < fromRow + (2 * row + 2) * size; r++)
+                {
+                    for (int c = fromColumn + col * size; c < fromColumn + (col + 1) * size; c++)
+                    {
+                        if (!TiledGrid.contains(r, c)) continue;
+                        int index = TiledGrid.index(r, c);
+                        obstacle |= map.obstacleCount(index) != 0;
+                        unknown |= !map.isKnown(index);
+                    }
+                }
+                array[row][col] = obstacle ? 'O' : unknown ? '?' : ' ';
+            }
+        }
+        for (Cell cell : map.cellsToTarget)
+        {
+            int row = Math.floorDiv(TiledGrid.row(cell.index) - fromRow, 2 * size);
+            int col = Math.floorDiv(TiledGrid.column(cell.index) - fromColumn, size);
+            if (row >= 0 && row < rows && col >= 0 && col < cols)
+            {
+                array[row][col] = cell.equals(map.targetCell) ? '$' : ':';
+            }
+        }
+        array[Math.floorDiv(TiledGrid.row(robot) - fromRow, 2 * size)][Math.floorDiv(TiledGrid.column(robot) - fromColumn, size)] = '#';
+        return new ConsoleGrid(array, "Map").toString();
+    }
+
+    @Test
+    public void consoleMapAtEveryZoomMatchesTheCells()
+    {
+        DiscoveryMap map = new DiscoveryMap();
+        Random random = new Random(7);
+        for (int round = 0; round < 6; round++)
+        {
+            map.robotLocation = new Point(random.nextInt(300) - 150, random.nextInt(300) - 150);
+            map.addObstacles(fullScan(30 + random.nextInt(150)), random.nextInt(360));
+            // Clear some obstacles and forget some cells, so counts go down as well as up.
+            for (int i = 0; i < 200; i++)
+            {
+                int index = map.indexOfCell(20 + random.nextInt(60), 20 + random.nextInt(60));
+                map.restoreState(index, random.nextBoolean() ? FREE : 0);
+            }
+            map.chooseTarget();
+            DiscoveryMap snapshot = map.snapshot();
+            for (int level = 0; level <= 5; level++)
+            {
+                String expected = consoleByCells(map, level);
+                assertEquals("level " + level + " in round " + round, expected, map.consoleGrid("Map", level).toString());
+                assertEquals(expected, snapshot.consoleGrid("Map", level).toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package smartev3;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+public class GridRayTest
+{
+    private static List<String> cells(GridRay ray, double fromColumn, double fromRow, double toColumn, double toRow)
+    {
+        List<String> cells = new ArrayList<String>();
+        ray.start(fromColumn, fromRow, toColumn, toRow);
+        while (ray.next())
+        {
+            cells.add(ray.row + "," + ray.column);
+        }
+        return cells;
+    }
+
+    @Test
+    public void horizontalRayVisitsEachColumnOnce()
+    {
+        assertEquals(Arrays.asList("2,0", "2,1", "2,2", "2,3"), cells(new GridRay(), 0.5, 2.5, 3.5, 2.5));
+        assertEquals(Arrays.asList("2,3", "2,2", "2,1", "2,0"), cells(new GridRay(), 3.5, 2.5, 0.5, 2.5));
+    }
+
+    @Test
+    public void rayWithinOneCellVisitsOnlyThatCell()
+    {
+        assertEquals(Arrays.asList("-1,-1"), cells(new GridRay(), -0.9, -0.9, -0.1, -0.2));
+    }
+
+    @Test
+    public void shallowRayStepsBetweenSideBySideCells()
+    {
+        GridRay ray = new GridRay();
+        List<String> cells = cells(ray, 0.5, 0.5, 9.5, 3.5);
+        assertEquals("0,0", cells.get(0));
+        assertEquals("3,9", cells.get(cells.size() - 1));
+        assertEquals(1 + 3 + 9, cells.size());
+        assertEquals(cells.size(), new HashSet<String>(cells).size());
+    }
+
+    @Test
+    public void diagonalThroughCornersOnlyCutsThemWhenAsked()
+    {
+        GridRay ray = new GridRay();
+        // Without, a tie steps along the row first.
+        assertEquals(Arrays.asList("0,0", "1,0", "1,1", "2,1", "2,2"), cells(ray, 0.5, 0.5, 2.5, 2.5));
+        ray.cutCorners = true;
+        assertEquals(Arrays.asList("0,0", "1,1", "2,2"), cells(ray, 0.5, 0.5, 2.5, 2.5));
+    }
+}
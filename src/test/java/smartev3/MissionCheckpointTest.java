@@ -0,0 +1,149 @@
+package smartev3;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MissionCheckpointTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String directory;
+
+    @Before
+    public void setUp()
+    {
+        directory = MissionCheckpoint.DIRECTORY;
+        MissionCheckpoint.DIRECTORY = folder.getRoot().getPath();
+    }
+
+    @After
+    public void tearDown()
+    {
+        MissionCheckpoint.DIRECTORY = directory;
+    }
+
+    private static ProximityMap scan(float distance)
+    {
+        ProximityMap scan = new ProximityMap(null, -135, 135);
+        for (int angle = scan.minimumAngle; angle <= scan.maximumAngle; angle++)
+        {
+            scan.setDistanceAtAngle(angle, distance);
+        }
+        return scan;
+    }
+
+    private static void assertSameCells(DiscoveryMap expected, DiscoveryMap actual)
+    {
+        int[] cells = expected.storedCells();
+        int[] loaded = actual.storedCells();
+        Arrays.sort(cells);
+        Arrays.sort(loaded);
+        assertArrayEquals(cells, loaded);
+        for (int cell : cells)
+        {
+            assertEquals(expected.storedState(cell), actual.storedState(cell));
+        }
+    }
+
+    @Test
+    public void mapAndStateSurviveSnapshotAndJournal()
+    {
+        DiscoveryMap map = new DiscoveryMap();
+        MissionCheckpoint checkpoint = new MissionCheckpoint("test", map);
+        assertFalse(checkpoint.exists());
+        map.addObstacles(scan(80), 0);
+        checkpoint.pass = 1;
+        checkpoint.heading = 90;
+        checkpoint.targetHeading = 120;
+        checkpoint.addRouteStep(1, 2.5f);
+        checkpoint.save(); // snapshot
+        map.robotLocation = new Point(30, 40);
+        map.addObstacles(scan(120), 45);
+        checkpoint.pass = 2;
+        checkpoint.addRouteStep(2, -7);
+        checkpoint.save(); // journal
+        assertTrue(checkpoint.exists());
+
+        DiscoveryMap restored = new DiscoveryMap();
+        MissionCheckpoint loaded = new MissionCheckpoint("test", restored);
+        assertTrue(loaded.load());
+        assertEquals(2, loaded.pass);
+        assertEquals(90, loaded.heading);
+        assertEquals(120, loaded.targetHeading);
+        assertEquals(2, loaded.routeLength());
+        assertEquals(2, loaded.routeKind(1));
+        assertEquals(-7, loaded.routeNumber(1), 0);
+        assertEquals(30, restored.robotLocation.x, 0);
+        assertEquals(40, restored.robotLocation.y, 0);
+        assertSameCells(map, restored);
+
+        checkpoint.delete();
+        assertFalse(new MissionCheckpoint("test", new DiscoveryMap()).load());
+    }
+
+    @Test
+    public void recordCutShortByACrashIsDropped() throws IOException
+    {
+        MissionCheckpoint checkpoint = new MissionCheckpoint("test", null);
+        checkpoint.pass = 1;
+        checkpoint.save();
+        checkpoint.pass = 2;
+        checkpoint.save();
+        File journal = new File(MissionCheckpoint.DIRECTORY, "test.journal");
+        long goodLength = journal.length();
+        checkpoint.pass = 3;
+        checkpoint.save();
+        RandomAccessFile file = new RandomAccessFile(journal, "rw");
+        try
+        {
+            file.setLength(goodLength + 5);
+        }
+        finally
+        {
+            file.close();
+        }
+
+        MissionCheckpoint loaded = new MissionCheckpoint("test", null);
+        assertTrue(loaded.load());
+        assertEquals(2, loaded.pass);
+        assertEquals(goodLength, journal.length());
+    }
+
+    @Test
+    public void recordsOfAnOldJournalAreNotReplayedOverANewSnapshot() throws IOException
+    {
+        MissionCheckpoint checkpoint = new MissionCheckpoint("test", null);
+        checkpoint.pass = 1;
+        checkpoint.heading = 5;
+        checkpoint.save(); // snapshot
+        checkpoint.pass = 2;
+        checkpoint.save(); // journal
+        File journal = new File(MissionCheckpoint.DIRECTORY, "test.journal");
+        byte[] oldJournal = Files.readAllBytes(journal.toPath());
+        // Save until the journal outgrows the snapshot and a new snapshot replaces both.
+        for (int pass = 3; journal.exists(); pass++)
+        {
+            checkpoint.pass = pass;
+            checkpoint.heading = 10;
+            checkpoint.save();
+        }
+        int lastPass = checkpoint.pass;
+        // As if a crash left the old journal behind the new snapshot.
+        Files.write(journal.toPath(), oldJournal);
+
+        MissionCheckpoint loaded = new MissionCheckpoint("test", null);
+        assertTrue(loaded.load());
+        assertEquals(lastPass, loaded.pass);
+        assertEquals(10, loaded.heading);
+    }
+}
@@ -0,0 +1,135 @@
+package smartev3;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MovingScanTest
+{
+    /**
+     * Driving north up x = 0 from y = 0, one sample a centimetre, with the
+     * head turned right towards a wall at x = 80.
+     */
+    private static MovingScan alongWall()
+    {
+        MovingScan scan = new MovingScan(200);
+        for (int i = 0; i <= 100; i++)
+        {
+            scan.add(0, i, 0, 90, 80, i * 10);
+        }
+        return scan;
+    }
+
+    @Test
+    public void keepsWhatFitsAndCountsTheRest()
+    {
+        MovingScan scan = new MovingScan(3);
+        for (int i = 0; i < 5; i++)
+        {
+            scan.add(i, -i, 10 * i, -i, 50 + i, 100 * i);
+        }
+        assertEquals(3, scan.count);
+        assertEquals(2, scan.dropped);
+        assertEquals(2, scan.x[2], 0);
+        assertEquals(-2, scan.y[2], 0);
+        assertEquals(18, scan.bearing(2));
+        assertEquals(52, scan.distances[2], 0);
+        assertEquals(200, scan.times[2]);
+        scan.clear();
+        assertEquals(0, scan.count);
+        assertEquals(0, scan.dropped);
+    }
+
+    @Test
+    public void transformMovesThePointsWithTheFrame()
+    {
+        Random random = new Random(1);
+        MovingScan scan = new MovingScan(50);
+        for (int i = 0; i < scan.capacity; i++)
+        {
+            scan.add(random.nextInt(200) - 100, random.nextInt(200) - 100, random.nextInt(360), random.nextInt(181) - 90,
+                10 + random.nextInt(200), i);
+        }
+        double[] px = new double[scan.count], py = new double[scan.count];
+        for (int i = 0; i < scan.count; i++)
+        {
+            px[i] = scan.pointX(i);
+            py[i] = scan.pointY(i);
+        }
+        int turn = 30;
+        scan.transform(100, -40, turn);
+        double sin = Math.sin(Math.toRadians(turn)), cos = Math.cos(Math.toRadians(turn));
+        for (int i = 0; i < scan.count; i++)
+        {
+            // Turning bearings clockwise by the angle turns points clockwise about the origin.
+            assertEquals(100 + px[i] * cos + py[i] * sin, scan.pointX(i), 1e-6);
+            assertEquals(-40 - px[i] * sin + py[i] * cos, scan.pointY(i), 1e-6);
+        }
+    }
+
+    @Test
+    public void lonelyReadingsAreNotTrusted()
+    {
+        MovingScan scan = alongWall();
+        assertEquals(1, scan.confidence(50), 0);
+        assertEquals(1, scan.confidence(0), 0);
+        scan.clear();
+        scan.add(0, 0, 0, 0, Float.NaN, 0);
+        scan.add(0, 1, 0, 0, Float.NaN, 10);
+        scan.add(0, 2, 0, 0, 120, 20); // ghost
+        scan.add(0, 3, 0, 0, Float.NaN, 30);
+        scan.add(0, 4, 0, 0, 40, 40); // disagrees by more than 10 cm
+        assertEquals(0, scan.confidence(0), 0);
+        assertEquals(1 / 3f, scan.confidence(2), 1e-6);
+        assertEquals(1 / 3f, scan.confidence(4), 1e-6);
+    }
+
+    @Test
+    public void readingsAreMeasuredAgainFromAnotherPose()
+    {
+        MovingScan scan = new MovingScan(4);
+        scan.add(0, 0, 0, 0, 100, 0); // obstacle at (0, 100)
+        scan.add(0, 0, 0, 45, Float.NaN, 10);
+        ProximityMap map = new ProximityMap(null, -135, 135);
+        // From behind: straight ahead, further away.
+        scan.addTo(map, 0, 0, -50, 0);
+        assertEquals(150, map.getDistanceAtAngle(0), 1e-4);
+        // From the east, facing west: also straight ahead.
+        map.reset();
+        scan.addTo(map, 0, 100, 100, 270);
+        assertEquals(100, map.getDistanceAtAngle(0), 1e-4);
+        // From where it was taken: the angle is the head angle less the heading difference.
+        map.reset();
+        scan.addTo(map, 0, 0, 0, 10);
+        assertEquals(100, map.getDistanceAtAngle(-10), 0);
+        // A miss stays a miss, at the angle to the far end of its beam.
+        map.reset();
+        scan.addTo(map, 1, 0, -50, 0);
+        float reach = SmartRobot.MAXIMUM_TRUSTED_DISTANCE;
+        int angle = (int)Math.round(Math.toDegrees(Math.atan2(reach * Math.sqrt(0.5), reach * Math.sqrt(0.5) + 50)));
+        assertEquals(1, map.sampleCount(angle));
+        assertTrue(Float.isNaN(map.getDistanceAtAngle(angle)));
+    }
+
+    @Test
+    public void eachReadingIsTracedFromWhereItWasTaken()
+    {
+        MovingScan scan = alongWall();
+        scan.add(0, 101, 0, 90, 30, 1010); // ghost at the end of the drive
+        DiscoveryMap map = new DiscoveryMap();
+        map.addObstacles(scan);
+        for (int y = 5; y <= 95; y += 10)
+        {
+            assertTrue(map.obstacleCount(map.indexWithPoint(85, y)) != 0);
+            assertTrue(map.isKnown(map.indexWithPoint(45, y)));
+            assertEquals(0, map.obstacleCount(map.indexWithPoint(45, y)));
+            assertEquals(0, map.obstacleCount(map.indexWithPoint(5, y)));
+        }
+        // Nothing was seen from a single pose beyond the drive, nor behind the wall.
+        assertFalse(map.isKnown(map.indexWithPoint(45, 135)));
+        assertFalse(map.isKnown(map.indexWithPoint(95, 50)));
+        assertFalse(map.isKnown(map.indexWithPoint(35, 105)));
+    }
+}
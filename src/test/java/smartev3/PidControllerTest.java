@@ -0,0 +1,41 @@
+package smartev3;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class PidControllerTest
+{
+    @Test
+    public void firstUpdateHasNoDerivative()
+    {
+        PidController pid = new PidController(2, 0, 10, 100);
+        assertEquals(6, pid.update(3, 0.1), 1e-9);
+        assertEquals(2 * 4 + 10 * (4 - 3) / 0.1, pid.update(4, 0.1), 1e-9);
+        pid.reset();
+        assertEquals(8, pid.update(4, 0.1), 1e-9);
+    }
+
+    @Test
+    public void integralAddsUpErrorOverTime()
+    {
+        PidController pid = new PidController(0, 5, 0, 100);
+        assertEquals(1, pid.update(2, 0.1), 1e-9);
+        assertEquals(2, pid.update(2, 0.1), 1e-9);
+        // No time passed, so nothing is added.
+        assertEquals(2, pid.update(2, 0), 1e-9);
+    }
+
+    @Test
+    public void integralDoesNotWindUpPastItsLimit()
+    {
+        PidController pid = new PidController(1, 10, 0, 3);
+        for (int i = 0; i < 100; i++)
+        {
+            pid.update(5, 0.1);
+        }
+        assertEquals(5 + 3, pid.update(5, 0.1), 1e-9);
+        // Once the error changes sign, the integral unwinds from the limit.
+        assertEquals(-1 + 3 - 1, pid.update(-1, 0.1), 1e-9);
+    }
+}
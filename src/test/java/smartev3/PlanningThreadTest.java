@@ -0,0 +1,61 @@
+package smartev3;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class PlanningThreadTest
+{
+    @Test
+    public void plansAheadOnASnapshot()
+    {
+        DiscoveryMap map = new DiscoveryMap();
+        map.addObstacles(DiscoveryMapTest.fullScan(150), 0);
+        PlanningThread thread = new PlanningThread();
+        thread.start();
+        try
+        {
+            thread.plan(map.snapshot(), map.robotLocation, 0);
+            PlanningThread.Plan plan = thread.takePlan();
+            assertNotNull(plan);
+            assertTrue(plan.path.length > 1);
+            assertEquals(plan.path[0], plan.waypoints[0]);
+            assertEquals(plan.path[plan.path.length - 1], plan.waypoints[plan.waypoints.length - 1]);
+            assertTrue(plan.waypoints.length <= plan.path.length);
+            assertTrue(map.followPlan(plan.path, plan.waypoints));
+            assertEquals(plan.path[plan.path.length - 1], map.targetCell.index);
+            assertNull(thread.takePlan());
+        }
+        finally
+        {
+            thread.interrupt();
+        }
+    }
+
+    @Test
+    public void failedJobGivesAnEmptyPlan()
+    {
+        PlanningThread thread = new PlanningThread();
+        thread.start();
+        try
+        {
+            thread.plan(null, new Point(0, 0), 0);
+            PlanningThread.Plan plan = thread.takePlan();
+            assertNotNull(plan);
+            assertEquals(0, plan.path.length);
+            assertTrue(thread.isAlive());
+        }
+        finally
+        {
+            thread.interrupt();
+        }
+    }
+
+    @Test
+    public void takePlanDoesNotWaitForADeadThread()
+    {
+        PlanningThread thread = new PlanningThread();
+        thread.plan(new DiscoveryMap().snapshot(), new Point(0, 0), 0);
+        assertNull(thread.takePlan());
+    }
+}
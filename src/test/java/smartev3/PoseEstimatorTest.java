@@ -0,0 +1,130 @@
+package smartev3;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PoseEstimatorTest
+{
+    private static final int LEFT = 0, RIGHT = 1, GYROSCOPE = 2;
+    private static final double CIRCUMFERENCE = 5.6 * Math.PI; // centimetres
+    private static final int FULL_TURN_STEPS = 771; // 12 cm track
+
+    private PoseEstimator estimator;
+    private PoseEstimator.Pose pose;
+    private long time;
+    private double left, right, heading; // where the wheels and robot really are
+
+    @Before
+    public void setUp()
+    {
+        estimator = new PoseEstimator(new SensorSampler(), LEFT, RIGHT, GYROSCOPE);
+        estimator.setGeometry(CIRCUMFERENCE, FULL_TURN_STEPS);
+        pose = new PoseEstimator.Pose();
+        time = 1000000000L;
+        left = right = heading = 0;
+        estimator.sampled(LEFT, time, 0);
+        estimator.sampled(RIGHT, time, 0);
+        estimator.sampled(GYROSCOPE, time, 0);
+    }
+
+    /**
+     * Turn the wheels on by the given degrees and the robot by the given
+     * heading over a number of 10 ms samples, the gyroscope reading whole
+     * degrees, as the sampler would.
+     */
+    private void move(double leftDegrees, double rightDegrees, double turn, int samples)
+    {
+        for (int i = 0; i < samples; i++)
+        {
+            time += 10000000;
+            left += leftDegrees / samples;
+            right += rightDegrees / samples;
+            heading += turn / samples;
+            estimator.sampled(GYROSCOPE, time, (float)Math.floor(heading + 0.5));
+            estimator.sampled(LEFT, time + 1000000, Math.round(left));
+            estimator.sampled(RIGHT, time + 2000000, Math.round(right));
+        }
+        estimator.read(pose);
+    }
+
+    @Test
+    public void startsWhereItIsReset()
+    {
+        estimator.read(pose);
+        assertEquals(0, pose.x, 0);
+        assertEquals(0, pose.y, 0);
+        assertEquals(0, pose.heading, 0);
+        assertEquals(0, pose.deviation(), 0);
+        move(3600, 3600, 0, 100);
+        estimator.reset();
+        estimator.sampled(GYROSCOPE, time + 5000000, 7);
+        estimator.read(pose);
+        assertEquals(0, pose.x, 0);
+        assertEquals(0, pose.y, 0);
+        assertEquals(7, pose.heading, 0);
+    }
+
+    @Test
+    public void tracksAStraightDrive()
+    {
+        double metre = 100 / CIRCUMFERENCE * 360;
+        move(metre, metre, 0, 200);
+        assertEquals(0, pose.x, 0.1);
+        assertEquals(100, pose.y, 0.1);
+        assertEquals(0, pose.heading, 0.1);
+        assertTrue(pose.deviation() > 0 && pose.deviation() < 2);
+        assertEquals(time + 1500000, pose.time);
+        // On at a right angle, after turning on the spot.
+        move(FULL_TURN_STEPS / 4.0, -FULL_TURN_STEPS / 4.0, 90, 50);
+        move(metre / 2, metre / 2, 0, 100);
+        assertEquals(50, pose.x, 0.5);
+        assertEquals(100, pose.y, 0.5);
+        assertEquals(90, pose.heading, 0.5);
+    }
+
+    @Test
+    public void tracksATurnOnTheSpot()
+    {
+        move(FULL_TURN_STEPS / 4.0, -FULL_TURN_STEPS / 4.0, 90, 100);
+        assertEquals(0, pose.x, 0.1);
+        assertEquals(0, pose.y, 0.1);
+        assertEquals(90, pose.heading, 0.5);
+        // Headings carry on past a full turn rather than wrapping.
+        move(FULL_TURN_STEPS, -FULL_TURN_STEPS, 360, 400);
+        assertEquals(450, pose.heading, 0.5);
+        move(-FULL_TURN_STEPS / 2.0, FULL_TURN_STEPS / 2.0, -180, 200);
+        assertEquals(270, pose.heading, 0.5);
+        assertEquals(0, pose.x, 0.1);
+        assertEquals(0, pose.y, 0.1);
+    }
+
+    @Test
+    public void gyroscopeCorrectsWheelsThatSlip()
+    {
+        // The wheels turn for 90 degrees, but the robot only turns 80.
+        move(FULL_TURN_STEPS / 4.0, -FULL_TURN_STEPS / 4.0, 80, 100);
+        assertEquals(80, pose.heading, 1);
+        // Wheels that veer: they say straight on, the gyroscope says otherwise.
+        double metre = 100 / CIRCUMFERENCE * 360;
+        move(metre, metre, 10, 200);
+        assertEquals(90, pose.heading, 1);
+    }
+
+    @Test
+    public void posesInBetweenAreInterpolated()
+    {
+        PoseEstimator.Pose earlier = new PoseEstimator.Pose();
+        estimator.read(earlier);
+        double metre = 100 / CIRCUMFERENCE * 360;
+        move(metre, metre, 0, 100);
+        PoseEstimator.Pose between = new PoseEstimator.Pose();
+        between.interpolate(earlier, pose, earlier.time + (pose.time - earlier.time) / 4);
+        assertEquals(25, between.y, 0.1);
+        assertEquals(pose.varianceY, between.varianceY, 0);
+        between.interpolate(earlier, pose, pose.time + 1);
+        assertEquals(pose.y, between.y, 0);
+        assertEquals(pose.time, between.time);
+    }
+}
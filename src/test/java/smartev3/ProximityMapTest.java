@@ -0,0 +1,138 @@
+package smartev3;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ProximityMapTest
+{
+    @Test
+    public void nothingInRangeLeavesOneValleyAcross()
+    {
+        ProximityMap map = new ProximityMap(null, -90, 90);
+        assertEquals(1, map.findValleys(15, 100, 0));
+        assertEquals(0, map.valleyCentres[0]);
+        assertEquals(181, map.valleyWidths[0]);
+    }
+
+    @Test
+    public void obstacleAheadSplitsTheValleyByTheRobotsWidth()
+    {
+        ProximityMap map = new ProximityMap(null, -90, 90);
+        map.setDistanceAtAngle(0, 100);
+        // A 15 cm radius at 100 cm takes up asin(0.15), about 8.6 degrees either side.
+        assertEquals(2, map.findValleys(15, 150, 0));
+        assertEquals(-50, map.valleyCentres[0]);
+        assertEquals(81, map.valleyWidths[0]);
+        assertEquals(50, map.valleyCentres[1]);
+        assertEquals(81, map.valleyWidths[1]);
+    }
+
+    @Test
+    public void obstaclesBeyondTheLookaheadBlockNothing()
+    {
+        ProximityMap map = new ProximityMap(null, -90, 90);
+        map.setDistanceAtAngle(0, 100);
+        assertEquals(1, map.findValleys(15, 100, 0));
+        assertEquals(181, map.valleyWidths[0]);
+    }
+
+    @Test
+    public void obstacleWithinTheRadiusBlocksEveryAngle()
+    {
+        ProximityMap map = new ProximityMap(null, -90, 90);
+        map.setDistanceAtAngle(0, 10);
+        assertEquals(0, map.findValleys(15, 100, 0));
+    }
+
+    @Test
+    public void loneGhostReadingOnlyBlocksWithoutAConfidenceThreshold()
+    {
+        ProximityMap map = new ProximityMap(null, -90, 90);
+        for (int angle = -90; angle <= 90; angle++)
+        {
+            map.addSample(angle, Float.NaN, 0);
+            map.addSample(angle, Float.NaN, 10);
+        }
+        map.addSample(30, 50, 20);
+        assertEquals(50, map.medianDistance(30), 0);
+        assertTrue(map.confidence(30) < 0.5f);
+        assertEquals(2, map.findValleys(15, 100, 0));
+        assertEquals(1, map.findValleys(15, 100, 0.5f));
+    }
+
+    @Test
+    public void blockingDistancesGiveTheSameValleysAsTheHistogram()
+    {
+        Random random = new Random(16);
+        ProximityMap map = new ProximityMap(null, -135, 135);
+        for (int trial = 0; trial < 200; trial++)
+        {
+            map.reset();
+            for (int angle = -135; angle <= 135; angle++)
+            {
+                if (random.nextInt(4) == 0) continue;
+                map.setDistanceAtAngle(angle, 5 + 300 * random.nextFloat());
+            }
+            float radius = 5 + random.nextInt(20);
+            int furthest = map.findBlockingDistances(radius, 0);
+            int[] distances = map.blockingDistances.clone();
+            int lastOpen = 0;
+            for (int lookahead = 1; lookahead <= 255; lookahead += 7)
+            {
+                int valleys = map.findValleys(radius, lookahead, 0);
+                int[] centres = map.valleyCentres.clone();
+                int[] widths = map.valleyWidths.clone();
+                System.arraycopy(distances, 0, map.blockingDistances, 0, distances.length);
+                assertEquals(valleys, map.findValleys(lookahead));
+                for (int i = 0; i < valleys; i++)
+                {
+                    assertEquals(centres[i], map.valleyCentres[i]);
+                    assertEquals(widths[i], map.valleyWidths[i]);
+                }
+                if (valleys > 0) lastOpen = lookahead;
+            }
+            assertTrue(furthest >= lastOpen && (furthest < lastOpen + 7 || lastOpen == 253));
+        }
+    }
+
+    @Test
+    public void steeringTakesTheValleyOpenFurthest()
+    {
+        ProximityMap map = new ProximityMap(null, -90, 90);
+        for (int angle = -90; angle <= 90; angle++)
+        {
+            map.setDistanceAtAngle(angle, 60);
+        }
+        for (int angle = 40; angle <= 70; angle++)
+        {
+            map.setDistanceAtAngle(angle, 140);
+        }
+        // Nothing is open as far as the sonar sees, but a valley around 55
+        // degrees is open further than anywhere else.
+        assertEquals(0, map.findValleys(15, SmartRobot.MAXIMUM_TRUSTED_DISTANCE, 0));
+        int angle = AvoidanceMission.steeringAngle(map, 15);
+        assertTrue(angle > 45 && angle < 65);
+        assertEquals(0, AvoidanceMission.steeringAngle(map, 100));
+    }
+
+    @Test
+    public void distanceIsTheMedianOfTheSamplesKept()
+    {
+        ProximityMap map = new ProximityMap(null, -90, 90);
+        map.addSample(0, 100, 0);
+        map.addSample(0, 300, 10);
+        map.addSample(0, 150, 20);
+        assertEquals(150, map.getDistanceAtAngle(0), 0);
+        assertEquals(100, map.minimumDistance(0), 0);
+        // The oldest samples go once the ring is full.
+        for (int i = 0; i < ProximityMap.SAMPLES; i++)
+        {
+            map.addSample(0, 200, 30 + i);
+        }
+        assertEquals(200, map.getDistanceAtAngle(0), 0);
+        assertEquals(ProximityMap.SAMPLES, map.sampleCount(0));
+    }
+}
@@ -0,0 +1,64 @@
+package smartev3;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class SampleRingTest
+{
+    @Test
+    public void capacityIsRoundedUpToAPowerOfTwo()
+    {
+        assertEquals(128, new SampleRing(100).capacity());
+        assertEquals(128, new SampleRing(128).capacity());
+        assertEquals(2 * SampleRing.SAFETY_MARGIN, new SampleRing(1).capacity());
+    }
+
+    @Test
+    public void valueAtInterpolatesBetweenSamples()
+    {
+        SampleRing ring = new SampleRing(64);
+        assertTrue(Float.isNaN(ring.valueAt(0)));
+        ring.add(100, 10);
+        ring.add(200, 20);
+        ring.add(300, 0);
+        assertEquals(10, ring.valueAt(100), 0);
+        assertEquals(15, ring.valueAt(150), 1e-6);
+        assertEquals(10, ring.valueAt(250), 1e-6);
+        assertEquals(0, ring.valueAt(1000), 0);
+        assertTrue(Float.isNaN(ring.valueAt(50)));
+        assertEquals(1, ring.firstAtOrAfter(101));
+        assertEquals(3, ring.firstAtOrAfter(301));
+    }
+
+    @Test
+    public void oldSamplesAreDroppedWithAMargin()
+    {
+        SampleRing ring = new SampleRing(64);
+        for (int i = 0; i < 1000; i++)
+        {
+            ring.add(i * 10, i);
+        }
+        assertEquals(1000, ring.count());
+        assertEquals(1000 - 64 + SampleRing.SAFETY_MARGIN, ring.oldest());
+        assertTrue(Float.isNaN(ring.valueAt(10 * (ring.oldest() - 1))));
+        assertEquals(ring.oldest(), ring.value(ring.oldest()), 0);
+        assertEquals(999, ring.value(999), 0);
+    }
+
+    @Test
+    public void windowCopiesSamplesFromOneTimeUpToAnother()
+    {
+        SampleRing ring = new SampleRing(64);
+        for (int i = 0; i < 10; i++)
+        {
+            ring.add(i * 10, i);
+        }
+        long[] times = new long[8];
+        float[] values = new float[8];
+        assertEquals(3, ring.window(25, 60, times, values));
+        assertEquals(30, times[0]);
+        assertEquals(5, values[2], 0);
+        assertEquals(8, ring.window(0, 1000, times, values));
+    }
+}
@@ -0,0 +1,95 @@
+package smartev3;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ScanMatcherTest
+{
+    // A room 270 by 280 centimetres with the map's origin off centre. The
+    // walls run down the middle of map cells: the map only knows which cell
+    // a wall is in, so a match is good to half a cell.
+    private static final double WEST = -145, EAST = 125, SOUTH = -95, NORTH = 185;
+    private static final double HALF_CELL = 5;
+
+    /**
+     * What the robot would see from the pose, with angle 0 straight ahead:
+     * the distance to the walls along every bearing.
+     */
+    private static ProximityMap roomScan(double x, double y, double heading)
+    {
+        ProximityMap scan = new ProximityMap(null, -135, 135);
+        for (int angle = scan.minimumAngle; angle <= scan.maximumAngle; angle++)
+        {
+            double dx = Math.sin(Math.toRadians(heading + angle));
+            double dy = Math.cos(Math.toRadians(heading + angle));
+            double t = Double.POSITIVE_INFINITY;
+            if (dx > 1e-9) t = Math.min(t, (EAST - x) / dx);
+            if (dx < -1e-9) t = Math.min(t, (WEST - x) / dx);
+            if (dy > 1e-9) t = Math.min(t, (NORTH - y) / dy);
+            if (dy < -1e-9) t = Math.min(t, (SOUTH - y) / dy);
+            if (t <= SmartRobot.MAXIMUM_TRUSTED_DISTANCE) scan.setDistanceAtAngle(angle, (float)t);
+        }
+        return scan;
+    }
+
+    private static DiscoveryMap mappedRoom()
+    {
+        DiscoveryMap map = new DiscoveryMap();
+        map.addObstacles(roomScan(0, 0, 0), 0);
+        map.addObstacles(roomScan(0, 0, 180), 180);
+        return map;
+    }
+
+    @Test
+    public void findsWhereTheRobotReallyIs()
+    {
+        DiscoveryMap map = mappedRoom();
+        ScanMatcher matcher = new ScanMatcher(map);
+        // Dead reckoning says the robot is still at the origin facing north.
+        assertTrue(matcher.match(roomScan(8, -6, 3), 0));
+        assertEquals(8, map.robotLocation.x, HALF_CELL);
+        assertEquals(-6, map.robotLocation.y, HALF_CELL);
+        assertEquals(map.robotLocation.x, matcher.shiftX, 0);
+        assertEquals(map.robotLocation.y, matcher.shiftY, 0);
+        assertEquals(3, matcher.turn, 1);
+        assertTrue(matcher.score >= matcher.minimumScore);
+        assertEquals(0, map.locationVariance, 0);
+        // Blocks that cannot beat the best pose are never scored.
+        int shifts = Math.round(matcher.searchDistance * 4 / map.getCellSize());
+        assertTrue(matcher.posesScored < (2 * matcher.searchAngle + 1) * (2 * shifts + 1) * (2 * shifts + 1) / 4);
+    }
+
+    @Test
+    public void leavesTheRightPoseAlone()
+    {
+        DiscoveryMap map = mappedRoom();
+        ScanMatcher matcher = new ScanMatcher(map);
+        map.robotLocation = new Point(-20, 30);
+        assertFalse(matcher.match(roomScan(-20, 30, 90), 90));
+        assertTrue(matcher.score >= matcher.minimumScore);
+        assertEquals(-20, map.robotLocation.x, 0);
+        assertEquals(30, map.robotLocation.y, 0);
+    }
+
+    @Test
+    public void ignoresScansThatDoNotFit()
+    {
+        DiscoveryMap map = mappedRoom();
+        ScanMatcher matcher = new ScanMatcher(map);
+        // Boxed in by something that is not on the map.
+        assertFalse(matcher.match(DiscoveryMapTest.fullScan(40), 0));
+        assertEquals(0, map.robotLocation.x, 0);
+        assertEquals(0, map.robotLocation.y, 0);
+        assertEquals(0, matcher.turn);
+        assertTrue(matcher.score < matcher.minimumScore);
+        // Too few readings to go on.
+        ProximityMap few = new ProximityMap(null, -135, 135);
+        for (int angle = -5; angle <= 5; angle++)
+        {
+            few.setDistanceAtAngle(angle, 180);
+        }
+        assertFalse(matcher.match(few, 0));
+        assertEquals(0, matcher.posesScored);
+    }
+}
@@ -0,0 +1,113 @@
+package smartev3;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SensorSamplerTest
+{
+    private static class TestClock implements Clock
+    {
+        long now = 1000000;
+
+        public long nanoTime()
+        {
+            return now;
+        }
+
+        public void sleep(long nanoseconds)
+        {
+            now += nanoseconds;
+        }
+    }
+
+    private TestClock clock;
+    private SensorSampler sampler;
+    private int reads;
+    private int device;
+
+    @Before
+    public void setUp()
+    {
+        clock = new TestClock();
+        sampler = new SensorSampler();
+        sampler.setClock(clock);
+        reads = 0;
+        device = sampler.addDevice("counter", 1000, new SensorSampler.Device()
+        {
+            public float read()
+            {
+                return ++reads;
+            }
+        });
+    }
+
+    @Test
+    public void devicesAreOnlyReadWhenDue()
+    {
+        assertEquals(1, sampler.value(device), 0);
+        clock.now += 500000;
+        assertEquals(1, sampler.value(device), 0);
+        assertEquals(1, sampler.sampleCount(device));
+        clock.now += 500000;
+        assertEquals(2, sampler.value(device), 0);
+        assertEquals(2, reads);
+    }
+
+    @Test
+    public void readGivesTheTimeAndCountOfTheLatestSample()
+    {
+        long start = clock.now;
+        sampler.poll();
+        clock.now += 1500000;
+        SensorSampler.Sample sample = new SensorSampler.Sample();
+        sampler.read(device, sample);
+        assertEquals(2, sample.value, 0);
+        assertEquals(start + 1500000, sample.time);
+        assertEquals(2, sample.count);
+    }
+
+    @Test
+    public void awaitSampleWaitsForTheNextOne()
+    {
+        long count = sampler.sampleCount(device);
+        long start = clock.now;
+        assertEquals(count + 1, sampler.awaitSample(device, count));
+        assertEquals(start + 1000000, clock.now);
+    }
+
+    @Test
+    public void valueAtInterpolatesTheHistory()
+    {
+        long start = clock.now;
+        sampler.poll();
+        clock.now += 1000000;
+        sampler.poll();
+        assertEquals(1.25f, sampler.valueAt(device, start + 250000), 1e-6);
+        // A time after the latest sample waits for the next one.
+        assertEquals(2.5f, sampler.valueAt(device, start + 1500000), 1e-6);
+        assertEquals(3, reads);
+    }
+
+    @Test
+    public void failedReadsAreCountedAndLeaveTheLastValue()
+    {
+        final boolean[] failing = new boolean[1];
+        SensorSampler sampler = new SensorSampler();
+        sampler.setClock(clock);
+        int flaky = sampler.addDevice("flaky", 1000, new SensorSampler.Device()
+        {
+            public float read()
+            {
+                if (failing[0]) throw new RuntimeException("no reply");
+                return 7;
+            }
+        });
+        assertEquals(7, sampler.value(flaky), 0);
+        failing[0] = true;
+        clock.now += 1000000;
+        assertEquals(7, sampler.value(flaky), 0);
+        assertEquals(1, sampler.errorCount(flaky));
+    }
+}
@@ -0,0 +1,151 @@
+package smartev3;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import lejos.robotics.SampleProvider;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SensorTraceTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static SimulatedRobot simulator()
+    {
+        FloorPlan room = new FloorPlan(new int[] { -200, -200, 200, 200 }, new int[0][]);
+        return new SimulatedRobot(room, 0, 0, 0, 1);
+    }
+
+    /**
+     * A few moments of a mission: clock reads and sleeps, motor commands and
+     * reads, and a read of each sensor. Returns everything it got back, with
+     * the time it got it.
+     */
+    private static List<Object> drive(RobotHardware hardware)
+    {
+        List<Object> seen = new ArrayList<Object>();
+        RobotHardware.Motor left = hardware.leftMotor();
+        RobotHardware.Motor right = hardware.rightMotor();
+        SampleProvider gyro = hardware.gyroSensor().getAngleMode();
+        SampleProvider sonar = hardware.sonarSensor().getDistanceMode();
+        RobotHardware.TouchSensor touch = hardware.leftTouchSensor();
+        float[] sample = new float[1];
+        left.setSpeed(300);
+        right.setSpeed(300);
+        left.rotateTo(200, true);
+        right.rotateTo(-200, true);
+        for (int pass = 0; pass < 20; pass++)
+        {
+            hardware.sleep(20000000L);
+            seen.add(hardware.nanoTime());
+            seen.add(left.getPosition());
+            seen.add(right.getPosition());
+            seen.add(left.isMoving());
+            gyro.fetchSample(sample, 0);
+            seen.add(sample[0]);
+            sonar.fetchSample(sample, 0);
+            seen.add(sample[0]);
+        }
+        seen.add(touch.isPressed());
+        left.stop();
+        right.brake();
+        left.coast();
+        seen.add(hardware.nanoTime());
+        return seen;
+    }
+
+    @Test
+    public void replayGetsWhatWasRecordedInTheSameOrder()
+    {
+        File file = new File(folder.getRoot(), "drive.trace");
+        SensorTrace recording = SensorTrace.create(file, "drive test");
+        List<Object> recorded = drive(new TraceRecorder(simulator(), recording));
+        recording.close();
+        long events = recording.events;
+
+        SensorTrace replaying = SensorTrace.open(file);
+        assertEquals("drive test", replaying.mission);
+        TraceReplay replay = new TraceReplay(replaying);
+        assertEquals(recorded, drive(replay));
+        assertEquals(events, replaying.events);
+        assertFalse(replaying.ended);
+        // Past the end: reads throw, commands are ignored so the robot can stop.
+        try
+        {
+            replay.nanoTime();
+            fail("read past the end of the trace");
+        }
+        catch (SensorTrace.TraceEnded expected)
+        {
+        }
+        assertTrue(replaying.ended);
+        replay.leftMotor().stop();
+        replay.rightMotor().setSpeed(0);
+        replaying.close();
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void replayFailsWhenTheMissionDoesSomethingElse()
+    {
+        File file = new File(folder.getRoot(), "speed.trace");
+        SensorTrace recording = SensorTrace.create(file, "");
+        new TraceRecorder(simulator(), recording).leftMotor().setSpeed(300);
+        recording.close();
+        new TraceReplay(SensorTrace.open(file)).leftMotor().setSpeed(400);
+    }
+
+    @Test
+    public void fieldsComeBackExactly()
+    {
+        File file = new File(folder.getRoot(), "fields.trace");
+        SensorTrace trace = SensorTrace.create(file, "");
+        double[] pose = { 12.25, -0.1, Math.PI, 1e-9 };
+        long[] times = { 0, 5, Long.MAX_VALUE / 2, -7, 3000000000L };
+        float[] values = { 0, -3, 254, 0.5f, -0.0f, Float.NaN, 1e20f };
+        for (int i = 0; i < times.length; i++)
+        {
+            trace.record(SensorTrace.READ, 3, values[i], times[i], i);
+        }
+        for (float value : values)
+        {
+            trace.record(SensorTrace.VALUE, 4, value);
+        }
+        trace.record(SensorTrace.POSE, 0, times[4], pose);
+        // Left open, as after a crash: the trace ends at the first zero byte.
+        SensorTrace replay = SensorTrace.open(file);
+        for (int i = 0; i < times.length; i++)
+        {
+            replay.expect(SensorTrace.READ, 3);
+            assertEquals(Float.floatToIntBits(values[i]), Float.floatToIntBits(replay.readFloat(0)));
+            assertEquals(times[i], replay.readLong(1));
+            assertEquals(i, replay.readLong(2));
+        }
+        for (float value : values)
+        {
+            replay.expect(SensorTrace.VALUE, 4);
+            assertEquals(Float.floatToIntBits(value), Float.floatToIntBits(replay.readFloat(0)));
+        }
+        replay.expect(SensorTrace.POSE, 0);
+        assertEquals(times[4], replay.readLong(0));
+        for (double value : pose)
+        {
+            assertEquals(Double.doubleToLongBits(value), Double.doubleToLongBits(replay.readDouble()));
+        }
+        try
+        {
+            replay.expect(SensorTrace.TIME, 0);
+            fail("read past the end of the trace");
+        }
+        catch (SensorTrace.TraceEnded expected)
+        {
+        }
+        trace.close();
+        replay.close();
+    }
+}
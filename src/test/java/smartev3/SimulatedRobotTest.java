@@ -0,0 +1,165 @@
+package smartev3;
+
+import static org.junit.Assert.*;
+
+import lejos.robotics.SampleProvider;
+
+import org.junit.Test;
+
+public class SimulatedRobotTest
+{
+    private static final int[] ROOM = { -200, -100, 150, 100 };
+
+    private static SimulatedRobot robotIn(FloorPlan plan)
+    {
+        SimulatedRobot robot = new SimulatedRobot(plan, 0, 0, 0, 1);
+        robot.sonarNoise = 0;
+        return robot;
+    }
+
+    private static float fetch(SampleProvider provider)
+    {
+        float[] sample = new float[1];
+        provider.fetchSample(sample, 0);
+        return sample[0];
+    }
+
+    @Test
+    public void raysStopAtTheFirstSurface()
+    {
+        FloorPlan plan = new FloorPlan(ROOM, new int[][] { { 50, -10, 70, 10 } });
+        assertEquals(100, plan.distance(0, 0, 0, 1), 1e-9);
+        assertEquals(1, plan.hitAxis);
+        assertEquals(200, plan.distance(0, 0, -1, 0), 1e-9);
+        assertEquals(0, plan.hitAxis);
+        // The box is in the way to the east, but not from above it.
+        assertEquals(50, plan.distance(0, 0, 1, 0), 1e-9);
+        assertEquals(0, plan.hitAxis);
+        assertEquals(150, plan.distance(0, 20, 1, 0), 1e-9);
+        // Down onto its top face.
+        double s = Math.sqrt(0.5);
+        assertEquals(Math.hypot(10, 10), plan.distance(50, 20, s, -s), 1e-9);
+        assertEquals(1, plan.hitAxis);
+        assertEquals(Math.hypot(100, 100), plan.distance(0, 0, -s, s), 1e-9);
+    }
+
+    @Test
+    public void surfaceDistanceIsToTheNearestWallOrCorner()
+    {
+        FloorPlan plan = new FloorPlan(ROOM, new int[][] { { 50, -10, 70, 10 } });
+        assertEquals(50, plan.surfaceDistance(0, 0), 1e-9);
+        assertEquals(10, plan.surfaceDistance(140, -50), 1e-9);
+        assertEquals(5, plan.surfaceDistance(74, 13), 1e-9);
+        assertEquals(0, plan.surfaceDistance(60, 0), 1e-9);
+    }
+
+    @Test
+    public void timeOnlyMovesWhenTheRobotWaitsOrUsesADevice()
+    {
+        SimulatedRobot robot = robotIn(new FloorPlan(ROOM, new int[0][]));
+        assertEquals(0, robot.nanoTime());
+        robot.sleep(5000000);
+        assertEquals(5000000, robot.nanoTime());
+        robot.leftMotor().getPosition();
+        assertEquals(5000000 + SimulatedRobot.IO_TIME, robot.nanoTime());
+        robot.timeLimit = robot.nanoTime() + 1000000000;
+        try
+        {
+            robot.sleep(2000000000);
+            fail("ran past the time limit");
+        }
+        catch (SimulatedRobot.SimulationOver expected)
+        {
+        }
+    }
+
+    @Test
+    public void wheelsDriveAndTurnTheRobot()
+    {
+        SimulatedRobot robot = robotIn(new FloorPlan(ROOM, new int[0][]));
+        SampleProvider gyro = robot.gyroSensor().getAngleMode();
+        RobotHardware.Motor left = robot.leftMotor();
+        RobotHardware.Motor right = robot.rightMotor();
+        left.setSpeed(360);
+        right.setSpeed(360);
+        // One turn of both wheels: a wheel's circumference straight ahead,
+        // give or take the left wheel starting a device use before the right.
+        left.rotateTo(360, true);
+        right.rotateTo(360, false);
+        while (left.isMoving())
+        {
+            robot.sleep(1000000);
+        }
+        assertEquals(360, left.getPosition(), 0);
+        assertEquals(0, robot.x, 0.1);
+        assertEquals(Math.PI * robot.wheelDiameter, robot.y, 0.01);
+        assertEquals(0, robot.heading, 1e-9);
+        // Wheels turning opposite ways spin it on the spot, clockwise
+        // when the left one goes forward.
+        double x = robot.x, y = robot.y;
+        left.rotateTo(720, true);
+        right.rotateTo(0, false);
+        while (left.isMoving())
+        {
+            robot.sleep(1000000);
+        }
+        double turn = Math.toDegrees(2 * Math.PI * robot.wheelDiameter / robot.trackWidth);
+        assertEquals(turn, robot.heading, 1e-6);
+        assertEquals(x, robot.x, 0.1);
+        assertEquals(y, robot.y, 0.1);
+        assertEquals(Math.round(turn), fetch(gyro), 0);
+        assertEquals(0, robot.collisions);
+    }
+
+    @Test
+    public void wallsStopTheRobotAndPressTheBumpers()
+    {
+        SimulatedRobot robot = robotIn(new FloorPlan(ROOM, new int[0][]));
+        RobotHardware.TouchSensor bumper = robot.leftTouchSensor();
+        assertFalse(bumper.isPressed());
+        robot.leftMotor().setSpeed(720);
+        robot.rightMotor().setSpeed(720);
+        robot.leftMotor().forward();
+        robot.rightMotor().forward();
+        robot.sleep(10000000000L);
+        assertEquals(100 - robot.bodyRadius, robot.y, 0.2);
+        assertEquals(1, robot.collisions);
+        assertTrue(bumper.isPressed());
+        assertTrue(robot.rightTouchSensor().isPressed());
+    }
+
+    @Test
+    public void sonarHearsSurfacesItFacesSquarely()
+    {
+        SimulatedRobot robot = robotIn(new FloorPlan(ROOM, new int[0][]));
+        SampleProvider sonar = robot.sonarSensor().getDistanceMode();
+        assertEquals(100 - robot.headAhead - robot.eyesAhead, fetch(sonar), 1e-4);
+        robot.headMotor().setSpeed(720);
+        robot.headMotor().rotateTo(90, false);
+        assertEquals(150 - robot.eyesAhead, fetch(sonar), 1e-4);
+        // Nothing to hear but a wall met at a glancing angle, and one out of range.
+        SimulatedRobot glancing = robotIn(new FloorPlan(new int[] { -1000, -1000, 1000, 50 }, new int[0][]));
+        glancing.heading = 80;
+        assertEquals(255, fetch(glancing.sonarSensor().getDistanceMode()), 0);
+    }
+
+    @Test
+    public void theSameSeedGivesTheSameReadings()
+    {
+        FloorPlan plan = FloorPlan.furnishedRoom();
+        SimulatedRobot first = new SimulatedRobot(plan, 0, 0, 30, 42);
+        SimulatedRobot second = new SimulatedRobot(plan, 0, 0, 30, 42);
+        SampleProvider a = first.sonarSensor().getDistanceMode();
+        SampleProvider b = second.sonarSensor().getDistanceMode();
+        boolean noisy = false;
+        float previous = fetch(a);
+        assertEquals(previous, fetch(b), 0);
+        for (int i = 0; i < 20; i++)
+        {
+            float reading = fetch(a);
+            assertEquals(reading, fetch(b), 0);
+            noisy |= reading != previous;
+        }
+        assertTrue(noisy);
+    }
+}
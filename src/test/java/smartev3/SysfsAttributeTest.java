@@ -0,0 +1,118 @@
+package smartev3;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SysfsAttributeTest
+{
+    private static final byte[] RUNNING = { 'r', 'u', 'n', 'n', 'i', 'n', 'g' };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File write(String name, String value) throws IOException
+    {
+        File file = new File(folder.getRoot(), name);
+        try (FileOutputStream output = new FileOutputStream(file))
+        {
+            output.write(value.getBytes("US-ASCII"));
+        }
+        return file;
+    }
+
+    @Test
+    public void readsWholeNumbersAfreshEachTime() throws IOException
+    {
+        write("position", "0\n");
+        SysfsAttribute position = new SysfsAttribute(folder.getRoot(), "position");
+        assertEquals(0, position.readInt());
+        int[] values = { 7, -1234, 360000, Integer.MAX_VALUE, Integer.MIN_VALUE, 42 };
+        for (int value : values)
+        {
+            write("position", value + "\n");
+            assertEquals(value, position.readInt());
+        }
+        // Shorter than before, and without a newline.
+        write("position", "5");
+        assertEquals(5, position.readInt());
+        position.close();
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void rejectsWhatIsNotAWholeNumber() throws IOException
+    {
+        write("position", "12x\n");
+        new SysfsAttribute(folder.getRoot(), "position").readInt();
+    }
+
+    @Test
+    public void findsWholeWordsInAList() throws IOException
+    {
+        write("state", "running stalled\n");
+        SysfsAttribute state = new SysfsAttribute(folder.getRoot(), "state");
+        assertTrue(state.hasWord(RUNNING));
+        assertTrue(state.hasWord(new byte[] { 's', 't', 'a', 'l', 'l', 'e', 'd' }));
+        assertFalse(state.hasWord(new byte[] { 'r', 'u', 'n' }));
+        write("state", "holding\n");
+        assertFalse(state.hasWord(RUNNING));
+        write("state", "");
+        assertFalse(state.hasWord(RUNNING));
+        state.close();
+    }
+
+    @Test
+    public void readsWithoutAllocating() throws IOException
+    {
+        write("position", "-123456\n");
+        write("state", "running stalled\n");
+        SysfsAttribute position = new SysfsAttribute(folder.getRoot(), "position");
+        SysfsAttribute state = new SysfsAttribute(folder.getRoot(), "state");
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)java.lang.management.ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        int reads = 10000;
+        long total = 0;
+        for (int round = 0; round < 2; round++)
+        {
+            long bytes0 = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < reads; i++)
+            {
+                total += position.readInt();
+                if (state.hasWord(RUNNING)) total++;
+            }
+            long bytes1 = threads.getThreadAllocatedBytes(thread);
+            // The first round warms up; allow for the measurement itself.
+            if (round == 1) assertTrue("allocated " + (bytes1 - bytes0) + " bytes", bytes1 - bytes0 < reads);
+        }
+        assertEquals(2L * reads * -123455, total);
+        position.close();
+        state.close();
+    }
+
+    @Test
+    public void opensAgainAfterAnInterruptedRead() throws IOException
+    {
+        write("position", "17\n");
+        SysfsAttribute position = new SysfsAttribute(folder.getRoot(), "position");
+        Thread.currentThread().interrupt();
+        try
+        {
+            position.readInt();
+            fail("read while interrupted");
+        }
+        catch (RuntimeException expected)
+        {
+        }
+        finally
+        {
+            Thread.interrupted();
+        }
+        assertEquals(17, position.readInt());
+        position.close();
+    }
+}
@@ -0,0 +1,80 @@
+package smartev3;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TiledGridTest
+{
+    @Test
+    public void unwrittenCellsReadAsTheDefault()
+    {
+        TiledGrid grid = new TiledGrid();
+        int bytes = grid.addByteLayer((byte)7);
+        int ints = grid.addIntLayer(-1);
+        int index = TiledGrid.index(1000, 2000);
+        assertEquals(7, grid.getByte(bytes, index));
+        assertEquals(-1, grid.getInt(ints, index));
+        assertFalse(grid.isAllocated(index));
+        assertEquals(0, grid.tileCount());
+    }
+
+    @Test
+    public void writesOnlyAllocateTheirOwnTile()
+    {
+        TiledGrid grid = new TiledGrid();
+        int layer = grid.addIntLayer(0);
+        int near = TiledGrid.index(0, 0);
+        int far = TiledGrid.index(TiledGrid.EXTENT - 1, TiledGrid.EXTENT - 1);
+        grid.setInt(layer, near, 12);
+        grid.setInt(layer, far, 34);
+        assertEquals(12, grid.getInt(layer, near));
+        assertEquals(34, grid.getInt(layer, far));
+        assertEquals(2, grid.tileCount());
+        assertFalse(grid.isAllocated(TiledGrid.index(TiledGrid.TILE_SIZE, 0)));
+    }
+
+    @Test
+    public void indexPacksRowAndColumn()
+    {
+        int index = TiledGrid.index(123, 4567);
+        assertEquals(123, TiledGrid.row(index));
+        assertEquals(4567, TiledGrid.column(index));
+        assertEquals(TiledGrid.index(124, 4567), index + TiledGrid.ROW_STRIDE);
+        assertTrue(TiledGrid.contains(0, TiledGrid.EXTENT - 1));
+        assertFalse(TiledGrid.contains(-1, 0));
+        assertFalse(TiledGrid.contains(0, TiledGrid.EXTENT));
+    }
+
+    @Test
+    public void manyTilesSurviveTheTableGrowing()
+    {
+        TiledGrid grid = new TiledGrid();
+        int layer = grid.addIntLayer(0);
+        for (int i = 0; i < 500; i++)
+        {
+            grid.setInt(layer, TiledGrid.index(i * TiledGrid.TILE_SIZE, 3 * i), i + 1);
+        }
+        assertEquals(500, grid.tileCount());
+        for (int i = 0; i < 500; i++)
+        {
+            assertEquals(i + 1, grid.getInt(layer, TiledGrid.index(i * TiledGrid.TILE_SIZE, 3 * i)));
+        }
+    }
+
+    @Test
+    public void snapshotsAndTheirGridDoNotSeeEachOthersWrites()
+    {
+        TiledGrid grid = new TiledGrid();
+        int layer = grid.addByteLayer((byte)0);
+        int index = TiledGrid.index(50, 60);
+        grid.setByte(layer, index, (byte)1);
+        TiledGrid snapshot = grid.snapshot();
+        grid.setByte(layer, index, (byte)2);
+        snapshot.setByte(layer, index + 1, (byte)3);
+        assertEquals(2, grid.getByte(layer, index));
+        assertEquals(0, grid.getByte(layer, index + 1));
+        assertEquals(1, snapshot.getByte(layer, index));
+        assertEquals(3, snapshot.getByte(layer, index + 1));
+    }
+}